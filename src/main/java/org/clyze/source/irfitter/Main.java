@@ -2,21 +2,58 @@ package org.clyze.source.irfitter;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.StringJoiner;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import org.apache.commons.cli.*;
+import org.clyze.source.irfitter.api.BatchRun;
+import org.clyze.source.irfitter.api.IRSnapshot;
+import org.clyze.source.irfitter.api.MatchJob;
+import org.clyze.source.irfitter.daemon.AccessToken;
+import org.clyze.source.irfitter.daemon.Daemon;
+import org.clyze.source.irfitter.daemon.DaemonClient;
+import org.clyze.source.irfitter.daemon.QueryServer;
 import org.clyze.source.irfitter.ir.IRState;
+import org.clyze.source.irfitter.ir.PlatformCache;
 import org.clyze.source.irfitter.source.Driver;
+import org.clyze.source.irfitter.source.PartitionedRun;
+import org.clyze.source.irfitter.source.ShardedRun;
+import org.clyze.source.irfitter.source.SourceOptions;
+import org.clyze.source.irfitter.source.StreamingPipeline;
+import org.clyze.source.irfitter.source.WatchRun;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataReader;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataWriter;
 import org.clyze.source.irfitter.source.model.SourceFile;
+import org.clyze.source.irfitter.source.sink.DiffSink;
+import org.clyze.source.irfitter.source.sink.NdjsonSink;
+import org.clyze.source.irfitter.source.sink.ZipSink;
 import org.clyze.source.irfitter.ir.IRProcessor;
 import org.clyze.utils.JHelper;
 
 /** The main application class. */
 public class Main {
+    /** The option that submits a run to a daemon. */
+    private static final String CONNECT_ARG = "--connect";
+    /** The option that sets the access token file of a daemon. */
+    private static final String TOKEN_FILE_ARG = "--token-file";
+    private static final String MANIFEST_ARG = "--manifest";
+    /** The options whose values are paths (made absolute when a run is submitted to a daemon). */
+    private static final List<String> PATH_OPTIONS = Arrays.asList("-s", "--source", "-i", "--ir", "-o", "--out", "-f", "--database", "--platform", "--source-snapshots", "--manifest");
 
     public static void main(String[] args) {
+        // A client exits with the status of the run in the daemon.
+        int connectIdx = Arrays.asList(args).indexOf(CONNECT_ARG);
+        if (connectIdx >= 0)
+            System.exit(connect(args, connectIdx));
         run(args);
     }
 
@@ -26,16 +63,28 @@ public class Main {
      * @return        the result of the run
      */
     public static RunResult run(String[] args) {
+        return run(args, null);
+    }
+
+    /**
+     * Main entry point, for processes that serve many runs.
+     * @param args            command-line arguments
+     * @param platformCache   the cache of platform IR (or null to always read platforms)
+     * @return                the result of the run
+     */
+    public static RunResult run(String[] args, PlatformCache platformCache) {
         Options options = new Options();
 
         Option srcOpt = new Option("s", "source", true, "Sources (.zip/.jar file or directory).");
-        srcOpt.setRequired(true);
+        // The artifacts of a manifest have their own IR and sources.
+        boolean manifestRun = Arrays.asList(args).contains(MANIFEST_ARG);
+        srcOpt.setRequired(!manifestRun);
         srcOpt.setArgName("PATH");
         srcOpt.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(srcOpt);
 
         Option irOpt = new Option("i", "ir", true, "IR file, directory, or .class/.jar/.war/.ear/.apk/.dex file.");
-        irOpt.setRequired(true);
+        irOpt.setRequired(!manifestRun);
         irOpt.setArgName("PATH");
         irOpt.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(irOpt);
@@ -100,6 +149,119 @@ public class Main {
         Option disableKotlinOpt = new Option(null, "disable-kotlin", false, "Disable processing of Kotlin sources.");
         options.addOption(disableKotlinOpt);
 
+        Option groovyStreamingOpt = new Option(null, "groovy-token-stream", true, "How the Groovy parser reads its input: " + enumValues(SourceOptions.TokenStreaming.values()) + " (default: buffered). Files that cannot be parsed from unbuffered input are parsed again with buffered input.");
+        groovyStreamingOpt.setArgName("MODE");
+        options.addOption(groovyStreamingOpt);
+
+        Option parseTimeBudgetOpt = new Option(null, "parse-time-budget", true, "Maximum time (in milliseconds) to spend parsing a single Groovy/Kotlin file, before falling back to scanning its declarations only.");
+        parseTimeBudgetOpt.setArgName("MS");
+        options.addOption(parseTimeBudgetOpt);
+
+        Option parseTokenBudgetOpt = new Option(null, "parse-token-budget", true, "Maximum number of parser steps (consumed tokens) for a single Groovy/Kotlin file, before falling back to scanning its declarations only.");
+        parseTokenBudgetOpt.setArgName("N");
+        options.addOption(parseTokenBudgetOpt);
+
+        Option bodiesOnDemandOpt = new Option(null, "bodies-on-demand", false, "Visit method bodies only for source methods that match IR methods (elements inside unmatched methods are not reported). The parse trees of the sources are kept until they are matched, so this is best combined with --streaming.");
+        options.addOption(bodiesOnDemandOpt);
+
+        Option prefilterOpt = new Option(null, "source-prefilter", true, "How to handle source files whose top-level types do not appear in the IR: " + enumValues(SourceOptions.Prefilter.values()) + " (default: off). The top-level types of each file are found by a lexical scan, which may be inexact.");
+        prefilterOpt.setArgName("MODE");
+        options.addOption(prefilterOpt);
+
+        Option reduceGeneratedOpt = new Option(null, "reduce-generated-code", false, "Only read the declarations of generated sources (with a @Generated annotation or an @generated header comment).");
+        options.addOption(reduceGeneratedOpt);
+
+        Option generatedPathOpt = new Option(null, "generated-path", true, "Treat sources matching this glob pattern (relative to the source root) as generated code (implies --reduce-generated-code).");
+        generatedPathOpt.setArgName("GLOB");
+        generatedPathOpt.setArgs(Option.UNLIMITED_VALUES);
+        options.addOption(generatedPathOpt);
+
+        Option generatedSizeOpt = new Option(null, "generated-size-threshold", true, "Treat sources larger than this size (in bytes) as generated code (implies --reduce-generated-code).");
+        generatedSizeOpt.setArgName("BYTES");
+        options.addOption(generatedSizeOpt);
+
+        Option snapshotsOpt = new Option(null, "source-snapshots", true, "Keep the parsed sources in this directory (keyed by file contents) and reuse them in later runs, e.g. to match the same sources against different IR builds.");
+        snapshotsOpt.setArgName("PATH");
+        options.addOption(snapshotsOpt);
+
+        Option duplicatesOpt = new Option(null, "duplicate-sources", true, "How to handle source files with the same contents as other source files: " + enumValues(SourceOptions.Duplicates.values()) + " (default: off). 'emit' parses such files once but generates metadata for every path, 'suppress' only processes the first path. Both modes read and hash every source file.");
+        duplicatesOpt.setArgName("MODE");
+        options.addOption(duplicatesOpt);
+
+        Option irTypeResolutionOpt = new Option(null, "ir-type-resolution", false, "Resolve source types that may refer to more than one type (e.g. due to wildcard imports) to the types found in the IR.");
+        options.addOption(irTypeResolutionOpt);
+
+        Option pipelinedOpt = new Option(null, "pipelined", false, "Read the IR and the sources concurrently. The source prefilter is then applied after parsing.");
+        options.addOption(pipelinedOpt);
+
+        Option streamingOpt = new Option(null, "streaming", false, "Match and generate the metadata of each source file as soon as it is read, and release it afterwards (not supported with SARIF integration).");
+        options.addOption(streamingOpt);
+
+        Option streamingDepthOpt = new Option(null, "streaming-queue-depth", true, "The number of source files that may wait between streaming stages (default: " + StreamingPipeline.DEFAULT_QUEUE_DEPTH + ").");
+        streamingDepthOpt.setArgName("N");
+        options.addOption(streamingDepthOpt);
+
+        Option metadataThreadsOpt = new Option(null, "metadata-threads", true, "The number of threads that write JSON metadata files (default: the number of processors).");
+        metadataThreadsOpt.setArgName("N");
+        options.addOption(metadataThreadsOpt);
+
+        Option outputSinkOpt = new Option(null, "output-sink", true, "Where the output files are written: " + enumValues(SourceOptions.Sink.values()) + " (default: files). 'ndjson' writes all JSON metadata reports to one newline-delimited JSON file (" + NdjsonSink.FILE_NAME + "), 'gzip' compresses that file, 'zip' writes all output files to one archive (" + ZipSink.FILE_NAME + "), 'diff' writes one file per source file but skips files whose contents have not changed since the previous run in the same output directory and deletes stale ones, keeping the SHA-256 hashes of the output files in a manifest (" + DiffSink.MANIFEST + "). Every line of the NDJSON file is an object with the path and the report of a source file ({\"path\":...,\"report\":...}). Reports are the same as report files.");
+        outputSinkOpt.setArgName("MODE");
+        options.addOption(outputSinkOpt);
+
+        Option binaryMetadataOpt = new Option(null, "binary-metadata", false, "Also write the matched metadata in a compact binary format (" + BinaryMetadataWriter.FILE_NAME + "), with string tables, fixed-width symbol records, a hash index by symbol (IR) id and per-file interval trees over source positions, for memory-mapped lookups.");
+        options.addOption(binaryMetadataOpt);
+
+        Option serveOpt = new Option(null, "serve", true, "After the run, keep the matched metadata in memory and answer lookups on a local port (by symbol id, by source position and per source file) until a client sends 'stop'. Requests are lines of tab-separated fields: '" + QueryServer.ID + "\tID', '" + QueryServer.AT + "\tPATH\tLINE\tCOLUMN', '" + QueryServer.FILE + "\tPATH', '" + QueryServer.FILES + "' or '" + QueryServer.STOP + "'; replies are lines of JSON. The first line of a connection is the access token of the server (see --" + TOKEN_FILE_ARG.substring(2) + ").");
+        serveOpt.setArgName("PORT");
+        options.addOption(serveOpt);
+
+        Option partitionDepthOpt = new Option(null, "partition-depth", true, "Process the IR and the sources in partitions of packages with the same first N package name components, one partition at a time (not supported with Doop/SARIF integration). The IR is read once more for every partition, but only the classes of the partition are parsed (except in .apk files).");
+        partitionDepthOpt.setArgName("N");
+        options.addOption(partitionDepthOpt);
+
+        Option shardsOpt = new Option(null, "shards", true, "Split the sources into N shards and process each shard in a separate worker process, merging their output (not supported with Doop/SARIF integration).");
+        shardsOpt.setArgName("N");
+        options.addOption(shardsOpt);
+
+        Option shardRetriesOpt = new Option(null, "shard-retries", true, "The number of times a failed shard worker is restarted (default: 1).");
+        shardRetriesOpt.setArgName("N");
+        options.addOption(shardRetriesOpt);
+
+        Option shardOpt = new Option(null, "shard", true, "Only process the source files of shard I of N (used by shard workers).");
+        shardOpt.setArgName("I/N");
+        options.addOption(shardOpt);
+
+        Option shardSourcesOpt = new Option(null, "shard-sources", true, "Only process the source files listed in a file (one path per line, relative to its source directory/archive), instead of finding the files of the --shard by their contents (used by shard workers).");
+        shardSourcesOpt.setArgName("FILE");
+        options.addOption(shardSourcesOpt);
+
+        Option watchOpt = new Option(null, "watch", false, "Keep running and match again the source files (and the source files of the IR types) that change in the source/IR directories (not supported with Doop/SARIF integration).");
+        options.addOption(watchOpt);
+
+        Option manifestOpt = new Option(null, MANIFEST_ARG.substring(2), true, "Process the artifacts listed in a manifest file (one artifact per line, with tab-separated IR, sources and output directory) in one run. The --" + platformOpt.getLongOpt() + " IR is read once and shared by all artifacts; the other options apply to every artifact.");
+        manifestOpt.setArgName("FILE");
+        options.addOption(manifestOpt);
+
+        Option manifestParallelismOpt = new Option(null, "manifest-parallelism", true, "The number of manifest artifacts processed at the same time (default: the number of processors).");
+        manifestParallelismOpt.setArgName("N");
+        options.addOption(manifestParallelismOpt);
+
+        Option daemonOpt = new Option(null, "daemon", true, "Start a daemon that serves runs submitted with --" + CONNECT_ARG.substring(2) + " on a local port. The IR of the platforms given with --platform (and of later runs) is cached.");
+        daemonOpt.setArgName("PORT");
+        options.addOption(daemonOpt);
+
+        Option connectOpt = new Option(null, CONNECT_ARG.substring(2), true, "Submit this run to the daemon listening on a local port.");
+        connectOpt.setArgName("PORT");
+        options.addOption(connectOpt);
+
+        Option stopDaemonOpt = new Option(null, "stop-daemon", false, "Stop the daemon (with --" + CONNECT_ARG.substring(2) + ").");
+        options.addOption(stopDaemonOpt);
+
+        Option tokenFileOpt = new Option(null, TOKEN_FILE_ARG.substring(2), true, "The file with the access token of the daemon or of the query server (default: ~/.source-ir-fitter/daemon-PORT.token or ~/.source-ir-fitter/query-PORT.token). A server writes a new token when it starts and clients send it with every connection.");
+        tokenFileOpt.setArgName("FILE");
+        options.addOption(tokenFileOpt);
+
         if (args.length == 0) {
             printUsage(options);
             return null;
@@ -115,6 +277,12 @@ public class Main {
             } else if (arg.equals(help1) || arg.equals(help2)) {
                 printUsage(options);
                 return null;
+            } else if (arg.equals("--" + daemonOpt.getLongOpt())) {
+                if (platformCache != null)
+                    System.err.println("ERROR: a daemon cannot start another daemon.");
+                else
+                    startDaemon(args, daemonOpt, tokenFileOpt, platformOpt, debugOpt);
+                return null;
             }
 
         CommandLineParser parser = new GnuParser();
@@ -129,14 +297,23 @@ public class Main {
             if (missingOption(cli, resolveVarsOpt, dbOpt) ||
                 missingOption(cli, translateResultsOpt, dbOpt) ||
                 missingOption(cli, sarifOpt, dbOpt) ||
-                missingOption(cli, sarifOpt, outOpt))
+                missingOption(cli, sarifOpt, outOpt) ||
+                missingOption(cli, shardsOpt, outOpt) ||
+                missingOption(cli, shardOpt, outOpt) ||
+                missingOption(cli, shardSourcesOpt, shardOpt))
                 return null;
             boolean json = cli.hasOption(jsonOpt.getOpt());
             boolean out = cli.hasOption(outOpt.getOpt());
-            if (json && !out) {
+            String manifest = cli.getOptionValue(manifestOpt.getLongOpt());
+            if (json && !out && manifest == null) {
                 System.err.println("ERROR: --" + jsonOpt.getLongOpt() + " requires -" + outOpt.getOpt() + "/--" + outOpt.getLongOpt());
                 return null;
             }
+            boolean binaryMetadata = cli.hasOption(binaryMetadataOpt.getLongOpt());
+            if (binaryMetadata && !out && manifest == null) {
+                System.err.println("ERROR: --" + binaryMetadataOpt.getLongOpt() + " requires -" + outOpt.getOpt() + "/--" + outOpt.getLongOpt());
+                return null;
+            }
             boolean synthesizeTypes = cli.hasOption(synthOpt.getLongOpt());
             boolean lossy = cli.hasOption(lossyOpt.getLongOpt());
             boolean resolveInvocations = cli.hasOption(resolveInvocationsOpt.getLongOpt());
@@ -147,48 +324,468 @@ public class Main {
             String[] platforms = cli.getOptionValues(platformOpt.getLongOpt());
             String[] srcs = cli.getOptionValues(srcOpt.getOpt());
             String[] relVars = cli.getOptionValues(relOpt.getOpt());
+            SourceOptions sourceOptions = new SourceOptions();
+            sourceOptions.groovyStreaming = readEnum(cli, groovyStreamingOpt, SourceOptions.TokenStreaming.class, sourceOptions.groovyStreaming);
+            Long parseTimeBudget = readNonNegative(cli, parseTimeBudgetOpt);
+            Long parseTokenBudget = readNonNegative(cli, parseTokenBudgetOpt);
+            Long generatedSizeThreshold = readNonNegative(cli, generatedSizeOpt);
+            Long streamingDepth = readNonNegative(cli, streamingDepthOpt);
+            Long partitionDepth = readNonNegative(cli, partitionDepthOpt);
+            Long shards = readNonNegative(cli, shardsOpt);
+            Long metadataThreads = cli.hasOption(metadataThreadsOpt.getLongOpt()) ? readNonNegative(cli, metadataThreadsOpt) : Long.valueOf(sourceOptions.metadataThreads);
+            Long shardRetries = cli.hasOption(shardRetriesOpt.getLongOpt()) ? readNonNegative(cli, shardRetriesOpt) : Long.valueOf(1);
+            if (parseTimeBudget == null || parseTokenBudget == null || generatedSizeThreshold == null ||
+                streamingDepth == null || partitionDepth == null || shards == null || shardRetries == null ||
+                metadataThreads == null)
+                return null;
+            sourceOptions.parseTimeBudget = parseTimeBudget;
+            sourceOptions.metadataThreads = (int) Math.max(1, Math.min(metadataThreads, Integer.MAX_VALUE));
+            sourceOptions.parseTokenBudget = parseTokenBudget;
+            sourceOptions.bodiesOnDemand = cli.hasOption(bodiesOnDemandOpt.getLongOpt());
+            String[] generatedPaths = cli.getOptionValues(generatedPathOpt.getLongOpt());
+            if (generatedPaths != null)
+                sourceOptions.generatedPathPatterns.addAll(Arrays.asList(generatedPaths));
+            sourceOptions.generatedSizeThreshold = generatedSizeThreshold;
+            sourceOptions.reduceGeneratedCode = cli.hasOption(reduceGeneratedOpt.getLongOpt()) ||
+                    generatedPaths != null || generatedSizeThreshold > 0;
+            sourceOptions.irTypeResolution = cli.hasOption(irTypeResolutionOpt.getLongOpt());
+            String snapshotDir = cli.getOptionValue(snapshotsOpt.getLongOpt());
+            if (snapshotDir != null)
+                sourceOptions.snapshotDir = new File(snapshotDir);
+            sourceOptions.prefilter = readEnum(cli, prefilterOpt, SourceOptions.Prefilter.class, sourceOptions.prefilter);
+            String shard = cli.getOptionValue(shardOpt.getLongOpt());
+            if (shard != null && !readShard(shard, sourceOptions)) {
+                System.err.println("ERROR: --" + shardOpt.getLongOpt() + " must have the form I/N, with 0 <= I < N: " + shard);
+                return null;
+            }
+            String shardSources = cli.getOptionValue(shardSourcesOpt.getLongOpt());
+            if (shardSources != null) {
+                try {
+                    sourceOptions.shardSources = ShardedRun.readShardSources(new File(shardSources));
+                } catch (IOException ex) {
+                    System.err.println("ERROR: could not read --" + shardSourcesOpt.getLongOpt() + " file: " + shardSources);
+                    return null;
+                }
+            }
+            sourceOptions.sink = readEnum(cli, outputSinkOpt, SourceOptions.Sink.class, sourceOptions.sink);
+            sourceOptions.duplicates = readEnum(cli, duplicatesOpt, SourceOptions.Duplicates.class, sourceOptions.duplicates);
+            if (sourceOptions.groovyStreaming == null || sourceOptions.prefilter == null ||
+                sourceOptions.sink == null || sourceOptions.duplicates == null)
+                return null;
 
-            // Process IR (such as Java bytecode).
-            Set<String> vaIrMethods = new ConcurrentSkipListSet<>();
-            IRState irState = new IRState();
-            for (String i : irs)
-                IRProcessor.processIR(irState, vaIrMethods, new File(i), debug, true);
-            if (platforms != null)
-                for (String p : platforms)
-                    IRProcessor.processIR(irState, vaIrMethods, new File(p), debug, false);
-            if (debug)
-                System.out.println("IR vararg methods: " + vaIrMethods);
-            irState.resolveLambdas(debug);
+            boolean serve = cli.hasOption(serveOpt.getLongOpt());
+            Long servePort = readNonNegative(cli, serveOpt);
+            if (servePort == null)
+                return null;
+            if (servePort > 65535) {
+                System.err.println("ERROR: --" + serveOpt.getLongOpt() + " needs a port number: " + servePort);
+                return null;
+            }
+            RunMode.Request request = new RunMode.Request();
+            request.streaming = cli.hasOption(streamingOpt.getLongOpt());
+            request.pipelined = cli.hasOption(pipelinedOpt.getLongOpt());
+            request.partitioned = partitionDepth > 0;
+            request.sharded = shards > 0;
+            request.watch = cli.hasOption(watchOpt.getLongOpt());
+            request.manifest = manifest != null;
+            request.shardWorker = shard != null;
+            request.inputPaths = irs != null || srcs != null;
+            request.resolveVars = resolveVars;
+            request.sarif = sarif;
+            request.translateResults = translateResults;
+            request.serve = serve;
+            request.inDaemon = platformCache != null;
+            request.stats = stats;
+            request.sink = sourceOptions.sink;
+            request.binaryMetadata = binaryMetadata;
+            request.duplicates = sourceOptions.duplicates;
+            RunMode mode = RunMode.select(request);
+            for (String warning : mode.warnings)
+                System.out.println("WARNING: " + warning);
+            if (mode.error != null) {
+                System.err.println("ERROR: " + mode.error);
+                return null;
+            }
+            sourceOptions.sink = mode.sink;
+            sourceOptions.binaryMetadata = mode.binaryMetadata;
+            sourceOptions.duplicates = mode.duplicates;
+            // The metadata index is passed on when the output of the run is closed.
+            AtomicReference<BinaryMetadataReader> metadataIndex = new AtomicReference<>();
+            if (serve)
+                sourceOptions.metadataIndexConsumer = metadataIndex::set;
+
+            if (mode.kind == RunMode.Kind.MANIFEST) {
+                Long parallelism = cli.hasOption(manifestParallelismOpt.getLongOpt()) ? readNonNegative(cli, manifestParallelismOpt) : Long.valueOf(Runtime.getRuntime().availableProcessors());
+                if (parallelism == null)
+                    return null;
+                File manifestFile = new File(manifest);
+                File report = out ? new File(cli.getOptionValue(outOpt.getOpt()), BatchRun.REPORT) : new File(manifestFile.getAbsoluteFile().getParentFile(), BatchRun.REPORT);
+                return runManifest(manifestFile, platforms, (int) Math.min(parallelism, Integer.MAX_VALUE), report, builder -> builder
+                        .sourceOptions(sourceOptions).json(json).resolveInvocations(resolveInvocations).lossy(lossy)
+                        .matchIR(matchIR).synthesizeTypes(synthesizeTypes).enableKotlin(enableKotlin), stats, debug);
+            }
 
             File db = dbVal == null ? null : new File(dbVal);
             File outPath = out ? new File(cli.getOptionValue(outOpt.getOpt())) : null;
-            Driver driver = new Driver(outPath, db, debug, translateResults, json, vaIrMethods);
-
-            // Process source code.
-            List<SourceFile> sources = new ArrayList<>();
-            for (String s : srcs) {
-                File srcFile = new File(s);
-                if (!srcFile.exists()) {
-                    System.err.println("ERROR: path does not exist: " + s);
-                    continue;
-                }
-                sources.addAll(driver.readSources(srcFile, debug, synthesizeTypes, enableKotlin));
+            // The vararg methods are filled in by IR processing (concurrently in pipelined mode).
+            Set<String> vaIrMethods = new ConcurrentSkipListSet<>();
+            Driver driver = new Driver(outPath, db, debug, translateResults, json, vaIrMethods, sourceOptions);
+            if (mode.kind == RunMode.Kind.SHARDED) {
+                // The workers get the same options, except for the shard-specific ones.
+                List<Option> excluded = Arrays.asList(shardsOpt, shardRetriesOpt, outOpt, dbOpt, outputSinkOpt, binaryMetadataOpt);
+                List<String> workerArgs = new ArrayList<>();
+                for (Option opt : cli.getOptions())
+                    if (!excluded.contains(opt)) {
+                        workerArgs.add("--" + opt.getLongOpt());
+                        String[] values = opt.getValues();
+                        if (values != null)
+                            workerArgs.addAll(Arrays.asList(values));
+                    }
+                int shardCount = (int) Math.min(shards, Integer.MAX_VALUE);
+                int retries = (int) Math.min(shardRetries, Integer.MAX_VALUE);
+                return new ShardedRun(shardCount, retries, outPath, debug).run(driver, existingPaths(srcs), workerArgs, resolveInvocations, stats);
             }
+            RunResult result;
+            IRState irState = new IRState();
+            boolean pipelined = mode.pipelined;
+            if (mode.kind == RunMode.Kind.WATCH) {
+                WatchRun run = new WatchRun(driver, vaIrMethods, debug);
+                result = run.run(existingPaths(irs), st -> readIR(st, vaIrMethods, new String[0], platforms, platformCache, debug),
+                                 existingPaths(srcs), synthesizeTypes, enableKotlin, json, resolveInvocations, lossy, matchIR, stats);
+            } else if (mode.kind == RunMode.Kind.PARTITIONED) {
+                int depth = (int) Math.min(partitionDepth, Integer.MAX_VALUE);
+                PartitionedRun run = new PartitionedRun(depth,
+                        () -> new Driver(outPath, db, debug, translateResults, json, vaIrMethods, sourceOptions),
+                        st -> readIR(st, vaIrMethods, irs, platforms, platformCache, debug), debug);
+                result = run.run(existingPaths(srcs), synthesizeTypes, enableKotlin, json, resolveInvocations, lossy, matchIR, stats);
+            } else if (mode.kind == RunMode.Kind.STREAMING) {
+                int depth = streamingDepth > 0 ? (int) Math.min(streamingDepth, Integer.MAX_VALUE) : StreamingPipeline.DEFAULT_QUEUE_DEPTH;
+                StreamingPipeline pipeline = new StreamingPipeline(driver, depth, debug);
+                if (resolveVars)
+                    pipeline.resolveDoopVariables(translateResults, uniqueResults, relVars);
+                // In pipelined mode, sources are read (up to the queue depth) while the IR is read.
+                if (pipelined)
+                    pipeline.startParsing(existingPaths(srcs), synthesizeTypes, enableKotlin);
+                readIR(irState, vaIrMethods, irs, platforms, platformCache, debug);
+                irState.resolveLambdas(debug);
+                driver.setPrefilterTypes(irState.irTypes);
+                if (!pipelined)
+                    pipeline.startParsing(existingPaths(srcs), synthesizeTypes, enableKotlin);
+                result = pipeline.finish(irState.irTypes, json, resolveInvocations, lossy, matchIR, stats, pipelined);
+            } else {
+                List<SourceFile> sources;
+                if (pipelined) {
+                    // IR ingestion and source parsing are independent until matching.
+                    ExecutorService irExecutor = Executors.newSingleThreadExecutor();
+                    ExecutorService sourceExecutor = Executors.newSingleThreadExecutor();
+                    try {
+                        Future<?> irDone = irExecutor.submit(() -> {
+                            readIR(irState, vaIrMethods, irs, platforms, platformCache, debug);
+                            irState.resolveLambdas(debug);
+                        });
+                        Future<List<SourceFile>> sourcesDone = sourceExecutor.submit(() -> readSources(driver, srcs, debug, synthesizeTypes, enableKotlin));
+                        await(irDone);
+                        sources = await(sourcesDone);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        System.err.println("ERROR: interrupted while reading the IR and the sources");
+                        return null;
+                    } finally {
+                        irExecutor.shutdownNow();
+                        sourceExecutor.shutdownNow();
+                    }
+                    driver.setPrefilterTypes(irState.irTypes);
+                    sources = driver.prefilterParsedSources(sources);
+                } else {
+                    readIR(irState, vaIrMethods, irs, platforms, platformCache, debug);
+                    irState.resolveLambdas(debug);
+                    driver.setPrefilterTypes(irState.irTypes);
+                    if (stats)
+                        driver.measureHeapBeforeSources();
+                    sources = readSources(driver, srcs, debug, synthesizeTypes, enableKotlin);
+                }
 
-            // Match information between IR and sources.
-            return driver.match(irState.irTypes, sources, json, sarif, resolveInvocations, resolveVars, translateResults, uniqueResults, lossy, matchIR, stats, relVars);
+                // Match information between IR and sources.
+                result = driver.match(irState.irTypes, sources, json, sarif, resolveInvocations, resolveVars, translateResults, uniqueResults, lossy, matchIR, stats, relVars);
+            }
+            // A shard worker marks its output as complete.
+            if (shard != null && result != null)
+                ShardedRun.writeShardResult(outPath, result);
+            if (serve && result != null)
+                serveMetadata(metadataIndex.get(), (int) (long) servePort, cli.getOptionValue(tokenFileOpt.getLongOpt()), debug);
+            return result;
         } catch (ParseException e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Process IR (such as Java bytecode). IR lambdas are not resolved.
+     * @param irState      the IR state to fill
+     * @param vaIrMethods  the set of vararg methods to fill
+     * @param irs          the IR paths
+     * @param platforms    the platform paths (or null)
+     * @param platformCache the cache of platform IR (or null)
+     * @param debug        debug mode
+     */
+    private static void readIR(IRState irState, Set<String> vaIrMethods, String[] irs,
+                               String[] platforms, PlatformCache platformCache, boolean debug) {
+        for (String i : irs)
+            IRProcessor.processIR(irState, vaIrMethods, new File(i), debug, true);
+        if (platforms != null)
+            for (String p : platforms)
+                if (platformCache == null)
+                    IRProcessor.processIR(irState, vaIrMethods, new File(p), debug, false);
+                else
+                    platformCache.addPlatform(irState, vaIrMethods, new File(p), debug);
+        if (debug)
+            System.out.println("IR vararg methods: " + vaIrMethods);
+    }
+
+    /**
+     * Process the artifacts of a manifest, sharing the platform IR.
+     * @param manifest      the manifest file
+     * @param platforms     the platform paths (or null)
+     * @param parallelism   the number of artifacts processed at the same time
+     * @param report        the batch report file
+     * @param jobConfig     sets the options of every artifact job
+     * @param stats         if true, calculate statistics
+     * @param debug         debug mode
+     * @return              the result of the batch (or null if it failed)
+     */
+    private static RunResult runManifest(File manifest, String[] platforms, int parallelism, File report,
+                                         Consumer<MatchJob.Builder> jobConfig, boolean stats, boolean debug) {
+        List<BatchRun.Artifact> artifacts;
+        try {
+            artifacts = BatchRun.readManifest(manifest);
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not read manifest: " + ex.getMessage());
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        IRSnapshot.Builder platformBuilder = IRSnapshot.builder().debug(debug);
+        if (platforms != null)
+            for (String p : platforms)
+                platformBuilder.platform(new File(p));
+        IRSnapshot platform = platformBuilder.build();
+        System.out.println("Read " + platform.getIRTypes().size() + " platform IR types in " + (System.currentTimeMillis() - start) + " ms.");
+        return new BatchRun(platform, Math.max(1, parallelism), stats, debug).run(artifacts, jobConfig, report);
+    }
+
+    /**
+     * Start a daemon and serve runs until it is stopped.
+     * @param args        command-line arguments
+     * @param daemonOpt   the daemon option (with the port)
+     * @param tokenFileOpt the token file option
+     * @param platformOpt the platforms option (platforms to read in advance)
+     * @param debugOpt    the debug option
+     */
+    private static void startDaemon(String[] args, Option daemonOpt, Option tokenFileOpt, Option platformOpt, Option debugOpt) {
+        Options options = new Options();
+        options.addOption(daemonOpt);
+        options.addOption(tokenFileOpt);
+        options.addOption(platformOpt);
+        options.addOption(debugOpt);
+        try {
+            CommandLine cli = new GnuParser().parse(options, args);
+            String port = cli.getOptionValue(daemonOpt.getLongOpt());
+            String tokenFile = cli.getOptionValue(tokenFileOpt.getLongOpt());
+            Daemon daemon = new Daemon(Integer.parseInt(port), tokenFile == null ? null : new File(tokenFile), cli.hasOption(debugOpt.getOpt()));
+            String[] platforms = cli.getOptionValues(platformOpt.getLongOpt());
+            if (platforms != null)
+                daemon.preloadPlatforms(Arrays.asList(platforms));
+            daemon.serve();
+        } catch (ParseException ex) {
+            System.err.println("ERROR: " + ex.getMessage() + " (the daemon only accepts --" + tokenFileOpt.getLongOpt() + ", --" + platformOpt.getLongOpt() + " and -" + debugOpt.getOpt() + ")");
+        } catch (NumberFormatException ex) {
+            System.err.println("ERROR: --" + daemonOpt.getLongOpt() + " needs a port number");
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not start the daemon: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Answer lookups on the metadata of a run until a client stops the server.
+     * @param index       the metadata (or null if it could not be indexed)
+     * @param port        the local port
+     * @param tokenFile   the token file (null for the default file of the port)
+     * @param debug       debug mode
+     */
+    private static void serveMetadata(BinaryMetadataReader index, int port, String tokenFile, boolean debug) {
+        if (index == null) {
+            System.err.println("ERROR: no metadata to serve.");
+            return;
+        }
+        try {
+            new QueryServer(index, port, tokenFile == null ? null : new File(tokenFile), debug).serve();
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not start the query server: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Submit a run to a daemon.
+     * @param args         command-line arguments
+     * @param connectIdx   the index of the connect option in the arguments
+     * @return             the exit code of the run
+     */
+    private static int connect(String[] args, int connectIdx) {
+        int port;
+        try {
+            port = Integer.parseInt(args[connectIdx + 1]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            System.err.println("ERROR: " + CONNECT_ARG + " needs a port number");
+            return 1;
+        }
+        List<String> runArgs = new ArrayList<>(Arrays.asList(args));
+        runArgs.subList(connectIdx, connectIdx + 2).clear();
+        File tokenFile = AccessToken.defaultFile("daemon", port);
+        int tokenIdx = runArgs.indexOf(TOKEN_FILE_ARG);
+        if (tokenIdx >= 0) {
+            if (tokenIdx + 1 >= runArgs.size()) {
+                System.err.println("ERROR: " + TOKEN_FILE_ARG + " needs a file");
+                return 1;
+            }
+            tokenFile = new File(runArgs.get(tokenIdx + 1));
+            runArgs.subList(tokenIdx, tokenIdx + 2).clear();
+        }
+        DaemonClient client = new DaemonClient(port, tokenFile);
+        if (runArgs.contains("--stop-daemon"))
+            return client.stop();
+        return client.submit(runArgs.toArray(new String[0]), PATH_OPTIONS);
+    }
+
+    /**
+     * Process source code.
+     * @param driver           the driver to use
+     * @param srcs             the source paths
+     * @param debug            debug mode
+     * @param synthesizeTypes  if true, attempt to synthesize erased types
+     * @param enableKotlin     if false, Kotlin sources will not be processed
+     * @return                 the processed source files
+     */
+    private static List<SourceFile> readSources(Driver driver, String[] srcs, boolean debug,
+                                                boolean synthesizeTypes, boolean enableKotlin) {
+        List<SourceFile> sources = new ArrayList<>();
+        for (File srcFile : existingPaths(srcs))
+            sources.addAll(driver.readSources(srcFile, debug, synthesizeTypes, enableKotlin));
+        return sources;
+    }
+
+    /**
+     * Returns the source paths that exist (reporting the rest).
+     * @param srcs   the source paths
+     * @return       the existing paths
+     */
+    private static List<File> existingPaths(String[] srcs) {
+        List<File> paths = new ArrayList<>();
+        for (String s : srcs) {
+            File srcFile = new File(s);
+            if (srcFile.exists())
+                paths.add(srcFile);
+            else
+                System.err.println("ERROR: path does not exist: " + s);
+        }
+        return paths;
+    }
+
+    /**
+     * Wait for a background task, rethrowing its failure in the current thread.
+     * @param future                 the task
+     * @param <T>                    the type of the task result
+     * @return                       the task result
+     * @throws InterruptedException  if the current thread was interrupted
+     */
+    private static <T> T await(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
     private static void printUsage(Options options) {
         HelpFormatter formatter = new HelpFormatter();
         formatter.setWidth(100);
         formatter.printHelp("source-ir-fitter [OPTION]...", options);
     }
 
+    private static String enumValues(Enum<?>[] values) {
+        StringJoiner sj = new StringJoiner(", ");
+        for (Enum<?> value : values)
+            sj.add(value.name().toLowerCase(Locale.ROOT));
+        return sj.toString();
+    }
+
+    /**
+     * Read an option whose value is one of the constants of an enum.
+     * @param cli            the command line
+     * @param opt            the option
+     * @param type           the enum type
+     * @param defaultValue   the value if the option is missing
+     * @param <E>            the enum type
+     * @return               the value, or null if the value is not valid
+     */
+    private static <E extends Enum<E>> E readEnum(CommandLine cli, Option opt, Class<E> type, E defaultValue) {
+        String value = cli.getOptionValue(opt.getLongOpt());
+        if (value == null)
+            return defaultValue;
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            System.err.println("ERROR: --" + opt.getLongOpt() + " must be one of: " + enumValues(type.getEnumConstants()));
+            return null;
+        }
+    }
+
+    /**
+     * Read a numeric option (such as a budget or a limit).
+     * @param cli   the command line
+     * @param opt   the option
+     * @return      the value (0 if missing) or null if the value is not valid
+     */
+    private static Long readNonNegative(CommandLine cli, Option opt) {
+        String value = cli.getOptionValue(opt.getLongOpt());
+        if (value == null)
+            return 0L;
+        try {
+            long number = Long.parseLong(value);
+            if (number >= 0)
+                return number;
+        } catch (NumberFormatException ignored) { }
+        System.err.println("ERROR: --" + opt.getLongOpt() + " must be a non-negative number: " + value);
+        return null;
+    }
+
+    /**
+     * Read the shard of a worker.
+     * @param shard           the shard, in the form "I/N"
+     * @param sourceOptions   the source options to update
+     * @return                false if the shard is not valid
+     */
+    private static boolean readShard(String shard, SourceOptions sourceOptions) {
+        int slashIdx = shard.indexOf('/');
+        if (slashIdx < 0)
+            return false;
+        try {
+            int index = Integer.parseInt(shard.substring(0, slashIdx));
+            int count = Integer.parseInt(shard.substring(slashIdx + 1));
+            if (index < 0 || index >= count)
+                return false;
+            sourceOptions.shardIndex = index;
+            sourceOptions.shardCount = count;
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
     private static boolean missingOption(CommandLine cli, Option opt, Option depOpt) {
         for (String optLabel : new String[] {opt.getLongOpt(), opt.getOpt()})
             if (optLabel != null)
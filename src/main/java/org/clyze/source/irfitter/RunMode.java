@@ -0,0 +1,173 @@
+package org.clyze.source.irfitter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.clyze.source.irfitter.source.SourceOptions;
+
+/**
+ * The mode of a run (how its sources are read and matched), selected from
+ * the command-line options. Options that do not apply to the selected mode
+ * are turned off with a warning; combinations that cannot run are errors.
+ */
+public final class RunMode {
+    /** The kinds of runs. */
+    public enum Kind {
+        /** Read the IR and all sources, then match them. */
+        BATCH,
+        /** Match the sources a few at a time, while they are read. */
+        STREAMING,
+        /** Match the sources one partition (package prefix) at a time. */
+        PARTITIONED,
+        /** Split the sources into shards, matched by worker processes. */
+        SHARDED,
+        /** Match the sources again when the IR or the sources change. */
+        WATCH,
+        /** Match the artifacts listed in a manifest. */
+        MANIFEST
+    }
+
+    /** The command-line options that select the mode of a run. */
+    public static final class Request {
+        public boolean streaming = false;
+        public boolean pipelined = false;
+        public boolean partitioned = false;
+        public boolean sharded = false;
+        public boolean watch = false;
+        public boolean manifest = false;
+        /** True for a worker of a sharded run (that matches one shard). */
+        public boolean shardWorker = false;
+        /** True if IR or source paths are given (instead of a manifest). */
+        public boolean inputPaths = false;
+        public boolean resolveVars = false;
+        public boolean sarif = false;
+        public boolean translateResults = false;
+        /** True if the metadata is served after the run. */
+        public boolean serve = false;
+        /** True if the run is served by a daemon. */
+        public boolean inDaemon = false;
+        public boolean stats = false;
+        public SourceOptions.Sink sink = SourceOptions.Sink.FILES;
+        public boolean binaryMetadata = false;
+        public SourceOptions.Duplicates duplicates = SourceOptions.Duplicates.OFF;
+    }
+
+    public final Kind kind;
+    /** If true, the IR and the sources are read concurrently (in batch and streaming runs). */
+    public final boolean pipelined;
+    /** The output sink of the run. */
+    public final SourceOptions.Sink sink;
+    /** If true, binary metadata is written. */
+    public final boolean binaryMetadata;
+    /** The handling of duplicate source files. */
+    public final SourceOptions.Duplicates duplicates;
+    /** The warnings about the options that were turned off. */
+    public final List<String> warnings;
+    /** The reason that the options cannot be combined (null if the run can start). */
+    public final String error;
+
+    private RunMode(Kind kind, boolean pipelined, SourceOptions.Sink sink, boolean binaryMetadata,
+                    SourceOptions.Duplicates duplicates, List<String> warnings, String error) {
+        this.kind = kind;
+        this.pipelined = pipelined;
+        this.sink = sink;
+        this.binaryMetadata = binaryMetadata;
+        this.duplicates = duplicates;
+        this.warnings = Collections.unmodifiableList(warnings);
+        this.error = error;
+    }
+
+    /**
+     * Select the mode of a run.
+     * @param r   the options of the run
+     * @return    the mode (with the warnings and the error, if any)
+     */
+    public static RunMode select(Request r) {
+        List<String> warnings = new ArrayList<>();
+        if (r.manifest) {
+            String error = null;
+            if (r.resolveVars || r.sarif || r.translateResults)
+                error = "--manifest is not supported with Doop/SARIF integration.";
+            else if (r.inputPaths)
+                error = "--manifest cannot be combined with -i/-s (the manifest lists the IR and sources of every artifact).";
+            else if (r.serve)
+                error = serveError();
+            else if (r.streaming || r.pipelined || r.partitioned || r.sharded || r.watch)
+                warnings.add("--streaming/--pipelined/--partition-depth/--shards/--watch are ignored with --manifest (artifacts are always streamed).");
+            return new RunMode(Kind.MANIFEST, false, r.sink, r.binaryMetadata, r.duplicates, warnings, error);
+        }
+
+        boolean streaming = r.streaming, pipelined = r.pipelined, partitioned = r.partitioned;
+        boolean sharded = r.sharded, watch = r.watch;
+        SourceOptions.Sink sink = r.sink;
+        boolean binaryMetadata = r.binaryMetadata;
+        SourceOptions.Duplicates duplicates = r.duplicates;
+        boolean doop = r.resolveVars || r.sarif;
+        if (sharded && doop) {
+            warnings.add("--shards is not supported with Doop/SARIF integration, all source files will be matched together.");
+            sharded = false;
+        }
+        if (sharded && r.shardWorker)
+            return error(warnings, "--shards cannot be combined with --shard");
+        if (streaming && r.sarif) {
+            warnings.add("--streaming is not supported with SARIF integration, all source files will be matched together.");
+            streaming = false;
+        }
+        if (partitioned && doop) {
+            warnings.add("--partition-depth is not supported with Doop/SARIF integration, all source files will be matched together.");
+            partitioned = false;
+        }
+        if (watch && doop) {
+            warnings.add("--watch is not supported with Doop/SARIF integration, the sources will be matched once.");
+            watch = false;
+        }
+        if (watch) {
+            if (streaming || pipelined || partitioned || sharded)
+                warnings.add("--streaming/--pipelined/--partition-depth/--shards are ignored in watch mode.");
+            streaming = pipelined = partitioned = sharded = false;
+            // A changed file would otherwise be a duplicate of its earlier contents.
+            if (duplicates != SourceOptions.Duplicates.OFF)
+                warnings.add("--duplicate-sources is ignored in watch mode.");
+            duplicates = SourceOptions.Duplicates.OFF;
+        }
+        if ((watch || sharded) && sink != SourceOptions.Sink.FILES) {
+            warnings.add("--output-sink is not supported with --watch/--shards, writing one file per source file.");
+            sink = SourceOptions.Sink.FILES;
+        }
+        if ((watch || sharded) && binaryMetadata) {
+            warnings.add("--binary-metadata is not supported with --watch/--shards.");
+            binaryMetadata = false;
+        }
+        if (r.serve && (watch || sharded || r.inDaemon))
+            return error(warnings, serveError());
+        if (partitioned && (streaming || pipelined)) {
+            warnings.add("--streaming/--pipelined are ignored in partitioned runs.");
+            streaming = pipelined = false;
+        }
+
+        Kind kind;
+        if (watch)
+            kind = Kind.WATCH;
+        else if (sharded)
+            kind = Kind.SHARDED;
+        else if (partitioned)
+            kind = Kind.PARTITIONED;
+        else if (streaming)
+            kind = Kind.STREAMING;
+        else
+            kind = Kind.BATCH;
+        // Shard workers get the pipelined option of the sharded run.
+        pipelined = pipelined && (kind == Kind.BATCH || kind == Kind.STREAMING);
+        if (kind == Kind.BATCH && pipelined && r.stats)
+            warnings.add("the heap footprint of the source model is not measured when reading the IR and the sources concurrently.");
+        return new RunMode(kind, pipelined, sink, binaryMetadata, duplicates, warnings, null);
+    }
+
+    private static String serveError() {
+        return "--serve is not supported with --watch/--shards/--manifest or in a daemon.";
+    }
+
+    private static RunMode error(List<String> warnings, String error) {
+        return new RunMode(Kind.BATCH, false, SourceOptions.Sink.FILES, false, SourceOptions.Duplicates.OFF, warnings, error);
+    }
+}
@@ -0,0 +1,238 @@
+package org.clyze.source.irfitter.api;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.source.model.IdMapper;
+
+/**
+ * A run that processes many artifacts (IR, sources and output directory)
+ * in one JVM. The platform IR is read once, in an {@link IRSnapshot} that
+ * all artifacts share, and artifacts are processed concurrently (each in
+ * its own {@link MatchJob}, with its own id mappers and aliasers).
+ *
+ * The shared platform types are only used to resolve references and are
+ * not matched against the sources of the artifacts. At the end, a report
+ * with one line per artifact is written.
+ */
+public class BatchRun {
+    /** The name of the batch report file. */
+    public static final String REPORT = "batch-report.tsv";
+
+    private final IRSnapshot platform;
+    private final int parallelism;
+    private final boolean stats;
+    private final boolean debug;
+
+    /**
+     * Create a batch run.
+     * @param platform      the platform IR shared by all artifacts
+     * @param parallelism   the maximum number of artifacts processed at the same time
+     * @param stats         if true, calculate statistics
+     * @param debug         debug mode
+     */
+    public BatchRun(IRSnapshot platform, int parallelism, boolean stats, boolean debug) {
+        this.platform = platform;
+        this.parallelism = parallelism;
+        this.stats = stats;
+        this.debug = debug;
+    }
+
+    /** An artifact of the batch. */
+    public static final class Artifact {
+        /** The IR paths. */
+        public final List<File> irs;
+        /** The source paths. */
+        public final List<File> sources;
+        /** The output directory. */
+        public final File out;
+
+        public Artifact(List<File> irs, List<File> sources, File out) {
+            this.irs = irs;
+            this.sources = sources;
+            this.out = out;
+        }
+    }
+
+    /**
+     * Read a manifest of artifacts. Every line has three tab-separated
+     * columns: the IR, the sources and the output directory of an artifact.
+     * The IR and sources columns may list many paths, separated by
+     * {@link File#pathSeparator}. Relative paths are resolved against the
+     * directory of the manifest. Empty lines and lines starting with '#'
+     * are ignored.
+     * @param manifest       the manifest file
+     * @return               the artifacts
+     * @throws IOException   if the manifest could not be read or is malformed
+     */
+    public static List<Artifact> readManifest(File manifest) throws IOException {
+        File baseDir = manifest.getAbsoluteFile().getParentFile();
+        List<Artifact> artifacts = new ArrayList<>();
+        int lineNo = 0;
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            lineNo++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                continue;
+            String[] columns = trimmed.split("\t");
+            if (columns.length != 3)
+                throw new IOException(manifest + ":" + lineNo + ": expected 3 tab-separated columns (IR, sources, output), found " + columns.length);
+            artifacts.add(new Artifact(readPaths(baseDir, columns[0]), readPaths(baseDir, columns[1]), resolve(baseDir, columns[2].trim())));
+        }
+        return artifacts;
+    }
+
+    private static List<File> readPaths(File baseDir, String column) {
+        List<File> paths = new ArrayList<>();
+        for (String path : column.split(File.pathSeparator))
+            if (!path.trim().isEmpty())
+                paths.add(resolve(baseDir, path.trim()));
+        return paths;
+    }
+
+    private static File resolve(File baseDir, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(baseDir, path);
+    }
+
+    /**
+     * Process the artifacts and write the batch report.
+     * @param artifacts   the artifacts
+     * @param jobConfig   sets the options of every job (the IR, sources
+     *                    and output directory are set by the batch)
+     * @param report      the report file
+     * @return            the result of the batch (with the total of the
+     *                    unmatched elements), or null if some artifacts failed
+     */
+    public RunResult run(List<Artifact> artifacts, Consumer<MatchJob.Builder> jobConfig, File report) {
+        long start = System.currentTimeMillis();
+        int threads = Math.max(1, Math.min(parallelism, artifacts.size()));
+        System.out.println("Processing " + artifacts.size() + " artifact(s), " + threads + " at a time...");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<ArtifactResult>> futures = new ArrayList<>();
+        for (int i = 0; i < artifacts.size(); i++) {
+            Artifact artifact = artifacts.get(i);
+            String name = "[" + (i + 1) + "/" + artifacts.size() + "] " + artifact.out;
+            futures.add(executor.submit(() -> runArtifact(name, artifact, jobConfig)));
+        }
+        executor.shutdown();
+
+        List<ArtifactResult> results = new ArrayList<>();
+        try {
+            for (Future<ArtifactResult> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            System.err.println("ERROR: interrupted while processing the batch");
+            return null;
+        } catch (ExecutionException ex) {
+            // runArtifact() catches all failures of the jobs.
+            throw new RuntimeException(ex.getCause());
+        }
+
+        IdMapper statsMapper = new IdMapper(debug);
+        int unmatched = 0;
+        int failed = 0;
+        for (ArtifactResult result : results)
+            if (result.result == null)
+                failed++;
+            else {
+                unmatched += result.result.unmatched;
+                statsMapper.addStats(result.stats);
+            }
+        writeReport(artifacts, results, report);
+        System.out.println("Batch finished in " + (System.currentTimeMillis() - start) + " ms: " +
+                           (artifacts.size() - failed) + " artifact(s) processed, " + failed + " failed, " +
+                           unmatched + " elements not matched. Report: " + report);
+        if (stats || debug)
+            statsMapper.printStats();
+        return failed > 0 ? null : new RunResult(unmatched, statsMapper);
+    }
+
+    private ArtifactResult runArtifact(String name, Artifact artifact, Consumer<MatchJob.Builder> jobConfig) {
+        long start = System.currentTimeMillis();
+        System.out.println(name + ": started.");
+        try {
+            MatchJob.Builder builder = MatchJob.builder(platform).debug(debug).stats(stats);
+            jobConfig.accept(builder);
+            builder.outDir(artifact.out).matchSnapshotTypes(false);
+            for (File ir : artifact.irs)
+                builder.ir(ir);
+            for (File source : artifact.sources)
+                builder.source(source);
+            RunResult result = builder.build().run();
+            long time = System.currentTimeMillis() - start;
+            System.out.println(name + ": finished in " + time + " ms, " + result.unmatched + " elements not matched.");
+            Properties props = new Properties();
+            result.idMapper.saveStats(props);
+            return new ArtifactResult(result, props, time, null);
+        } catch (Throwable ex) {
+            // Errors (such as running out of memory) only fail their artifact,
+            // so that the report is still written.
+            System.err.println("ERROR: " + name + " failed: " + ex);
+            if (debug)
+                ex.printStackTrace();
+            return new ArtifactResult(null, null, System.currentTimeMillis() - start, String.valueOf(ex));
+        }
+    }
+
+    /**
+     * Write the batch report: a tab-separated table with the output
+     * directory, status, time and unmatched elements of every artifact
+     * (followed by the statistics counters, if enabled).
+     * @param artifacts   the artifacts
+     * @param results     the results (in the order of the artifacts)
+     * @param report      the report file
+     */
+    private void writeReport(List<Artifact> artifacts, List<ArtifactResult> results, File report) {
+        boolean withStats = stats || debug;
+        List<String> statKeys = IdMapper.getStatKeys();
+        File reportDir = report.getAbsoluteFile().getParentFile();
+        if (!reportDir.exists() && !reportDir.mkdirs()) {
+            System.err.println("ERROR: could not create directory " + reportDir);
+            return;
+        }
+        try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(report), StandardCharsets.UTF_8))) {
+            StringJoiner header = new StringJoiner("\t");
+            header.add("out").add("status").add("timeMs").add("unmatched");
+            if (withStats)
+                statKeys.forEach(header::add);
+            pw.println(header);
+            for (int i = 0; i < artifacts.size(); i++) {
+                ArtifactResult result = results.get(i);
+                StringJoiner line = new StringJoiner("\t");
+                line.add(artifacts.get(i).out.getPath());
+                line.add(result.result == null ? "failed: " + result.error.replace('\t', ' ').replace('\n', ' ') : "ok");
+                line.add(String.valueOf(result.time));
+                line.add(result.result == null ? "" : String.valueOf(result.result.unmatched));
+                if (withStats)
+                    for (String key : statKeys)
+                        line.add(result.stats == null ? "" : result.stats.getProperty(key, "0"));
+                pw.println(line);
+            }
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not write the batch report " + report);
+            ex.printStackTrace();
+        }
+    }
+
+    /** The outcome of processing one artifact. */
+    private static final class ArtifactResult {
+        final RunResult result;
+        final Properties stats;
+        final long time;
+        final String error;
+
+        ArtifactResult(RunResult result, Properties stats, long time, String error) {
+            this.result = result;
+            this.stats = stats;
+            this.time = time;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.clyze.source.irfitter.api;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.clyze.source.irfitter.ir.IRProcessor;
+import org.clyze.source.irfitter.ir.IRState;
+import org.clyze.source.irfitter.ir.model.IRType;
+
+/**
+ * IR that has been read once and can be shared by many {@link MatchJob}s
+ * (such as the IR of platform libraries). The types of a snapshot cannot be
+ * added or removed after it has been built.
+ *
+ * A snapshot serves one matching job at a time: the matcher records matches
+ * in the IR elements themselves, so a job clears the matches of the
+ * snapshot types when it starts and owns them until it finishes. Starting
+ * another job on the snapshot in the meantime fails. Jobs that do not match
+ * the snapshot types (see {@link MatchJob.Builder#matchSnapshotTypes(boolean)})
+ * only read them and may run at the same time as any other job.
+ */
+public final class IRSnapshot {
+    private final List<IRType> irTypes;
+    private final Set<String> varArgMethods;
+    /** True while a job matches the types of this snapshot. */
+    private final AtomicBoolean matching = new AtomicBoolean(false);
+
+    private IRSnapshot(List<IRType> irTypes, Set<String> varArgMethods) {
+        this.irTypes = Collections.unmodifiableList(irTypes);
+        this.varArgMethods = Collections.unmodifiableSet(varArgMethods);
+    }
+
+    /**
+     * Returns a builder of snapshots.
+     * @return   the builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns an empty snapshot (for jobs that read all their IR).
+     * @return   the snapshot
+     */
+    public static IRSnapshot empty() {
+        return new IRSnapshot(new ArrayList<>(), new HashSet<>());
+    }
+
+    /**
+     * Returns the IR types of this snapshot.
+     * @return   the (unmodifiable) list of types
+     */
+    public List<IRType> getIRTypes() {
+        return irTypes;
+    }
+
+    /**
+     * Returns the vararg methods of this snapshot.
+     * @return   the (unmodifiable) set of method ids
+     */
+    public Set<String> getVarArgMethods() {
+        return varArgMethods;
+    }
+
+    /**
+     * Start matching the types of this snapshot.
+     * @throws IllegalStateException   if another job matches them
+     */
+    void startMatching() {
+        if (!matching.compareAndSet(false, true))
+            throw new IllegalStateException("The IR snapshot is used by another matching job");
+    }
+
+    /** Stop matching the types of this snapshot. */
+    void stopMatching() {
+        matching.set(false);
+    }
+
+    /** A builder of IR snapshots. */
+    public static final class Builder {
+        private final List<File> irPaths = new ArrayList<>();
+        private final List<File> platformPaths = new ArrayList<>();
+        private boolean debug = false;
+
+        private Builder() { }
+
+        /**
+         * Add IR (with method bodies).
+         * @param irPath   an IR file, directory, or .class/.jar/.war/.ear/.apk/.dex file
+         * @return         this builder
+         */
+        public Builder ir(File irPath) {
+            irPaths.add(irPath);
+            return this;
+        }
+
+        /**
+         * Add platform IR (method bodies are skipped).
+         * @param platformPath   the platform archive/directory
+         * @return               this builder
+         */
+        public Builder platform(File platformPath) {
+            platformPaths.add(platformPath);
+            return this;
+        }
+
+        /**
+         * Enable debug mode.
+         * @param debug   debug mode
+         * @return        this builder
+         */
+        public Builder debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        /**
+         * Read the IR.
+         * @return   the snapshot
+         */
+        public IRSnapshot build() {
+            IRState irState = new IRState();
+            Set<String> varArgMethods = new HashSet<>();
+            for (File irPath : irPaths)
+                IRProcessor.processIR(irState, varArgMethods, irPath, debug, true);
+            for (File platformPath : platformPaths)
+                IRProcessor.processIR(irState, varArgMethods, platformPath, debug, false);
+            irState.resolveLambdas(debug);
+            return new IRSnapshot(irState.irTypes, varArgMethods);
+        }
+    }
+}
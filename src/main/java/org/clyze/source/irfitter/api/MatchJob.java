@@ -0,0 +1,296 @@
+package org.clyze.source.irfitter.api;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.ir.IRProcessor;
+import org.clyze.source.irfitter.ir.IRState;
+import org.clyze.source.irfitter.ir.model.IRType;
+import org.clyze.source.irfitter.source.Driver;
+import org.clyze.source.irfitter.source.SourceOptions;
+import org.clyze.source.irfitter.source.StreamingPipeline;
+
+/**
+ * A matching job: the sources (and IR) of one module, matched against the
+ * IR of the module and of a shared {@link IRSnapshot}. Source files are
+ * read, matched and passed to the listener one by one, and are not kept
+ * after that. Writing metadata files is optional.
+ *
+ * Example:
+ * <pre>
+ * IRSnapshot platform = IRSnapshot.builder().platform(androidJar).build();
+ * RunResult result = MatchJob.builder(platform)
+ *         .ir(moduleClasses).source(moduleSources)
+ *         .listener((sf, matches) -&gt; ...)
+ *         .build().run();
+ * </pre>
+ */
+public final class MatchJob {
+    private final IRSnapshot snapshot;
+    private final List<File> irPaths;
+    private final List<File> sourcePaths;
+    private final SourceOptions sourceOptions;
+    private final File outDir;
+    private final boolean json;
+    private final boolean resolveInvocations;
+    private final boolean lossy;
+    private final boolean matchIR;
+    private final boolean synthesizeTypes;
+    private final boolean enableKotlin;
+    private final boolean stats;
+    private final boolean debug;
+    private final boolean matchSnapshotTypes;
+    private final MatchListener listener;
+
+    private MatchJob(Builder b) {
+        this.snapshot = b.snapshot;
+        this.irPaths = new ArrayList<>(b.irPaths);
+        this.sourcePaths = new ArrayList<>(b.sourcePaths);
+        this.sourceOptions = b.sourceOptions.copy();
+        this.outDir = b.outDir;
+        this.json = b.json;
+        this.resolveInvocations = b.resolveInvocations;
+        this.lossy = b.lossy;
+        this.matchIR = b.matchIR;
+        this.synthesizeTypes = b.synthesizeTypes;
+        this.enableKotlin = b.enableKotlin;
+        this.stats = b.stats;
+        this.debug = b.debug;
+        this.matchSnapshotTypes = b.matchSnapshotTypes;
+        this.listener = b.listener;
+    }
+
+    /**
+     * Returns a builder of jobs.
+     * @param snapshot   the shared IR (use {@link IRSnapshot#empty()} if there is none)
+     * @return           the builder
+     */
+    public static Builder builder(IRSnapshot snapshot) {
+        return new Builder(Objects.requireNonNull(snapshot));
+    }
+
+    /**
+     * Run the job.
+     * @return   the result of the matching operation
+     * @throws IllegalStateException   if the job matches the types of its
+     *                                 snapshot and another job is matching them
+     * @see IRSnapshot
+     */
+    public RunResult run() {
+        if (!matchSnapshotTypes)
+            return run(false);
+        snapshot.startMatching();
+        try {
+            return run(true);
+        } finally {
+            snapshot.stopMatching();
+        }
+    }
+
+    private RunResult run(boolean matchShared) {
+        Set<String> varArgMethods = new ConcurrentSkipListSet<>(snapshot.getVarArgMethods());
+        IRState irState = new IRState();
+        for (IRType irType : snapshot.getIRTypes()) {
+            if (matchShared) {
+                // Earlier jobs may have matched the shared types.
+                irType.clearMatches();
+            }
+            irState.addType(irType);
+        }
+        int sharedTypes = irState.irTypes.size();
+        for (File irPath : irPaths)
+            IRProcessor.processIR(irState, varArgMethods, irPath, debug, true);
+        List<IRType> jobTypes = irState.irTypes.subList(sharedTypes, irState.irTypes.size());
+        irState.resolveLambdas(jobTypes, debug);
+
+        Driver driver = new Driver(outDir, null, debug, false, json, varArgMethods, sourceOptions);
+        driver.setPrefilterTypes(irState.irTypes);
+        StreamingPipeline pipeline = new StreamingPipeline(driver, StreamingPipeline.DEFAULT_QUEUE_DEPTH, debug);
+        if (listener != null)
+            pipeline.setMatchedFileConsumer((sf, idMapper) -> listener.matched(sf, idMapper.get()));
+        pipeline.startParsing(sourcePaths, synthesizeTypes, enableKotlin);
+        if (matchShared)
+            return pipeline.finish(irState.irTypes, json, resolveInvocations, lossy, matchIR, stats, false);
+        return pipeline.finish(jobTypes, snapshot.getIRTypes(), json, resolveInvocations, lossy, matchIR, stats, false);
+    }
+
+    /** A builder of matching jobs. */
+    public static final class Builder {
+        private final IRSnapshot snapshot;
+        private final List<File> irPaths = new ArrayList<>();
+        private final List<File> sourcePaths = new ArrayList<>();
+        private SourceOptions sourceOptions = new SourceOptions();
+        private File outDir = null;
+        private boolean json = false;
+        private boolean resolveInvocations = false;
+        private boolean lossy = false;
+        private boolean matchIR = false;
+        private boolean synthesizeTypes = false;
+        private boolean enableKotlin = true;
+        private boolean stats = false;
+        private boolean debug = false;
+        private boolean matchSnapshotTypes = true;
+        private MatchListener listener = null;
+
+        private Builder(IRSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Add IR of this job (with method bodies), on top of the snapshot.
+         * @param irPath   an IR file, directory, or .class/.jar/.war/.ear/.apk/.dex file
+         * @return         this builder
+         */
+        public Builder ir(File irPath) {
+            irPaths.add(irPath);
+            return this;
+        }
+
+        /**
+         * Add sources.
+         * @param sourcePath   a source file, directory or .zip/.jar archive
+         * @return             this builder
+         */
+        public Builder source(File sourcePath) {
+            sourcePaths.add(sourcePath);
+            return this;
+        }
+
+        /**
+         * Set the source parsing options (the job keeps a copy of the
+         * options, taken when it is built).
+         * @param sourceOptions   the options
+         * @return                this builder
+         */
+        public Builder sourceOptions(SourceOptions sourceOptions) {
+            this.sourceOptions = Objects.requireNonNull(sourceOptions);
+            return this;
+        }
+
+        /**
+         * Set the output directory (needed for JSON/binary metadata and invocation targets).
+         * @param outDir   the directory
+         * @return         this builder
+         */
+        public Builder outDir(File outDir) {
+            this.outDir = outDir;
+            return this;
+        }
+
+        /**
+         * Write JSON metadata files.
+         * @param json   if true, write metadata
+         * @return       this builder
+         */
+        public Builder json(boolean json) {
+            this.json = json;
+            return this;
+        }
+
+        /**
+         * Resolve invocation targets (written to InvocationTargets.csv).
+         * @param resolveInvocations   if true, resolve invocation targets
+         * @return                     this builder
+         */
+        public Builder resolveInvocations(boolean resolveInvocations) {
+            this.resolveInvocations = resolveInvocations;
+            return this;
+        }
+
+        /**
+         * Enable lossy heuristics.
+         * @param lossy   if true, enable lossy heuristics
+         * @return        this builder
+         */
+        public Builder lossy(boolean lossy) {
+            this.lossy = lossy;
+            return this;
+        }
+
+        /**
+         * Keep only results that match both source and IR elements.
+         * @param matchIR   if true, drop source elements without IR elements
+         * @return          this builder
+         */
+        public Builder matchIR(boolean matchIR) {
+            this.matchIR = matchIR;
+            return this;
+        }
+
+        /**
+         * Synthesize types from partial source/IR information.
+         * @param synthesizeTypes   if true, attempt to synthesize erased types
+         * @return                  this builder
+         */
+        public Builder synthesizeTypes(boolean synthesizeTypes) {
+            this.synthesizeTypes = synthesizeTypes;
+            return this;
+        }
+
+        /**
+         * Process Kotlin sources (the default).
+         * @param enableKotlin   if false, Kotlin sources will not be processed
+         * @return               this builder
+         */
+        public Builder enableKotlin(boolean enableKotlin) {
+            this.enableKotlin = enableKotlin;
+            return this;
+        }
+
+        /**
+         * Print statistics at the end of the job.
+         * @param stats   if true, print statistics
+         * @return        this builder
+         */
+        public Builder stats(boolean stats) {
+            this.stats = stats;
+            return this;
+        }
+
+        /**
+         * Enable debug mode.
+         * @param debug   debug mode
+         * @return        this builder
+         */
+        public Builder debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        /**
+         * Match the sources against the types of the snapshot too (the
+         * default). Only one such job may run on a snapshot at a time. If
+         * false, the types of the snapshot (such as platform types) are only
+         * used to resolve references, and the job can run concurrently with
+         * other jobs on the snapshot.
+         * @param matchSnapshotTypes   if false, do not match the snapshot types
+         * @return                     this builder
+         */
+        public Builder matchSnapshotTypes(boolean matchSnapshotTypes) {
+            this.matchSnapshotTypes = matchSnapshotTypes;
+            return this;
+        }
+
+        /**
+         * Set the receiver of the matches of every source file.
+         * @param listener   the listener
+         * @return           this builder
+         */
+        public Builder listener(MatchListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Create the job.
+         * @return   the job
+         * @throws IllegalStateException   if the job writes files but has no output directory
+         */
+        public MatchJob build() {
+            if ((json || resolveInvocations || sourceOptions.binaryMetadata) && outDir == null)
+                throw new IllegalStateException("JSON/binary metadata and invocation targets need an output directory");
+            return new MatchJob(this);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.clyze.source.irfitter.api;
+
+import java.util.Collection;
+import java.util.Map;
+import org.clyze.source.irfitter.source.model.ElementWithPosition;
+import org.clyze.source.irfitter.source.model.SourceFile;
+
+/**
+ * A receiver of matching results, as each source file is matched.
+ * Listeners are called by one thread at a time (not the thread that
+ * runs the job).
+ */
+public interface MatchListener {
+    /**
+     * Called when a source file has been matched (and its metadata has
+     * been written, if the job writes metadata).
+     * @param sourceFile   the source file
+     * @param matches      the source elements of the file, by the ids of
+     *                     their IR elements (or by their own ids if they
+     *                     have no IR elements)
+     */
+    void matched(SourceFile sourceFile, Map<String, Collection<? extends ElementWithPosition<?, ?>>> matches);
+}
@@ -0,0 +1,2 @@
+/** A programmatic API for embedding the matcher (e.g. in build tools). */
+package org.clyze.source.irfitter.api;
\ No newline at end of file
@@ -1,10 +1,12 @@
 package org.clyze.source.irfitter.base;
 
+import java.io.Serializable;
 import java.util.HashSet;
 import java.util.Set;
 
 /** A set of access modifiers for a program element. */
-public abstract class ModifierPack {
+public abstract class ModifierPack implements Serializable {
+    private static final long serialVersionUID = 1L;
     protected final Set<String> annotations = new HashSet<>();
 
     /**
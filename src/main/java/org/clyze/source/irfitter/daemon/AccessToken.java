@@ -0,0 +1,101 @@
+package org.clyze.source.irfitter.daemon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The shared secret that clients of a local server (such as the daemon)
+ * must send before any request. Local sockets are open to every user of
+ * the machine, so a server writes a random token to a file that only its
+ * owner can read, and its clients read the token from that file.
+ */
+public final class AccessToken {
+    /** The number of random bytes of a token. */
+    private static final int TOKEN_BYTES = 32;
+    /** The maximum length of a token sent by a client. */
+    static final int MAX_LENGTH = 2 * TOKEN_BYTES;
+
+    private AccessToken() {}
+
+    /**
+     * Returns the default token file of a server.
+     * @param server   the kind of the server (such as "daemon")
+     * @param port     the port of the server
+     * @return         the token file (under ~/.source-ir-fitter)
+     */
+    public static File defaultFile(String server, int port) {
+        return new File(new File(System.getProperty("user.home"), ".source-ir-fitter"), server + "-" + port + ".token");
+    }
+
+    /**
+     * Create a new token and write it to a file that only the current user
+     * can read (replacing any earlier token).
+     * @param file           the token file
+     * @return               the token
+     * @throws IOException   if the token file could not be written
+     */
+    public static String create(File file) throws IOException {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        String token = sb.toString();
+
+        Path path = file.toPath().toAbsolutePath();
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(path);
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Set<PosixFilePermission> ownerOnly = EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(ownerOnly));
+        } else {
+            Files.createFile(path);
+            File f = path.toFile();
+            if (!(f.setReadable(false, false) && f.setReadable(true, true) && f.setWritable(false, false) && f.setWritable(true, true)))
+                System.out.println("WARNING: could not restrict the permissions of " + file);
+        }
+        Files.write(path, token.getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+        return token;
+    }
+
+    /**
+     * Read the token of a server.
+     * @param file           the token file
+     * @return               the token
+     * @throws IOException   if the token file could not be read
+     */
+    public static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Check a token sent by a client (in constant time).
+     * @param expected   the token of the server
+     * @param actual     the token sent by the client (may be null)
+     * @return           true if the tokens are equal
+     */
+    static boolean matches(String expected, String actual) {
+        return actual != null && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Delete the token file of a server that has stopped.
+     * @param file   the token file
+     */
+    static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException ex) {
+            System.out.println("WARNING: could not delete " + file);
+        }
+    }
+}
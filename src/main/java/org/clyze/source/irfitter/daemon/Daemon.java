@@ -0,0 +1,217 @@
+package org.clyze.source.irfitter.daemon;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import org.clyze.source.irfitter.Main;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.ir.IRState;
+import org.clyze.source.irfitter.ir.PlatformCache;
+
+/**
+ * A long-running process that serves runs submitted by {@link DaemonClient}.
+ * The IR of platforms is cached between runs, and the parsers are loaded
+ * and compiled by the JIT once, so repeated runs only pay for reading the
+ * application IR and the sources.
+ *
+ * Runs are served one at a time, on a socket that only accepts local
+ * connections. The console output of a run is sent to its client. Clients
+ * must send the {@link AccessToken} that the daemon writes when it starts.
+ *
+ * Protocol: the client sends the token, the number of arguments and the
+ * arguments (as modified UTF-8 strings). The daemon replies with frames of
+ * a kind byte, a length and a payload: {@link #OUT}/{@link #ERR} frames
+ * carry console output and the final {@link #EXIT} frame carries the exit
+ * code.
+ */
+public class Daemon {
+    /** A frame of standard output. */
+    static final byte OUT = 1;
+    /** A frame of standard error. */
+    static final byte ERR = 2;
+    /** The last frame of a run (the payload is the exit code). */
+    static final byte EXIT = 3;
+    /** The argument that stops the daemon. */
+    static final String STOP = "--stop-daemon";
+    /** The maximum number of arguments of a run. */
+    static final int MAX_ARGS = 4096;
+    /** The time a client may take to send its request (in milliseconds). */
+    private static final int REQUEST_TIMEOUT = 30_000;
+
+    private final int port;
+    /** The token file (null for the default file of the port). */
+    private final File tokenFile;
+    private final boolean debug;
+    private final PlatformCache platformCache = new PlatformCache();
+    /** The token that clients must send. */
+    private String token = null;
+
+    /**
+     * Create a daemon.
+     * @param port        the local port to listen on (0 for any free port)
+     * @param tokenFile   the file to write the access token to (null for
+     *                    the default file of the port)
+     * @param debug       debug mode
+     */
+    public Daemon(int port, File tokenFile, boolean debug) {
+        this.port = port;
+        this.tokenFile = tokenFile;
+        this.debug = debug;
+    }
+
+    /**
+     * Read platforms in advance, so that the first run does not pay for them.
+     * @param platforms   the platform paths
+     */
+    public void preloadPlatforms(Collection<String> platforms) {
+        for (String platform : platforms)
+            platformCache.addPlatform(new IRState(), new HashSet<>(), new File(platform), debug);
+    }
+
+    /**
+     * Serve runs until a client stops the daemon.
+     * @throws IOException   if the daemon socket could not be opened
+     */
+    public void serve() throws IOException {
+        File tokenFile = null;
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            int localPort = server.getLocalPort();
+            tokenFile = this.tokenFile == null ? AccessToken.defaultFile("daemon", localPort) : this.tokenFile;
+            token = AccessToken.create(tokenFile);
+            System.out.println("Daemon listening on port " + localPort + " (" + platformCache.size() + " cached platform(s)), token file: " + tokenFile);
+            boolean running = true;
+            while (running) {
+                try (Socket socket = server.accept()) {
+                    running = serve(socket);
+                } catch (IOException ex) {
+                    System.err.println("ERROR: daemon connection failed: " + ex.getMessage());
+                }
+            }
+        } finally {
+            if (tokenFile != null)
+                AccessToken.delete(tokenFile);
+        }
+        System.out.println("Daemon stopped.");
+    }
+
+    /**
+     * Serve a single run.
+     * @param socket         the client connection
+     * @return               false if the client stopped the daemon
+     * @throws IOException   on connection errors
+     */
+    private boolean serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        // A client that does not send its request cannot block other clients.
+        socket.setSoTimeout(REQUEST_TIMEOUT);
+        if (!AccessToken.matches(token, in.readUTF())) {
+            System.err.println("ERROR: rejected a client with a wrong token.");
+            reject(out, "ERROR: wrong daemon token, see the token file of the daemon.");
+            return true;
+        }
+        int argCount = in.readInt();
+        if (argCount < 0 || argCount > MAX_ARGS) {
+            reject(out, "ERROR: a run may have up to " + MAX_ARGS + " arguments: " + argCount);
+            return true;
+        }
+        String[] args = new String[argCount];
+        for (int i = 0; i < argCount; i++)
+            args[i] = in.readUTF();
+        socket.setSoTimeout(0);
+        if (args.length == 1 && args[0].equals(STOP)) {
+            writeFrame(out, EXIT, "0".getBytes(StandardCharsets.UTF_8), 0, 1);
+            out.flush();
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        if (debug)
+            System.out.println("Run: " + Arrays.toString(args));
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        int exitCode;
+        try (PrintStream runOut = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, OUT)), true, "UTF-8");
+             PrintStream runErr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, ERR)), true, "UTF-8")) {
+            System.setOut(runOut);
+            System.setErr(runErr);
+            try {
+                RunResult result = Main.run(args, platformCache);
+                exitCode = result == null ? 1 : 0;
+            } catch (Throwable t) {
+                t.printStackTrace();
+                exitCode = 1;
+            } finally {
+                runOut.flush();
+                runErr.flush();
+                System.setOut(stdout);
+                System.setErr(stderr);
+            }
+        }
+        byte[] code = String.valueOf(exitCode).getBytes(StandardCharsets.UTF_8);
+        writeFrame(out, EXIT, code, 0, code.length);
+        out.flush();
+        System.out.println("Run finished in " + (System.currentTimeMillis() - start) + " ms (exit code " + exitCode + ").");
+        return true;
+    }
+
+    /**
+     * Reply to a request that is not served.
+     * @param out            the client connection
+     * @param message        the error message
+     * @throws IOException   on connection errors
+     */
+    private static void reject(DataOutputStream out, String message) throws IOException {
+        byte[] error = (message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        writeFrame(out, ERR, error, 0, error.length);
+        writeFrame(out, EXIT, "1".getBytes(StandardCharsets.UTF_8), 0, 1);
+        out.flush();
+    }
+
+    static void writeFrame(DataOutputStream out, byte kind, byte[] b, int off, int len) throws IOException {
+        synchronized (out) {
+            out.writeByte(kind);
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+    }
+
+    /** A stream that sends everything written to it as frames of one kind. */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte kind;
+
+        FrameOutputStream(DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeFrame(out, kind, b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The connection stays open for the exit frame.
+            flush();
+        }
+    }
+}
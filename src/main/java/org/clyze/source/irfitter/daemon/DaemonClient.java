@@ -0,0 +1,98 @@
+package org.clyze.source.irfitter.daemon;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * A thin client that submits a run to a {@link Daemon} and prints its
+ * output. The client does not load the IR or the parsers.
+ */
+public class DaemonClient {
+    private final int port;
+    /** The file with the access token of the daemon. */
+    private final File tokenFile;
+
+    /**
+     * Create a client.
+     * @param port        the local port of the daemon
+     * @param tokenFile   the file with the access token of the daemon
+     */
+    public DaemonClient(int port, File tokenFile) {
+        this.port = port;
+        this.tokenFile = tokenFile;
+    }
+
+    /**
+     * Submit a run and copy its output to the console.
+     * @param args        the command-line arguments of the run
+     * @param pathOpts    the options whose values are paths (these are made
+     *                    absolute, as the daemon may run in another directory)
+     * @return            the exit code of the run
+     */
+    public int submit(String[] args, Collection<String> pathOpts) {
+        String[] runArgs = new String[args.length];
+        boolean pathValue = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-")) {
+                pathValue = pathOpts.contains(arg);
+                runArgs[i] = arg;
+            } else
+                runArgs[i] = pathValue ? new File(arg).getAbsolutePath() : arg;
+        }
+        return send(runArgs);
+    }
+
+    /**
+     * Stop the daemon (after its current run).
+     * @return   the exit code
+     */
+    public int stop() {
+        return send(new String[] { Daemon.STOP });
+    }
+
+    private int send(String[] args) {
+        String token;
+        try {
+            token = AccessToken.read(tokenFile);
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not read the daemon token from " + tokenFile + ", is the daemon running?");
+            return 1;
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(token);
+            out.writeInt(args.length);
+            for (String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                byte kind = in.readByte();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                if (kind == Daemon.OUT)
+                    System.out.write(payload);
+                else if (kind == Daemon.ERR)
+                    System.err.write(payload);
+                else if (kind == Daemon.EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    return Integer.parseInt(new String(payload, StandardCharsets.UTF_8));
+                }
+            }
+        } catch (ConnectException ex) {
+            System.err.println("ERROR: no daemon is listening on port " + port);
+        } catch (EOFException ex) {
+            System.err.println("ERROR: the daemon closed the connection before the run finished");
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not communicate with the daemon: " + ex.getMessage());
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,309 @@
+package org.clyze.source.irfitter.daemon;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataReader;
+import org.clyze.source.irfitter.source.binary.BinarySymbol;
+import org.clyze.source.irfitter.source.json.JsonWriter;
+
+/**
+ * Answers lookups on the metadata of a finished run, kept in memory as
+ * binary metadata, so that clients do not have to run the fitter again.
+ * The metadata is read-only, so connections are served concurrently (every
+ * open connection has a worker thread; threads are reused). The socket only
+ * accepts local connections, up to {@link #MAX_CONNECTIONS} at a time.
+ *
+ * Protocol: the first line of a connection is the {@link AccessToken} that
+ * the server writes when it starts. Every request is a line of
+ * tab-separated UTF-8 fields (up to {@link #MAX_LINE_LENGTH} characters)
+ * and every reply is a line of JSON, either {"symbols":[...]},
+ * {"files":[...]} or {"error":"..."}. A connection may send any number of
+ * requests; connections with a wrong token or a longer line are closed
+ * after an error reply.
+ * <pre>
+ * id    ID                   the symbols with a symbol (IR) id
+ * at    PATH LINE COLUMN     the symbols whose positions contain a position (innermost first)
+ * file  PATH                 the symbols of a source file
+ * files                      the paths of the source files
+ * stop                       stop the server
+ * </pre>
+ */
+public class QueryServer {
+    /** Find the symbols with an id. */
+    public static final String ID = "id";
+    /** Find the symbols at a source position. */
+    public static final String AT = "at";
+    /** List the symbols of a source file. */
+    public static final String FILE = "file";
+    /** List the source files. */
+    public static final String FILES = "files";
+    /** Stop the server. */
+    public static final String STOP = "stop";
+    /** The maximum number of open connections. */
+    public static final int MAX_CONNECTIONS = 64;
+    /** The maximum length of a request line (in characters). */
+    public static final int MAX_LINE_LENGTH = 65536;
+    /** The time a client may take to send its token (in milliseconds). */
+    private static final int TOKEN_TIMEOUT = 30_000;
+
+    private final BinaryMetadataReader index;
+    private final int port;
+    /** The token file (null for the default file of the port). */
+    private final File tokenFile;
+    private final boolean debug;
+    /** The open client connections (closed when the server stops). */
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket server = null;
+    private volatile boolean stopped = false;
+    /** The token that clients must send. */
+    private volatile String token = null;
+    /** The port that the server listens on (0 until it listens). */
+    private volatile int localPort = 0;
+
+    /**
+     * Create a server.
+     * @param index       the metadata to query
+     * @param port        the local port to listen on (0 for any free port)
+     * @param tokenFile   the file to write the access token to (null for
+     *                    the default file of the port)
+     * @param debug       debug mode
+     */
+    public QueryServer(BinaryMetadataReader index, int port, File tokenFile, boolean debug) {
+        this.index = index;
+        this.port = port;
+        this.tokenFile = tokenFile;
+        this.debug = debug;
+    }
+
+    /** Returns the port that the server listens on (0 until it listens). */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Serve lookups until a client stops the server.
+     * @throws IOException   if the server socket could not be opened
+     */
+    public void serve() throws IOException {
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "query-server");
+            t.setDaemon(true);
+            return t;
+        });
+        File tokenFile = null;
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            this.server = server;
+            tokenFile = this.tokenFile == null ? AccessToken.defaultFile("query", server.getLocalPort()) : this.tokenFile;
+            token = AccessToken.create(tokenFile);
+            localPort = server.getLocalPort();
+            System.out.println("Query server listening on port " + localPort + " (" + index.getFileCount() + " file(s), " + index.getRecordCount() + " symbol(s)), token file: " + tokenFile);
+            while (!stopped) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException ex) {
+                    // The socket is closed when the server is stopped.
+                    if (stopped)
+                        break;
+                    throw ex;
+                }
+                if (connections.size() >= MAX_CONNECTIONS) {
+                    reject(socket, "too many connections (the maximum is " + MAX_CONNECTIONS + ")");
+                    continue;
+                }
+                connections.add(socket);
+                executor.execute(() -> serve(socket));
+            }
+        } finally {
+            stop();
+            executor.shutdownNow();
+            if (tokenFile != null)
+                AccessToken.delete(tokenFile);
+        }
+        System.out.println("Query server stopped.");
+    }
+
+    /** Stop the server and close the open connections. */
+    public void stop() {
+        stopped = true;
+        close(server);
+        for (Socket socket : connections)
+            close(socket);
+    }
+
+    /**
+     * Serve the requests of a connection.
+     * @param socket   the client connection
+     */
+    private void serve(Socket socket) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            JsonWriter json = new JsonWriter(8192);
+            StringBuilder sb = new StringBuilder();
+            // A client that does not send its token cannot keep a connection.
+            socket.setSoTimeout(TOKEN_TIMEOUT);
+            String clientToken;
+            try {
+                clientToken = readLine(in, sb, AccessToken.MAX_LENGTH);
+            } catch (SocketTimeoutException ex) {
+                clientToken = null;
+            }
+            if (!AccessToken.matches(token, clientToken)) {
+                System.err.println("ERROR: rejected a query client with a wrong token.");
+                reply(json, out, "wrong query server token, see the token file of the server");
+                return;
+            }
+            socket.setSoTimeout(0);
+            String line;
+            while ((line = readLine(in, sb, MAX_LINE_LENGTH)) != null) {
+                if (line.isEmpty())
+                    continue;
+                long start = debug ? System.nanoTime() : 0;
+                json.reset(out);
+                boolean stop = line.equals(STOP);
+                if (line.length() > MAX_LINE_LENGTH)
+                    writeError(json, "a request may have up to " + MAX_LINE_LENGTH + " characters");
+                else if (stop)
+                    json.beginObject().name("stopped").value(true).endObject();
+                else
+                    answer(line.split("\t", -1), json);
+                json.flush();
+                out.write('\n');
+                out.flush();
+                if (line.length() > MAX_LINE_LENGTH)
+                    break;
+                if (debug)
+                    System.out.println("Query '" + line + "' answered in " + (System.nanoTime() - start) / 1000 + " us.");
+                if (stop) {
+                    stop();
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            if (debug && !stopped)
+                System.err.println("ERROR: query connection failed: " + ex.getMessage());
+        } finally {
+            connections.remove(socket);
+            close(socket);
+        }
+    }
+
+    /**
+     * Read a line of a connection, reading at most one character more than
+     * the maximum length (a longer line is returned with that character, to
+     * be rejected).
+     * @param in             the connection
+     * @param sb             the buffer of the line
+     * @param maxLength      the maximum length of the line
+     * @return               the line, or null at the end of the connection
+     * @throws IOException   on connection errors
+     */
+    private static String readLine(Reader in, StringBuilder sb, int maxLength) throws IOException {
+        sb.setLength(0);
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r')
+                sb.append((char) c);
+            if (sb.length() > maxLength)
+                break;
+        }
+        return c == -1 && sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Reply with an error to a connection that is not served and close it.
+     * @param socket    the client connection
+     * @param message   the error message
+     */
+    private static void reject(Socket socket, String message) {
+        try (OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            reply(new JsonWriter(256), out, message);
+        } catch (IOException ignored) {
+            // The client has gone.
+        } finally {
+            close(socket);
+        }
+    }
+
+    private static void reply(JsonWriter json, OutputStream out, String error) throws IOException {
+        json.reset(out);
+        writeError(json, error);
+        json.flush();
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Answer a lookup.
+     * @param fields         the fields of the request
+     * @param json           the writer of the reply
+     * @throws IOException   on output errors
+     */
+    private void answer(String[] fields, JsonWriter json) throws IOException {
+        String request = fields[0];
+        if (request.equals(ID) && fields.length == 2)
+            writeSymbols(json, index.findSymbols(fields[1]));
+        else if (request.equals(FILE) && fields.length == 2)
+            writeSymbols(json, index.getSymbols(fields[1]));
+        else if (request.equals(AT) && fields.length == 4) {
+            int line, column;
+            try {
+                line = Integer.parseInt(fields[2]);
+                column = Integer.parseInt(fields[3]);
+            } catch (NumberFormatException ex) {
+                writeError(json, "bad position: " + fields[2] + ":" + fields[3]);
+                return;
+            }
+            writeSymbols(json, index.findSymbolsAt(fields[1], line, column));
+        } else if (request.equals(FILES) && fields.length == 1) {
+            json.beginObject().name("files").beginArray();
+            String last = null;
+            // Copies of a source file have consecutive entries.
+            for (int fileNo = 0; fileNo < index.getFileCount(); fileNo++) {
+                String path = index.getPath(fileNo);
+                if (!path.equals(last))
+                    json.value(path);
+                last = path;
+            }
+            json.endArray().endObject();
+        } else
+            writeError(json, "bad request: " + String.join(" ", fields));
+    }
+
+    private static void writeSymbols(JsonWriter json, List<BinarySymbol> symbols) throws IOException {
+        json.beginObject().name("symbols").beginArray();
+        for (BinarySymbol symbol : symbols)
+            json.beginObject()
+                .name("kind").value(symbol.kind.getTypeName())
+                .name("symbolId").value(symbol.symbolId)
+                .name("path").value(symbol.path)
+                .name("startLine").value(symbol.startLine)
+                .name("startColumn").value(symbol.startColumn)
+                .name("endLine").value(symbol.endLine)
+                .name("endColumn").value(symbol.endColumn)
+                .endObject();
+        json.endArray().endObject();
+    }
+
+    private static void writeError(JsonWriter json, String message) throws IOException {
+        json.beginObject().name("error").value(message).endObject();
+    }
+
+    private static void close(Closeable c) {
+        if (c == null)
+            return;
+        try {
+            c.close();
+        } catch (IOException ignored) { }
+    }
+}
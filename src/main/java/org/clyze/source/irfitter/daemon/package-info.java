@@ -0,0 +1,6 @@
+/**
+ * Long-running processes on a local socket: a daemon that serves runs
+ * submitted by clients and a server that answers lookups on the metadata
+ * of a finished run.
+ */
+package org.clyze.source.irfitter.daemon;
@@ -3,6 +3,7 @@ package org.clyze.source.irfitter.ir;
 import java.io.*;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import org.clyze.source.irfitter.ir.bytecode.BytecodeParser;
@@ -27,7 +28,7 @@ public abstract class IRProcessor {
         if (irFile.isFile()) {
             String name = irFile.getName().toLowerCase();
             if (name.endsWith(".jar")) {
-                processZipArchive(irFile, ".class", debug,
+                processZipArchive(irFile, ".class", entryName -> mayAccept(irState, entryName), debug,
                         is -> new BytecodeParser(debug, enterMethods, varArgMethods).processClass(irState, is));
             } else if (name.endsWith(".class")) {
                 try (InputStream is = new FileInputStream(irFile)) {
@@ -36,7 +37,7 @@ public abstract class IRProcessor {
                     ex.printStackTrace();
                 }
             } else if (name.endsWith(".apk")) {
-                processZipArchive(irFile, ".dex", debug,
+                processZipArchive(irFile, ".dex", entryName -> true, debug,
                         is -> new DexParser(debug, enterMethods, varArgMethods).processDex(irState, is));
             } else if (name.endsWith(".war") || name.endsWith(".ear")) {
                 try {
@@ -57,13 +58,29 @@ public abstract class IRProcessor {
             processIR(irState, varArgMethods, f, debug, enterMethods);
     }
 
-    private static void processZipArchive(File irFile, String ext, boolean debug,
-                                          Consumer<InputStream> processor) {
+    /**
+     * Check if a class file entry of an archive may contain a type that is
+     * accepted by an IR state. This avoids reading the classes of the types
+     * that are not accepted. Entries under META-INF (such as the classes of
+     * multi-release archives) are always read.
+     * @param irState     the IR state
+     * @param entryName   the name of the entry
+     * @return            false if the entry can be skipped
+     */
+    private static boolean mayAccept(IRState irState, String entryName) {
+        if (entryName.startsWith("META-INF/"))
+            return true;
+        String typeId = entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.');
+        return irState.accepts(typeId);
+    }
+
+    private static void processZipArchive(File irFile, String ext, Predicate<String> entryFilter,
+                                          boolean debug, Consumer<InputStream> processor) {
         try (ZipFile zf = new ZipFile(irFile)) {
             Enumeration<? extends ZipEntry> zfEntries = zf.entries();
             while (zfEntries.hasMoreElements()) {
                 ZipEntry entry = zfEntries.nextElement();
-                if (entry.getName().endsWith(ext)) {
+                if (entry.getName().endsWith(ext) && entryFilter.test(entry.getName())) {
                     if (debug)
                         System.out.println("Reading " + entry.getName());
                     processor.accept(zf.getInputStream(entry));
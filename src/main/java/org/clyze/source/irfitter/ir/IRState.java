@@ -1,9 +1,11 @@
 package org.clyze.source.irfitter.ir;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 
 import org.clyze.source.irfitter.ir.model.IRLambda;
 import org.clyze.source.irfitter.ir.model.IRMethod;
@@ -14,15 +16,56 @@ import org.clyze.source.irfitter.ir.model.IRType;
  */
 public class IRState {
     public final List<IRType> irTypes = new ArrayList<>();
+    /** The filter of the types to read (by id), null to read all types. */
+    private final Predicate<String> typeFilter;
+
+    public IRState() {
+        this(null);
+    }
+
+    /**
+     * Create an IR state that only reads some types.
+     * @param typeFilter   the filter of the types to read (by id), null to read all types
+     */
+    public IRState(Predicate<String> typeFilter) {
+        this.typeFilter = typeFilter;
+    }
+
+    /**
+     * Check if a type should be read (this is checked before parsing its members).
+     * @param typeId   the type id
+     * @return         true if the type should be read
+     */
+    public boolean accepts(String typeId) {
+        return typeFilter == null || typeFilter.test(typeId);
+    }
+
+    /**
+     * Record a type that has been read. Subclasses may summarize types
+     * instead of keeping them.
+     * @param irType   the type (with all its members)
+     */
+    public void addType(IRType irType) {
+        irTypes.add(irType);
+    }
 
     public void resolveLambdas(boolean debug) {
+        resolveLambdas(irTypes, debug);
+    }
+
+    /**
+     * Resolve the lambdas of some types against the methods of all types read.
+     * @param owners   the types whose lambdas should be resolved
+     * @param debug    debug mode
+     */
+    public void resolveLambdas(Collection<IRType> owners, boolean debug) {
         if (debug)
             System.out.println("Resolving IR lambdas...");
         Map<String, IRMethod> irMethods = new HashMap<>();
         for (IRType irType : irTypes)
             for (IRMethod irMethod : irType.methods)
                 irMethods.put(irMethod.getId(), irMethod);
-        for (IRType irType : irTypes)
+        for (IRType irType : owners)
             for (IRMethod irMethod : irType.methods) {
                 List<IRLambda> irLambdas = irMethod.lambdas;
                 if (irLambdas == null)
@@ -0,0 +1,77 @@
+package org.clyze.source.irfitter.ir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import org.clyze.source.irfitter.ir.model.IRType;
+
+/**
+ * A cache of the IR of platform code, for processes that serve many runs
+ * (such as the daemon). A platform is read again only when its file
+ * changes (for directories, only the modification time of the directory
+ * itself is checked).
+ */
+public class PlatformCache {
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /** The IR read from a platform file. */
+    private static final class Entry {
+        final long lastModified;
+        final long length;
+        final List<IRType> irTypes;
+        final Set<String> varArgMethods;
+
+        Entry(File platform, List<IRType> irTypes, Set<String> varArgMethods) {
+            this.lastModified = platform.lastModified();
+            this.length = platform.length();
+            this.irTypes = irTypes;
+            this.varArgMethods = varArgMethods;
+        }
+
+        boolean isCurrent(File platform) {
+            return lastModified == platform.lastModified() && length == platform.length();
+        }
+    }
+
+    /**
+     * Add the IR of a platform to an IR state, reading it if it is not cached.
+     * @param irState         the IR state to fill
+     * @param varArgMethods   the set of vararg methods to fill
+     * @param platform        the platform file/directory
+     * @param debug           debug mode
+     */
+    public synchronized void addPlatform(IRState irState, Set<String> varArgMethods,
+                                         File platform, boolean debug) {
+        String key;
+        try {
+            key = platform.getCanonicalPath();
+        } catch (IOException ex) {
+            key = platform.getAbsolutePath();
+        }
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.isCurrent(platform)) {
+            System.out.println("Reading platform: " + platform);
+            IRState platformState = new IRState();
+            Set<String> platformVarArgs = new HashSet<>();
+            IRProcessor.processIR(platformState, platformVarArgs, platform, debug, false);
+            entry = new Entry(platform, platformState.irTypes, platformVarArgs);
+            entries.put(key, entry);
+        } else if (debug)
+            System.out.println("Reusing cached platform: " + platform);
+        for (IRType irType : entry.irTypes)
+            if (irState.accepts(irType.getId())) {
+                // Earlier runs may have matched the cached types.
+                irType.clearMatches();
+                irState.addType(irType);
+            }
+        varArgMethods.addAll(entry.varArgMethods);
+    }
+
+    /**
+     * Returns the number of cached platforms.
+     * @return   the number of platforms
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
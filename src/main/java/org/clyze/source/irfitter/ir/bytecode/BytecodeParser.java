@@ -93,7 +93,9 @@ public class BytecodeParser extends IRProcessor {
 
     public void processClass(IRState irState, InputStream is) {
         try {
-            irState.irTypes.add(processBytecode(new ClassReader(is)));
+            ClassReader reader = new ClassReader(is);
+            if (irState.accepts(replaceSlashesWithDots(reader.getClassName())))
+                irState.addType(processBytecode(reader));
         } catch (IOException ex) {
             ex.printStackTrace();
         }
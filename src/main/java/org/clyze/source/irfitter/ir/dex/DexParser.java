@@ -53,6 +53,8 @@ public class DexParser extends IRProcessor {
                     System.err.println("ERROR: bad .dex class: " + className);
                 else {
                     String typeId = replaceSlashesWithDots(className.substring(1, className.length()-1));
+                    if (!irState.accepts(typeId))
+                        continue;
                     DexModifierPack irTypeMods = new DexModifierPack(dexClass);
                     List<String> superTypes = new ArrayList<>();
                     superTypes.add(raiseLowLevelType(dexClass.getSuperclass()));
@@ -60,7 +62,6 @@ public class DexParser extends IRProcessor {
                     IRType irType = new IRType(typeId, superTypes, irTypeMods);
                     if (debug)
                         System.out.println("IR type: " + irType);
-                    irState.irTypes.add(irType);
                     String classPrefix = "<" + typeId + ": ";
                     for (DexBackedField dexField : dexClass.getFields()) {
                         String fieldName = dexField.getName();
@@ -103,6 +104,7 @@ public class DexParser extends IRProcessor {
                         processDexInstructions(dexMethod, irMethod, debug);
                         irType.methods.add(irMethod);
                     }
+                    irState.addType(irType);
                 }
             }
         } catch (IOException ex) {
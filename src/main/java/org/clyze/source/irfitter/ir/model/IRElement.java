@@ -26,6 +26,16 @@ public abstract class IRElement {
      */
     public void addReferencedTypesTo(Collection<String> target) { }
 
+    /**
+     * Forget that some elements have been matched.
+     * @param elements   the elements (may be null)
+     */
+    protected static void clearMatches(Collection<? extends IRElement> elements) {
+        if (elements != null)
+            for (IRElement element : elements)
+                element.matched = false;
+    }
+
     /**
      * Helper for reusing type references from element lists.
      * @param target    the target set to populate
@@ -47,6 +47,23 @@ public class IRMethod extends IRElement implements AbstractMethod {
         this.isInterface = isInterface;
     }
 
+    /**
+     * Forget the matches of this method and its elements, so that it can be
+     * matched against other sources.
+     */
+    public void clearMatches() {
+        matched = false;
+        clearMatches(invocations);
+        clearMatches(allocations);
+        clearMatches(fieldAccesses);
+        clearMatches(lambdas);
+        clearMatches(methodRefs);
+        clearMatches(casts);
+        clearMatches(parameters);
+        if (receiver != null)
+            receiver.matched = false;
+    }
+
     public IRMethodInvocation addInvocation(String methodName, int arity,
                                             String invokedMethodId, String targetType,
                                             String targetReturnType, String targetParamTypes,
@@ -14,6 +14,8 @@ public class IRType extends IRElement {
     public final ModifierPack mp;
     /** For true inner classes, this contains their outer classes. */
     public List<String> outerTypes = null;
+    /** The signatures of the declared methods (only in declaration-only copies). */
+    private Set<String> methodSignatures = null;
 
     public IRType(String id, List<String> superTypes, ModifierPack mp) {
         super(id);
@@ -50,7 +52,40 @@ public class IRType extends IRElement {
             addOuterType(field.type);
     }
 
+    /**
+     * Forget the matches of this type and its members, so that it can be
+     * matched against other sources.
+     */
+    public void clearMatches() {
+        matched = false;
+        clearMatches(fields);
+        for (IRMethod method : methods)
+            method.clearMatches();
+    }
+
+    /**
+     * Returns a copy of this type that only keeps its supertypes, fields
+     * and method signatures (without method bodies). The copy can be used
+     * for field lookups and {@link #declaresMethod(String, String, String)}.
+     * @return   the copy
+     */
+    public IRType declarationsOnly() {
+        IRType copy = new IRType(getId(), superTypes, mp);
+        copy.fields.addAll(fields);
+        copy.outerTypes = outerTypes;
+        copy.methodSignatures = new HashSet<>();
+        for (IRMethod method : methods)
+            copy.methodSignatures.add(methodSignature(method.returnType, method.name, method.getParamTypesAsString()));
+        return copy;
+    }
+
+    private static String methodSignature(String retType, String name, String paramTypes) {
+        return retType + " " + name + "(" + paramTypes + ")";
+    }
+
     public boolean declaresMethod(String retType, String name, String paramTypes) {
+        if (methodSignatures != null)
+            return methodSignatures.contains(methodSignature(retType, name, paramTypes));
         for (IRMethod method : methods) {
             if (method.name.equals(name) && method.returnType.equals(retType) && method.getParamTypesAsString().equals(paramTypes))
                 return true;
@@ -23,15 +23,32 @@ public class Aliaser {
     /** If true, support JSON metadata generation. */
     private final boolean json;
     /** A mapping from IR symbol ids to one or more source code variable ids. */
-    public final Map<String, Collection<String>> aliases = new HashMap<>();
+    public final Map<String, Collection<String>> aliases;
     /** The mapper object to use for registering variable aliases. */
     private final IdMapper idMapper;
 
     public Aliaser(boolean translateResults, boolean debug, boolean json, IdMapper idMapper) {
+        this(translateResults, debug, json, idMapper, new HashMap<>());
+    }
+
+    private Aliaser(boolean translateResults, boolean debug, boolean json, IdMapper idMapper,
+                    Map<String, Collection<String>> aliases) {
         this.translateResults = translateResults;
         this.debug = debug;
         this.json = json;
         this.idMapper = idMapper;
+        this.aliases = aliases;
+    }
+
+    /**
+     * Returns an aliaser that registers variables in another mapper but
+     * shares the aliases of this aliaser (e.g. to match source files one at
+     * a time and translate results once).
+     * @param mapper   the mapper to use
+     * @return         the new aliaser
+     */
+    public Aliaser forMapper(IdMapper mapper) {
+        return new Aliaser(translateResults, debug, json, mapper, aliases);
     }
 
     /**
@@ -0,0 +1,85 @@
+package org.clyze.source.irfitter.matcher;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The Doop facts used to resolve variables, indexed by the IR element they
+ * refer to. This supports resolving the variables of a few source files at
+ * a time (e.g. when source files are streamed), without reading the facts
+ * files again for every source file. Every facts file is read on first use.
+ */
+public class DoopFacts {
+    /** The Doop database directory. */
+    private final File db;
+    /** If true, emit debug messages. */
+    private final boolean debug;
+    /** The facts read so far (by facts file name). */
+    private final Map<String, Relation> relations = new HashMap<>();
+
+    /** The rows of a facts file and their index. */
+    private static final class Relation {
+        /** The rows, in file order. */
+        final List<String[]> rows = new ArrayList<>();
+        /** The positions of the rows in {@link #rows}, by key. */
+        final Map<String, List<Integer>> rowsByKey = new HashMap<>();
+    }
+
+    /**
+     * Create the (not yet read) facts of a Doop database.
+     * @param db      the database directory
+     * @param debug   debug mode
+     */
+    public DoopFacts(File db, boolean debug) {
+        this.db = db;
+        this.debug = debug;
+    }
+
+    /**
+     * Returns the rows of a facts file that have one of the given keys.
+     * @param factsFileName   the name of the facts file
+     * @param columns         the minimum number of columns of a row
+     * @param keyColumn       the column of the key
+     * @param keys            the keys to look up
+     * @return                the matching rows (in file order)
+     */
+    List<String[]> select(String factsFileName, int columns, int keyColumn, Set<String> keys) {
+        Relation rel = relations.computeIfAbsent(factsFileName, (k -> read(factsFileName, columns, keyColumn)));
+        List<Integer> positions = new ArrayList<>();
+        for (String key : keys) {
+            List<Integer> keyRows = rel.rowsByKey.get(key);
+            if (keyRows != null)
+                positions.addAll(keyRows);
+        }
+        Collections.sort(positions);
+        List<String[]> ret = new ArrayList<>(positions.size());
+        for (int pos : positions)
+            ret.add(rel.rows.get(pos));
+        return ret;
+    }
+
+    private Relation read(String factsFileName, int columns, int keyColumn) {
+        Relation rel = new Relation();
+        File factsFile = new File(db, factsFileName);
+        if (!factsFile.exists()) {
+            System.err.println("ERROR: could not read " + factsFile);
+            return rel;
+        }
+        if (debug)
+            System.err.println("Reading file: " + factsFileName);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(factsFile))))  {
+            br.lines().forEach(line -> {
+                String[] parts = line.split("\t");
+                if (parts.length < columns) {
+                    System.out.println("Ignoring line: " + line);
+                    return;
+                }
+                rel.rowsByKey.computeIfAbsent(parts[keyColumn], (k -> new ArrayList<>())).add(rel.rows.size());
+                rel.rows.add(parts);
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return rel;
+    }
+}
@@ -25,13 +25,31 @@ public class DoopMatcher {
     private final Map<String, int[]> relationVarColumns;
     /** The variables that are not redefined inside a method. */
     private final Map<JMethod, Map<String, JVariable>> uniqueVariables = new HashMap<>();
+    /** The facts that have already been read (null to read the facts files). */
+    private final DoopFacts facts;
 
     public DoopMatcher(File db, boolean debug, IdMapper idMapper, Aliaser aliaser, String[] relVars) {
+        this(db, debug, idMapper, aliaser, relVars, null);
+    }
+
+    /**
+     * Create a matcher that looks up the facts of the elements in its mapper,
+     * instead of reading the facts files (e.g. when source files are matched
+     * one at a time).
+     * @param db        the Doop database directory
+     * @param debug     debug mode
+     * @param idMapper  the mapper of the matched elements
+     * @param aliaser   the symbol aliasing handler
+     * @param relVars   the column-variable relation spec (or null)
+     * @param facts     the facts (null to read the facts files)
+     */
+    public DoopMatcher(File db, boolean debug, IdMapper idMapper, Aliaser aliaser, String[] relVars, DoopFacts facts) {
         this.db = db;
         this.debug = debug;
         this.idMapper = idMapper;
         this.aliaser = aliaser;
         this.relationVarColumns = initRelationVarColumns(relVars);
+        this.facts = facts;
     }
 
     public void resolveDoopVariables() {
@@ -40,6 +58,14 @@ public class DoopMatcher {
             return;
         }
         System.out.println("Resolving variables from facts in " + db);
+        resolveVariables();
+    }
+
+    /**
+     * Resolve the variables of the matched elements (without checking that
+     * the database exists).
+     */
+    public void resolveVariables() {
         processInstanceInvocations("SpecialMethodInvocation.facts", 5, 0, 3);
         processInstanceInvocations("SuperMethodInvocation.facts", 5, 0, 3);
         processInstanceInvocations("VirtualMethodInvocation.facts", 5, 0, 3);
@@ -49,7 +75,20 @@ public class DoopMatcher {
         processLoadArrayIndex();
     }
 
-    private void processFacts(String factsFileName, int columns, Consumer<String[]> proc) {
+    /**
+     * Process the rows of a facts file.
+     * @param factsFileName   the name of the facts file
+     * @param columns         the minimum number of columns of a row
+     * @param keyColumn       the column of the IR element id of a row
+     * @param elements        the matched source elements (by IR element id)
+     * @param proc            the row processor
+     */
+    private void processFacts(String factsFileName, int columns, int keyColumn,
+                              Map<String, ?> elements, Consumer<String[]> proc) {
+        if (facts != null) {
+            facts.select(factsFileName, columns, keyColumn, elements.keySet()).forEach(proc);
+            return;
+        }
         File factsFile = new File(db, factsFileName);
         if (factsFile.exists()) {
             if (debug)
@@ -88,7 +127,7 @@ public class DoopMatcher {
      * Process the assignments from heap allocations to IR "variables".
      */
     private void processAssignReturnValue() {
-        processFacts("AssignReturnValue.facts", 2, ((String[] parts) -> {
+        processFacts("AssignReturnValue.facts", 2, 0, idMapper.invocationMap, ((String[] parts) -> {
             String irInvoId = parts[0], irVarId = parts[1];
             processTargetVariable("ASSIGN_RETURN_FACTS", idMapper.invocationMap, irInvoId, irVarId);
         }));
@@ -98,7 +137,7 @@ public class DoopMatcher {
      * Process the assignments from heap allocations to IR "variables".
      */
     private void processAssignHeap() {
-        processFacts("AssignHeapAllocation.facts", 6, ((String[] parts) -> {
+        processFacts("AssignHeapAllocation.facts", 6, 2, idMapper.allocationMap, ((String[] parts) -> {
             String irAllocId = parts[2], irVarId = parts[3];
             processTargetVariable("ALLOC_FACTS", idMapper.allocationMap, irAllocId, irVarId);
         }));
@@ -170,7 +209,7 @@ public class DoopMatcher {
      * Process local variable assignments.
      */
     private void processAssignLocal() {
-        processFacts("AssignLocal.facts", 5, ((String[] parts) -> {
+        processFacts("AssignLocal.facts", 5, 4, idMapper.methodMap, ((String[] parts) -> {
             String fromVar = parts[2];
             String toVar = parts[3];
             // The variable extractor (only defined for interesting relation entries).
@@ -200,7 +239,7 @@ public class DoopMatcher {
      * Process local variable assignments from arrays.
      */
     private void processLoadArrayIndex() {
-        processFacts("LoadArrayIndex.facts", 5, ((String[] parts) -> {
+        processFacts("LoadArrayIndex.facts", 5, 4, idMapper.methodMap, ((String[] parts) -> {
             String toVar = parts[2];
             Function<JMethod, JVariable> toVarSupplier = getVarSupplier(toVar);
             if (toVarSupplier != null) {
@@ -227,7 +266,7 @@ public class DoopMatcher {
     @SuppressWarnings("SameParameterValue")
     private void processInstanceInvocations(String factsFileName, int columns,
                                             int invoIdx, int baseIdx) {
-        processFacts(factsFileName, columns,
+        processFacts(factsFileName, columns, invoIdx, idMapper.invocationMap,
                 ((String[] parts) -> {
                     String irInvoId = parts[invoIdx];
                     String baseId = parts[baseIdx];
@@ -54,24 +54,21 @@ public class Matcher {
     public void matchTypes(Iterable<IRType> irTypes) {
         generateUnknownFieldAccesses(idMapper.fieldAccessMap, sourceFile.fieldAccesses);
 
-        for (JType jt : sourceFile.jTypes) {
-            String id = jt.getFullyQualifiedName();
-            if (debug)
-                System.out.println("Matching source type: " + jt + ", fully qualified name: " + id);
-            jt.processInitBlocks();
-            boolean typeMatched = false;
-            for (IRType irType : irTypes)
-                if (!irType.matched && irType.getId().equals(id)) {
-                    idMapper.recordMatch(idMapper.typeMap, "type", irType, jt);
-                    typeMatched = true;
-                    matchFields(idMapper.fieldMap, irType.fields, jt.fields);
-                    matchMethods(idMapper, irType.methods, jt.methods, irType.outerTypes);
-                    generateUnknownTypeMetadata(idMapper, irType, jt);
-                    break;
-                }
-            if (!typeMatched && !matchIR)
-                idMapper.typeMap.put(id, Collections.singletonList(jt));
+        // Visiting method bodies on demand may discover more types (such as
+        // anonymous classes), so repeat until no new types appear.
+        Set<JType> processed = new HashSet<>();
+        List<JType> pending = new ArrayList<>(sourceFile.jTypes);
+        while (!pending.isEmpty()) {
+            for (JType jt : pending) {
+                processed.add(jt);
+                matchType(irTypes, jt);
+            }
+            pending = sourceFile.jTypes.stream().filter(jt -> !processed.contains(jt)).collect(Collectors.toList());
         }
+        // The bodies of unmatched methods are not needed.
+        for (JType jt : sourceFile.jTypes)
+            for (JMethod jm : jt.methods)
+                jm.discardBody();
 
         // Tasks that run when all types have been resolved.
         for (JType jt : sourceFile.jTypes) {
@@ -94,6 +91,25 @@ public class Matcher {
         }
     }
 
+    private void matchType(Iterable<IRType> irTypes, JType jt) {
+        String id = jt.getFullyQualifiedName();
+        if (debug)
+            System.out.println("Matching source type: " + jt + ", fully qualified name: " + id);
+        jt.processInitBlocks();
+        boolean typeMatched = false;
+        for (IRType irType : irTypes)
+            if (!irType.matched && irType.getId().equals(id)) {
+                idMapper.recordMatch(idMapper.typeMap, "type", irType, jt);
+                typeMatched = true;
+                matchFields(idMapper.fieldMap, irType.fields, jt.fields);
+                matchMethods(idMapper, irType.methods, jt.methods, irType.outerTypes);
+                generateUnknownTypeMetadata(idMapper, irType, jt);
+                break;
+            }
+        if (!typeMatched && !matchIR)
+            idMapper.typeMap.put(id, Collections.singletonList(jt));
+    }
+
     private void matchReflectiveArrayAllocations(IdMapper idMapper, JMethod jm) {
         List<JAllocation> srcMultiAllocs = null;
         List<IRMethodInvocation> irReflAllocs = null;
@@ -129,7 +145,7 @@ public class Matcher {
                         JAllocation srcAlloc = srcMultiAllocs.get(i);
                         idMapper.recordMatch(idMapper.allocationMap, "allocation", irMultiAlloc, srcAlloc);
                         IRMethodInvocation irInvo = irReflAllocs.get(i);
-                        JMethodInvocation fakeSrcInvo = new JMethodInvocation(sourceFile, srcAlloc.pos, "newInstance", 2, jm, false, null, null, null);
+                        JMethodInvocation fakeSrcInvo = new JMethodInvocation(sourceFile, srcAlloc.getPosition(), "newInstance", 2, jm, false, null, null, null);
                         idMapper.recordMatch(idMapper.invocationMap, "invocation", irInvo, fakeSrcInvo);
                     }
                 } else if (debug) {
@@ -156,7 +172,7 @@ public class Matcher {
                 IRFieldAccess irThisAcc = jm.matchElement.addFieldAccess(fieldId, irField.name, irField.type, AccessType.READ, debug);
                 idMapper.recordMatch(idMapper.fieldAccessMap, "outer-this$-access", irThisAcc, srcThisAcc);
                 // Add field access here for statistics.
-                jm.fieldAccesses.add(srcThisAcc);
+                jm.addFieldAccess(srcThisAcc);
             }
         }
     }
@@ -202,7 +218,7 @@ public class Matcher {
     private void generateUnknownTypeMetadata(IdMapper idMapper, IRType irType, JType jt) {
         for (IRField irField : irType.fields)
             if (!irField.matched) {
-                JField fakeField = new JField(sourceFile, irField.type, irField.name, new HashSet<>(), jt.pos, jt);
+                JField fakeField = new JField(sourceFile, irField.type, irField.name, new HashSet<>(), jt.getPosition(), jt);
                 idMapper.recordMatch(idMapper.fieldMap, "field", irField, fakeField);
                 fakeField.symbol.setSource(false);
             }
@@ -265,6 +281,12 @@ public class Matcher {
         if (outerTypes != null)
             matchInnerConstructors(methodMap, srcMethods, irMethods, outerTypes);
 
+        // Visit the bodies of matched methods (if not already visited),
+        // visiting may add lambdas to the source methods.
+        for (JMethod srcMethod : new ArrayList<>(srcMethods))
+            if (srcMethod.matchId != null)
+                srcMethod.visitBody();
+
         // After methods have been matched, match elements inside methods.
         if (debug)
             System.out.println("* Matching method invocations by name/arity...");
@@ -580,25 +602,31 @@ public class Matcher {
      */
     private void matchSameLineFirstAllocations(Map<String, Collection<JAllocation>> allocationMap,
                                                Iterable<JAllocation> srcAllocs, Iterable<IRAllocation> irAllocs) {
-        Map<Long, List<JAllocation>> srcAllocsPerLine = new HashMap<>();
+        // Both sides are sorted by line (stable sorts keep the IR order in
+        // each line) and then scanned together, line by line.
+        List<JAllocation> srcByLine = new ArrayList<>();
         for (JAllocation srcAlloc : srcAllocs)
-            srcAllocsPerLine.computeIfAbsent(srcAlloc.pos.getStartLine(), (k -> new ArrayList<>())).add(srcAlloc);
-        Map<Long, Collection<IRAllocation>> irAllocsPerLine = new HashMap<>();
-        for (IRAllocation irAlloc : irAllocs) {
-            Integer sourceLine = irAlloc.getSourceLine();
-            if (sourceLine != null)
-                irAllocsPerLine.computeIfAbsent(sourceLine.longValue(), (k -> new ArrayList<>())).add(irAlloc);
-        }
-        for (Map.Entry<Long, List<JAllocation>> entry : srcAllocsPerLine.entrySet()) {
-            List<JAllocation> lineAllocs = entry.getValue();
-            if (lineAllocs.size() == 1) {
-                Collection<IRAllocation> irAllocations = irAllocsPerLine.get(entry.getKey());
-                if (irAllocations != null)
-                    for (IRAllocation irAlloc : irAllocations) {
-                        idMapper.recordMatch(allocationMap, "allocation", irAlloc, lineAllocs.get(0));
-                        break;
-                    }
-            }
+            if (srcAlloc.getStartLine() >= 0)
+                srcByLine.add(srcAlloc);
+        srcByLine.sort(Comparator.comparingInt(JAllocation::getStartLine));
+        List<IRAllocation> irByLine = new ArrayList<>();
+        for (IRAllocation irAlloc : irAllocs)
+            if (irAlloc.getSourceLine() != null)
+                irByLine.add(irAlloc);
+        irByLine.sort(Comparator.comparingInt(IRAllocation::getSourceLine));
+
+        int srcCount = srcByLine.size(), irCount = irByLine.size();
+        int i = 0, j = 0;
+        while (i < srcCount) {
+            int line = srcByLine.get(i).getStartLine();
+            int lineEnd = i + 1;
+            while (lineEnd < srcCount && srcByLine.get(lineEnd).getStartLine() == line)
+                lineEnd++;
+            while (j < irCount && irByLine.get(j).getSourceLine() < line)
+                j++;
+            if (lineEnd == i + 1 && j < irCount && irByLine.get(j).getSourceLine() == line)
+                idMapper.recordMatch(allocationMap, "allocation", irByLine.get(j), srcByLine.get(i));
+            i = lineEnd;
         }
     }
 
@@ -722,7 +750,7 @@ public class Matcher {
                     boolean inIIB = JInit.INIT.equals(mName) || JInit.isInitName(mName);
                     JBlock block = new JBlock(mName, null, null);
                     JMethodInvocation fakeSrcInvo = new JMethodInvocation(sourceFile, pos, irInvo.methodName, irInvo.arity, srcMethod, inIIB, block, null, null);
-                    srcMethod.invocations.add(fakeSrcInvo);
+                    srcMethod.addInvocation(fakeSrcInvo);
                     idMapper.recordMatch(invocationMap, "invocation", irInvo, fakeSrcInvo);
                     fakeSrcInvo.symbol.setSource(false);
                 }
@@ -0,0 +1,119 @@
+package org.clyze.source.irfitter.source;
+
+/**
+ * Token streams that report parser progress to a {@link ParseBudget}. The
+ * Kotlin parser uses the ANTLR runtime, while the Groovy parser uses the
+ * copy of the runtime that is shaded in Groovy, so there is a stream class
+ * for each runtime.
+ */
+public final class BudgetedTokenStreams {
+    private BudgetedTokenStreams() {}
+
+    /**
+     * Returns a buffered token stream for the ANTLR runtime.
+     * @param tokenSource   the token source (lexer)
+     * @param budget        the parse budget (null for no budget)
+     * @return              the token stream
+     */
+    public static org.antlr.v4.runtime.CommonTokenStream buffered(org.antlr.v4.runtime.TokenSource tokenSource,
+                                                                  ParseBudget budget) {
+        return budget == null ? new org.antlr.v4.runtime.CommonTokenStream(tokenSource) : new Budgeted(tokenSource, budget);
+    }
+
+    /**
+     * Returns a buffered token stream for the Groovy copy of the ANTLR runtime.
+     * @param tokenSource   the token source (lexer)
+     * @param budget        the parse budget (null for no budget)
+     * @return              the token stream
+     */
+    public static groovyjarjarantlr4.v4.runtime.CommonTokenStream groovyBuffered(groovyjarjarantlr4.v4.runtime.TokenSource tokenSource,
+                                                                                 ParseBudget budget) {
+        return budget == null ? new groovyjarjarantlr4.v4.runtime.CommonTokenStream(tokenSource) : new GroovyBudgeted(tokenSource, budget);
+    }
+
+    /**
+     * Returns an unbuffered token stream for the Groovy copy of the ANTLR runtime.
+     * @param tokenSource   the token source (lexer)
+     * @param budget        the parse budget (null for no budget)
+     * @return              the token stream
+     */
+    public static groovyjarjarantlr4.v4.runtime.UnbufferedTokenStream groovyUnbuffered(groovyjarjarantlr4.v4.runtime.TokenSource tokenSource,
+                                                                                       ParseBudget budget) {
+        return budget == null ? new groovyjarjarantlr4.v4.runtime.UnbufferedTokenStream(tokenSource) : new GroovyUnbufferedBudgeted(tokenSource, budget);
+    }
+
+    private static class Budgeted extends org.antlr.v4.runtime.CommonTokenStream {
+        private final ParseBudget budget;
+
+        Budgeted(org.antlr.v4.runtime.TokenSource tokenSource, ParseBudget budget) {
+            super(tokenSource);
+            this.budget = budget;
+        }
+
+        @Override
+        public void consume() {
+            budget.consumed();
+            super.consume();
+        }
+
+        @Override
+        public org.antlr.v4.runtime.Token LT(int k) {
+            budget.step();
+            return super.LT(k);
+        }
+
+        @Override
+        protected int fetch(int n) {
+            budget.step();
+            return super.fetch(n);
+        }
+    }
+
+    private static class GroovyBudgeted extends groovyjarjarantlr4.v4.runtime.CommonTokenStream {
+        private final ParseBudget budget;
+
+        GroovyBudgeted(groovyjarjarantlr4.v4.runtime.TokenSource tokenSource, ParseBudget budget) {
+            super(tokenSource);
+            this.budget = budget;
+        }
+
+        @Override
+        public void consume() {
+            budget.consumed();
+            super.consume();
+        }
+
+        @Override
+        public groovyjarjarantlr4.v4.runtime.Token LT(int k) {
+            budget.step();
+            return super.LT(k);
+        }
+
+        @Override
+        protected int fetch(int n) {
+            budget.step();
+            return super.fetch(n);
+        }
+    }
+
+    private static class GroovyUnbufferedBudgeted extends groovyjarjarantlr4.v4.runtime.UnbufferedTokenStream {
+        private final ParseBudget budget;
+
+        GroovyUnbufferedBudgeted(groovyjarjarantlr4.v4.runtime.TokenSource tokenSource, ParseBudget budget) {
+            super(tokenSource);
+            this.budget = budget;
+        }
+
+        @Override
+        public void consume() {
+            budget.consumed();
+            super.consume();
+        }
+
+        @Override
+        public groovyjarjarantlr4.v4.runtime.Token LT(int k) {
+            budget.step();
+            return super.LT(k);
+        }
+    }
+}
@@ -2,18 +2,31 @@ package org.clyze.source.irfitter.source;
 
 import com.google.common.collect.ImmutableSet;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.Consumer;
 import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.SourceProcessor;
 import org.clyze.source.irfitter.ir.model.IRMethodInvocation;
 import org.clyze.source.irfitter.ir.model.IRType;
 import org.clyze.source.irfitter.matcher.Aliaser;
+import org.clyze.source.irfitter.matcher.DoopFacts;
 import org.clyze.source.irfitter.matcher.DoopMatcher;
 import org.clyze.source.irfitter.source.groovy.GroovyProcessor;
+import org.clyze.source.irfitter.source.json.MetadataJsonWriter;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataReader;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataWriter;
+import org.clyze.source.irfitter.source.sink.OutputSink;
 import org.clyze.source.irfitter.source.java.JavaProcessor;
 import org.clyze.source.irfitter.source.kotlin.KotlinProcessor;
 import org.clyze.source.irfitter.source.model.*;
+import org.clyze.source.irfitter.source.scan.DeclarationScanner;
+import org.clyze.source.irfitter.source.scan.GeneratedCodePolicy;
+import org.clyze.source.irfitter.source.scan.Language;
+import org.clyze.source.irfitter.source.scan.TypeNamePrefilter;
+import org.clyze.source.irfitter.source.snapshot.SnapshotStore;
 import org.clyze.persistent.metadata.Configuration;
 import org.clyze.persistent.metadata.FileInfo;
 import org.clyze.persistent.metadata.FileReporter;
@@ -40,9 +53,33 @@ public class Driver {
     private final File db;
     /** If true, enable debug reports. */
     private final boolean debug;
+    /** If true, keep more data to support Doop results translation. */
+    private final boolean translateResults;
+    /** If true, generate JSON metadata. */
+    private final boolean json;
     private final Set<String> varargIrMethods;
     private final IdMapper idMapper;
     private final Aliaser aliaser;
+    /** The options that control source parsing. */
+    private final SourceOptions sourceOptions;
+    /** The filter of source files that cannot match the IR (null to process all files). */
+    private volatile TypeNamePrefilter prefilter = null;
+    /** The policy that recognizes generated sources (null to treat all sources as hand-written). */
+    private final GeneratedCodePolicy generatedCode;
+    /** The processor of Groovy sources (that counts its buffered retries). */
+    private final GroovyProcessor groovyProcessor;
+    /** The source model snapshots (null if snapshots are not used). */
+    private final SnapshotStore snapshots;
+    /** The source files read so far, by content (null if duplicates are not detected). */
+    private final DuplicateSources duplicates;
+    /** The used heap before reading sources (or -1 if not measured). */
+    private long heapBeforeSources = -1;
+    /** The report writers (one per writer thread, reusing its buffers). */
+    private final ThreadLocal<MetadataJsonWriter> jsonWriters = ThreadLocal.withInitial(MetadataJsonWriter::new);
+    /** The output sink (null until opened, or when writing plain output files). */
+    private OutputSink sink = null;
+    /** The writer of binary metadata (null until the first source file is added). */
+    private BinaryMetadataWriter binaryWriter = null;
 
     /**
      * Create a new driver / processing pipeline.
@@ -52,15 +89,24 @@ public class Driver {
      * @param translateResults if true, translate Doop results
      * @param json         if true, generate JSON metadata
      * @param vaIrMethods  the vararg methods found in the IR
+     * @param sourceOptions the source parsing options
      */
     public Driver(File out, File db, boolean debug, boolean translateResults,
-                  boolean json, Set<String> vaIrMethods) {
+                  boolean json, Set<String> vaIrMethods, SourceOptions sourceOptions) {
         this.varargIrMethods = vaIrMethods;
+        this.sourceOptions = sourceOptions;
+        this.generatedCode = sourceOptions.reduceGeneratedCode ?
+                new GeneratedCodePolicy(sourceOptions.generatedPathPatterns, sourceOptions.generatedSizeThreshold) : null;
+        this.snapshots = sourceOptions.snapshotDir == null ? null : new SnapshotStore(sourceOptions.snapshotDir, debug);
+        this.duplicates = sourceOptions.duplicates == SourceOptions.Duplicates.OFF ? null : new DuplicateSources();
         this.db = db;
         this.out = out;
         this.debug = debug;
+        this.translateResults = translateResults;
+        this.json = json;
         this.idMapper = new IdMapper(debug);
-        this.aliaser = new Aliaser(translateResults, debug, json, idMapper);
+        this.aliaser = newAliaser(idMapper);
+        this.groovyProcessor = new GroovyProcessor(sourceOptions);
     }
 
     /**
@@ -75,17 +121,32 @@ public class Driver {
     public Collection<SourceFile> readSources(File srcFile, boolean debug,
                                               boolean synthesizeTypes,
                                               boolean enableKotlin) {
+        Collection<SourceFile> sources = new ArrayList<>();
+        readSources(srcFile, debug, synthesizeTypes, enableKotlin, sources::add);
+        return sources;
+    }
+
+    /**
+     * Read sources, passing each processed source file to a consumer as soon
+     * as it has been read.
+     * @param srcFile             the source file/archive/directory
+     * @param debug               debug mode
+     * @param synthesizeTypes     if true, attempt to synthesize erased types
+     * @param enableKotlin        if false, Kotlin sources will not be processed
+     * @param consumer            the consumer of the processed source files
+     */
+    public void readSources(File srcFile, boolean debug, boolean synthesizeTypes,
+                            boolean enableKotlin, Consumer<SourceFile> consumer) {
         String srcName = getName(srcFile);
         if (!srcFile.isDirectory() && (srcName.endsWith(".jar") || srcName.endsWith(".zip"))) {
             try {
                 File tmpDir = extractZipToTempDir("extracted-sources", srcFile);
-                return readSources(tmpDir, tmpDir, srcName, debug, synthesizeTypes, enableKotlin);
+                readSources(tmpDir, tmpDir, srcName, debug, synthesizeTypes, enableKotlin, consumer);
             } catch (IOException e) {
                 e.printStackTrace();
-                return Collections.emptyList();
             }
         } else
-            return readSources(srcFile, srcFile, null, debug, synthesizeTypes, enableKotlin);
+            readSources(srcFile, srcFile, null, debug, synthesizeTypes, enableKotlin, consumer);
     }
 
     /**
@@ -103,34 +164,321 @@ public class Driver {
         return tmpDir;
     }
 
-    private Collection<SourceFile> readSources(File topDir, File srcFile, String artifact,
-                                               boolean debug, boolean synthesizeTypes,
-                                               boolean enableKotlin) {
-        Collection<SourceFile> sources = new ArrayList<>();
+    /**
+     * Read the sources in a file or directory.
+     * @param topDir            the top directory of the sources
+     * @param srcFile           the source file or directory
+     * @param artifact          the artifact containing the sources (or null)
+     * @param debug             debug mode
+     * @param synthesizeTypes   if true, attempt to synthesize erased types
+     * @param enableKotlin      if false, Kotlin sources will not be processed
+     * @param consumer          the consumer of the processed source files
+     */
+    void readSources(File topDir, File srcFile, String artifact,
+                     boolean debug, boolean synthesizeTypes,
+                     boolean enableKotlin, Consumer<SourceFile> consumer) {
         if (srcFile.isDirectory()) {
             File[] srcFiles = srcFile.listFiles();
             if (srcFiles == null)
                 System.err.println("ERROR: could not process source directory " + srcFile.getPath());
             else
                 for (File f : srcFiles)
-                    sources.addAll(readSources(topDir, f, artifact, debug, synthesizeTypes, enableKotlin));
+                    readSources(topDir, f, artifact, debug, synthesizeTypes, enableKotlin, consumer);
         } else {
             String srcName = getName(srcFile);
+            SourceFile sf = null;
             if (srcName.endsWith(".java")) {
                 System.out.println("Found Java source: " + srcFile);
-                sources.add((new JavaProcessor()).process(topDir, srcFile, artifact, debug, synthesizeTypes, varargIrMethods));
+                sf = process(new JavaProcessor(sourceOptions), Language.JAVA, topDir, srcFile, artifact, debug, synthesizeTypes);
             } else if (srcName.endsWith(".groovy")) {
                 System.out.println("Found Groovy source: " + srcFile);
-                sources.add((new GroovyProcessor()).process(topDir, srcFile, artifact, debug, synthesizeTypes, varargIrMethods));
+                sf = process(groovyProcessor, Language.GROOVY, topDir, srcFile, artifact, debug, synthesizeTypes);
             } else if (srcName.endsWith(".kt")) {
                 if (enableKotlin) {
                     System.out.println("Found Kotlin source: " + srcFile);
-                    sources.add((new KotlinProcessor()).process(topDir, srcFile, artifact, debug, synthesizeTypes, varargIrMethods));
+                    sf = process(new KotlinProcessor(sourceOptions), Language.KOTLIN, topDir, srcFile, artifact, debug, synthesizeTypes);
                 } else
                     System.out.println("Ignoring Kotlin source: " + srcFile);
             }
+            if (sf != null) {
+                sf.compact();
+                consumer.accept(sf);
+            }
         }
-        return sources;
+    }
+
+    /**
+     * Process a single source file. Copies of files already read are not
+     * parsed again (depending on the duplicates option).
+     * @param processor        the processor of the source language
+     * @param language         the source language
+     * @param topDir           the top directory of the sources
+     * @param srcFile          the source file
+     * @param artifact         the artifact containing the sources
+     * @param debug            debug mode
+     * @param synthesizeTypes  if true, attempt to synthesize erased types
+     * @return                 the source file object (or null if the file was skipped/failed)
+     */
+    private SourceFile process(SourceProcessor processor, Language language,
+                               File topDir, File srcFile, String artifact,
+                               boolean debug, boolean synthesizeTypes) {
+        // The parent of a sharded run lists the files of every shard, so
+        // that the files of other shards are not read.
+        if (sourceOptions.shardSources != null && !sourceOptions.shardSources.contains(ShardedRun.sourceKey(topDir, srcFile)))
+            return skipShardSource(srcFile, debug);
+        // The file is read once and its contents are shared by all steps.
+        SourceText source = new SourceText(srcFile);
+        String contentHash = null;
+        boolean hashShard = sourceOptions.shardCount > 0 && sourceOptions.shardSources == null;
+        if (duplicates != null || snapshots != null || hashShard) {
+            try {
+                contentHash = source.getHash();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (hashShard) {
+            // Shard by contents, so that the copies of a file stay together.
+            String shardKey = contentHash == null ? ShardedRun.sourceKey(topDir, srcFile) : contentHash;
+            if (ShardedRun.shardOf(shardKey, sourceOptions.shardCount) != sourceOptions.shardIndex)
+                return skipShardSource(srcFile, debug);
+        }
+        if (duplicates == null || contentHash == null)
+            return process(processor, language, contentHash, topDir, source, artifact, debug, synthesizeTypes);
+
+        String key = contentHash + "-" + language;
+        DuplicateSources.Original original = duplicates.findOriginal(key, srcFile);
+        if (original == null) {
+            SourceFile sf = process(processor, language, contentHash, topDir, source, artifact, debug, synthesizeTypes);
+            duplicates.addOriginal(key, srcFile, sf);
+            return sf;
+        }
+        if (!original.processed || sourceOptions.duplicates == SourceOptions.Duplicates.SUPPRESS) {
+            System.out.println("Skipping duplicate source: " + srcFile + " (same as " + original.file + ")");
+            return null;
+        }
+        if (original.sourceFile == null)
+            return process(processor, language, contentHash, topDir, source, artifact, debug, synthesizeTypes);
+        System.out.println("Copying duplicate source: " + srcFile + " (same as " + original.file + ")");
+        SourceFile sf = original.sourceFile.copy();
+        sf.relocate(topDir, srcFile, artifact, debug, synthesizeTypes);
+        return sf;
+    }
+
+    /**
+     * Process a single source file, unless the prefilter finds that it
+     * declares no IR types. Generated sources are only scanned for
+     * declarations.
+     * @param processor        the processor of the source language
+     * @param language         the source language
+     * @param contentHash      the hash of the file contents (or null if not computed)
+     * @param topDir           the top directory of the sources
+     * @param source           the source file (and its contents)
+     * @param artifact         the artifact containing the sources
+     * @param debug            debug mode
+     * @param synthesizeTypes  if true, attempt to synthesize erased types
+     * @return                 the source file object (or null if the file was skipped/failed)
+     */
+    private SourceFile process(SourceProcessor processor, Language language, String contentHash,
+                               File topDir, SourceText source, String artifact,
+                               boolean debug, boolean synthesizeTypes) {
+        File srcFile = source.file;
+        String declarationsOnly = null;
+        if (prefilter != null && !prefilter.mayMatch(source, language)) {
+            if (sourceOptions.prefilter == SourceOptions.Prefilter.SKIP) {
+                System.out.println("Skipping source (no IR types): " + srcFile);
+                return null;
+            }
+            declarationsOnly = "no IR types";
+        } else if (generatedCode != null) {
+            String reason = generatedCode.check(topDir, source, language);
+            if (reason != null)
+                declarationsOnly = "generated code, " + reason;
+        }
+        if (declarationsOnly == null) {
+            if (snapshots != null && contentHash != null)
+                return snapshots.process(processor, language, contentHash, topDir, source, artifact, debug, synthesizeTypes, varargIrMethods);
+            return processor.process(topDir, source, artifact, debug, synthesizeTypes, varargIrMethods);
+        }
+        try {
+            SourceFile sf = DeclarationScanner.scan(topDir, source, artifact, debug, synthesizeTypes, language);
+            sf.declarationsOnly = declarationsOnly;
+            return sf;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Set the IR types that source files are checked against before parsing,
+     * according to the prefilter option.
+     * @param irTypes   the IR types
+     */
+    public void setPrefilterTypes(Collection<IRType> irTypes) {
+        if (sourceOptions.prefilter == SourceOptions.Prefilter.OFF || irTypes.isEmpty())
+            prefilter = null;
+        else
+            prefilter = new TypeNamePrefilter(irTypes);
+    }
+
+    /**
+     * Update the filter of source files that cannot match the IR, when IR
+     * types are removed and added.
+     * @param removed   the removed IR types
+     * @param added     the added IR types
+     */
+    public void updatePrefilterTypes(Collection<IRType> removed, Collection<IRType> added) {
+        TypeNamePrefilter filter = prefilter;
+        if (filter == null) {
+            // Without IR types, there was no filter.
+            setPrefilterTypes(added);
+            return;
+        }
+        removed.forEach(filter::removeType);
+        added.forEach(filter::addType);
+        if (filter.isEmpty())
+            prefilter = null;
+    }
+
+    /**
+     * Set the filter of source files that cannot match the IR (e.g. when
+     * a filter is shared by different drivers).
+     * @param prefilter   the filter (or null to process all files)
+     */
+    void setPrefilter(TypeNamePrefilter prefilter) {
+        this.prefilter = sourceOptions.prefilter == SourceOptions.Prefilter.OFF ? null : prefilter;
+    }
+
+    /**
+     * Apply the prefilter to source files that were read before the IR
+     * types were known (e.g. while the IR was still being read). Files that
+     * declare no IR types are dropped or replaced by a scan of their
+     * declarations, according to the prefilter option.
+     * @param sources   the source files
+     * @return          the source files to match
+     */
+    public List<SourceFile> prefilterParsedSources(Collection<SourceFile> sources) {
+        List<SourceFile> ret = new ArrayList<>();
+        for (SourceFile sf : sources) {
+            SourceFile filtered = prefilterParsed(sf);
+            if (filtered != null)
+                ret.add(filtered);
+        }
+        return ret;
+    }
+
+    /**
+     * Apply the prefilter to a source file that was read before the IR types
+     * were known.
+     * @param sf   the source file
+     * @return     the source file to match (or null if it should be skipped)
+     */
+    SourceFile prefilterParsed(SourceFile sf) {
+        Language language = Language.fromFileName(sf.file.getName());
+        if (prefilter == null || language == null || prefilter.mayMatch(sf.file, language))
+            return sf;
+        if (sourceOptions.prefilter == SourceOptions.Prefilter.SKIP) {
+            System.out.println("Skipping source (no IR types): " + sf.file);
+            return null;
+        }
+        if (sf.declarationsOnly != null)
+            return sf;
+        try {
+            SourceFile scanned = DeclarationScanner.scan(sf.topDir, new SourceText(sf.file), sf.artifact, sf.debug, sf.synthesizeTypes, language);
+            scanned.declarationsOnly = "no IR types";
+            scanned.compact();
+            return scanned;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return sf;
+        }
+    }
+
+    /**
+     * Measure the heap before reading sources, so that the heap footprint
+     * of the source model can be reported (as part of the statistics).
+     */
+    public void measureHeapBeforeSources() {
+        heapBeforeSources = usedHeap();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Report the heap used by the source model (before matching).
+     * @param sources   the source files
+     */
+    private void reportHeapFootprint(Collection<SourceFile> sources) {
+        long used = usedHeap() - heapBeforeSources;
+        int methods = 0;
+        for (SourceFile sf : sources)
+            for (JType jt : sf.jTypes)
+                methods += jt.methods.size();
+        System.out.print("Source model heap footprint: " + (used / 1024) + " KB for " + sources.size() + " files, " + methods + " methods");
+        if (methods > 0)
+            System.out.print(" (" + (used * 1000 / methods / 1024) + " KB per 1k methods)");
+        System.out.println();
+    }
+
+    /**
+     * Report the source files that were only scanned for declarations.
+     * @param sources   the source files
+     */
+    private static void reportDeclarationsOnly(Collection<SourceFile> sources) {
+        List<String> scanned = new ArrayList<>();
+        for (SourceFile sf : sources)
+            if (sf.declarationsOnly != null)
+                scanned.add(describeDeclarationsOnly(sf));
+        reportDeclarationsOnly(scanned);
+    }
+
+    /**
+     * Report the source files that were only scanned for declarations.
+     * @param scanned   the descriptions of the source files
+     * @see #describeDeclarationsOnly(SourceFile)
+     */
+    static void reportDeclarationsOnly(List<String> scanned) {
+        if (scanned.isEmpty())
+            return;
+        System.out.println(scanned.size() + " source file(s) were only scanned for declarations:");
+        for (String description : scanned)
+            System.out.println("  " + description);
+    }
+
+    static String describeDeclarationsOnly(SourceFile sf) {
+        return sf.getRelativePath() + " (" + sf.declarationsOnly + ")";
+    }
+
+    /** Report the source files that were found to be copies of other files. */
+    void reportDuplicates() {
+        if (duplicates != null)
+            duplicates.report();
+    }
+
+    /** Report the Groovy files that could not be parsed from unbuffered input. */
+    void reportGroovyRetries() {
+        groovyProcessor.reportBufferedRetries();
+    }
+
+    /**
+     * Stop keeping the models of source files after they have been read (so
+     * that they can be released after matching). Copies of source files are
+     * then processed again.
+     */
+    void discardParsedModels() {
+        if (duplicates != null)
+            duplicates.discardModels();
+    }
+
+    private static SourceFile skipShardSource(File srcFile, boolean debug) {
+        if (debug)
+            System.out.println("Skipping source of another shard: " + srcFile);
+        return null;
     }
 
     private static String getName(File srcFile) {
@@ -157,37 +505,24 @@ public class Driver {
                            boolean json, boolean sarif,  boolean resolveInvocations,
                            boolean resolveVars, boolean translateResults, boolean uniqueResults,
                            boolean lossy, boolean matchIR, boolean stats, String[] relVars) {
+        if (stats && heapBeforeSources >= 0)
+            reportHeapFootprint(sources);
         System.out.println("Matching " + irTypes.size() + " IR types against " + sources.size() + " source files...");
-        int unmatched = 0;
-        for (SourceFile sf : sources) {
-            addImportUses(sf.getJvmMetadata(), sf);
-            System.out.println("==> Matching elements in " + sf.getRelativePath());
-            sf.getMatcher(lossy, matchIR, idMapper, aliaser).matchTypes(irTypes);
-            unmatched += sf.reportUmatched(debug);
-        }
-
         Map<String, IRType> irTypeLookup = new HashMap<>();
-        // Calculate the set of all referenced types.
         Set<String> allIrTypes = new HashSet<>();
-        for (IRType irType : irTypes) {
-            String typeId = irType.getId();
-            irTypeLookup.put(typeId, irType);
-            allIrTypes.add(typeId);
-            irType.addReferencedTypesTo(allIrTypes);
-        }
+        indexIRTypes(irTypes, irTypeLookup, allIrTypes);
+
+        int unmatched = 0;
+        for (SourceFile sf : sources)
+            unmatched += matchElements(sf, irTypes, allIrTypes, lossy, matchIR, idMapper, aliaser);
 
         if (resolveInvocations)
             generateInvocationTargets(sources, irTypeLookup);
 
         if (debug)
             System.out.println("* Matching type/field/variable references...");
-        for (SourceFile sf : sources) {
-            JvmMetadata bm = sf.getJvmMetadata();
-            for (JType jt : sf.jTypes) {
-                matchTypeUses(allIrTypes, bm, jt);
-                processElementUses(bm, jt);
-            }
-        }
+        for (SourceFile sf : sources)
+            matchReferences(sf, allIrTypes);
 
         if (resolveVars) {
             DoopMatcher doopMatcher = new DoopMatcher(db, debug, idMapper, aliaser, relVars);
@@ -197,19 +532,138 @@ public class Driver {
         }
 
         System.out.println(unmatched + " elements not matched.");
+        reportDeclarationsOnly(sources);
+        reportDuplicates();
+        reportGroovyRetries();
 
-        Map<String, Collection<? extends ElementWithPosition<?, ?>>> flatMapping = idMapper.get();
         if (sarif)
-            (new DoopSARIFGenerator(db, out, "1.0", false, flatMapping, debug)).process();
-        if (json)
-            generateJSON(flatMapping, sources, matchIR, irTypeLookup);
+            (new DoopSARIFGenerator(db, out, "1.0", false, idMapper.get(), debug)).process();
+        if (writesMetadata(json))
+            generateJSON(sources, matchIR, irTypeLookup);
 
+        closeOutput();
         if (stats || debug)
             idMapper.calcStats(sources);
 
         return new RunResult(unmatched, idMapper);
     }
 
+    /**
+     * Returns the mapper of all matched elements (which also keeps the
+     * matching statistics).
+     * @return   the mapper
+     */
+    IdMapper getIdMapper() {
+        return idMapper;
+    }
+
+    /**
+     * Create a variable aliaser that records its matches in a mapper.
+     * @param mapper   the mapper to use
+     * @return         the aliaser
+     */
+    Aliaser newAliaser(IdMapper mapper) {
+        return new Aliaser(translateResults, debug, writesMetadata(json), mapper);
+    }
+
+    /**
+     * Prepare the Doop facts, to resolve the variables of one source file
+     * at a time.
+     * @return   the facts (or null if the database does not exist)
+     */
+    DoopFacts readDoopFacts() {
+        if (!db.exists()) {
+            System.err.println("ERROR: cannot resolve variables, database directory "  + db + " does not exist.");
+            return null;
+        }
+        System.out.println("Resolving variables from facts in " + db);
+        return new DoopFacts(db, debug);
+    }
+
+    /**
+     * Resolve the variables of the elements of a mapper from Doop facts.
+     * @param facts      the Doop facts
+     * @param mapper     the mapper of the matched elements
+     * @param aliaser    the aliaser that records the matched variables
+     */
+    void resolveDoopVariables(DoopFacts facts, IdMapper mapper, Aliaser aliaser) {
+        new DoopMatcher(db, debug, mapper, aliaser, null, facts).resolveVariables();
+    }
+
+    /**
+     * Translate Doop results, using the recorded variable aliases.
+     * @param aliaser         the aliaser with the recorded aliases
+     * @param uniqueResults   if true, make Doop results a set (remove duplicates)
+     * @param relVars         the column-variable relation spec
+     */
+    void translateDoopResults(Aliaser aliaser, boolean uniqueResults, String[] relVars) {
+        new DoopMatcher(db, debug, new IdMapper(debug), aliaser, relVars).translateResults(uniqueResults);
+    }
+
+    /**
+     * Check if the metadata of source files is written (as JSON or binary
+     * metadata) or kept in memory.
+     * @param json   if true, JSON metadata is generated
+     * @return       true if metadata is written
+     */
+    boolean writesMetadata(boolean json) {
+        return json || collectsBinaryMetadata();
+    }
+
+    private boolean collectsBinaryMetadata() {
+        return sourceOptions.binaryMetadata || sourceOptions.metadataIndexConsumer != null;
+    }
+
+    /**
+     * Index the IR types.
+     * @param irTypes        the IR types
+     * @param irTypeLookup   the mapping from type names to IR types to fill
+     * @param allIrTypes     the set of all referenced types to fill
+     */
+    static void indexIRTypes(Collection<IRType> irTypes, Map<String, IRType> irTypeLookup,
+                             Set<String> allIrTypes) {
+        for (IRType irType : irTypes) {
+            String typeId = irType.getId();
+            irTypeLookup.put(typeId, irType);
+            allIrTypes.add(typeId);
+            irType.addReferencedTypesTo(allIrTypes);
+        }
+    }
+
+    /**
+     * Match the elements of a source file against the IR.
+     * @param sf           the source file
+     * @param irTypes      the IR types
+     * @param allIrTypes   the set of all referenced types
+     * @param lossy        if true, enable lossy heuristics
+     * @param matchIR      if true, keep only results that match both source and IR elements
+     * @param idMapper     the mapper to record matches
+     * @param aliaser      the variable aliaser
+     * @return             the number of unmatched elements
+     */
+    int matchElements(SourceFile sf, Collection<IRType> irTypes, Set<String> allIrTypes,
+                      boolean lossy, boolean matchIR, IdMapper idMapper, Aliaser aliaser) {
+        if (sourceOptions.irTypeResolution)
+            sf.setIRTypes(allIrTypes);
+        addImportUses(sf.getJvmMetadata(), sf);
+        System.out.println("==> Matching elements in " + sf.getRelativePath());
+        sf.getMatcher(lossy, matchIR, idMapper, aliaser).matchTypes(irTypes);
+        return sf.reportUmatched(debug);
+    }
+
+    /**
+     * Match the type/field/variable references of a (matched) source file.
+     * @param sf           the source file
+     * @param allIrTypes   the set of all referenced types
+     */
+    void matchReferences(SourceFile sf, Set<String> allIrTypes) {
+        JvmMetadata bm = sf.getJvmMetadata();
+        for (JType jt : sf.jTypes) {
+            matchTypeUses(allIrTypes, bm, jt);
+            processElementUses(bm, jt);
+        }
+    }
+
     /**
      * Generates the "invocation targets" information.
      * @param sources           the source files
@@ -218,8 +672,32 @@ public class Driver {
     private void generateInvocationTargets(Collection<SourceFile> sources, Map<String, IRType> irTypeLookup) {
         if (debug)
             System.out.println("Trying to (statically) resolve invocation targets...");
-        Set<String> invocationTargets = resolveInvocationTargets(sources, irTypeLookup);
+        writeInvocationTargets(resolveInvocationTargets(sources, irTypeLookup));
+    }
+
+    /**
+     * Write the "invocation targets" information.
+     * @param invocationTargets   the lines to write
+     */
+    void writeInvocationTargets(Set<String> invocationTargets) {
         String fileName = "InvocationTargets.csv";
+        createOutDir();
+        if (sourceOptions.sink != SourceOptions.Sink.FILES) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : invocationTargets)
+                sb.append(line);
+            byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+            addToSink(fileName, data, false);
+            // The Doop database still needs a plain file.
+            if (db != null) {
+                try {
+                    Files.write(new File(db, fileName).toPath(), data);
+                } catch (IOException e) {
+                    System.err.println("ERROR: could not write " + fileName + " to the database directory: " + db);
+                }
+            }
+            return;
+        }
         File outFile = new File(out, fileName);
         // Write to the "output" directory so that it is always available.
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(outFile))) {
@@ -245,7 +723,7 @@ public class Driver {
                 registerSymbol(bm, elemUse.getUse());
     }
 
-    private Set<String> resolveInvocationTargets(Collection<SourceFile> sources,
+    Set<String> resolveInvocationTargets(Collection<SourceFile> sources,
                                                  Map<String, IRType> irTypeLookup) {
         List<JMethodInvocation> srcInvos = new ArrayList<>();
         for (SourceFile sf : sources) {
@@ -315,7 +793,7 @@ public class Driver {
     private void addImportUses(JvmMetadata bm, SourceFile sf) {
         for (Import imp : sf.imports)
             if (!imp.isAsterisk && !imp.isStatic)
-                bm.usages.add(new Usage(imp.pos, sf.getRelativePath(), true, sf.artifact, imp.getUniqueId(sf), imp.name, UsageKind.TYPE));
+                bm.usages.add(new Usage(imp.getPosition(), sf.getRelativePath(), true, sf.artifact, imp.getUniqueId(sf), imp.name, UsageKind.TYPE));
     }
 
     /**
@@ -386,48 +864,253 @@ public class Driver {
             System.out.println("WARNING: cannot handle symbol of type " + symbol.getClass().getName() + ": " + symbol.toJSON());
     }
 
-    private void generateJSON(Map<String, Collection<? extends ElementWithPosition<?, ?>>> mapping,
-                              Collection<SourceFile> sources, boolean matchIR,
+    private void generateJSON(Collection<SourceFile> sources, boolean matchIR,
                               Map<String, IRType> irTypeLookup) {
-        for (Map.Entry<String, Collection<? extends ElementWithPosition<?, ?>>> entry : mapping.entrySet()) {
-            String symbolId = entry.getKey();
+        System.out.println("Generating JSON metadata...");
+        Map<SourceFile, List<ElementWithPosition<?, ?>>> elements = idMapper.getElementsBySourceFile();
+        MetadataWriter writer = newMetadataWriter(matchIR, irTypeLookup);
+        try {
+            for (SourceFile sf : sources)
+                writer.write(sf, elements.getOrDefault(sf, Collections.emptyList()), null);
+        } finally {
+            writer.finish();
+        }
+    }
+
+    /**
+     * Create a writer of the metadata of source files (and the output directory).
+     * @param matchIR         if true, skip elements that do not match IR elements
+     * @param irTypeLookup    the mapping from type names to IR types
+     * @return                the writer
+     */
+    MetadataWriter newMetadataWriter(boolean matchIR, Map<String, IRType> irTypeLookup) {
+        return new MetadataWriter(this, createMetadataConfiguration(), sourceOptions.metadataThreads, matchIR, irTypeLookup);
+    }
+
+    /**
+     * Add the symbols of matched source elements to the metadata of their
+     * source files. This only changes the metadata of the given elements,
+     * so the elements of different source files can be registered
+     * concurrently.
+     * @param elements       the matched elements
+     * @param matchIR        if true, skip elements that do not match IR elements
+     * @param irTypeLookup   the mapping from type names to IR types
+     */
+    void registerSymbols(Collection<? extends ElementWithPosition<?, ?>> elements,
+                         boolean matchIR, Map<String, IRType> irTypeLookup) {
+        for (ElementWithPosition<?, ?> srcElem : elements) {
             if (debug)
-                System.out.println("[JSON] Processing id: " + symbolId);
-            for (ElementWithPosition<?, ?> srcElem : entry.getValue()) {
-                SymbolWithId symbol = srcElem.getSymbol();
-                if (symbol == null) {
-                    if (!matchIR)
-                        symbol = srcElem.generatePartialMetadata(irTypeLookup);
-                    else {
-                        System.out.println("Source element has no symbol: " + srcElem);
-                        continue;
-                    }
+                System.out.println("[JSON] Processing id: " + srcElem.matchId);
+            SymbolWithId symbol = srcElem.getSymbol();
+            if (symbol == null) {
+                if (!matchIR)
+                    symbol = srcElem.generatePartialMetadata(irTypeLookup);
+                else {
+                    System.out.println("Source element has no symbol: " + srcElem);
+                    continue;
                 }
-                registerSymbol(srcElem.srcFile.getJvmMetadata(), symbol);
             }
+            registerSymbol(srcElem.srcFile.getJvmMetadata(), symbol);
         }
-        for (SourceFile sf : sources) {
-            Set<JvmStringConstant> stringConstants = sf.getJvmMetadata().jvmStringConstants;
-            for (JStringConstant<?> jStrConstant : sf.stringConstants)
-                stringConstants.add(jStrConstant.getStringConstant());
-        }
+    }
 
-        System.out.println("Generating JSON metadata...");
-        createOutDir();
+    void addStringConstants(SourceFile sf) {
+        Set<JvmStringConstant> stringConstants = sf.getJvmMetadata().jvmStringConstants;
+        for (JStringConstant<?> jStrConstant : sf.stringConstants)
+            stringConstants.add(jStrConstant.getStringConstant());
+    }
 
+    /**
+     * Create the configuration of the metadata writers (and the output
+     * directory, if there is one: metadata that is only kept in memory
+     * needs none).
+     * @return   the configuration
+     */
+    Configuration createMetadataConfiguration() {
+        if (out != null)
+            createOutDir();
         Configuration configuration = new Configuration(new Printer(debug));
         configuration.setOutDir(out);
-        for (SourceFile sf : sources) {
-            FileInfo fileInfo = sf.getFileInfo();
-            FileReporter reporter = new FileReporter(configuration, fileInfo.getElements());
-            reporter.createReportFile(fileInfo.getOutputFilePath());
-            if (debug)
-                reporter.printReportStats();
+        return configuration;
+    }
+
+    /**
+     * Write the metadata of a source file. Reports that go to an output
+     * sink (and binary metadata) are only serialized here; the returned
+     * action adds them to their output (and must run in the order that
+     * reports should appear).
+     * @param configuration   the configuration of the metadata writers
+     * @param sf              the source file
+     * @return                the action that completes the output (or null)
+     */
+    Runnable writeMetadata(Configuration configuration, SourceFile sf) {
+        FileInfo fileInfo = sf.getFileInfo();
+        sortElements(fileInfo.getElements());
+        Runnable jsonCommit = json ? writeJSON(configuration, fileInfo) : null;
+        if (!collectsBinaryMetadata())
+            return jsonCommit;
+        BinaryMetadataWriter.FileRecords records = BinaryMetadataWriter.collect(sf.getRelativePath(), fileInfo.getOutputFilePath(), fileInfo.getElements());
+        return () -> {
+            if (jsonCommit != null)
+                jsonCommit.run();
+            addBinaryRecords(records);
+        };
+    }
+
+    /**
+     * Delete the JSON report of a source file that is no longer matched
+     * (e.g. because it has been deleted).
+     * @param sf   the source file
+     */
+    void deleteJSON(SourceFile sf) {
+        File file = new File(out, sf.getFileInfo().getOutputFilePath() + ".json");
+        try {
+            if (Files.deleteIfExists(file.toPath()) && debug)
+                System.out.println("Deleted report: " + file);
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not delete " + file);
+        }
+    }
+
+    /**
+     * Put the elements of a report in a canonical order. The metadata model
+     * keeps the elements in hash sets, whose iteration order depends on the
+     * order the elements were added (which follows the matching order), so
+     * the elements are added again, sorted by symbol id. The same elements
+     * then give the same report, whatever the run mode.
+     * @param bm   the metadata of a source file
+     */
+    private static void sortElements(JvmMetadata bm) {
+        sortElements(bm.jvmClasses);
+        sortElements(bm.jvmFields);
+        sortElements(bm.jvmMethods);
+        sortElements(bm.jvmVariables);
+        sortElements(bm.jvmHeapAllocations);
+        sortElements(bm.jvmInvocations);
+        sortElements(bm.usages);
+        sortElements(bm.aliases);
+        sortElements(bm.jvmStringConstants);
+    }
+
+    private static <T extends SymbolWithId> void sortElements(Set<T> elements) {
+        if (elements.size() < 2)
+            return;
+        List<T> sorted = new ArrayList<>(elements);
+        sorted.sort(Comparator.comparing(SymbolWithId::getSymbolId));
+        elements.clear();
+        elements.addAll(sorted);
+    }
+
+    private Runnable writeJSON(Configuration configuration, FileInfo fileInfo) {
+        if (sourceOptions.sink != SourceOptions.Sink.FILES) {
+            // Sinks get the same reports as report files.
+            String path = fileInfo.getOutputFilePath();
+            try {
+                byte[] report = jsonWriters.get().toBytes(fileInfo.getElements());
+                return () -> addToSink(path, report, true);
+            } catch (IOException ex) {
+                System.err.println("ERROR: could not serialize the report of " + path);
+                ex.printStackTrace();
+                return null;
+            }
+        }
+        File file = new File(out, fileInfo.getOutputFilePath() + ".json");
+        try {
+            jsonWriters.get().write(fileInfo.getElements(), file);
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not write " + file);
+            ex.printStackTrace();
+        }
+        if (debug)
+            new FileReporter(configuration, fileInfo.getElements()).printReportStats();
+        return null;
+    }
+
+    /**
+     * Add an entry to the output sink (opened on first use).
+     * @param name     the name of the entry
+     * @param data     the contents of the entry
+     * @param report   if true, the entry is a metadata report
+     */
+    private synchronized void addToSink(String name, byte[] data, boolean report) {
+        try {
+            if (sink == null) {
+                createOutDir();
+                sink = OutputSink.open(sourceOptions.sink, out);
+            }
+            if (report)
+                sink.addReport(name, data, data.length);
+            else
+                sink.addFile(name, data, data.length);
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not write " + name + " to the output sink");
+            ex.printStackTrace();
+        }
+    }
+
+    private synchronized void addBinaryRecords(BinaryMetadataWriter.FileRecords records) {
+        if (binaryWriter == null)
+            binaryWriter = new BinaryMetadataWriter();
+        binaryWriter.add(records);
+    }
+
+    /**
+     * Close the output sink (if one was opened), write the binary metadata
+     * (if enabled) and pass it to the consumer of the metadata index (if
+     * set). This should be called after all output has been written.
+     */
+    public synchronized void closeOutput() {
+        // Without output, the stale files of the previous run are still deleted.
+        if (sink == null && json && out != null && sourceOptions.sink == SourceOptions.Sink.DIFF) {
+            try {
+                createOutDir();
+                sink = OutputSink.open(sourceOptions.sink, out);
+            } catch (IOException ex) {
+                System.err.println("ERROR: could not open the output sink");
+                ex.printStackTrace();
+            }
+        }
+        if (sink != null) {
+            try {
+                sink.close();
+                System.out.println("Output written to " + sink.getFile());
+            } catch (IOException ex) {
+                System.err.println("ERROR: could not close " + sink.getFile());
+                ex.printStackTrace();
+            }
+            sink = null;
+        }
+        if (!collectsBinaryMetadata())
+            return;
+        BinaryMetadataWriter writer = binaryWriter == null ? new BinaryMetadataWriter() : binaryWriter;
+        binaryWriter = null;
+        File file = null;
+        if (sourceOptions.binaryMetadata) {
+            createOutDir();
+            file = new File(out, BinaryMetadataWriter.FILE_NAME);
+            try {
+                writer.write(file);
+                System.out.println("Binary metadata written to " + file);
+            } catch (IOException ex) {
+                System.err.println("ERROR: could not write " + file);
+                ex.printStackTrace();
+                file = null;
+            }
+        }
+        Consumer<BinaryMetadataReader> indexConsumer = sourceOptions.metadataIndexConsumer;
+        if (indexConsumer != null) {
+            try {
+                indexConsumer.accept(file == null ? BinaryMetadataReader.read(writer.toBytes()) : BinaryMetadataReader.open(file));
+            } catch (IOException ex) {
+                System.err.println("ERROR: could not index the metadata");
+                ex.printStackTrace();
+            }
         }
     }
 
     private void createOutDir() {
-        if (!out.exists())
+        // Without an output directory, files go to the working directory.
+        if (out != null && !out.exists())
             if (out.mkdirs())
                 System.out.println("Creating new output directory: " + out);
     }
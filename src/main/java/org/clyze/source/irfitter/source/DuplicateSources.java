@@ -0,0 +1,89 @@
+package org.clyze.source.irfitter.source;
+
+import java.io.File;
+import java.util.*;
+import org.clyze.source.irfitter.source.model.SourceFile;
+
+/**
+ * The source files read so far, indexed by their contents, so that identical
+ * copies of a source file (e.g. in overlapping source directories and
+ * archives) are only parsed once. Later copies are recorded as aliases of
+ * the first one.
+ */
+public class DuplicateSources {
+    /** The first copy of each content (keyed by content hash and language). */
+    private final Map<String, Original> originals = new HashMap<>();
+    /** The originals that have aliases, in the order they were found. */
+    private final List<Original> aliased = new ArrayList<>();
+    /** If false, the processed models of the originals are not kept. */
+    private boolean keepModels = true;
+
+    /** The first copy of some source contents. */
+    public static final class Original {
+        /** The first file with these contents. */
+        public final File file;
+        /** True if the first file was processed (i.e. it was not skipped and did not fail). */
+        public final boolean processed;
+        /** The processed source file (null if it was not processed or not kept). */
+        public final SourceFile sourceFile;
+        /** The other files with these contents. */
+        public final List<File> aliases = new ArrayList<>();
+
+        Original(File file, boolean processed, SourceFile sourceFile) {
+            this.file = file;
+            this.processed = processed;
+            this.sourceFile = sourceFile;
+        }
+    }
+
+    /**
+     * Find the first copy of some contents and record the given file as its
+     * alias.
+     * @param key       the content key
+     * @param srcFile   the source file being read
+     * @return          the first copy or null if the contents are new
+     */
+    public Original findOriginal(String key, File srcFile) {
+        Original original = originals.get(key);
+        if (original != null) {
+            if (original.aliases.isEmpty())
+                aliased.add(original);
+            original.aliases.add(srcFile);
+        }
+        return original;
+    }
+
+    /**
+     * Record the first copy of some contents.
+     * @param key          the content key
+     * @param srcFile      the source file
+     * @param sourceFile   the processed source file (or null)
+     */
+    public void addOriginal(String key, File srcFile, SourceFile sourceFile) {
+        originals.put(key, new Original(srcFile, sourceFile != null, keepModels ? sourceFile : null));
+    }
+
+    /**
+     * Stop keeping the processed models of the originals (e.g. when source
+     * files are matched and released one at a time). Later copies of such
+     * files must then be processed again.
+     */
+    public void discardModels() {
+        keepModels = false;
+    }
+
+    /** Report the source files that were found to be copies of other files. */
+    public void report() {
+        if (aliased.isEmpty())
+            return;
+        int count = 0;
+        for (Original original : aliased)
+            count += original.aliases.size();
+        System.out.println(count + " source file(s) were copies of other source files:");
+        for (Original original : aliased) {
+            System.out.println("  " + original.file);
+            for (File alias : original.aliases)
+                System.out.println("    = " + alias);
+        }
+    }
+}
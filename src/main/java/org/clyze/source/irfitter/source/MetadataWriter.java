@@ -0,0 +1,127 @@
+package org.clyze.source.irfitter.source;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.clyze.persistent.metadata.Configuration;
+import org.clyze.source.irfitter.ir.model.IRType;
+import org.clyze.source.irfitter.source.model.ElementWithPosition;
+import org.clyze.source.irfitter.source.model.SourceFile;
+
+/**
+ * Writes the metadata of source files on a pool of worker threads. Every
+ * source file is handled by one task (symbol registration, string
+ * constants, serialization and file output), which only touches the
+ * metadata of that file, so the contents of the files do not depend on
+ * the number of threads.
+ *
+ * Files are submitted by a single thread. The callbacks of written files
+ * (and additions to output sinks) run on that thread, in submission order,
+ * and at most a bounded number of files wait to be written (so that source
+ * files can still be released early in streaming mode).
+ */
+class MetadataWriter {
+    private final Driver driver;
+    private final Configuration configuration;
+    private final boolean matchIR;
+    private final Map<String, IRType> irTypeLookup;
+    /** The maximum number of submitted files that have not completed. */
+    private final int maxPending;
+    /** The worker pool (or null to write files on the calling thread). */
+    private final ExecutorService executor;
+    /** The submitted files that have not completed, in submission order. */
+    private final Deque<Pending> pending = new ArrayDeque<>();
+
+    /** A submitted file and its callback. */
+    private static final class Pending {
+        /** Returns the action that completes the output of the file (or null). */
+        final Future<Runnable> written;
+        final Runnable onWritten;
+
+        Pending(Future<Runnable> written, Runnable onWritten) {
+            this.written = written;
+            this.onWritten = onWritten;
+        }
+    }
+
+    /**
+     * Create a writer.
+     * @param driver          the driver that registers symbols and writes files
+     * @param configuration   the configuration of the metadata writers
+     * @param threads         the number of worker threads (1 to write files on the calling thread)
+     * @param matchIR         if true, skip elements that do not match IR elements
+     * @param irTypeLookup    the mapping from type names to IR types
+     */
+    MetadataWriter(Driver driver, Configuration configuration, int threads,
+                   boolean matchIR, Map<String, IRType> irTypeLookup) {
+        this.driver = driver;
+        this.configuration = configuration;
+        this.matchIR = matchIR;
+        this.irTypeLookup = irTypeLookup;
+        this.maxPending = 4 * threads;
+        this.executor = threads <= 1 ? null : Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "metadata-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Write the metadata of a source file.
+     * @param sf          the source file
+     * @param elements    the matched elements of the source file
+     * @param onWritten   the callback to run after the file has been written (or null)
+     */
+    void write(SourceFile sf, Collection<? extends ElementWithPosition<?, ?>> elements, Runnable onWritten) {
+        if (executor == null) {
+            Runnable commit = writeFile(sf, elements);
+            if (commit != null)
+                commit.run();
+            if (onWritten != null)
+                onWritten.run();
+            return;
+        }
+        pending.add(new Pending(executor.submit(() -> writeFile(sf, elements)), onWritten));
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().written.isDone()))
+            complete(pending.poll());
+    }
+
+    /**
+     * Wait until all submitted files have been written and stop the workers.
+     */
+    void finish() {
+        try {
+            while (!pending.isEmpty())
+                complete(pending.poll());
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    private Runnable writeFile(SourceFile sf, Collection<? extends ElementWithPosition<?, ?>> elements) {
+        driver.registerSymbols(elements, matchIR, irTypeLookup);
+        driver.addStringConstants(sf);
+        return driver.writeMetadata(configuration, sf);
+    }
+
+    private void complete(Pending p) {
+        Runnable commit;
+        try {
+            commit = p.written.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing metadata", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        if (commit != null)
+            commit.run();
+        if (p.onWritten != null)
+            p.onWritten.run();
+    }
+}
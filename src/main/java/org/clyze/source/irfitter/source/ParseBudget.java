@@ -0,0 +1,61 @@
+package org.clyze.source.irfitter.source;
+
+/**
+ * A per-file budget for the ANTLR-based parsers. The parsers report their
+ * progress through the token streams feeding them and the budget aborts
+ * the parse (with a {@link ExceededException}) when it runs out.
+ */
+public class ParseBudget {
+    /** How many parser steps to take between clock readings. */
+    private static final int TIME_CHECK_INTERVAL = 1024;
+    private final long timeBudget;
+    private final long tokenBudget;
+    private final long deadline;
+    private long tokens = 0;
+    private int steps = 0;
+
+    /**
+     * Create a parse budget.
+     * @param timeBudget    the maximum parse time in milliseconds (0 for no limit)
+     * @param tokenBudget   the maximum number of consumed tokens (0 for no limit)
+     */
+    public ParseBudget(long timeBudget, long tokenBudget) {
+        this.timeBudget = timeBudget;
+        this.tokenBudget = tokenBudget;
+        this.deadline = System.nanoTime() + timeBudget * 1_000_000L;
+    }
+
+    /**
+     * Returns a fresh budget for a source file, as configured by the options.
+     * @param options   the source options
+     * @return          the budget object or null if parsing is not budgeted
+     */
+    public static ParseBudget forFile(SourceOptions options) {
+        if (options.parseTimeBudget <= 0 && options.parseTokenBudget <= 0)
+            return null;
+        return new ParseBudget(options.parseTimeBudget, options.parseTokenBudget);
+    }
+
+    /** Called when the parser consumes a token. */
+    public void consumed() {
+        if (tokenBudget > 0 && ++tokens > tokenBudget)
+            throw new ExceededException("token budget of " + tokenBudget + " exceeded");
+        step();
+    }
+
+    /** Called when the parser inspects (or lexes) tokens. */
+    public void step() {
+        if (timeBudget > 0 && ++steps >= TIME_CHECK_INTERVAL) {
+            steps = 0;
+            if (System.nanoTime() - deadline > 0)
+                throw new ExceededException("time budget of " + timeBudget + "ms exceeded");
+        }
+    }
+
+    /** Thrown when parsing exceeds its budget. */
+    public static class ExceededException extends RuntimeException {
+        public ExceededException(String message) {
+            super(message);
+        }
+    }
+}
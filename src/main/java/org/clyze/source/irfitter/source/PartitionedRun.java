@@ -0,0 +1,273 @@
+package org.clyze.source.irfitter.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.ir.IRState;
+import org.clyze.source.irfitter.ir.model.IRLambda;
+import org.clyze.source.irfitter.ir.model.IRMethod;
+import org.clyze.source.irfitter.ir.model.IRType;
+import org.clyze.source.irfitter.source.model.ElementWithPosition;
+import org.clyze.source.irfitter.source.model.IdMapper;
+import org.clyze.source.irfitter.source.model.SourceFile;
+import org.clyze.source.irfitter.source.scan.DeclarationScanner;
+import org.clyze.source.irfitter.source.scan.Language;
+import org.clyze.source.irfitter.source.scan.TypeNamePrefilter;
+
+/**
+ * A run that splits the work by package prefix, so that the IR and source
+ * models of only one partition are in memory at any time.
+ *
+ * A first pass reads all IR and keeps a read-only index: the names of all
+ * (referenced) types and declaration-only copies of the IR types (with
+ * their hierarchy, fields and method signatures). The sources are only
+ * scanned for their packages. Then, for each partition, the IR types and
+ * the source files of its packages are read, matched and their metadata is
+ * written, before everything is released. The IR types of other packages
+ * that implement lambdas of the partition are also read, so that lambdas
+ * are resolved as in a full run.
+ *
+ * The IR is thus read once for the index and once more for every partition
+ * that has source files. The later reads skip the classes of the other
+ * partitions in archives without reading them (the classes of .dex files
+ * are still parsed to find their types).
+ *
+ * Features that need the matched elements of all source files at once
+ * (Doop variable resolution and results translation, SARIF) are not
+ * supported.
+ */
+public class PartitionedRun {
+    /** The number of package name components that make up a partition key. */
+    private final int depth;
+    /** The factory of the drivers (one per partition). */
+    private final Supplier<Driver> drivers;
+    /** The reader of the IR, which fills an IR state. */
+    private final Consumer<IRState> irReader;
+    private final boolean debug;
+
+    /** The declaration-only copies of all IR types (by id). */
+    private final Map<String, IRType> declarations = new HashMap<>();
+    /** The names of all IR types and the types they reference. */
+    private final Set<String> allIrTypes = new HashSet<>();
+    /** The IR types of other partitions that implement lambdas of a partition (by partition). */
+    private final Map<String, Set<String>> lambdaImplTypes = new HashMap<>();
+    /** The source files of each partition, sorted by partition key. */
+    private final SortedMap<String, List<SourceEntry>> sources = new TreeMap<>();
+    /** The partition keys of the IR types. */
+    private final SortedSet<String> irPartitions = new TreeSet<>();
+
+    /** A source file and the location it was found in. */
+    private static final class SourceEntry {
+        final File topDir;
+        final File file;
+        final String artifact;
+
+        SourceEntry(File topDir, File file, String artifact) {
+            this.topDir = topDir;
+            this.file = file;
+            this.artifact = artifact;
+        }
+    }
+
+    /**
+     * Create a partitioned run.
+     * @param depth      the number of package name components per partition
+     *                   (e.g. 2 puts "com.foo.a" and "com.foo.b" in one partition)
+     * @param drivers    the factory of the drivers (one per partition)
+     * @param irReader   the reader of the IR (it may be called more than once)
+     * @param debug      debug mode
+     */
+    public PartitionedRun(int depth, Supplier<Driver> drivers, Consumer<IRState> irReader, boolean debug) {
+        this.depth = depth;
+        this.drivers = drivers;
+        this.irReader = irReader;
+        this.debug = debug;
+    }
+
+    /**
+     * Run all partitions.
+     * @param srcPaths             the source files/archives/directories
+     * @param synthesizeTypes      if true, attempt to synthesize erased types
+     * @param enableKotlin         if false, Kotlin sources will not be processed
+     * @param json                 if true, generate JSON metadata
+     * @param resolveInvocations   if true, resolve invocation targets
+     * @param lossy                if true, enable lossy heuristics
+     * @param matchIR              if true, keep only results that match both source and IR elements
+     * @param stats                if true, show statistics
+     * @return                     the result of the matching operation
+     */
+    public RunResult run(List<File> srcPaths, boolean synthesizeTypes, boolean enableKotlin,
+                         boolean json, boolean resolveInvocations, boolean lossy,
+                         boolean matchIR, boolean stats) {
+        indexIR();
+        for (File srcPath : srcPaths)
+            indexSources(srcPath);
+        SortedSet<String> partitions = new TreeSet<>(irPartitions);
+        partitions.addAll(sources.keySet());
+        System.out.println("Partitioned run: " + declarations.size() + " IR types, " + partitions.size() + " partition(s).");
+
+        Driver main = drivers.get();
+        IdMapper statsMapper = main.getIdMapper();
+        TypeNamePrefilter prefilter = declarations.isEmpty() ? null : new TypeNamePrefilter(declarations.values());
+        MetadataWriter writer = main.writesMetadata(json) ? main.newMetadataWriter(matchIR, declarations) : null;
+        // Sorted, so that the output does not depend on the partitions.
+        Set<String> invocationTargets = new TreeSet<>();
+        List<String> declarationsOnly = new ArrayList<>();
+        int unmatched = 0;
+        for (String partition : partitions) {
+            List<SourceEntry> entries = sources.get(partition);
+            if (entries == null) {
+                if (debug)
+                    System.out.println("Partition '" + partition + "' has no source files.");
+                continue;
+            }
+
+            // Read the IR types of this partition (and the lambda implementations it needs).
+            Set<String> implTypes = lambdaImplTypes.getOrDefault(partition, Collections.emptySet());
+            IRState irState = new IRState(typeId -> partition.equals(partitionOf(typeId)) || implTypes.contains(typeId));
+            irReader.accept(irState);
+            List<IRType> irTypes = new ArrayList<>();
+            for (IRType irType : irState.irTypes)
+                if (partition.equals(partitionOf(irType.getId())))
+                    irTypes.add(irType);
+            irState.resolveLambdas(irTypes, debug);
+
+            Driver driver = drivers.get();
+            driver.setPrefilter(prefilter);
+            List<SourceFile> partitionSources = new ArrayList<>();
+            for (SourceEntry entry : entries)
+                driver.readSources(entry.topDir, entry.file, entry.artifact, debug, synthesizeTypes, enableKotlin, partitionSources::add);
+            System.out.println("Matching partition '" + partition + "': " + irTypes.size() + " IR types against " + partitionSources.size() + " source files...");
+
+            IdMapper idMapper = driver.getIdMapper();
+            for (SourceFile sf : partitionSources)
+                unmatched += driver.matchElements(sf, irTypes, allIrTypes, lossy, matchIR, idMapper, driver.newAliaser(idMapper));
+            if (resolveInvocations)
+                invocationTargets.addAll(driver.resolveInvocationTargets(partitionSources, declarations));
+            for (SourceFile sf : partitionSources)
+                driver.matchReferences(sf, allIrTypes);
+            if (writer != null) {
+                Map<SourceFile, List<ElementWithPosition<?, ?>>> elements = idMapper.getElementsBySourceFile();
+                for (SourceFile sf : partitionSources)
+                    writer.write(sf, elements.getOrDefault(sf, Collections.emptyList()), null);
+            }
+            for (SourceFile sf : partitionSources) {
+                if (stats || debug)
+                    statsMapper.addStats(sf);
+                if (sf.declarationsOnly != null)
+                    declarationsOnly.add(Driver.describeDeclarationsOnly(sf));
+            }
+            driver.reportDuplicates();
+            driver.reportGroovyRetries();
+        }
+
+        if (writer != null)
+            writer.finish();
+        if (resolveInvocations)
+            main.writeInvocationTargets(invocationTargets);
+        main.closeOutput();
+        System.out.println(unmatched + " elements not matched.");
+        Driver.reportDeclarationsOnly(declarationsOnly);
+        if (stats || debug)
+            statsMapper.printStats();
+        return new RunResult(unmatched, statsMapper);
+    }
+
+    /**
+     * Read all IR, keeping only the global index.
+     */
+    private void indexIR() {
+        irReader.accept(new IRState() {
+            @Override
+            public void addType(IRType irType) {
+                String typeId = irType.getId();
+                String partition = partitionOf(typeId);
+                irPartitions.add(partition);
+                declarations.put(typeId, irType.declarationsOnly());
+                allIrTypes.add(typeId);
+                irType.addReferencedTypesTo(allIrTypes);
+                for (IRMethod irMethod : irType.methods)
+                    if (irMethod.lambdas != null)
+                        for (IRLambda irLambda : irMethod.lambdas) {
+                            String implType = declaringTypeOf(irLambda.implementation);
+                            if (implType != null && !partition.equals(partitionOf(implType)))
+                                lambdaImplTypes.computeIfAbsent(partition, k -> new HashSet<>()).add(implType);
+                        }
+            }
+        });
+    }
+
+    /**
+     * Find the source files in a path and record their partitions. Archives
+     * are extracted once.
+     * @param srcPath   the source file/archive/directory
+     */
+    private void indexSources(File srcPath) {
+        String srcName = srcPath.getName().toLowerCase(Locale.ROOT);
+        if (!srcPath.isDirectory() && (srcName.endsWith(".jar") || srcName.endsWith(".zip"))) {
+            try {
+                File tmpDir = Driver.extractZipToTempDir("extracted-sources", srcPath);
+                indexSources(tmpDir, tmpDir, srcName);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } else
+            indexSources(srcPath, srcPath, null);
+    }
+
+    private void indexSources(File topDir, File srcFile, String artifact) {
+        if (srcFile.isDirectory()) {
+            File[] srcFiles = srcFile.listFiles();
+            if (srcFiles == null)
+                System.err.println("ERROR: could not process source directory " + srcFile.getPath());
+            else
+                for (File f : srcFiles)
+                    indexSources(topDir, f, artifact);
+            return;
+        }
+        Language language = Language.fromFileName(srcFile.getName());
+        if (language == null)
+            return;
+        String packageName = null;
+        try {
+            packageName = DeclarationScanner.packageOf(srcFile, language);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        String partition = partitionOfPackage(packageName == null ? "" : packageName);
+        sources.computeIfAbsent(partition, k -> new ArrayList<>()).add(new SourceEntry(topDir, srcFile, artifact));
+    }
+
+    /**
+     * Returns the partition of a type.
+     * @param typeId   the type id
+     * @return         the partition key
+     */
+    private String partitionOf(String typeId) {
+        int dotIdx = typeId.lastIndexOf('.');
+        return partitionOfPackage(dotIdx < 0 ? "" : typeId.substring(0, dotIdx));
+    }
+
+    private String partitionOfPackage(String packageName) {
+        int idx = -1;
+        for (int i = 0; i < depth; i++) {
+            idx = packageName.indexOf('.', idx + 1);
+            if (idx < 0)
+                return packageName;
+        }
+        return packageName.substring(0, idx);
+    }
+
+    /**
+     * Returns the declaring type of a method id (such as "&lt;A: void m()&gt;").
+     * @param methodId   the method id
+     * @return           the type id (or null if the id has a different form)
+     */
+    private static String declaringTypeOf(String methodId) {
+        int colonIdx = methodId.indexOf(':');
+        return methodId.startsWith("<") && colonIdx > 0 ? methodId.substring(1, colonIdx) : null;
+    }
+}
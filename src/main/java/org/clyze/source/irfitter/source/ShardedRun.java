@@ -0,0 +1,482 @@
+package org.clyze.source.irfitter.source;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.source.model.IdMapper;
+import org.clyze.source.irfitter.source.scan.Language;
+
+/**
+ * A run that splits the source files into shards and processes every shard
+ * in a separate worker JVM, so that a crash (or a long GC pause) affects
+ * only one shard. Every worker reads the IR inputs (read-only) and writes
+ * its output to its own directory under "shards/"; when all workers have
+ * succeeded, their outputs are merged into the output directory. Workers
+ * run with the JVM options of the parent process (except for debugger
+ * agents, whose ports cannot be shared). The IR is read by every worker,
+ * as the workers do not share memory.
+ *
+ * Source files are assigned to shards by their contents, so the merged
+ * output is the same as that of a single-process run (the invocation
+ * targets are sorted). The parent reads every source file once to assign
+ * it and gives each worker the list of its files, so workers do not read
+ * the files of other shards. Failed workers are retried; if a shard still
+ * fails, running the same command again only runs the shards that have
+ * not completed. A completed shard is only reused if its fingerprint (the
+ * worker command and the size and modification time of every input file,
+ * which are found once for all shards) is unchanged.
+ *
+ * Features that need the matched elements of all source files at once
+ * (Doop variable resolution and results translation, SARIF) are not
+ * supported.
+ */
+public class ShardedRun {
+    /** The directory of the shard outputs (in the output directory). */
+    private static final String SHARDS_DIR = "shards";
+    /** The file that marks a completed shard and keeps its statistics. */
+    private static final String SHARD_RESULT = "shard.properties";
+    /** The file that keeps the fingerprint of the command and the inputs of a completed shard. */
+    private static final String SHARD_FINGERPRINT = "shard.fingerprint";
+    /** The suffix of the file that lists the source files of a shard (in the shards directory). */
+    private static final String SHARD_SOURCES = ".sources";
+    private static final String INVOCATION_TARGETS = "InvocationTargets.csv";
+    private static final String UNMATCHED_KEY = "unmatched";
+
+    private final int shardCount;
+    /** The number of times a failed worker is restarted. */
+    private final int retries;
+    private final File out;
+    private final boolean debug;
+
+    /**
+     * Create a sharded run.
+     * @param shardCount   the number of shards (and worker processes)
+     * @param retries      the number of times a failed worker is restarted
+     * @param out          the output directory
+     * @param debug        debug mode
+     */
+    public ShardedRun(int shardCount, int retries, File out, boolean debug) {
+        this.shardCount = shardCount;
+        this.retries = retries;
+        this.out = out;
+        this.debug = debug;
+    }
+
+    /**
+     * Returns the shard of a source file.
+     * @param key          the key of the source file (such as its content hash)
+     * @param shardCount   the number of shards
+     * @return             the shard index
+     */
+    public static int shardOf(String key, int shardCount) {
+        // String.hashCode() is the same in every JVM.
+        return Math.floorMod(key.hashCode(), shardCount);
+    }
+
+    /**
+     * Returns the key of a source file in the lists of the shards: its path
+     * relative to the top directory (or archive) of the sources, or its name
+     * if it was given directly.
+     * @param topDir    the top directory of the sources
+     * @param srcFile   the source file
+     * @return          the key (with '/' separators)
+     */
+    public static String sourceKey(File topDir, File srcFile) {
+        String relPath = topDir.toPath().relativize(srcFile.toPath()).toString();
+        return relPath.isEmpty() ? srcFile.getName() : relPath.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Run the workers and merge their outputs.
+     * @param driver               the driver (used to write the merged invocation targets)
+     * @param srcPaths             the source files/archives/directories (also given to the workers)
+     * @param workerArgs           the command-line arguments of the workers (without
+     *                             the output directory and the shard)
+     * @param resolveInvocations   if true, merge the invocation targets
+     * @param stats                if true, show statistics
+     * @return                     the result of the matching operation (or null
+     *                             if some shards failed)
+     */
+    public RunResult run(Driver driver, List<File> srcPaths, List<String> workerArgs,
+                         boolean resolveInvocations, boolean stats) {
+        File shardsDir = new File(out, SHARDS_DIR);
+        if (!shardsDir.exists() && !shardsDir.mkdirs()) {
+            System.err.println("ERROR: could not create directory " + shardsDir);
+            return null;
+        }
+        if (!writeShardSources(srcPaths))
+            return null;
+        // The inputs are the same for all shards.
+        String inputStamps = inputStamps(baseCommand(workerArgs));
+        SortedSet<Integer> pending = new TreeSet<>();
+        Map<Integer, String> fingerprints = new HashMap<>();
+        for (int i = 0; i < shardCount; i++) {
+            String fingerprint = fingerprint(workerCommand(i, workerArgs), inputStamps);
+            fingerprints.put(i, fingerprint);
+            if (!new File(shardDir(i), SHARD_RESULT).exists())
+                pending.add(i);
+            else if (fingerprint.equals(readFingerprint(i)))
+                System.out.println("Shard " + shardName(i) + " has already completed, reusing its output.");
+            else {
+                System.out.println("Shard " + shardName(i) + " was completed by a different command or with different inputs, running it again.");
+                pending.add(i);
+            }
+        }
+
+        for (int attempt = 0; attempt <= retries && !pending.isEmpty(); attempt++) {
+            if (attempt > 0)
+                System.out.println("Retrying " + pending.size() + " failed shard(s), attempt " + attempt + "/" + retries + "...");
+            Map<Integer, Process> workers = new TreeMap<>();
+            for (int i : pending) {
+                Process worker = startWorker(i, workerArgs);
+                if (worker != null)
+                    workers.put(i, worker);
+            }
+            for (Map.Entry<Integer, Process> entry : workers.entrySet()) {
+                int i = entry.getKey();
+                int exitCode = waitFor(entry.getValue());
+                if (exitCode == 0 && new File(shardDir(i), SHARD_RESULT).exists() && writeFingerprint(i, fingerprints.get(i))) {
+                    System.out.println("Shard " + shardName(i) + " completed.");
+                    pending.remove(i);
+                } else
+                    System.err.println("ERROR: shard " + shardName(i) + " failed (exit code " + exitCode + "), see " + logFile(i));
+            }
+        }
+        if (!pending.isEmpty()) {
+            for (int i : pending)
+                System.err.println("ERROR: shard " + shardName(i) + " did not complete, to run it alone: " + String.join(" ", workerCommand(i, workerArgs)));
+            System.err.println("ERROR: run the same command again to retry only the failed shards.");
+            return null;
+        }
+        return merge(driver, resolveInvocations, stats);
+    }
+
+    /**
+     * Merge the outputs of all shards (in shard order) into the output directory.
+     * @param driver               the driver (used to write the merged invocation targets)
+     * @param resolveInvocations   if true, merge the invocation targets
+     * @param stats                if true, show statistics
+     * @return                     the result of the matching operation
+     */
+    private RunResult merge(Driver driver, boolean resolveInvocations, boolean stats) {
+        System.out.println("Merging the output of " + shardCount + " shard(s)...");
+        IdMapper statsMapper = driver.getIdMapper();
+        Set<String> invocationTargets = new TreeSet<>();
+        int unmatched = 0;
+        for (int i = 0; i < shardCount; i++) {
+            File shardDir = shardDir(i);
+            Properties props = new Properties();
+            try (InputStream is = new FileInputStream(new File(shardDir, SHARD_RESULT))) {
+                props.load(is);
+            } catch (IOException ex) {
+                System.err.println("ERROR: could not read the result of shard " + shardName(i));
+                ex.printStackTrace();
+            }
+            unmatched += Integer.parseInt(props.getProperty(UNMATCHED_KEY, "0"));
+            statsMapper.addStats(props);
+            File shardTargets = new File(shardDir, INVOCATION_TARGETS);
+            if (resolveInvocations && shardTargets.exists()) {
+                try (Stream<String> lines = Files.lines(shardTargets.toPath())) {
+                    lines.forEach(line -> invocationTargets.add(line + '\n'));
+                } catch (IOException ex) {
+                    System.err.println("ERROR: could not read " + shardTargets);
+                    ex.printStackTrace();
+                }
+            }
+            copyMetadata(shardDir.toPath());
+        }
+        if (resolveInvocations)
+            driver.writeInvocationTargets(invocationTargets);
+        System.out.println(unmatched + " elements not matched.");
+        if (stats || debug)
+            statsMapper.printStats();
+        if (!debug)
+            delete(new File(out, SHARDS_DIR).toPath());
+        return new RunResult(unmatched, statsMapper);
+    }
+
+    /**
+     * Copy the metadata files of a shard to the output directory. Every
+     * source file belongs to one shard, so the files of different shards
+     * do not overlap.
+     * @param shardDir   the output directory of the shard
+     */
+    private void copyMetadata(Path shardDir) {
+        Path outDir = out.toPath();
+        try (Stream<Path> paths = Files.walk(shardDir)) {
+            for (Path path : paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                Path relPath = shardDir.relativize(path);
+                String name = relPath.toString();
+                if (name.equals(SHARD_RESULT) || name.equals(SHARD_FINGERPRINT) || name.equals(INVOCATION_TARGETS))
+                    continue;
+                Path target = outDir.resolve(relPath);
+                Files.createDirectories(target.getParent());
+                Files.copy(path, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not copy the output of shard directory " + shardDir);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Start the worker of a shard, after deleting any partial output of an
+     * earlier attempt. The worker output goes to the log of the shard.
+     * @param shard        the shard index
+     * @param workerArgs   the command-line arguments of the workers
+     * @return             the worker process (or null if it could not be started)
+     */
+    private Process startWorker(int shard, List<String> workerArgs) {
+        File shardDir = shardDir(shard);
+        delete(shardDir.toPath());
+        List<String> command = workerCommand(shard, workerArgs);
+        if (debug)
+            System.out.println("Starting worker: " + String.join(" ", command));
+        System.out.println("Starting shard " + shardName(shard) + ", log: " + logFile(shard));
+        try {
+            return new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(logFile(shard))
+                    .start();
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not start the worker of shard " + shardName(shard));
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Assign the source files to shards (by their contents) and write the
+     * list of the files of every shard.
+     * @param srcPaths   the source files/archives/directories
+     * @return           true if the lists were written
+     */
+    private boolean writeShardSources(List<File> srcPaths) {
+        List<Set<String>> shardSources = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++)
+            shardSources.add(new TreeSet<>());
+        // A path found in more than one source input stays in the shard of its first copy.
+        Set<String> assigned = new HashSet<>();
+        try {
+            for (File srcPath : srcPaths) {
+                String name = srcPath.getName().toLowerCase(Locale.ROOT);
+                if (!srcPath.isDirectory() && (name.endsWith(".jar") || name.endsWith(".zip"))) {
+                    try (ZipFile zip = new ZipFile(srcPath)) {
+                        for (ZipEntry entry : Collections.list(zip.entries()))
+                            if (!entry.isDirectory() && Language.fromFileName(entry.getName()) != null && assigned.add(entry.getName()))
+                                try (InputStream in = zip.getInputStream(entry)) {
+                                    shardSources.get(shardOf(SourceText.hash(in), shardCount)).add(entry.getName());
+                                }
+                    }
+                } else {
+                    try (Stream<Path> paths = Files.walk(srcPath.toPath(), FileVisitOption.FOLLOW_LINKS)) {
+                        for (Path path : paths.filter(p -> Files.isRegularFile(p) && Language.fromFileName(p.toString()) != null).collect(Collectors.toList())) {
+                            String key = sourceKey(srcPath, path.toFile());
+                            if (assigned.add(key))
+                                shardSources.get(shardOf(new SourceText(path.toFile()).getHash(), shardCount)).add(key);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < shardCount; i++)
+                Files.write(sourcesFile(i).toPath(), shardSources.get(i), StandardCharsets.UTF_8);
+            return true;
+        } catch (IOException | UncheckedIOException ex) {
+            System.err.println("ERROR: could not assign the source files to shards: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Read the list of the source files of a shard (in a worker process).
+     * @param sourcesFile   the file written by the parent of the sharded run
+     * @return              the keys of the source files (see {@link #sourceKey(File, File)})
+     * @throws IOException  if the file cannot be read
+     */
+    public static Set<String> readShardSources(File sourcesFile) throws IOException {
+        return new HashSet<>(Files.readAllLines(sourcesFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    private List<String> workerCommand(int shard, List<String> workerArgs) {
+        List<String> command = baseCommand(workerArgs);
+        command.add("--out");
+        command.add(shardDir(shard).getPath());
+        command.add("--shard");
+        command.add(shardName(shard));
+        command.add("--shard-sources");
+        command.add(sourcesFile(shard).getPath());
+        return command;
+    }
+
+    /**
+     * Returns the part of the worker command that is the same for all shards.
+     * @param workerArgs   the command-line arguments of the workers
+     * @return             the command
+     */
+    private static List<String> baseCommand(List<String> workerArgs) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        for (String jvmArg : ManagementFactory.getRuntimeMXBean().getInputArguments())
+            if (!isDebuggerArg(jvmArg))
+                command.add(jvmArg);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("org.clyze.source.irfitter.Main");
+        command.addAll(workerArgs);
+        return command;
+    }
+
+    /**
+     * Check if a JVM option starts a debugger agent.
+     * @param jvmArg   the JVM option
+     * @return         true if the option starts a debugger agent
+     */
+    private static boolean isDebuggerArg(String jvmArg) {
+        return jvmArg.startsWith("-agentlib:jdwp") || jvmArg.startsWith("-Xrunjdwp") || jvmArg.equals("-Xdebug");
+    }
+
+    /**
+     * Find the size and modification time of every file that a command
+     * names (including the files in named directories and the class path).
+     * The files in the output directory are not inputs.
+     * @param command   the command
+     * @return          the stamps of the input files
+     */
+    private String inputStamps(List<String> command) {
+        StringBuilder sb = new StringBuilder();
+        for (String arg : command)
+            for (String path : arg.split(File.pathSeparator))
+                addFileStamps(sb, new File(path).toPath().toAbsolutePath().normalize());
+        return sb.toString();
+    }
+
+    /**
+     * Compute the fingerprint of a worker: the hash of its command and of
+     * the stamps of its input files.
+     * @param command       the worker command
+     * @param inputStamps   the stamps of the input files (see {@link #inputStamps(List)})
+     * @return              the fingerprint
+     */
+    private static String fingerprint(List<String> command, String inputStamps) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String arg : command)
+            sb.append(arg).append('\n');
+        sb.append(inputStamps);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8)))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private void addFileStamps(StringBuilder sb, Path file) {
+        Path outDir = out.toPath().toAbsolutePath().normalize();
+        if (!Files.exists(file) || file.startsWith(outDir))
+            return;
+        try (Stream<Path> paths = Files.walk(file)) {
+            for (Path path : paths.filter(p -> Files.isRegularFile(p) && !p.startsWith(outDir)).sorted().collect(Collectors.toList()))
+                sb.append(path).append('\t').append(Files.size(path)).append('\t').append(Files.getLastModifiedTime(path).toMillis()).append('\n');
+        } catch (IOException | UncheckedIOException ex) {
+            // An unreadable input never matches a saved fingerprint.
+            sb.append(file).append("\t?\n").append(System.nanoTime()).append('\n');
+        }
+    }
+
+    private String readFingerprint(int shard) {
+        try {
+            return new String(Files.readAllBytes(new File(shardDir(shard), SHARD_FINGERPRINT).toPath()), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private boolean writeFingerprint(int shard, String fingerprint) {
+        File fingerprintFile = new File(shardDir(shard), SHARD_FINGERPRINT);
+        try {
+            Files.write(fingerprintFile.toPath(), fingerprint.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not write " + fingerprintFile);
+            return false;
+        }
+    }
+
+    private static int waitFor(Process worker) {
+        try {
+            return worker.waitFor();
+        } catch (InterruptedException ex) {
+            worker.destroy();
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    /**
+     * Mark a shard as completed by saving its result (in a worker process).
+     * @param shardOut   the output directory of the shard
+     * @param result     the result of the shard
+     */
+    public static void writeShardResult(File shardOut, RunResult result) {
+        Properties props = new Properties();
+        props.setProperty(UNMATCHED_KEY, String.valueOf(result.unmatched));
+        result.idMapper.saveStats(props);
+        if (!shardOut.exists() && !shardOut.mkdirs())
+            System.err.println("ERROR: could not create directory " + shardOut);
+        // Write and rename, so that an interrupted worker leaves no result.
+        File tmpFile = new File(shardOut, SHARD_RESULT + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmpFile)) {
+            props.store(os, "Shard result");
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not write " + tmpFile);
+            ex.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tmpFile.toPath(), new File(shardOut, SHARD_RESULT).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not save the result of the shard in " + shardOut);
+            ex.printStackTrace();
+        }
+    }
+
+    private File shardDir(int shard) {
+        return new File(new File(out, SHARDS_DIR), "shard-" + shard);
+    }
+
+    private File sourcesFile(int shard) {
+        return new File(new File(out, SHARDS_DIR), "shard-" + shard + SHARD_SOURCES);
+    }
+
+    private File logFile(int shard) {
+        return new File(new File(out, SHARDS_DIR), "shard-" + shard + ".log");
+    }
+
+    private String shardName(int shard) {
+        return shard + "/" + shardCount;
+    }
+
+    private static void delete(Path path) {
+        if (!Files.exists(path))
+            return;
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        } catch (IOException ex) {
+            System.err.println("WARNING: could not delete " + path);
+        }
+    }
+}
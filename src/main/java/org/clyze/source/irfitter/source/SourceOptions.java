@@ -0,0 +1,155 @@
+package org.clyze.source.irfitter.source;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataReader;
+
+/** Options that control how source files are read and parsed. */
+public class SourceOptions {
+    /** The way Groovy sources feed characters/tokens to the parser. */
+    public TokenStreaming groovyStreaming = TokenStreaming.BUFFERED;
+    /** The per-file time budget (in milliseconds) of the Groovy/Kotlin parsers, 0 for no limit. */
+    public long parseTimeBudget = 0;
+    /** The per-file token budget of the Groovy/Kotlin parsers, 0 for no limit. */
+    public long parseTokenBudget = 0;
+    /**
+     * If true, first read types and member signatures and visit method bodies
+     * only for methods that match IR methods. This saves the source elements
+     * of unmatched methods, not memory while reading: a postponed body visit
+     * keeps the parse tree of its file (with all its tokens) until the file
+     * is matched, so in batch runs all parse trees are kept until matching.
+     * Streaming and partitioned runs match files soon after reading them.
+     */
+    public boolean bodiesOnDemand = false;
+    /** What to do with source files that declare no types found in the IR. */
+    public Prefilter prefilter = Prefilter.OFF;
+    /** If true, only the declarations of generated source files are read. */
+    public boolean reduceGeneratedCode = false;
+    /** Glob patterns of generated source paths (relative to the source root). */
+    public final List<String> generatedPathPatterns = new ArrayList<>();
+    /** Source files larger than this size (in bytes) are treated as generated, 0 for no limit. */
+    public long generatedSizeThreshold = 0;
+    /** If not null, the directory of source model snapshots (keyed by file contents). */
+    public File snapshotDir = null;
+    /** How to handle source files with the same contents as files already read. */
+    public Duplicates duplicates = Duplicates.OFF;
+    /**
+     * If true, source types with more than one possible fully-qualified name
+     * are resolved to the names known to the IR.
+     */
+    public boolean irTypeResolution = false;
+    /**
+     * The number of shards that the source files are split into, 0 to read
+     * all source files. Copies of a file always belong to the same shard.
+     */
+    public int shardCount = 0;
+    /** The shard of the source files to read (from 0 to shardCount-1). */
+    public int shardIndex = 0;
+    /**
+     * The keys of the source files of the shard (see
+     * {@link ShardedRun#sourceKey(File, File)}), as assigned by the parent of
+     * a sharded run. If null, the shard of every file is found from its hash.
+     */
+    public Set<String> shardSources = null;
+    /** The number of threads that write metadata files (1 to write them in order, on the calling thread). */
+    public int metadataThreads = Runtime.getRuntime().availableProcessors();
+    /** Where the output files are written. */
+    public Sink sink = Sink.FILES;
+    /**
+     * If true, the matched metadata is also written in the binary format
+     * (see {@link org.clyze.source.irfitter.source.binary.BinaryMetadataReader}).
+     */
+    public boolean binaryMetadata = false;
+    /**
+     * If not null, the binary metadata of the run is also kept in memory
+     * (memory-mapped, if it was written) and passed to this consumer when
+     * the output is closed, so that it can be queried after the run.
+     */
+    public Consumer<BinaryMetadataReader> metadataIndexConsumer = null;
+
+    /**
+     * Returns a copy of these options (e.g. to keep the options of a job
+     * that may run after the original options have changed).
+     * @return   the copy
+     */
+    public SourceOptions copy() {
+        SourceOptions copy = new SourceOptions();
+        copy.groovyStreaming = groovyStreaming;
+        copy.parseTimeBudget = parseTimeBudget;
+        copy.parseTokenBudget = parseTokenBudget;
+        copy.bodiesOnDemand = bodiesOnDemand;
+        copy.prefilter = prefilter;
+        copy.reduceGeneratedCode = reduceGeneratedCode;
+        copy.generatedPathPatterns.addAll(generatedPathPatterns);
+        copy.generatedSizeThreshold = generatedSizeThreshold;
+        copy.snapshotDir = snapshotDir;
+        copy.duplicates = duplicates;
+        copy.irTypeResolution = irTypeResolution;
+        copy.shardCount = shardCount;
+        copy.shardIndex = shardIndex;
+        copy.shardSources = shardSources;
+        copy.metadataThreads = metadataThreads;
+        copy.sink = sink;
+        copy.binaryMetadata = binaryMetadata;
+        copy.metadataIndexConsumer = metadataIndexConsumer;
+        return copy;
+    }
+
+    /** Handling of identical copies of source files (found in different paths). */
+    public enum Duplicates {
+        /** Parse and match every copy. */
+        OFF,
+        /** Parse the contents once and copy the parsed model to every path. */
+        EMIT,
+        /** Process only the first copy, the others are just reported. */
+        SUPPRESS
+    }
+
+    /** Destinations of the output files. */
+    public enum Sink {
+        /** One file per source file in the output directory. */
+        FILES,
+        /**
+         * Like FILES, but only files that changed since the previous run
+         * are written (with a manifest of hashes, stale files are deleted).
+         */
+        DIFF,
+        /** All metadata reports in one newline-delimited JSON file. */
+        NDJSON,
+        /** Like NDJSON, compressed with gzip. */
+        GZIP,
+        /** All output files in one ZIP archive. */
+        ZIP
+    }
+
+    /** Handling of source files whose top-level types are not in the IR. */
+    public enum Prefilter {
+        /** Process all source files. */
+        OFF,
+        /** Only scan the declarations of such files. */
+        DECLARATIONS,
+        /** Do not process such files. */
+        SKIP
+    }
+
+    /** Strategies for feeding source text to ANTLR-based parsers. */
+    public enum TokenStreaming {
+        /** Read the whole file and lex all tokens before parsing (default). */
+        BUFFERED,
+        /**
+         * Read characters from an unbuffered reader and let the parser pull
+         * tokens lazily. Falls back to BUFFERED when the lexer or the parser
+         * needs to look further back.
+         */
+        STREAMING,
+        /**
+         * Like STREAMING, but also use an unbuffered token stream, so that
+         * only the tokens needed for lookahead are kept. Falls back to
+         * BUFFERED when the lexer or the parser needs to look further back.
+         */
+        UNBUFFERED
+    }
+}
@@ -0,0 +1,108 @@
+package org.clyze.source.irfitter.source;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The contents of a source file. The text is read once (on first use) and
+ * shared by the scanners and the parser; it should be released when the
+ * parser has its own copy. The hash is computed by streaming the file, so
+ * it does not keep the contents in memory.
+ */
+public final class SourceText {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /** The size of the buffer used for hashing. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The source file. */
+    public final File file;
+    private char[] chars = null;
+    private String hash = null;
+
+    /**
+     * Create the (not yet read) contents of a source file.
+     * @param file   the source file
+     */
+    public SourceText(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the text of the file (decoded as UTF-8). The text is kept
+     * until it is released.
+     * @return              the file text
+     * @throws IOException  if the file cannot be read
+     */
+    public char[] getChars() throws IOException {
+        if (chars == null)
+            chars = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).toCharArray();
+        return chars;
+    }
+
+    /**
+     * Opens a reader of the text of the file. If the text has been read,
+     * the reader reads it from memory, otherwise it reads the file.
+     * @return              the reader (to be closed by the caller)
+     * @throws IOException  if the file cannot be opened
+     */
+    public Reader openReader() throws IOException {
+        if (chars != null)
+            return new CharArrayReader(chars);
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Releases the text of the file (such as when the parser has its own
+     * copy). It is read again if needed.
+     */
+    public void release() {
+        chars = null;
+    }
+
+    /**
+     * Returns the hash of the file contents.
+     * @return              the SHA-256 hash (as a hex string)
+     * @throws IOException  if the file cannot be read
+     */
+    public String getHash() throws IOException {
+        if (hash == null)
+            try (InputStream in = new FileInputStream(file)) {
+                hash = hash(in);
+            }
+        return hash;
+    }
+
+    /**
+     * Returns the hash of the contents of a stream (computed as for files).
+     * @param in            the stream
+     * @return              the SHA-256 hash (as a hex string)
+     * @throws IOException  if the stream cannot be read
+     */
+    static String hash(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            digest.update(buf, 0, n);
+        byte[] d = digest.digest();
+        char[] hex = new char[d.length * 2];
+        for (int i = 0; i < d.length; i++) {
+            hex[2 * i] = HEX[(d[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[d[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
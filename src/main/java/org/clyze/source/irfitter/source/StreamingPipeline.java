@@ -0,0 +1,297 @@
+package org.clyze.source.irfitter.source;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.ir.model.IRType;
+import org.clyze.source.irfitter.matcher.Aliaser;
+import org.clyze.source.irfitter.matcher.DoopFacts;
+import org.clyze.source.irfitter.source.model.IdMapper;
+import org.clyze.source.irfitter.source.model.SourceFile;
+
+/**
+ * A streaming alternative to {@link Driver#match}: source files flow one by
+ * one through parsing, matching and metadata generation, connected by
+ * bounded queues, and each source file is released after its metadata has
+ * been written. Peak memory thus depends on the queue depth and not on the
+ * number of source files.
+ *
+ * Only small cross-file state is kept: the IR type index (for type uses),
+ * the invocation targets, the matching statistics and (when Doop variables
+ * are resolved) the Doop facts and the variable aliases needed to
+ * translate Doop results. The variables of every source file are resolved
+ * after it has been matched, so its metadata and statistics are the same
+ * as when all source files are matched together. SARIF results need the
+ * matched elements of all source files at once and are not supported.
+ */
+public class StreamingPipeline {
+    /** The default capacity of the queues between stages. */
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+    /** The marker of the end of a queue. */
+    private static final Item END = new Item(null, null);
+
+    private final Driver driver;
+    private final boolean debug;
+    /** The parsed source files. */
+    private final BlockingQueue<Item> parsed;
+    /** The matched source files (with their matched elements). */
+    private final BlockingQueue<Item> matched;
+    private final ExecutorService executor;
+    /** The first failure of a stage (which cancels the other stages). */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private Future<?> parsing = null;
+    /** The consumer of every matched source file and its matches (or null). */
+    private BiConsumer<SourceFile, IdMapper> matchedFiles = null;
+    /** If true, resolve the variables of every source file from Doop facts. */
+    private boolean resolveVars = false;
+    /** If true, translate Doop results (after all source files have been matched). */
+    private boolean translateResults = false;
+    /** If true, make translated Doop results a set. */
+    private boolean uniqueResults = false;
+    /** The column-variable relation spec of Doop results. */
+    private String[] relVars = null;
+
+    /** A source file in transit and the mapper of its matched elements. */
+    private static final class Item {
+        final SourceFile sf;
+        final IdMapper idMapper;
+
+        Item(SourceFile sf, IdMapper idMapper) {
+            this.sf = sf;
+            this.idMapper = idMapper;
+        }
+    }
+
+    /**
+     * Create a pipeline.
+     * @param driver       the driver that reads and matches source files
+     * @param queueDepth   the capacity of the queues between stages
+     * @param debug        debug mode
+     */
+    public StreamingPipeline(Driver driver, int queueDepth, boolean debug) {
+        this.driver = driver;
+        this.debug = debug;
+        this.parsed = new ArrayBlockingQueue<>(queueDepth);
+        this.matched = new ArrayBlockingQueue<>(queueDepth);
+        this.executor = Executors.newFixedThreadPool(3, r -> {
+            Thread t = new Thread(r, "source-pipeline");
+            t.setDaemon(true);
+            return t;
+        });
+        // Parsed models cannot be kept for copying duplicates.
+        driver.discardParsedModels();
+    }
+
+    /**
+     * Set a consumer that receives every source file after it has been
+     * matched (and its metadata has been written), together with its
+     * matches. The consumer is called by a single pipeline thread.
+     * @param matchedFiles   the consumer
+     */
+    public void setMatchedFileConsumer(BiConsumer<SourceFile, IdMapper> matchedFiles) {
+        this.matchedFiles = matchedFiles;
+    }
+
+    /**
+     * Resolve the variables of every source file from Doop facts, as it is
+     * matched.
+     * @param translateResults   if true, map Doop results to sources (after
+     *                           all source files have been matched)
+     * @param uniqueResults      if true, make Doop results a set (remove duplicates)
+     * @param relVars            the column-variable relation spec
+     */
+    public void resolveDoopVariables(boolean translateResults, boolean uniqueResults, String[] relVars) {
+        this.resolveVars = true;
+        this.translateResults = translateResults;
+        this.uniqueResults = uniqueResults;
+        this.relVars = relVars;
+    }
+
+    /**
+     * Start reading sources in the background. Reading blocks when the
+     * queue of parsed files is full, until matching starts.
+     * @param srcPaths          the source files/archives/directories
+     * @param synthesizeTypes   if true, attempt to synthesize erased types
+     * @param enableKotlin      if false, Kotlin sources will not be processed
+     */
+    public void startParsing(List<File> srcPaths, boolean synthesizeTypes, boolean enableKotlin) {
+        parsing = submit(() -> {
+            for (File srcPath : srcPaths)
+                driver.readSources(srcPath, debug, synthesizeTypes, enableKotlin, sf -> put(parsed, new Item(sf, null)));
+            put(parsed, END);
+        });
+    }
+
+    /**
+     * Match the source files against the IR and generate their metadata, as
+     * they are read. Parsing must have been started.
+     * @param irTypes              the set of all IR types
+     * @param json                 if true, generate JSON metadata
+     * @param resolveInvocations   if true, resolve invocation targets
+     * @param lossy                if true, enable lossy heuristics
+     * @param matchIR              if true, keep only results that match both source and IR elements
+     * @param stats                if true, show statistics
+     * @param prefilterParsed      if true, apply the prefilter to the parsed files
+     *                             (because they were read before the IR types were known)
+     * @return                     the result of the matching operation
+     */
+    public RunResult finish(Collection<IRType> irTypes, boolean json, boolean resolveInvocations,
+                            boolean lossy, boolean matchIR, boolean stats, boolean prefilterParsed) {
+        return finish(irTypes, Collections.emptyList(), json, resolveInvocations, lossy, matchIR, stats, prefilterParsed);
+    }
+
+    /**
+     * Match the source files against the IR, with extra IR types that are
+     * only used to resolve references (and are never matched, so they can
+     * be shared by pipelines that run concurrently).
+     * @param irTypes              the IR types to match
+     * @param libraryTypes         the IR types that are not matched
+     * @param json                 if true, generate JSON metadata
+     * @param resolveInvocations   if true, resolve invocation targets
+     * @param lossy                if true, enable lossy heuristics
+     * @param matchIR              if true, keep only results that match both source and IR elements
+     * @param stats                if true, show statistics
+     * @param prefilterParsed      if true, apply the prefilter to the parsed files
+     * @return                     the result of the matching operation
+     * @see #finish(Collection, boolean, boolean, boolean, boolean, boolean, boolean)
+     */
+    public RunResult finish(Collection<IRType> irTypes, Collection<IRType> libraryTypes,
+                            boolean json, boolean resolveInvocations, boolean lossy,
+                            boolean matchIR, boolean stats, boolean prefilterParsed) {
+        System.out.println("Matching " + irTypes.size() + " IR types against source files (streaming)...");
+        Map<String, IRType> irTypeLookup = new HashMap<>();
+        Set<String> allIrTypes = new HashSet<>();
+        Driver.indexIRTypes(libraryTypes, irTypeLookup, allIrTypes);
+        Driver.indexIRTypes(irTypes, irTypeLookup, allIrTypes);
+        IdMapper statsMapper = driver.getIdMapper();
+
+        // Stage state, only accessed by the stage thread until the stage completes.
+        int[] unmatched = new int[1];
+        Set<String> invocationTargets = new HashSet<>();
+        List<String> declarationsOnly = new ArrayList<>();
+        DoopFacts doopFacts = resolveVars ? driver.readDoopFacts() : null;
+        // Keeps the variable aliases of all source files, for results translation.
+        Aliaser doopAliaser = doopFacts == null ? null : driver.newAliaser(new IdMapper(debug));
+
+        Future<?> matching = submit(() -> {
+            for (Item item = take(parsed); item != END; item = take(parsed)) {
+                SourceFile sf = prefilterParsed ? driver.prefilterParsed(item.sf) : item.sf;
+                if (sf == null)
+                    continue;
+                IdMapper idMapper = new IdMapper(debug);
+                Aliaser aliaser = doopAliaser == null ? driver.newAliaser(idMapper) : doopAliaser.forMapper(idMapper);
+                unmatched[0] += driver.matchElements(sf, irTypes, allIrTypes, lossy, matchIR, idMapper, aliaser);
+                if (resolveInvocations)
+                    invocationTargets.addAll(driver.resolveInvocationTargets(Collections.singletonList(sf), irTypeLookup));
+                driver.matchReferences(sf, allIrTypes);
+                if (doopFacts != null)
+                    driver.resolveDoopVariables(doopFacts, idMapper, aliaser);
+                put(matched, new Item(sf, idMapper));
+            }
+            put(matched, END);
+        });
+        Future<?> emitting = submit(() -> {
+            // Metadata files are written in parallel, the rest happens here in order.
+            MetadataWriter writer = driver.writesMetadata(json) ? driver.newMetadataWriter(matchIR, irTypeLookup) : null;
+            try {
+                for (Item item = take(matched); item != END; item = take(matched)) {
+                    SourceFile sf = item.sf;
+                    IdMapper idMapper = item.idMapper;
+                    Runnable emitted = () -> {
+                        if (stats || debug)
+                            statsMapper.addStats(sf);
+                        if (sf.declarationsOnly != null)
+                            declarationsOnly.add(Driver.describeDeclarationsOnly(sf));
+                        if (matchedFiles != null)
+                            matchedFiles.accept(sf, idMapper);
+                    };
+                    if (writer != null)
+                        writer.write(sf, idMapper.getElementsBySourceFile().getOrDefault(sf, Collections.emptyList()), emitted);
+                    else
+                        emitted.run();
+                }
+            } finally {
+                if (writer != null)
+                    writer.finish();
+            }
+        });
+        await(parsing);
+        await(matching);
+        await(emitting);
+        executor.shutdown();
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        else if (t instanceof Error)
+            throw (Error) t;
+        else if (t != null)
+            throw new RuntimeException(t);
+
+        if (resolveInvocations)
+            driver.writeInvocationTargets(invocationTargets);
+        if (doopAliaser != null && translateResults)
+            driver.translateDoopResults(doopAliaser, uniqueResults, relVars);
+        driver.closeOutput();
+        System.out.println(unmatched[0] + " elements not matched.");
+        Driver.reportDeclarationsOnly(declarationsOnly);
+        driver.reportDuplicates();
+        driver.reportGroovyRetries();
+        if (stats || debug)
+            statsMapper.printStats();
+        return new RunResult(unmatched[0], statsMapper);
+    }
+
+    /**
+     * Run a stage in the background. If the stage fails, the other stages
+     * are cancelled.
+     * @param stage   the stage
+     * @return        the future of the stage
+     */
+    private Future<?> submit(Runnable stage) {
+        try {
+            return executor.submit(() -> {
+                try {
+                    stage.run();
+                } catch (Throwable t) {
+                    if (failure.compareAndSet(null, t))
+                        executor.shutdownNow();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // An earlier stage has already failed.
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for the source pipeline");
+        } catch (ExecutionException | CancellationException ignored) {
+            // Stage failures are recorded by the stage itself.
+        }
+    }
+
+    private static void put(BlockingQueue<Item> queue, Item item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("source pipeline stage interrupted");
+        }
+    }
+
+    private static Item take(BlockingQueue<Item> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("source pipeline stage interrupted");
+        }
+    }
+}
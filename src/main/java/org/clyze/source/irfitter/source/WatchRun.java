@@ -0,0 +1,540 @@
+package org.clyze.source.irfitter.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.clyze.persistent.metadata.Configuration;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.ir.IRProcessor;
+import org.clyze.source.irfitter.ir.IRState;
+import org.clyze.source.irfitter.ir.model.IRType;
+import org.clyze.source.irfitter.source.model.IdMapper;
+import org.clyze.source.irfitter.source.model.JType;
+import org.clyze.source.irfitter.source.model.SourceFile;
+import org.clyze.source.irfitter.source.scan.Language;
+import org.clyze.source.irfitter.source.scan.TypeNamePrefilter;
+
+/**
+ * A run that keeps the IR and the source models in memory and watches the
+ * source and IR directories for changes. When a source file changes, only
+ * that file is parsed and matched again; when an IR file (such as a .class
+ * file) changes, only that file is read again and only the source files
+ * that declare its types are matched again. The metadata of the matched
+ * source files is rewritten and the reports of source files that are no
+ * longer matched (e.g. deleted files) are removed. Skipped source files are
+ * only read again when an IR change adds a type named in their header.
+ *
+ * IR and source files are matched by their top-level types: a source file
+ * is only matched against the IR types of its top-level types (and of their
+ * nested types), which gives the same results as matching against all IR
+ * types.
+ *
+ * Archives (of sources or IR) are read once and not watched. Features that
+ * need the matched elements of all source files at once (Doop variable
+ * resolution and results translation, SARIF) are not supported.
+ */
+public class WatchRun {
+    /** How long to wait for more changes before processing a batch of changes. */
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Driver driver;
+    private final boolean debug;
+    /** The IR state that keeps all IR types (of the application and the platforms). */
+    private final IRState irState = new IRState();
+    /** The vararg methods found in the IR. */
+    private final Set<String> varArgMethods;
+    /** The IR types read from each IR file. */
+    private final Map<Path, List<IRType>> irFiles = new HashMap<>();
+    /** The IR types, by top-level type. */
+    private final Map<String, List<IRType>> irTypesByTopLevel = new HashMap<>();
+    private final Map<String, IRType> irTypeLookup = new HashMap<>();
+    /** The ids of the IR types and of the types they reference. */
+    private final Set<String> allIrTypes = new HashSet<>();
+    /** The number of IR types that add each id of {@link #allIrTypes}. */
+    private final Map<String, Integer> allIrTypeCounts = new HashMap<>();
+    /** The source files (null values are source files that were skipped). */
+    private final Map<Path, SourceFile> sources = new TreeMap<>();
+    /**
+     * The top-level types named in the headers of the skipped source files
+     * (null values are headers whose types are not known).
+     */
+    private final Map<Path, List<String>> skippedTypes = new HashMap<>();
+    /** The source files, by declared top-level type. */
+    private final Map<String, Set<Path>> sourcesByTopLevel = new HashMap<>();
+    /** The invocation targets of each source file. */
+    private final Map<Path, Set<String>> invocationTargets = new HashMap<>();
+    /** The number of unmatched elements of each source file. */
+    private final Map<Path, Integer> unmatched = new HashMap<>();
+    /** The watched source directories. */
+    private final List<Path> sourceRoots = new ArrayList<>();
+    /** The watched IR directories. */
+    private final List<Path> irRoots = new ArrayList<>();
+
+    private boolean synthesizeTypes, enableKotlin, json, resolveInvocations, lossy, matchIR, stats;
+    private Configuration configuration = null;
+
+    /**
+     * Create a watch run.
+     * @param driver          the driver that reads and matches source files
+     * @param varArgMethods   the set of vararg methods to fill
+     * @param debug           debug mode
+     */
+    public WatchRun(Driver driver, Set<String> varArgMethods, boolean debug) {
+        this.driver = driver;
+        this.varArgMethods = varArgMethods;
+        this.debug = debug;
+    }
+
+    /**
+     * Process all sources once and then watch for changes, until the
+     * thread is interrupted.
+     * @param irPaths              the IR files/directories
+     * @param platformReader       the reader of the platform IR (which is not watched)
+     * @param srcPaths             the source files/archives/directories
+     * @param synthesizeTypes      if true, attempt to synthesize erased types
+     * @param enableKotlin         if false, Kotlin sources will not be processed
+     * @param json                 if true, generate JSON metadata
+     * @param resolveInvocations   if true, resolve invocation targets
+     * @param lossy                if true, enable lossy heuristics
+     * @param matchIR              if true, keep only results that match both source and IR elements
+     * @param stats                if true, show statistics after every update
+     * @return                     the result of the last update
+     */
+    public RunResult run(List<File> irPaths, Consumer<IRState> platformReader, List<File> srcPaths,
+                         boolean synthesizeTypes, boolean enableKotlin, boolean json,
+                         boolean resolveInvocations, boolean lossy, boolean matchIR, boolean stats) {
+        start(irPaths, platformReader, srcPaths, synthesizeTypes, enableKotlin, json, resolveInvocations, lossy, matchIR, stats);
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Map<WatchKey, Path> watchedDirs = new HashMap<>();
+            for (Path root : sourceRoots)
+                register(watcher, watchedDirs, root);
+            for (Path root : irRoots)
+                register(watcher, watchedDirs, root);
+            System.out.println("Watching " + watchedDirs.size() + " directories for changes (interrupt to stop)...");
+            while (!Thread.currentThread().isInterrupted()) {
+                Set<Path> changed = new TreeSet<>();
+                WatchKey key = watcher.take();
+                long changeStart = System.currentTimeMillis();
+                // Collect changes until the file system settles (e.g. after a rebuild).
+                while (key != null) {
+                    collectChanges(watcher, watchedDirs, key, changed);
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                processChanges(changed, changeStart);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException | IOException ex) {
+            System.err.println("ERROR: cannot watch for changes: " + ex.getMessage());
+        }
+        return new RunResult(countUnmatched(), collectStats());
+    }
+
+    /**
+     * Process all sources once (without watching for changes).
+     * @param irPaths              the IR files/directories
+     * @param platformReader       the reader of the platform IR (which is not watched)
+     * @param srcPaths             the source files/archives/directories
+     * @param synthesizeTypes      if true, attempt to synthesize erased types
+     * @param enableKotlin         if false, Kotlin sources will not be processed
+     * @param json                 if true, generate JSON metadata
+     * @param resolveInvocations   if true, resolve invocation targets
+     * @param lossy                if true, enable lossy heuristics
+     * @param matchIR              if true, keep only results that match both source and IR elements
+     * @param stats                if true, show statistics after every update
+     * @return                     the result of the run
+     */
+    public RunResult start(List<File> irPaths, Consumer<IRState> platformReader, List<File> srcPaths,
+                           boolean synthesizeTypes, boolean enableKotlin, boolean json,
+                           boolean resolveInvocations, boolean lossy, boolean matchIR, boolean stats) {
+        this.synthesizeTypes = synthesizeTypes;
+        this.enableKotlin = enableKotlin;
+        this.json = json;
+        this.resolveInvocations = resolveInvocations;
+        this.lossy = lossy;
+        this.matchIR = matchIR;
+        this.stats = stats;
+        long start = System.currentTimeMillis();
+        if (json)
+            configuration = driver.createMetadataConfiguration();
+
+        // Initial run: read the IR file by file and match all sources.
+        for (File irPath : irPaths) {
+            Path root = normalize(irPath);
+            if (irPath.isDirectory()) {
+                irRoots.add(root);
+                for (Path file : listFiles(root))
+                    readIRFile(file);
+            } else
+                readIRFile(root);
+        }
+        IRState platformState = new IRState();
+        platformReader.accept(platformState);
+        for (IRType irType : platformState.irTypes)
+            addIRType(irType);
+        irState.resolveLambdas(debug);
+        driver.setPrefilterTypes(irState.irTypes);
+        for (File srcPath : srcPaths) {
+            if (srcPath.isDirectory()) {
+                Path root = normalize(srcPath);
+                sourceRoots.add(root);
+                for (Path file : listFiles(root))
+                    if (Language.fromFileName(file.toString()) != null)
+                        readSource(root, file);
+            } else {
+                System.out.println("WARNING: only source directories are watched, reading once: " + srcPath);
+                driver.readSources(srcPath, debug, synthesizeTypes, enableKotlin, sf -> {
+                    Path file = normalize(sf.file);
+                    sources.put(file, sf);
+                    match(file, sf);
+                });
+            }
+        }
+        int matched = 0;
+        for (SourceFile sf : sources.values())
+            if (sf != null)
+                matched++;
+        finishUpdate(matched, start);
+        return new RunResult(countUnmatched(), collectStats());
+    }
+
+    private void collectChanges(WatchService watcher, Map<WatchKey, Path> watchedDirs,
+                                WatchKey key, Set<Path> changed) throws IOException {
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                System.out.println("WARNING: too many changes, some may have been missed in " + dir);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                // A new directory: watch it and process its contents.
+                register(watcher, watchedDirs, path);
+                changed.addAll(listFiles(path));
+            } else
+                changed.add(path);
+        }
+        if (!key.reset())
+            watchedDirs.remove(key);
+    }
+
+    /**
+     * Process a batch of changed (added, modified or deleted) files, after
+     * the sources have been processed once.
+     * @param changed   the changed files (in the watched directories)
+     * @return          the result of the update
+     * @see #start
+     */
+    public RunResult processChanges(Collection<File> changed) {
+        Set<Path> paths = new TreeSet<>();
+        for (File file : changed)
+            paths.add(normalize(file));
+        processChanges(paths, System.currentTimeMillis());
+        return new RunResult(countUnmatched(), collectStats());
+    }
+
+    /**
+     * Process a batch of changed files: first the IR files, then the source
+     * files (both the changed ones and the ones affected by IR changes).
+     * @param changed   the changed files
+     * @param start     the time the first change was seen
+     */
+    private void processChanges(Set<Path> changed, long start) {
+        Set<String> affectedTypes = new HashSet<>();
+        Set<Path> changedSources = new TreeSet<>();
+        List<IRType> removedTypes = new ArrayList<>();
+        List<IRType> addedTypes = new ArrayList<>();
+        boolean irChanged = false;
+        // Deleted directories only report themselves, not their files.
+        for (Path path : new ArrayList<>(changed))
+            if (!Files.exists(path)) {
+                for (Path file : irFiles.keySet())
+                    if (file.startsWith(path))
+                        changed.add(file);
+                for (Path file : sources.keySet())
+                    if (file.startsWith(path))
+                        changed.add(file);
+            }
+        for (Path path : changed) {
+            if (isUnder(path, irRoots) && (irFiles.containsKey(path) || Files.isRegularFile(path))) {
+                irChanged = true;
+                affectedTypes.addAll(updateIRFile(path, removedTypes, addedTypes));
+            }
+            if (isUnder(path, sourceRoots) && Language.fromFileName(path.toString()) != null)
+                changedSources.add(path);
+        }
+        if (irChanged) {
+            // Remove the old types in one pass over the IR types.
+            Set<IRType> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+            removed.addAll(removedTypes);
+            irState.irTypes.removeIf(removed::contains);
+            // New IR types may make skipped source files relevant.
+            driver.updatePrefilterTypes(removedTypes, addedTypes);
+            Set<String> affectedTopLevel = new HashSet<>();
+            for (String typeId : affectedTypes) {
+                String topLevel = topLevelOf(typeId);
+                affectedTopLevel.add(topLevel);
+                Set<Path> declaring = sourcesByTopLevel.get(topLevel);
+                if (declaring != null)
+                    changedSources.addAll(declaring);
+            }
+            for (Map.Entry<Path, List<String>> entry : skippedTypes.entrySet()) {
+                List<String> typeNames = entry.getValue();
+                if (typeNames == null || !Collections.disjoint(typeNames, affectedTopLevel))
+                    changedSources.add(entry.getKey());
+            }
+        }
+        int updated = 0;
+        for (Path file : changedSources) {
+            // Sources read from archives are not read again.
+            Path root = rootOf(file, sourceRoots);
+            if (root == null)
+                continue;
+            SourceFile old = forgetSource(file);
+            if (Files.isRegularFile(file)) {
+                if (readSource(root, file))
+                    updated++;
+            } else
+                System.out.println("Source file deleted: " + file);
+            // A file that is no longer matched must not keep its old report.
+            if (json && old != null && sources.get(file) == null)
+                driver.deleteJSON(old);
+        }
+        finishUpdate(updated, start);
+    }
+
+    /**
+     * Read an IR file again (or forget it, if it has been deleted). The old
+     * types stay in the IR state, to be removed with the old types of all
+     * changed files.
+     * @param path           the IR file
+     * @param removedTypes   the list to receive the old types of the file
+     * @param addedTypes     the list to receive the new types of the file
+     * @return               the ids of the old and the new types of the file
+     */
+    private Set<String> updateIRFile(Path path, List<IRType> removedTypes, List<IRType> addedTypes) {
+        Set<String> typeIds = new HashSet<>();
+        List<IRType> oldTypes = irFiles.remove(path);
+        if (oldTypes != null)
+            for (IRType irType : oldTypes) {
+                typeIds.add(irType.getId());
+                removeIRType(irType);
+                removedTypes.add(irType);
+            }
+        if (Files.isRegularFile(path)) {
+            System.out.println("Reading changed IR: " + path);
+            List<IRType> newTypes = readIRFile(path);
+            for (IRType irType : newTypes)
+                typeIds.add(irType.getId());
+            addedTypes.addAll(newTypes);
+            irState.resolveLambdas(newTypes, debug);
+        } else
+            System.out.println("IR file deleted: " + path);
+        return typeIds;
+    }
+
+    private List<IRType> readIRFile(Path path) {
+        IRState fileState = new IRState();
+        IRProcessor.processIR(fileState, varArgMethods, path.toFile(), debug, true);
+        irFiles.put(path, fileState.irTypes);
+        for (IRType irType : fileState.irTypes)
+            addIRType(irType);
+        return fileState.irTypes;
+    }
+
+    private void addIRType(IRType irType) {
+        irState.addType(irType);
+        String typeId = irType.getId();
+        irTypeLookup.put(typeId, irType);
+        for (String id : typeIdsOf(irType))
+            if (allIrTypeCounts.merge(id, 1, Integer::sum) == 1)
+                allIrTypes.add(id);
+        irTypesByTopLevel.computeIfAbsent(topLevelOf(typeId), k -> new ArrayList<>()).add(irType);
+    }
+
+    /**
+     * Forget an IR type (that is still in the IR state).
+     * @param irType   the IR type
+     */
+    private void removeIRType(IRType irType) {
+        String typeId = irType.getId();
+        irTypeLookup.remove(typeId, irType);
+        for (String id : typeIdsOf(irType))
+            if (allIrTypeCounts.computeIfPresent(id, (k, count) -> count == 1 ? null : count - 1) == null)
+                allIrTypes.remove(id);
+        List<IRType> siblings = irTypesByTopLevel.get(topLevelOf(typeId));
+        if (siblings != null)
+            siblings.remove(irType);
+    }
+
+    /** Returns the id of an IR type and the ids of the types it references. */
+    private static Set<String> typeIdsOf(IRType irType) {
+        Set<String> ids = new HashSet<>();
+        ids.add(irType.getId());
+        irType.addReferencedTypesTo(ids);
+        return ids;
+    }
+
+    /**
+     * Read and match a source file.
+     * @param root   the source directory of the file
+     * @param file   the source file
+     * @return       true if the file was matched (and not skipped)
+     */
+    private boolean readSource(Path root, Path file) {
+        SourceFile[] read = new SourceFile[1];
+        driver.readSources(root.toFile(), file.toFile(), null, debug, synthesizeTypes, enableKotlin, sf -> read[0] = sf);
+        sources.put(file, read[0]);
+        if (read[0] == null) {
+            skippedTypes.put(file, headerTypes(file));
+            return false;
+        }
+        match(file, read[0]);
+        return true;
+    }
+
+    /**
+     * Match a source file against the IR types of its top-level types and
+     * write its metadata.
+     * @param file   the path of the source file
+     * @param sf     the source file
+     */
+    private void match(Path file, SourceFile sf) {
+        List<IRType> candidates = new ArrayList<>();
+        for (String topLevel : topLevelTypesOf(sf)) {
+            sourcesByTopLevel.computeIfAbsent(topLevel, k -> new TreeSet<>()).add(file);
+            List<IRType> irTypes = irTypesByTopLevel.get(topLevel);
+            if (irTypes != null)
+                candidates.addAll(irTypes);
+        }
+        IdMapper idMapper = new IdMapper(debug);
+        unmatched.put(file, driver.matchElements(sf, candidates, allIrTypes, lossy, matchIR, idMapper, driver.newAliaser(idMapper)));
+        if (resolveInvocations)
+            invocationTargets.put(file, driver.resolveInvocationTargets(Collections.singletonList(sf), irTypeLookup));
+        driver.matchReferences(sf, allIrTypes);
+        if (json) {
+            driver.registerSymbols(idMapper.getElementsBySourceFile().getOrDefault(sf, Collections.emptyList()), matchIR, irTypeLookup);
+            driver.addStringConstants(sf);
+            Runnable commit = driver.writeMetadata(configuration, sf);
+            if (commit != null)
+                commit.run();
+        }
+    }
+
+    /**
+     * Forget a source file and the matches of the IR types it was matched
+     * against, so that they can be matched again.
+     * @param file   the source file
+     * @return       the forgotten source file (or null if it was skipped)
+     */
+    private SourceFile forgetSource(Path file) {
+        SourceFile sf = sources.remove(file);
+        skippedTypes.remove(file);
+        invocationTargets.remove(file);
+        unmatched.remove(file);
+        if (sf == null)
+            return null;
+        for (String topLevel : topLevelTypesOf(sf)) {
+            Set<Path> declaring = sourcesByTopLevel.get(topLevel);
+            if (declaring != null)
+                declaring.remove(file);
+            List<IRType> irTypes = irTypesByTopLevel.get(topLevel);
+            if (irTypes != null)
+                for (IRType irType : irTypes)
+                    irType.clearMatches();
+        }
+        return sf;
+    }
+
+    /**
+     * Returns the top-level types named in the header of a source file.
+     * @param file   the source file
+     * @return       the type names (or null if they are not known)
+     */
+    private static List<String> headerTypes(Path file) {
+        Language language = Language.fromFileName(file.toString());
+        if (language == null || !Files.isRegularFile(file))
+            return null;
+        try {
+            return TypeNamePrefilter.declaredTypeNames(file.toFile(), language);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private void finishUpdate(int updated, long start) {
+        if (resolveInvocations) {
+            Set<String> allTargets = new TreeSet<>();
+            for (Set<String> targets : invocationTargets.values())
+                allTargets.addAll(targets);
+            driver.writeInvocationTargets(allTargets);
+        }
+        System.out.println("Matched " + updated + " source file(s) in " + (System.currentTimeMillis() - start) + " ms, " + countUnmatched() + " elements not matched.");
+        if (stats)
+            collectStats().printStats();
+    }
+
+    private int countUnmatched() {
+        int count = 0;
+        for (int n : unmatched.values())
+            count += n;
+        return count;
+    }
+
+    private IdMapper collectStats() {
+        IdMapper statsMapper = new IdMapper(debug);
+        for (SourceFile sf : sources.values())
+            if (sf != null)
+                statsMapper.addStats(sf);
+        return statsMapper;
+    }
+
+    private static Set<String> topLevelTypesOf(SourceFile sf) {
+        Set<String> topLevel = new HashSet<>();
+        for (JType jt : sf.jTypes)
+            topLevel.add(topLevelOf(jt.getFullyQualifiedName()));
+        return topLevel;
+    }
+
+    private static String topLevelOf(String typeId) {
+        int dollarIdx = typeId.indexOf('$');
+        return dollarIdx < 0 ? typeId : typeId.substring(0, dollarIdx);
+    }
+
+    private static void register(WatchService watcher, Map<WatchKey, Path> watchedDirs, Path root) throws IOException {
+        try (Stream<Path> dirs = Files.walk(root)) {
+            for (Path dir : dirs.filter(Files::isDirectory).collect(Collectors.toList()))
+                watchedDirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+        }
+    }
+
+    private static List<Path> listFiles(Path root) {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        } catch (IOException ex) {
+            System.err.println("ERROR: could not list files in " + root);
+            return Collections.emptyList();
+        }
+    }
+
+    private static Path normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    private static boolean isUnder(Path path, List<Path> roots) {
+        return rootOf(path, roots) != null;
+    }
+
+    private static Path rootOf(Path path, List<Path> roots) {
+        for (Path root : roots)
+            if (path.startsWith(root))
+                return root;
+        return null;
+    }
+}
@@ -0,0 +1,156 @@
+package org.clyze.source.irfitter.source.binary;
+
+/**
+ * The layout of binary metadata files. All numbers are
+ * big-endian.
+ *
+ * <pre>
+ * header      magic "IRFB", version, string count, file count, record count,
+ *             flags (0), the offsets of the sections (longs), the capacity
+ *             of the id hash table and the number of intervals, 96 bytes
+ * strings     (string count + 1) offsets into the string data, then the
+ *             UTF-8 string data; strings are distinct and sorted by their bytes
+ * files       per source file (32 bytes): path, report path, first record,
+ *             record count, first interval, interval count, level of the
+ *             interval tree root, reserved; sorted by path
+ * records     per symbol (32 bytes): kind, 3 reserved bytes, file, symbol id,
+ *             start line, start column, end line, end column, reserved;
+ *             grouped by file (in file order) and by kind
+ * index       the record numbers, sorted by symbol id (then record number)
+ * intervals   per file, the positions of its symbols (32 bytes): start, end,
+ *             maximum end in the subtree (packed lines and columns, longs),
+ *             record, reserved; sorted by start, forming an implicit
+ *             interval tree
+ * id hash     open addressing table (16 bytes per slot): hash, symbol id,
+ *             first index entry and number of index entries of the id
+ *             (0 in empty slots)
+ * </pre>
+ *
+ * Strings are referenced by their number in the string table. Symbol ids
+ * are found in the hash table (FNV-1a of their bytes, linear probing) and
+ * paths by binary search on the strings and then on the files. Positions
+ * that are not known are -1; such symbols have no intervals. Every section
+ * must be smaller than 2 GiB.
+ */
+final class BinaryFormat {
+    static final int MAGIC = 0x49524642;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 96;
+    static final int FILE_ENTRY_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+    static final int INTERVAL_SIZE = 32;
+    static final int HASH_SLOT_SIZE = 16;
+
+    // Header fields.
+    static final int H_VERSION = 4;
+    static final int H_STRING_COUNT = 8;
+    static final int H_FILE_COUNT = 12;
+    static final int H_RECORD_COUNT = 16;
+    static final int H_STRING_OFFSETS_POS = 24;
+    static final int H_STRING_DATA_POS = 32;
+    static final int H_FILES_POS = 40;
+    static final int H_RECORDS_POS = 48;
+    static final int H_INDEX_POS = 56;
+    static final int H_INTERVALS_POS = 64;
+    static final int H_HASH_POS = 72;
+    static final int H_HASH_CAPACITY = 80;
+    static final int H_INTERVAL_COUNT = 84;
+
+    // File entry fields.
+    static final int F_PATH = 0;
+    static final int F_REPORT_PATH = 4;
+    static final int F_FIRST_RECORD = 8;
+    static final int F_RECORD_COUNT = 12;
+    static final int F_FIRST_INTERVAL = 16;
+    static final int F_INTERVAL_COUNT = 20;
+    static final int F_ROOT_LEVEL = 24;
+
+    // Record fields.
+    static final int R_KIND = 0;
+    static final int R_FILE = 4;
+    static final int R_SYMBOL_ID = 8;
+    static final int R_START_LINE = 12;
+    static final int R_START_COLUMN = 16;
+    static final int R_END_LINE = 20;
+    static final int R_END_COLUMN = 24;
+
+    // Interval fields.
+    static final int I_START = 0;
+    static final int I_END = 8;
+    static final int I_MAX_END = 16;
+    static final int I_RECORD = 24;
+
+    // Hash slot fields.
+    static final int S_HASH = 0;
+    static final int S_STRING = 4;
+    static final int S_FIRST_ENTRY = 8;
+    static final int S_ENTRY_COUNT = 12;
+
+    private BinaryFormat() {}
+
+    /**
+     * Compare two UTF-8 strings by their (unsigned) bytes, the order of the
+     * string table.
+     */
+    static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return a.length - b.length;
+    }
+
+    /** The hash of a symbol id in the id hash table (32-bit FNV-1a of its UTF-8 bytes). */
+    static int hash(byte[] bytes) {
+        int h = 0x811c9dc5;
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Pack a source position (line and column) so that packed positions
+     * compare like positions.
+     */
+    static long pack(int line, int column) {
+        return ((long) line << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Compute the maximum ends of the implicit interval tree over intervals
+     * sorted by start (the layout of cgranges: node i is at the level of
+     * the number of trailing 1 bits of i and the leaves are at the even
+     * indices).
+     * @param end   the ends of the intervals
+     * @param max   the maximum ends of the subtrees (to fill)
+     * @param n     the number of intervals
+     * @return      the level of the root, or -1 if there are no intervals
+     */
+    static int buildIntervalTree(long[] end, long[] max, int n) {
+        if (n == 0)
+            return -1;
+        int lastI = 0;
+        long last = 0;
+        for (int i = 0; i < n; i += 2) {
+            lastI = i;
+            last = max[i] = end[i];
+        }
+        int k;
+        for (k = 1; (1L << k) <= n; k++) {
+            long x = 1L << (k - 1);
+            long step = x << 2;
+            for (long i = (x << 1) - 1; i < n; i += step) {
+                long e = Math.max(end[(int) i], max[(int) (i - x)]);
+                max[(int) i] = Math.max(e, i + x < n ? max[(int) (i + x)] : last);
+            }
+            lastI = ((lastI >> k) & 1) != 0 ? (int) (lastI - x) : (int) (lastI + x);
+            if (lastI < n && max[lastI] > last)
+                last = max[lastI];
+        }
+        return k - 1;
+    }
+}
@@ -0,0 +1,452 @@
+package org.clyze.source.irfitter.source.binary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import static org.clyze.source.irfitter.source.binary.BinaryFormat.*;
+
+/**
+ * A reader of binary metadata files (written by {@link BinaryMetadataWriter}).
+ * The file is memory-mapped (or the metadata is read from memory, see
+ * {@link #read(byte[])}) and nothing is read up front: symbols are
+ * looked up by symbol id (in the id hash table), by source file (a range
+ * of records) or by source position (in the interval tree of the file),
+ * and only the strings of the returned symbols are decoded. A reader can
+ * be shared by many threads.
+ *
+ * Example:
+ * <pre>
+ * BinaryMetadataReader reader = BinaryMetadataReader.open(new File(out, BinaryMetadataWriter.FILE_NAME));
+ * for (BinarySymbol symbol : reader.findSymbols(symbolId))
+ *     System.out.println(symbol.path + ":" + symbol.startLine);
+ * for (BinarySymbol symbol : reader.findSymbolsAt("org/example/Main.java", 12, 8))
+ *     System.out.println(symbol.kind + " " + symbol.symbolId);
+ * </pre>
+ */
+public final class BinaryMetadataReader {
+    private final File file;
+    private final int version;
+    private final int stringCount;
+    private final int fileCount;
+    private final int recordCount;
+    /** The number of slots of the id hash table. */
+    private final int hashCapacity;
+    private final ByteBuffer stringOffsets;
+    private final ByteBuffer stringData;
+    private final ByteBuffer files;
+    private final ByteBuffer records;
+    private final ByteBuffer index;
+    /** The interval trees of the files. */
+    private final ByteBuffer intervals;
+    /** The id hash table. */
+    private final ByteBuffer hash;
+
+    /** Returns a part of the metadata (mapped or in memory). */
+    private interface Sections {
+        ByteBuffer get(long pos, long size) throws IOException;
+    }
+
+    /**
+     * Create a reader.
+     * @param file       the file (or null for metadata in memory)
+     * @param name       the name of the metadata (for error messages)
+     * @param size       the size of the metadata
+     * @param sections   the parts of the metadata
+     */
+    private BinaryMetadataReader(File file, String name, long size, Sections sections) throws IOException {
+        this.file = file;
+        if (size < HEADER_SIZE)
+            throw new IOException(name + " is not a binary metadata file");
+        ByteBuffer header = sections.get(0, HEADER_SIZE);
+        if (header.getInt(0) != MAGIC)
+            throw new IOException(name + " is not a binary metadata file");
+        this.version = header.getInt(H_VERSION);
+        if (version != VERSION)
+            throw new IOException("Unsupported version " + version + " of binary metadata file " + name + " (supported: " + VERSION + ")");
+        Sections checked = (pos, sectionSize) -> {
+            if (pos < HEADER_SIZE || sectionSize < 0 || sectionSize > Integer.MAX_VALUE || pos + sectionSize > size)
+                throw new IOException("Corrupt binary metadata file " + name);
+            return sections.get(pos, sectionSize);
+        };
+        this.stringCount = header.getInt(H_STRING_COUNT);
+        this.fileCount = header.getInt(H_FILE_COUNT);
+        this.recordCount = header.getInt(H_RECORD_COUNT);
+        this.hashCapacity = header.getInt(H_HASH_CAPACITY);
+        int intervalCount = header.getInt(H_INTERVAL_COUNT);
+        if (stringCount < 0 || fileCount < 0 || recordCount < 0 || intervalCount < 0 ||
+            hashCapacity <= 0 || (hashCapacity & (hashCapacity - 1)) != 0)
+            throw new IOException("Corrupt binary metadata file " + name);
+        long stringDataPos = header.getLong(H_STRING_DATA_POS);
+        long filesPos = header.getLong(H_FILES_POS);
+        this.stringOffsets = checked.get(header.getLong(H_STRING_OFFSETS_POS), 4L * (stringCount + 1));
+        this.stringData = checked.get(stringDataPos, filesPos - stringDataPos);
+        this.files = checked.get(filesPos, (long) FILE_ENTRY_SIZE * fileCount);
+        this.records = checked.get(header.getLong(H_RECORDS_POS), (long) RECORD_SIZE * recordCount);
+        this.index = checked.get(header.getLong(H_INDEX_POS), 4L * recordCount);
+        this.intervals = checked.get(header.getLong(H_INTERVALS_POS), (long) INTERVAL_SIZE * intervalCount);
+        this.hash = checked.get(header.getLong(H_HASH_POS), (long) HASH_SLOT_SIZE * hashCapacity);
+    }
+
+    /**
+     * Open a binary metadata file. The file is mapped in memory (the
+     * mapping is released when the reader is garbage collected).
+     * @param file           the file
+     * @return               the reader
+     * @throws IOException   if the file could not be read, is not a binary
+     *                       metadata file or has an unsupported version
+     */
+    public static BinaryMetadataReader open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new BinaryMetadataReader(file, file.toString(), channel.size(),
+                    (pos, size) -> channel.map(FileChannel.MapMode.READ_ONLY, pos, size));
+        }
+    }
+
+    /**
+     * Read binary metadata that is in memory.
+     * @param data           the metadata (as written by {@link BinaryMetadataWriter#toBytes()})
+     * @return               the reader
+     * @throws IOException   if the data is not binary metadata or has an unsupported version
+     */
+    public static BinaryMetadataReader read(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data).asReadOnlyBuffer();
+        return new BinaryMetadataReader(null, "binary metadata in memory", data.length, (pos, size) -> {
+            ByteBuffer section = buffer.duplicate();
+            section.position((int) pos);
+            section.limit((int) (pos + size));
+            return section.slice();
+        });
+    }
+
+    /** Returns the binary metadata file (null for metadata in memory). */
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the format version of the file. */
+    public int getVersion() {
+        return version;
+    }
+
+    /** Returns the number of source files. */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /** Returns the number of symbols. */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the path of a source file.
+     * @param fileNo   the number of the file (from 0 to the file count - 1), in path order
+     * @return         the path
+     */
+    public String getPath(int fileNo) {
+        return getString(files.getInt(fileEntry(fileNo) + F_PATH));
+    }
+
+    /**
+     * Returns the output path of the JSON report of a source file.
+     * @param fileNo   the number of the file
+     * @return         the report path (without the extension)
+     */
+    public String getReportPath(int fileNo) {
+        return getString(files.getInt(fileEntry(fileNo) + F_REPORT_PATH));
+    }
+
+    /**
+     * Find a source file.
+     * @param path   the path of the file
+     * @return       the number of the (first) file with the path, or -1 if there is none
+     */
+    public int findFile(String path) {
+        int s = findString(path.getBytes(StandardCharsets.UTF_8));
+        if (s < 0)
+            return -1;
+        int fileNo = lowerBound(fileCount, i -> pathOf(i) < s);
+        return fileNo < fileCount && pathOf(fileNo) == s ? fileNo : -1;
+    }
+
+    /**
+     * Returns the symbols of a source file.
+     * @param fileNo   the number of the file
+     * @return         the symbols (by kind)
+     */
+    public List<BinarySymbol> getSymbols(int fileNo) {
+        int entry = fileEntry(fileNo);
+        int first = files.getInt(entry + F_FIRST_RECORD);
+        int count = files.getInt(entry + F_RECORD_COUNT);
+        String path = getString(files.getInt(entry + F_PATH));
+        List<BinarySymbol> symbols = new ArrayList<>(count);
+        for (int r = first; r < first + count; r++)
+            symbols.add(readSymbol(r, path));
+        return symbols;
+    }
+
+    /**
+     * Returns the symbols of a source file (of all files with the path).
+     * @param path   the path of the file
+     * @return       the symbols
+     */
+    public List<BinarySymbol> getSymbols(String path) {
+        int fileNo = findFile(path);
+        if (fileNo < 0)
+            return Collections.emptyList();
+        int pathString = pathOf(fileNo);
+        List<BinarySymbol> symbols = new ArrayList<>();
+        for (; fileNo < fileCount && pathOf(fileNo) == pathString; fileNo++)
+            symbols.addAll(getSymbols(fileNo));
+        return symbols;
+    }
+
+    /**
+     * Find the symbols with an id (such as the id of an IR element), for
+     * example to find where an IR element is in the sources.
+     * @param symbolId   the symbol id
+     * @return           the symbols (in record order)
+     */
+    public List<BinarySymbol> findSymbols(String symbolId) {
+        int slot = findSlot(symbolId.getBytes(StandardCharsets.UTF_8));
+        if (slot < 0)
+            return Collections.emptyList();
+        int first = hash.getInt(slot + S_FIRST_ENTRY);
+        int count = hash.getInt(slot + S_ENTRY_COUNT);
+        List<BinarySymbol> symbols = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++)
+            symbols.add(getSymbol(index.getInt(i * 4)));
+        return symbols;
+    }
+
+    /**
+     * Find the slot of a symbol id in the id hash table.
+     * @param key   the symbol id (in UTF-8)
+     * @return      the position of the slot, or -1 if the id is not in the table
+     */
+    private int findSlot(byte[] key) {
+        int h = hash(key);
+        int mask = hashCapacity - 1;
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int pos = slot * HASH_SLOT_SIZE;
+            if (hash.getInt(pos + S_ENTRY_COUNT) == 0)
+                return -1;
+            if (hash.getInt(pos + S_HASH) == h && compareString(hash.getInt(pos + S_STRING), key) == 0)
+                return pos;
+        }
+    }
+
+    /**
+     * Find the symbols of a source file whose position contains a point
+     * (both ends of positions are inclusive), such as the elements under
+     * the cursor of an editor.
+     * @param path     the path of the file
+     * @param line     the line
+     * @param column   the column
+     * @return         the symbols, from the innermost (latest start) to the outermost
+     */
+    public List<BinarySymbol> findSymbolsAt(String path, int line, int column) {
+        return findSymbolsOverlapping(path, line, column, line, column);
+    }
+
+    /**
+     * Find the symbols of a source file (of all files with the path) whose
+     * position overlaps a range (both ends of positions and of the range
+     * are inclusive).
+     * @param path          the path of the file
+     * @param startLine     the start line of the range
+     * @param startColumn   the start column of the range
+     * @param endLine       the end line of the range
+     * @param endColumn     the end column of the range
+     * @return              the symbols, from the latest to the earliest start
+     */
+    public List<BinarySymbol> findSymbolsOverlapping(String path, int startLine, int startColumn, int endLine, int endColumn) {
+        int fileNo = findFile(path);
+        if (fileNo < 0)
+            return Collections.emptyList();
+        long qStart = pack(startLine, startColumn);
+        long qEnd = pack(endLine, endColumn);
+        List<long[]> found = new ArrayList<>();
+        for (int pathString = pathOf(fileNo); fileNo < fileCount && pathOf(fileNo) == pathString; fileNo++)
+            findOverlapping(fileNo, qStart, qEnd, found);
+        // Inner elements start later (and end earlier).
+        found.sort((a, b) -> {
+            int c = Long.compare(b[0], a[0]);
+            if (c == 0)
+                c = Long.compare(a[1], b[1]);
+            return c != 0 ? c : Long.compare(a[2], b[2]);
+        });
+        List<BinarySymbol> symbols = new ArrayList<>(found.size());
+        for (long[] interval : found)
+            symbols.add(readSymbol((int) interval[2], path));
+        return symbols;
+    }
+
+    /**
+     * Find the intervals of a file that overlap a range, in its interval
+     * tree (a top-down traversal, as in cgranges).
+     * @param fileNo   the number of the file
+     * @param qStart   the (packed) start of the range
+     * @param qEnd     the (packed) end of the range
+     * @param found    the list to add the start, end and record of every interval to
+     */
+    private void findOverlapping(int fileNo, long qStart, long qEnd, List<long[]> found) {
+        int entry = fileEntry(fileNo);
+        int first = files.getInt(entry + F_FIRST_INTERVAL);
+        int n = files.getInt(entry + F_INTERVAL_COUNT);
+        int rootLevel = files.getInt(entry + F_ROOT_LEVEL);
+        if (n == 0)
+            return;
+        // A stack of (node, level, left child visited) triples.
+        long[] stack = new long[3 * 64];
+        int top = 0;
+        stack[top++] = (1L << rootLevel) - 1;
+        stack[top++] = rootLevel;
+        stack[top++] = 0;
+        while (top > 0) {
+            long visited = stack[--top];
+            int k = (int) stack[--top];
+            long x = stack[--top];
+            if (k <= 3) {
+                // A small subtree: scan its nodes.
+                long i0 = x >> k << k;
+                long i1 = Math.min(i0 + (1L << (k + 1)) - 1, n);
+                for (long i = i0; i < i1 && intervalStart(first, i) <= qEnd; i++)
+                    addIfOverlapping(first, i, qStart, found);
+            } else if (visited == 0) {
+                long y = x - (1L << (k - 1));
+                stack[top++] = x;
+                stack[top++] = k;
+                stack[top++] = 1;
+                // The left child may be out of range (but its subtree is not).
+                if (y >= n || intervals.getLong(intervalPos(first, y) + I_MAX_END) >= qStart) {
+                    stack[top++] = y;
+                    stack[top++] = k - 1;
+                    stack[top++] = 0;
+                }
+            } else if (x < n && intervalStart(first, x) <= qEnd) {
+                addIfOverlapping(first, x, qStart, found);
+                stack[top++] = x + (1L << (k - 1));
+                stack[top++] = k - 1;
+                stack[top++] = 0;
+            }
+        }
+    }
+
+    private long intervalStart(int first, long i) {
+        return intervals.getLong(intervalPos(first, i) + I_START);
+    }
+
+    private void addIfOverlapping(int first, long i, long qStart, List<long[]> found) {
+        int pos = intervalPos(first, i);
+        long end = intervals.getLong(pos + I_END);
+        if (end >= qStart)
+            found.add(new long[] { intervals.getLong(pos + I_START), end, intervals.getInt(pos + I_RECORD) });
+    }
+
+    private static int intervalPos(int first, long i) {
+        return (int) ((first + i) * INTERVAL_SIZE);
+    }
+
+    /**
+     * Returns a symbol.
+     * @param record   the number of the record of the symbol
+     * @return         the symbol
+     */
+    public BinarySymbol getSymbol(int record) {
+        return readSymbol(record, null);
+    }
+
+    private BinarySymbol readSymbol(int record, String path) {
+        int pos = recordPos(record);
+        int kindCode = records.get(pos + R_KIND) & 0xFF;
+        SymbolKind kind = SymbolKind.fromCode(kindCode);
+        if (kind == null)
+            throw new IllegalStateException("Unknown symbol kind " + kindCode + " in " + file);
+        if (path == null)
+            path = getPath(records.getInt(pos + R_FILE));
+        return new BinarySymbol(record, kind, getString(records.getInt(pos + R_SYMBOL_ID)), path,
+                records.getInt(pos + R_START_LINE), records.getInt(pos + R_START_COLUMN),
+                records.getInt(pos + R_END_LINE), records.getInt(pos + R_END_COLUMN));
+    }
+
+    private int recordPos(int record) {
+        if (record < 0 || record >= recordCount)
+            throw new IndexOutOfBoundsException("Record " + record + " (of " + recordCount + ")");
+        return record * RECORD_SIZE;
+    }
+
+    /** Returns the string number of the path of a file. */
+    private int pathOf(int fileNo) {
+        return files.getInt(fileEntry(fileNo) + F_PATH);
+    }
+
+    private int fileEntry(int fileNo) {
+        if (fileNo < 0 || fileNo >= fileCount)
+            throw new IndexOutOfBoundsException("File " + fileNo + " (of " + fileCount + ")");
+        return fileNo * FILE_ENTRY_SIZE;
+    }
+
+    private String getString(int s) {
+        int start = stringOffsets.getInt(s * 4);
+        byte[] bytes = new byte[stringOffsets.getInt(s * 4 + 4) - start];
+        ByteBuffer data = stringData.duplicate();
+        data.position(start);
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find a string in the string table.
+     * @param key   the string (in UTF-8)
+     * @return      the number of the string, or -1 if it is not in the table
+     */
+    private int findString(byte[] key) {
+        int low = 0, high = stringCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compareString(mid, key);
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /** Compare a string of the table with UTF-8 bytes, in table order. */
+    private int compareString(int s, byte[] key) {
+        int start = stringOffsets.getInt(s * 4);
+        int length = stringOffsets.getInt(s * 4 + 4) - start;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int c = (stringData.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return length - key.length;
+    }
+
+    /** Returns the first number in [0, count) for which the predicate does not hold. */
+    private static int lowerBound(int count, IntPredicate before) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (before.test(mid))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,354 @@
+package org.clyze.source.irfitter.source.binary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.clyze.persistent.metadata.jvm.JvmMetadata;
+import org.clyze.persistent.model.Position;
+import org.clyze.persistent.model.SymbolWithId;
+
+import static org.clyze.source.irfitter.source.binary.BinaryFormat.*;
+
+/**
+ * Writes the metadata of source files in the binary format (see
+ * {@link BinaryFormat}), for {@link BinaryMetadataReader}. The symbols of
+ * every source file are collected from the same metadata that JSON reports
+ * are written from; the file is written at the end, since its string table
+ * and index cover all source files.
+ */
+public final class BinaryMetadataWriter {
+    /** The name of the binary metadata file in the output directory. */
+    public static final String FILE_NAME = "metadata.irfb";
+
+    private final List<FileRecords> files = new ArrayList<>();
+
+    /** The symbols of a source file. */
+    public static final class FileRecords {
+        final String path;
+        final String reportPath;
+        final List<Record> records = new ArrayList<>();
+
+        private FileRecords(String path, String reportPath) {
+            this.path = path;
+            this.reportPath = reportPath;
+        }
+    }
+
+    /** A symbol of a source file. */
+    private static final class Record {
+        final SymbolKind kind;
+        final String symbolId;
+        final byte[] symbolIdBytes;
+        final int startLine, startColumn, endLine, endColumn;
+
+        Record(SymbolKind kind, SymbolWithId symbol) {
+            this.kind = kind;
+            String id = symbol.getSymbolId();
+            this.symbolId = id == null ? "" : id;
+            this.symbolIdBytes = symbolId.getBytes(StandardCharsets.UTF_8);
+            Position pos = symbol.getPosition();
+            if (pos == null) {
+                this.startLine = this.startColumn = this.endLine = this.endColumn = -1;
+            } else {
+                this.startLine = toInt(pos.getStartLine());
+                this.startColumn = toInt(pos.getStartColumn());
+                this.endLine = toInt(pos.getEndLine());
+                this.endColumn = toInt(pos.getEndColumn());
+            }
+        }
+
+        boolean hasPosition() {
+            return startLine >= 0 && startColumn >= 0 && endLine >= 0 && endColumn >= 0;
+        }
+
+        private static int toInt(long n) {
+            return (int) Math.max(-1, Math.min(n, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Collect the symbols of a source file. This only reads the metadata of
+     * the file, so the files can be collected concurrently.
+     * @param path         the path of the source file
+     * @param reportPath   the output path of the JSON report of the file
+     * @param metadata     the metadata of the file
+     * @return             the symbols
+     */
+    public static FileRecords collect(String path, String reportPath, JvmMetadata metadata) {
+        FileRecords fr = new FileRecords(path, reportPath);
+        addRecords(fr, SymbolKind.CLASS, metadata.jvmClasses);
+        addRecords(fr, SymbolKind.FIELD, metadata.jvmFields);
+        addRecords(fr, SymbolKind.METHOD, metadata.jvmMethods);
+        addRecords(fr, SymbolKind.VARIABLE, metadata.jvmVariables);
+        addRecords(fr, SymbolKind.HEAP_ALLOCATION, metadata.jvmHeapAllocations);
+        addRecords(fr, SymbolKind.METHOD_INVOCATION, metadata.jvmInvocations);
+        addRecords(fr, SymbolKind.USAGE, metadata.usages);
+        addRecords(fr, SymbolKind.ALIAS, metadata.aliases);
+        addRecords(fr, SymbolKind.STRING_CONSTANT, metadata.jvmStringConstants);
+        return fr;
+    }
+
+    private static void addRecords(FileRecords fr, SymbolKind kind, Collection<? extends SymbolWithId> symbols) {
+        int first = fr.records.size();
+        for (SymbolWithId symbol : symbols)
+            fr.records.add(new Record(kind, symbol));
+        // Metadata sets have no fixed order, sort for reproducible output.
+        fr.records.subList(first, fr.records.size()).sort((r1, r2) -> {
+            int c = compare(r1.symbolIdBytes, r2.symbolIdBytes);
+            if (c == 0)
+                c = Integer.compare(r1.startLine, r2.startLine);
+            if (c == 0)
+                c = Integer.compare(r1.startColumn, r2.startColumn);
+            return c;
+        });
+    }
+
+    /**
+     * Add the symbols of a source file.
+     * @param fr   the symbols (from {@link #collect(String, String, JvmMetadata)})
+     */
+    public synchronized void add(FileRecords fr) {
+        files.add(fr);
+    }
+
+    /**
+     * Write the binary metadata of all added source files.
+     * @param file           the output file
+     * @throws IOException   on output errors or if the metadata is too large for the format
+     */
+    public synchronized void write(File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            write(out);
+        }
+    }
+
+    /**
+     * Returns the binary metadata of all added source files (to read it
+     * with {@link BinaryMetadataReader#read(byte[])}).
+     * @throws IOException   if the metadata is too large for the format
+     */
+    public synchronized byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        write(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write the binary metadata of all added source files.
+     * @param output         the output stream (not closed)
+     * @throws IOException   on output errors or if the metadata is too large for the format
+     */
+    public synchronized void write(OutputStream output) throws IOException {
+        List<FileRecords> sortedFiles = new ArrayList<>(files);
+        Map<String, byte[]> pathBytes = new HashMap<>();
+        for (FileRecords fr : sortedFiles)
+            pathBytes.computeIfAbsent(fr.path, p -> p.getBytes(StandardCharsets.UTF_8));
+        // Stable sort: copies of a path keep the order they were added in.
+        sortedFiles.sort((f1, f2) -> compare(pathBytes.get(f1.path), pathBytes.get(f2.path)));
+
+        // The string table: distinct strings, sorted by their bytes.
+        Map<String, byte[]> stringBytes = new HashMap<>(pathBytes);
+        long recordCount = 0;
+        for (FileRecords fr : sortedFiles) {
+            stringBytes.computeIfAbsent(fr.reportPath, p -> p.getBytes(StandardCharsets.UTF_8));
+            for (Record r : fr.records)
+                stringBytes.putIfAbsent(r.symbolId, r.symbolIdBytes);
+            recordCount += fr.records.size();
+        }
+        List<Map.Entry<String, byte[]>> strings = new ArrayList<>(stringBytes.entrySet());
+        strings.sort((e1, e2) -> compare(e1.getValue(), e2.getValue()));
+        Map<String, Integer> stringNumbers = new HashMap<>(strings.size() * 2);
+        long stringDataSize = 0;
+        for (Map.Entry<String, byte[]> e : strings) {
+            stringNumbers.put(e.getKey(), stringNumbers.size());
+            stringDataSize += e.getValue().length;
+        }
+
+        // The intervals of every file: its symbols with positions.
+        int[] intervalCounts = new int[sortedFiles.size()];
+        long intervalCount = 0;
+        for (int fileNo = 0; fileNo < sortedFiles.size(); fileNo++) {
+            for (Record r : sortedFiles.get(fileNo).records)
+                if (r.hasPosition())
+                    intervalCounts[fileNo]++;
+            intervalCount += intervalCounts[fileNo];
+        }
+
+        // The index: record numbers sorted by symbol id number, then record number.
+        long[] index = new long[(int) recordCount];
+        int recNo = 0;
+        for (FileRecords fr : sortedFiles)
+            for (Record r : fr.records) {
+                index[recNo] = ((long) stringNumbers.get(r.symbolId) << 32) | recNo;
+                recNo++;
+            }
+        Arrays.sort(index);
+
+        // The id hash table: at most half full.
+        int idCount = 0;
+        for (int i = 0; i < index.length; i++)
+            if (i == 0 || (index[i] >>> 32) != (index[i - 1] >>> 32))
+                idCount++;
+        long hashCapacity = Math.max(2, Long.highestOneBit(Math.max(1, idCount)) << 2);
+        int[] slots = buildHashTable(index, strings, (int) Math.min(hashCapacity, Integer.MAX_VALUE));
+
+        long stringOffsetsSize = 4L * (strings.size() + 1);
+        long filesSize = (long) FILE_ENTRY_SIZE * sortedFiles.size();
+        long recordsSize = RECORD_SIZE * recordCount;
+        long indexSize = 4L * recordCount;
+        long intervalsSize = INTERVAL_SIZE * intervalCount;
+        long hashSize = HASH_SLOT_SIZE * hashCapacity;
+        for (long size : new long[] { stringOffsetsSize, stringDataSize, filesSize, recordsSize, intervalsSize, hashSize })
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Metadata too large for the binary format (section of " + size + " bytes)");
+
+        long stringOffsetsPos = HEADER_SIZE;
+        long stringDataPos = stringOffsetsPos + stringOffsetsSize;
+        long filesPos = stringDataPos + stringDataSize;
+        long recordsPos = filesPos + filesSize;
+        long indexPos = recordsPos + recordsSize;
+        long intervalsPos = indexPos + indexSize;
+        long hashPos = intervalsPos + intervalsSize;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(strings.size());
+        out.writeInt(sortedFiles.size());
+        out.writeInt((int) recordCount);
+        out.writeInt(0);
+        out.writeLong(stringOffsetsPos);
+        out.writeLong(stringDataPos);
+        out.writeLong(filesPos);
+        out.writeLong(recordsPos);
+        out.writeLong(indexPos);
+        out.writeLong(intervalsPos);
+        out.writeLong(hashPos);
+        out.writeInt((int) hashCapacity);
+        out.writeInt((int) intervalCount);
+        out.writeLong(0);
+
+        int offset = 0;
+        for (Map.Entry<String, byte[]> e : strings) {
+            out.writeInt(offset);
+            offset += e.getValue().length;
+        }
+        out.writeInt(offset);
+        for (Map.Entry<String, byte[]> e : strings)
+            out.write(e.getValue());
+
+        int firstRecord = 0;
+        int firstInterval = 0;
+        for (int fileNo = 0; fileNo < sortedFiles.size(); fileNo++) {
+            FileRecords fr = sortedFiles.get(fileNo);
+            out.writeInt(stringNumbers.get(fr.path));
+            out.writeInt(stringNumbers.get(fr.reportPath));
+            out.writeInt(firstRecord);
+            out.writeInt(fr.records.size());
+            out.writeInt(firstInterval);
+            out.writeInt(intervalCounts[fileNo]);
+            out.writeInt(rootLevel(intervalCounts[fileNo]));
+            out.writeInt(0);
+            firstRecord += fr.records.size();
+            firstInterval += intervalCounts[fileNo];
+        }
+
+        for (int fileNo = 0; fileNo < sortedFiles.size(); fileNo++)
+            for (Record r : sortedFiles.get(fileNo).records) {
+                out.writeByte(r.kind.code);
+                out.writeByte(0);
+                out.writeShort(0);
+                out.writeInt(fileNo);
+                out.writeInt(stringNumbers.get(r.symbolId));
+                out.writeInt(r.startLine);
+                out.writeInt(r.startColumn);
+                out.writeInt(r.endLine);
+                out.writeInt(r.endColumn);
+                out.writeInt(0);
+            }
+
+        for (long entry : index)
+            out.writeInt((int) entry);
+
+        firstRecord = 0;
+        for (int fileNo = 0; fileNo < sortedFiles.size(); fileNo++) {
+            List<Record> records = sortedFiles.get(fileNo).records;
+            writeIntervals(out, records, firstRecord, intervalCounts[fileNo]);
+            firstRecord += records.size();
+        }
+
+        for (int slot : slots)
+            out.writeInt(slot);
+        out.flush();
+    }
+
+    /**
+     * Write the interval tree of the symbols of a file.
+     * @param out           the output
+     * @param records       the symbols of the file
+     * @param firstRecord   the record number of the first symbol
+     * @param n             the number of symbols with positions
+     */
+    private static void writeIntervals(DataOutput out, List<Record> records, int firstRecord, int n) throws IOException {
+        long[][] intervals = new long[n][];
+        int i = 0;
+        for (int r = 0; r < records.size(); r++) {
+            Record record = records.get(r);
+            if (record.hasPosition()) {
+                long start = pack(record.startLine, record.startColumn);
+                long end = Math.max(start, pack(record.endLine, record.endColumn));
+                intervals[i++] = new long[] { start, end, firstRecord + r };
+            }
+        }
+        Arrays.sort(intervals, (a, b) -> {
+            int c = Long.compare(a[0], b[0]);
+            if (c == 0)
+                c = Long.compare(a[1], b[1]);
+            return c != 0 ? c : Long.compare(a[2], b[2]);
+        });
+        long[] end = new long[n];
+        for (i = 0; i < n; i++)
+            end[i] = intervals[i][1];
+        long[] max = new long[n];
+        buildIntervalTree(end, max, n);
+        for (i = 0; i < n; i++) {
+            out.writeLong(intervals[i][0]);
+            out.writeLong(end[i]);
+            out.writeLong(max[i]);
+            out.writeInt((int) intervals[i][2]);
+            out.writeInt(0);
+        }
+    }
+
+    /** The level of the root of the interval tree of n intervals (-1 if there are none). */
+    private static int rootLevel(int n) {
+        return n == 0 ? -1 : 31 - Integer.numberOfLeadingZeros(n);
+    }
+
+    /**
+     * Build the id hash table: for every symbol id, its hash, string
+     * number and range of index entries.
+     * @param index      the index entries (string number and record number), sorted
+     * @param strings    the string table
+     * @param capacity   the number of slots (a power of two)
+     * @return           the slots (four numbers each)
+     */
+    private static int[] buildHashTable(long[] index, List<Map.Entry<String, byte[]>> strings, int capacity) {
+        int[] slots = new int[capacity * 4];
+        int mask = capacity - 1;
+        for (int i = 0; i < index.length; ) {
+            int s = (int) (index[i] >>> 32);
+            int first = i;
+            while (i < index.length && (int) (index[i] >>> 32) == s)
+                i++;
+            int h = hash(strings.get(s).getValue());
+            int slot = h & mask;
+            while (slots[slot * 4 + 3] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot * 4] = h;
+            slots[slot * 4 + 1] = s;
+            slots[slot * 4 + 2] = first;
+            slots[slot * 4 + 3] = i - first;
+        }
+        return slots;
+    }
+}
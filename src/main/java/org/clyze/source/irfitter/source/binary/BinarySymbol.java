@@ -0,0 +1,30 @@
+package org.clyze.source.irfitter.source.binary;
+
+/** A symbol read from binary metadata. */
+public final class BinarySymbol {
+    /** The number of the record of the symbol. */
+    public final int record;
+    public final SymbolKind kind;
+    public final String symbolId;
+    /** The path of the source file of the symbol. */
+    public final String path;
+    /** The position of the symbol (-1 if not known). */
+    public final int startLine, startColumn, endLine, endColumn;
+
+    BinarySymbol(int record, SymbolKind kind, String symbolId, String path,
+                 int startLine, int startColumn, int endLine, int endColumn) {
+        this.record = record;
+        this.kind = kind;
+        this.symbolId = symbolId;
+        this.path = path;
+        this.startLine = startLine;
+        this.startColumn = startColumn;
+        this.endLine = endLine;
+        this.endColumn = endColumn;
+    }
+
+    @Override
+    public String toString() {
+        return kind.getTypeName() + "[" + symbolId + "]@" + path + ":" + startLine + "." + startColumn + "-" + endLine + "." + endColumn;
+    }
+}
@@ -0,0 +1,47 @@
+package org.clyze.source.irfitter.source.binary;
+
+/** The kinds of symbols in binary metadata (with their codes in the format). */
+public enum SymbolKind {
+    CLASS(1, "JvmClass"),
+    FIELD(2, "JvmField"),
+    METHOD(3, "JvmMethod"),
+    VARIABLE(4, "JvmVariable"),
+    HEAP_ALLOCATION(5, "JvmHeapAllocation"),
+    METHOD_INVOCATION(6, "JvmMethodInvocation"),
+    USAGE(7, "Usage"),
+    ALIAS(8, "SymbolAlias"),
+    STRING_CONSTANT(9, "JvmStringConstant");
+
+    private static final SymbolKind[] BY_CODE = new SymbolKind[16];
+    static {
+        for (SymbolKind kind : values())
+            BY_CODE[kind.code] = kind;
+    }
+
+    /** The code of the kind in symbol records. */
+    final int code;
+    private final String typeName;
+
+    SymbolKind(int code, String typeName) {
+        this.code = code;
+        this.typeName = typeName;
+    }
+
+    /**
+     * Returns the name of the metadata model type of this kind (also the
+     * name of its array in JSON metadata).
+     * @return   the type name
+     */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * Returns the kind with a code.
+     * @param code   the code
+     * @return       the kind or null if the code is unknown
+     */
+    static SymbolKind fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
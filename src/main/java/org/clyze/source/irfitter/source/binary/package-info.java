@@ -0,0 +1,2 @@
+/** A compact binary format of the matched metadata and its memory-mapped reader. */
+package org.clyze.source.irfitter.source.binary;
@@ -6,6 +6,7 @@ import org.clyze.source.irfitter.source.model.SourceModifierPack;
 
 /** Class/field/method modifiers for Groovy sources. */
 class GroovyModifierPack extends SourceModifierPack {
+    private static final long serialVersionUID = 1L;
     private boolean isStatic = false;
     private boolean isDef = false;
     private boolean isStrictFp = false;
@@ -1,30 +1,158 @@
 package org.clyze.source.irfitter.source.groovy;
 
-import groovyjarjarantlr4.v4.runtime.CommonTokenStream;
-import groovyjarjarantlr4.v4.runtime.CharStreams;
+import groovyjarjarantlr4.v4.runtime.*;
 import java.io.*;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.groovy.parser.antlr4.GroovyLangLexer;
 import org.apache.groovy.parser.antlr4.GroovyLangParser;
+import org.apache.groovy.parser.antlr4.GroovyParser.CompilationUnitContext;
 import org.clyze.source.irfitter.SourceProcessor;
+import org.clyze.source.irfitter.source.BudgetedTokenStreams;
+import org.clyze.source.irfitter.source.ParseBudget;
+import org.clyze.source.irfitter.source.SourceOptions;
+import org.clyze.source.irfitter.source.SourceOptions.TokenStreaming;
+import org.clyze.source.irfitter.source.SourceText;
 import org.clyze.source.irfitter.source.model.SourceFile;
+import org.clyze.source.irfitter.source.scan.DeclarationScanner;
+import org.clyze.source.irfitter.source.scan.Language;
 
 /** This class handles Groovy source processing. */
 public class GroovyProcessor implements SourceProcessor {
+    private final SourceOptions options;
+    /** The number of files parsed from unbuffered input. */
+    private final AtomicInteger unbufferedParses = new AtomicInteger(0);
+    /** The number of those files that were parsed again in buffered mode. */
+    private final AtomicInteger bufferedRetries = new AtomicInteger(0);
+
+    public GroovyProcessor(SourceOptions options) {
+        this.options = options;
+    }
+
     @Override
-    public SourceFile process(File topDir, File srcFile, String artifact, boolean debug,
+    public SourceFile process(File topDir, SourceText source, String artifact, boolean debug,
                               boolean synthesizeTypes, Set<String> vaIrMethods) {
+        File srcFile = source.file;
         SourceFile sf = new SourceFile(topDir, srcFile, artifact, debug, synthesizeTypes);
+        ParseBudget budget = ParseBudget.forFile(options);
         try {
-            GroovyLangLexer gll = new GroovyLangLexer(CharStreams.fromFile(srcFile));
-            CommonTokenStream tokens = new CommonTokenStream(gll);
-            tokens.fill();
-            GroovyLangParser glp = new GroovyLangParser(tokens);
-            glp.compilationUnit().accept(new GroovyTreeVisitor(sf, debug));
+            CompilationUnitContext cu;
+            TokenStreaming streaming = options.groovyStreaming;
+            try {
+                if (streaming != TokenStreaming.BUFFERED)
+                    unbufferedParses.incrementAndGet();
+                cu = parse(source, streaming, budget);
+            } catch (StreamingFailure ex) {
+                bufferedRetries.incrementAndGet();
+                if (debug) {
+                    System.out.println("WARNING: " + streaming.name().toLowerCase(Locale.ROOT) + " parsing failed for " + srcFile + ", retrying in buffered mode.");
+                    ex.printStackTrace();
+                }
+                cu = parse(source, TokenStreaming.BUFFERED, budget);
+            }
+            cu.accept(new GroovyTreeVisitor(sf, debug, options.bodiesOnDemand));
+        } catch (ParseBudget.ExceededException ex) {
+            return DeclarationScanner.fallback(topDir, source, artifact, debug, synthesizeTypes, Language.GROOVY, ex.getMessage());
+        } catch (StackOverflowError err) {
+            return DeclarationScanner.fallback(topDir, source, artifact, debug, synthesizeTypes, Language.GROOVY, "parser stack overflow");
         } catch (IOException ex) {
             ex.printStackTrace();
         }
         return sf;
     }
+
+    /**
+     * Report how many files could not be parsed from unbuffered input (and
+     * were parsed again in buffered mode).
+     */
+    public void reportBufferedRetries() {
+        int parses = unbufferedParses.get();
+        if (parses == 0)
+            return;
+        int retries = bufferedRetries.get();
+        System.out.printf("Groovy files parsed again in buffered mode: %d of %d (%.1f%%)%n", retries, parses, (100.0 * retries) / parses);
+    }
+
+    private static CompilationUnitContext parse(SourceText source, TokenStreaming streaming,
+                                                ParseBudget budget) throws IOException {
+        String path = source.file.getPath();
+        if (streaming == TokenStreaming.BUFFERED) {
+            CharStream chars;
+            try (Reader reader = source.openReader()) {
+                chars = CharStreams.fromReader(reader, path);
+            }
+            // The lexer has its own copy of the text.
+            source.release();
+            GroovyLangLexer gll = new GroovyLangLexer(chars);
+            CommonTokenStream tokens = BudgetedTokenStreams.groovyBuffered(gll, budget);
+            tokens.fill();
+            return new GroovyLangParser(tokens).compilationUnit();
+        }
+        // Read the file itself, so that only the window of the unbuffered
+        // stream is in memory.
+        source.release();
+        try (Reader reader = source.openReader()) {
+            UnbufferedCharStream chars = new UnbufferedCharStream(reader);
+            chars.name = path;
+            GroovyLangLexer gll = new GroovyLangLexer(chars);
+            // Unbuffered characters are discarded after lexing, so tokens
+            // must keep a copy of their text.
+            gll.setTokenFactory(new CommonTokenFactory(true));
+            TokenStream tokens;
+            if (streaming == TokenStreaming.UNBUFFERED)
+                tokens = BudgetedTokenStreams.groovyUnbuffered(gll, budget);
+            else
+                tokens = BudgetedTokenStreams.groovyBuffered(gll, budget);
+            GroovyLangParser parser = new GroovyLangParser(tokens);
+            // The parser predicates may look at released tokens, so syntax
+            // errors are reported as streaming failures, to retry with buffered
+            // input (that also reports any real syntax errors).
+            parser.removeErrorListeners();
+            parser.addErrorListener(StreamingFailure.LISTENER);
+            try {
+                return parser.compilationUnit();
+            } catch (UnsupportedOperationException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+                // The lexer (when rolling back) or the parser may look back
+                // further than the unbuffered streams allow.
+                if (isUnbufferedWindowFailure(ex))
+                    throw new StreamingFailure(ex.getMessage(), ex);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Checks if an exception was thrown by an unbuffered character/token
+     * stream, when the parser accessed input outside its window (such as
+     * the text of released tokens).
+     * @param ex   the exception
+     * @return     true if the exception was thrown by an unbuffered stream
+     */
+    private static boolean isUnbufferedWindowFailure(RuntimeException ex) {
+        StackTraceElement[] trace = ex.getStackTrace();
+        if (trace.length == 0)
+            return false;
+        String thrower = trace[0].getClassName();
+        return thrower.equals(UnbufferedTokenStream.class.getName()) ||
+                thrower.equals(UnbufferedCharStream.class.getName());
+    }
+
+    /** Thrown when a file cannot be parsed with unbuffered input. */
+    private static class StreamingFailure extends RuntimeException {
+        /** Reports syntax errors as streaming failures. */
+        static final ANTLRErrorListener LISTENER = new BaseErrorListener() {
+            @Override
+            public <T extends Token> void syntaxError(Recognizer<T, ?> recognizer, T offendingSymbol,
+                                                      int line, int charPositionInLine, String msg,
+                                                      RecognitionException e) {
+                throw new StreamingFailure("line " + line + ":" + charPositionInLine + " " + msg, e);
+            }
+        };
+
+        StreamingFailure(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
 }
@@ -24,10 +24,13 @@ public class GroovyTreeVisitor extends GroovyParserBaseVisitor<Void> {
     /** The source file visited. We assume one visitor instance per source file. */
     private final SourceFile sourceFile;
     private final boolean debug;
+    /** If true, method bodies are visited only when requested. */
+    private final boolean bodiesOnDemand;
 
-    GroovyTreeVisitor(SourceFile sourceFile, boolean debug) {
+    GroovyTreeVisitor(SourceFile sourceFile, boolean debug, boolean bodiesOnDemand) {
         this.sourceFile = sourceFile;
         this.debug = debug;
+        this.bodiesOnDemand = bodiesOnDemand;
         // Add default imports.
         String[] defaultPackages = new String[] { "groovy.lang", "groovy.util" , "java.lang" , "java.util" , "java.net" , "java.io" };
         for (String defaultPackage : defaultPackages)
@@ -159,13 +162,36 @@ public class GroovyTreeVisitor extends GroovyParserBaseVisitor<Void> {
                 System.out.println("WARNING: top-level Groovy methods are not yet supported.");
             else {
                 jt.methods.add(jm);
-                scope.enterMethodScope(jm, (jm0 -> visitMethodBody(ctx.methodBody())));
+                MethodBodyContext body = ctx.methodBody();
+                scope.enterMethodBodyScope(jm, bodiesOnDemand, () -> countAnonymousClasses(body),
+                        (jm0 -> visitMethodBody(body)));
             }
         }
 
         return null;
     }
 
+    /**
+     * Count the anonymous classes created in a piece of code, excluding
+     * those inside nested types. This is a syntactic count and should
+     * agree with the anonymous classes created by the visitor.
+     * @param node   the parse tree node (may be null)
+     * @return       the number of anonymous classes
+     */
+    private static int countAnonymousClasses(ParseTree node) {
+        if (node == null)
+            return 0;
+        int count = 0;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            ParseTree child = node.getChild(i);
+            if (child instanceof AnonymousInnerClassDeclarationContext)
+                count++;
+            else if (!(child instanceof ClassDeclarationContext))
+                count += countAnonymousClasses(child);
+        }
+        return count;
+    }
+
     private void registerMethodSigTypeUses(MethodDeclarationContext ctx, JType jt,
                                            Collection<TypeUse> retTypeUses,
                                            Collection<TypeUse> paramTypeUses) {
@@ -384,7 +410,7 @@ public class GroovyTreeVisitor extends GroovyParserBaseVisitor<Void> {
                 if (jm == null)
                     System.out.println("TODO: handle invocations outside methods");
                 else
-                    jm.invocations.add(invo);
+                    jm.addInvocation(invo);
                 methodName = null;
                 methodArity = -1;
             }
@@ -508,13 +534,13 @@ public class GroovyTreeVisitor extends GroovyParserBaseVisitor<Void> {
         jt.typeUses.addAll(typeUses);
         for (JVariable jVar : processVariableDeclaration(varDecl)) {
             ModifierPack mp = jVar.mp;
-            JField field = new JField(sourceFile, jVar.type, jVar.name, mp.getAnnotations(), jVar.pos, jt);
+            JField field = new JField(sourceFile, jVar.type, jVar.name, mp.getAnnotations(), jVar.getPosition(), jt);
             jt.fields.add(field);
             if (mp.isStatic() && mp.isFinal()) {
                 JStringConstant<JVariable> initStringValue = jVar.initStringValue;
                 if (initStringValue != null) {
                     System.out.println("Adding initial string constant: " + initStringValue);
-                    sourceFile.stringConstants.add(new JStringConstant<>(sourceFile, initStringValue.pos, field, initStringValue.value));
+                    sourceFile.stringConstants.add(new JStringConstant<>(sourceFile, initStringValue.getPosition(), field, initStringValue.value));
                     field.mayBeInlined = true;
                 }
             }
@@ -15,6 +15,7 @@ import org.clyze.source.irfitter.source.model.SourceModifierPack;
 
 /** Class/field/method modifiers for Java sources. */
 public class JavaModifierPack extends SourceModifierPack {
+    private static final long serialVersionUID = 1L;
     private final boolean isStatic;
     private final boolean isSynchronized;
 
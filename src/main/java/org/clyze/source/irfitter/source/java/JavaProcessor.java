@@ -4,22 +4,36 @@ import com.github.javaparser.JavaParser;
 import com.github.javaparser.ast.CompilationUnit;
 import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.Optional;
 import java.util.Set;
 import org.clyze.source.irfitter.SourceProcessor;
+import org.clyze.source.irfitter.source.SourceOptions;
+import org.clyze.source.irfitter.source.SourceText;
 import org.clyze.source.irfitter.source.model.SourceFile;
 
 /** This class handles Java source processing. */
 public class JavaProcessor implements SourceProcessor {
+    private final SourceOptions options;
+
+    public JavaProcessor(SourceOptions options) {
+        this.options = options;
+    }
+
     @Override
-    public SourceFile process(File topDir, File srcFile, String artifact, boolean debug,
+    public SourceFile process(File topDir, SourceText source, String artifact, boolean debug,
                               boolean synthesizeTypes, Set<String> vaIrMethods) {
+        File srcFile = source.file;
         JavaParser jp = new JavaParser();
         try {
-            Optional<CompilationUnit> optCu = jp.parse(srcFile).getResult();
+            Optional<CompilationUnit> optCu;
+            try (Reader reader = source.openReader()) {
+                optCu = jp.parse(reader).getResult();
+            }
+            source.release();
             if (optCu.isPresent()) {
                 SourceFile sf = new SourceFile(topDir, srcFile, artifact, debug, synthesizeTypes);
-                optCu.ifPresent((CompilationUnit cu) -> cu.accept(new JavaVisitor(sf, debug), null));
+                optCu.ifPresent((CompilationUnit cu) -> cu.accept(new JavaVisitor(sf, debug, options.bodiesOnDemand), null));
                 return sf;
             } else
                 System.out.println("No parsing result for " + srcFile);
@@ -12,7 +12,7 @@ import java.util.*;
 public class JavaUtils {
     public static JBlock newBlock(NodeWithRange<?> sn, JBlock block, JMethod method, JType enclosingType) {
         JBlock innerBlock = new JBlock(createPositionFromNode(sn), block, enclosingType);
-        method.blocks.add(innerBlock);
+        method.addBlock(innerBlock);
         return innerBlock;
     }
 
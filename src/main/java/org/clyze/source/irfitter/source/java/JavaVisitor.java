@@ -34,10 +34,13 @@ public class JavaVisitor extends VoidVisitorAdapter<JBlock> {
     private final SourceFile sourceFile;
     /** Debugging mode. */
     private final boolean debug;
+    /** If true, method bodies are visited only when requested. */
+    private final boolean bodiesOnDemand;
 
-    public JavaVisitor(SourceFile sourceFile, boolean debug) {
+    public JavaVisitor(SourceFile sourceFile, boolean debug, boolean bodiesOnDemand) {
         this.sourceFile = sourceFile;
         this.debug = debug;
+        this.bodiesOnDemand = bodiesOnDemand;
     }
 
     @Override
@@ -246,11 +249,11 @@ public class JavaVisitor extends VoidVisitorAdapter<JBlock> {
         }
         jt.typeUses.addAll(new JavaModifierPack(sourceFile, init.getAnnotations()).getAnnotationUses());
 
-        JInit initMethod = init.isStatic() ? jt.classInitializer : jt.instInitializer;
+        JInit initMethod = init.isStatic() ? jt.getClassInitializer() : jt.getInstanceInitializer();
         initMethod.setSource(true);
         Position outerPos = JavaUtils.createPositionFromNode(init);
         long startColumn = outerPos.getStartColumn();
-        initMethod.pos = new Position(outerPos.getStartLine(), startColumn, startColumn + "static".length());
+        initMethod.setPosition(new Position(outerPos.getStartLine(), startColumn, startColumn + "static".length()));
         initMethod.outerPos = outerPos;
         scope.enterInitializerScope(initMethod, (cl -> init.getBody().accept(this, block)));
     }
@@ -298,7 +301,26 @@ public class JavaVisitor extends VoidVisitorAdapter<JBlock> {
         jt.methods.add(jm);
 
         // Set current method and visit method body.
-        scope.enterMethodScope(jm, (jm0 -> methodProcessor.accept(argsBlock)));
+        scope.enterMethodBodyScope(jm, bodiesOnDemand, () -> countAnonymousClasses(md),
+                (jm0 -> methodProcessor.accept(argsBlock)));
+    }
+
+    /**
+     * Count the anonymous classes created in a piece of code, excluding
+     * those inside nested types.
+     * @param node   the AST node
+     * @return       the number of anonymous classes
+     */
+    private static int countAnonymousClasses(Node node) {
+        int count = 0;
+        for (Node child : node.getChildNodes()) {
+            if (child instanceof BodyDeclaration)
+                continue;
+            if (child instanceof ObjectCreationExpr && ((ObjectCreationExpr) child).getAnonymousClassBody().isPresent())
+                count++;
+            count += countAnonymousClasses(child);
+        }
+        return count;
     }
 
     @Override
@@ -330,7 +352,7 @@ public class JavaVisitor extends VoidVisitorAdapter<JBlock> {
                     sourceFile.stringConstants.add(new JStringConstant<>(sourceFile, pos, srcField, sValue));
                     srcField.mayBeInlined = true;
                 } else {
-                    JMethod initBlock = isStaticField ? jt.classInitializer : jt.instInitializer;
+                    JMethod initBlock = isStaticField ? jt.getClassInitializer() : jt.getInstanceInitializer();
                     JBlock methodBlock = new JBlock(initBlock.name, block, jt);
                     scope.enterMethodScope(initBlock, init -> initExpr.accept(this, methodBlock));
                 }
@@ -338,7 +360,7 @@ public class JavaVisitor extends VoidVisitorAdapter<JBlock> {
                 JFieldAccess fieldAcc = new JFieldAccess(sourceFile, initExprPos, AccessType.WRITE, null, fieldName, srcField);
                 if (debug)
                     System.out.println("Adding field initializer: " + fieldAcc);
-                (isStaticField ? jt.classInitializer : jt.instInitializer).fieldAccesses.add(fieldAcc);
+                (isStaticField ? jt.getClassInitializer() : jt.getInstanceInitializer()).addFieldAccess(fieldAcc);
             }
         }
     }
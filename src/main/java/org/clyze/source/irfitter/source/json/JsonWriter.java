@@ -0,0 +1,339 @@
+package org.clyze.source.irfitter.source.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A minimal streaming JSON writer that encodes text as UTF-8 directly into
+ * a reusable byte buffer. Strings, integers and booleans are written
+ * without allocating objects, so a single writer can serialize any number
+ * of documents with (almost) no garbage. A writer is not thread-safe.
+ */
+public final class JsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] buf;
+    private int pos = 0;
+    /** The digits of the last written integer (in reverse order). */
+    private final byte[] digits = new byte[20];
+    /** For every open object/array: true if it already has a member. */
+    private boolean[] hasMembers = new boolean[16];
+    private int depth = 0;
+    /** True if a member name has just been written (the value follows). */
+    private boolean afterName = false;
+    private OutputStream out = null;
+
+    /**
+     * Create a writer.
+     * @param bufferSize   the size of the output buffer (in bytes)
+     */
+    public JsonWriter(int bufferSize) {
+        this.buf = new byte[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * Start a new document on a stream.
+     * @param out   the output stream (not closed by the writer)
+     */
+    public void reset(OutputStream out) {
+        this.out = out;
+        this.pos = 0;
+        this.depth = 0;
+        this.afterName = false;
+    }
+
+    /** Start an object. */
+    public JsonWriter beginObject() throws IOException {
+        beforeValue();
+        return open('{');
+    }
+
+    /** End the current object. */
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    /** Start an array. */
+    public JsonWriter beginArray() throws IOException {
+        beforeValue();
+        return open('[');
+    }
+
+    /** End the current array. */
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /**
+     * Write the name of the next object member.
+     * @param name           the name
+     * @return               this writer
+     * @throws IOException   on output errors
+     */
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    /** Write a string value (or null). */
+    public JsonWriter value(String s) throws IOException {
+        if (s == null)
+            return nullValue();
+        beforeValue();
+        writeString(s);
+        return this;
+    }
+
+    /** Write an integer value. */
+    public JsonWriter value(long n) throws IOException {
+        beforeValue();
+        if (n == Long.MIN_VALUE) {
+            writeAscii(Long.toString(n));
+            return this;
+        }
+        if (n < 0) {
+            writeByte('-');
+            n = -n;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + (n % 10));
+            n /= 10;
+        } while (n != 0);
+        while (count > 0)
+            writeByte(digits[--count]);
+        return this;
+    }
+
+    /** Write a boolean value. */
+    public JsonWriter value(boolean b) throws IOException {
+        beforeValue();
+        writeBytes(b ? TRUE : FALSE);
+        return this;
+    }
+
+    /** Write a null value. */
+    public JsonWriter nullValue() throws IOException {
+        beforeValue();
+        writeBytes(NULL);
+        return this;
+    }
+
+    /**
+     * Write an already serialized JSON value as it is.
+     * @param json           the JSON text
+     * @return               this writer
+     * @throws IOException   on output errors
+     */
+    public JsonWriter rawValue(CharSequence json) throws IOException {
+        beforeValue();
+        writeChars(json);
+        return this;
+    }
+
+    /**
+     * Write an already serialized JSON value (in UTF-8) as it is.
+     * @param json           the JSON bytes
+     * @param off            the offset of the value
+     * @param len            the number of bytes of the value
+     * @return               this writer
+     * @throws IOException   on output errors
+     */
+    public JsonWriter rawValue(byte[] json, int off, int len) throws IOException {
+        beforeValue();
+        flush();
+        out.write(json, off, len);
+        return this;
+    }
+
+    /**
+     * Write a value of the JSON object model: maps (with string keys),
+     * collections, arrays, strings, numbers, booleans, enums and null.
+     * @param v                          the value
+     * @return                           this writer
+     * @throws IOException               on output errors
+     * @throws IllegalArgumentException  if the value is not a finite number
+     *                                   or not of the object model
+     */
+    public JsonWriter value(Object v) throws IOException {
+        if (v == null)
+            return nullValue();
+        else if (v instanceof CharSequence)
+            return value(v.toString());
+        else if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte)
+            return value(((Number) v).longValue());
+        else if (v instanceof Number) {
+            if ((v instanceof Double && !Double.isFinite((Double) v)) || (v instanceof Float && !Float.isFinite((Float) v)))
+                throw new IllegalArgumentException("Not a finite JSON number: " + v);
+            beforeValue();
+            writeAscii(v.toString());
+            return this;
+        } else if (v instanceof Boolean)
+            return value(((Boolean) v).booleanValue());
+        else if (v instanceof Enum)
+            return value(((Enum<?>) v).name());
+        else if (v instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) v).entrySet()) {
+                name(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+            return endObject();
+        } else if (v instanceof Collection) {
+            beginArray();
+            for (Object elem : (Collection<?>) v)
+                value(elem);
+            return endArray();
+        } else if (v instanceof Object[]) {
+            beginArray();
+            for (Object elem : (Object[]) v)
+                value(elem);
+            return endArray();
+        }
+        throw new IllegalArgumentException("Not a JSON value: " + v.getClass().getName());
+    }
+
+    /**
+     * Write text that is not a JSON value (such as the whitespace between
+     * values) as it is.
+     * @param text           the text (in ASCII)
+     * @return               this writer
+     * @throws IOException   on output errors
+     */
+    public JsonWriter text(String text) throws IOException {
+        writeAscii(text);
+        return this;
+    }
+
+    /**
+     * Write the buffered bytes to the stream.
+     * @throws IOException   on output errors
+     */
+    public void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        writeByte(c);
+        if (depth == hasMembers.length)
+            hasMembers = Arrays.copyOf(hasMembers, depth * 2);
+        hasMembers[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        if (depth == 0)
+            throw new IllegalStateException("No open JSON object or array");
+        depth--;
+        writeByte(c);
+        return this;
+    }
+
+    /** Prepare for a value: values in arrays are separated by commas. */
+    private void beforeValue() throws IOException {
+        if (afterName)
+            afterName = false;
+        else
+            separate();
+    }
+
+    private void separate() throws IOException {
+        if (depth > 0) {
+            if (hasMembers[depth - 1])
+                writeByte(',');
+            else
+                hasMembers[depth - 1] = true;
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        writeByte('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20) {
+                writeByte('\\');
+                switch (c) {
+                    case '\n': writeByte('n'); break;
+                    case '\r': writeByte('r'); break;
+                    case '\t': writeByte('t'); break;
+                    case '\b': writeByte('b'); break;
+                    case '\f': writeByte('f'); break;
+                    default:
+                        writeByte('u');
+                        writeByte('0');
+                        writeByte('0');
+                        writeByte(HEX[c >> 4]);
+                        writeByte(HEX[c & 0xF]);
+                }
+            } else
+                i = writeChar(s, i, c);
+        }
+        writeByte('"');
+    }
+
+    private void writeChars(CharSequence s) throws IOException {
+        int len = s.length();
+        for (int i = 0; i < len; i++)
+            i = writeChar(s, i, s.charAt(i));
+    }
+
+    /**
+     * Encode a character as UTF-8.
+     * @return   the index of the last character consumed
+     */
+    private int writeChar(CharSequence s, int i, char c) throws IOException {
+        if (c < 0x80)
+            writeByte(c);
+        else if (c < 0x800) {
+            writeByte(0xC0 | (c >> 6));
+            writeByte(0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            writeByte(0xF0 | (cp >> 18));
+            writeByte(0x80 | ((cp >> 12) & 0x3F));
+            writeByte(0x80 | ((cp >> 6) & 0x3F));
+            writeByte(0x80 | (cp & 0x3F));
+            return i + 1;
+        } else if (Character.isSurrogate(c))
+            writeByte('?');
+        else {
+            writeByte(0xE0 | (c >> 12));
+            writeByte(0x80 | ((c >> 6) & 0x3F));
+            writeByte(0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            writeByte(s.charAt(i));
+    }
+
+    private void writeBytes(byte[] b) throws IOException {
+        for (byte x : b)
+            writeByte(x);
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (pos == buf.length)
+            flush();
+        buf[pos++] = (byte) b;
+    }
+}
@@ -0,0 +1,86 @@
+package org.clyze.source.irfitter.source.json;
+
+import java.io.*;
+import java.util.Collection;
+import org.clyze.persistent.metadata.jvm.JvmMetadata;
+import org.clyze.persistent.model.Element;
+
+/**
+ * Writes the JVM metadata of a source file as the report file of the
+ * metadata library (the same bytes as its FileReporter), straight to an
+ * output stream. The report has one array per element kind; elements are
+ * serialized from their JSON representation in the metadata model, which
+ * defines their schema. No document-level maps or strings are built and
+ * the buffers are reused, so a writer should be kept per thread.
+ */
+public final class MetadataJsonWriter {
+    /** The size of the output buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final JsonWriter json = new JsonWriter(BUFFER_SIZE);
+    /** The buffer of the reports that are returned as bytes. */
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+
+    /**
+     * Write the report of the metadata of a source file.
+     * @param metadata       the metadata
+     * @param out            the output stream (not closed)
+     * @throws IOException   on output errors
+     */
+    public void write(JvmMetadata metadata, OutputStream out) throws IOException {
+        json.reset(out);
+        json.text("{\n");
+        writeElements("SourceFile", metadata.sourceFiles, true);
+        writeElements("JvmClass", metadata.jvmClasses, true);
+        writeElements("JvmField", metadata.jvmFields, true);
+        writeElements("JvmMethod", metadata.jvmMethods, true);
+        writeElements("JvmVariable", metadata.jvmVariables, true);
+        writeElements("JvmHeapAllocation", metadata.jvmHeapAllocations, true);
+        writeElements("JvmMethodInvocation", metadata.jvmInvocations, true);
+        writeElements("Usage", metadata.usages, true);
+        writeElements("SymbolAlias", metadata.aliases, true);
+        writeElements("JvmStringConstant", metadata.jvmStringConstants, false);
+        json.text("}\n");
+        json.flush();
+    }
+
+    /**
+     * Write the report of the metadata of a source file to a file.
+     * @param metadata       the metadata
+     * @param file           the report file (its parent directories are created)
+     * @throws IOException   on output errors
+     */
+    public void write(JvmMetadata metadata, File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs() && !dir.exists())
+            throw new IOException("Could not create directory " + dir);
+        // The writer buffers its output, so the file stream is not buffered.
+        try (OutputStream out = new FileOutputStream(file)) {
+            write(metadata, out);
+        }
+    }
+
+    /**
+     * Returns the report of the metadata of a source file, such as for an
+     * output sink.
+     * @param metadata       the metadata
+     * @return               the report (as written to a report file)
+     * @throws IOException   if the metadata could not be serialized
+     */
+    public byte[] toBytes(JvmMetadata metadata) throws IOException {
+        bytes.reset();
+        write(metadata, bytes);
+        return bytes.toByteArray();
+    }
+
+    private void writeElements(String kind, Collection<? extends Element> elements, boolean more) throws IOException {
+        json.text("  \"").text(kind).text("\": [");
+        boolean first = true;
+        for (Element element : elements) {
+            json.text(first ? "\n    " : ",\n    ");
+            first = false;
+            json.value(element.toJSON());
+        }
+        json.text(more ? "],\n" : "]\n");
+    }
+}
@@ -0,0 +1,2 @@
+/** A minimal JSON writer and the writer of the metadata reports. */
+package org.clyze.source.irfitter.source.json;
@@ -9,6 +9,7 @@ import org.clyze.source.irfitter.source.model.SourceModifierPack;
 
 /** Class/field/method modifiers for Kotlin sources. */
 public class KotlinModifierPack extends SourceModifierPack {
+    private static final long serialVersionUID = 1L;
     private boolean isInner = false;
     private boolean isConst = false;
     private boolean isSuspend = false;
@@ -1,28 +1,51 @@
 package org.clyze.source.irfitter.source.kotlin;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.Reader;
 import java.util.Set;
 
 import org.antlr.v4.runtime.*;
 import org.clyze.source.irfitter.SourceProcessor;
+import org.clyze.source.irfitter.source.BudgetedTokenStreams;
+import org.clyze.source.irfitter.source.ParseBudget;
+import org.clyze.source.irfitter.source.SourceOptions;
+import org.clyze.source.irfitter.source.SourceText;
 import org.clyze.source.irfitter.source.model.SourceFile;
+import org.clyze.source.irfitter.source.scan.DeclarationScanner;
+import org.clyze.source.irfitter.source.scan.Language;
 import org.antlr.grammars.KotlinLexer;
 import org.antlr.grammars.KotlinParser;
 
 /** This class handles Kotlin source processing. */
 public class KotlinProcessor implements SourceProcessor {
+    private final SourceOptions options;
+
+    public KotlinProcessor(SourceOptions options) {
+        this.options = options;
+    }
+
     @Override
-    public SourceFile process(File topDir, File srcFile, String artifact, boolean debug,
+    public SourceFile process(File topDir, SourceText source, String artifact, boolean debug,
                               boolean synthesizeTypes,Set<String> vaIrMethods) {
+        File srcFile = source.file;
         SourceFile sf = new SourceFile(topDir, srcFile, artifact, debug, synthesizeTypes);
-        try (InputStream inputStream = new FileInputStream(srcFile)) {
-            Lexer lexer = new KotlinLexer(CharStreams.fromStream(inputStream));
-            TokenStream tokenStream = new CommonTokenStream(lexer);
+        try {
+            CharStream chars;
+            try (Reader reader = source.openReader()) {
+                chars = CharStreams.fromReader(reader, srcFile.getPath());
+            }
+            // The lexer has its own copy of the text.
+            source.release();
+            Lexer lexer = new KotlinLexer(chars);
+            ParseBudget budget = ParseBudget.forFile(options);
+            TokenStream tokenStream = BudgetedTokenStreams.buffered(lexer, budget);
             KotlinParser parser = new KotlinParser(tokenStream);
-            parser.kotlinFile().accept(new KotlinVisitor(sf, debug));
+            parser.kotlinFile().accept(new KotlinVisitor(sf, debug, options.bodiesOnDemand));
+        } catch (ParseBudget.ExceededException ex) {
+            return DeclarationScanner.fallback(topDir, source, artifact, debug, synthesizeTypes, Language.KOTLIN, ex.getMessage());
+        } catch (StackOverflowError err) {
+            return DeclarationScanner.fallback(topDir, source, artifact, debug, synthesizeTypes, Language.KOTLIN, "parser stack overflow");
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -30,10 +30,13 @@ public class KotlinVisitor extends KotlinParserBaseVisitor<Void> {
     private final boolean debug;
     /** The scoping object. */
     private final Scope scope = new Scope();
+    /** If true, method bodies are visited only when requested. */
+    private final boolean bodiesOnDemand;
 
-    public KotlinVisitor(SourceFile sourceFile, boolean debug) {
+    public KotlinVisitor(SourceFile sourceFile, boolean debug, boolean bodiesOnDemand) {
         this.sourceFile = sourceFile;
         this.debug = debug;
+        this.bodiesOnDemand = bodiesOnDemand;
         for (String i : DEFAULT_IMPORTS)
             sourceFile.imports.add(new Import(null, i, true, false));
     }
@@ -313,7 +316,8 @@ public class KotlinVisitor extends KotlinParserBaseVisitor<Void> {
             jt.addSigTypeRefs(retTypeUses, paramTypeUses);
             FunctionBodyContext funBody = funMemDecl.functionBody();
             if (funBody != null)
-                scope.enterMethodScope(jm, (jm0 -> funBody.accept(this)));
+                // Kotlin object expressions are not numbered as anonymous classes.
+                scope.enterMethodBodyScope(jm, bodiesOnDemand, () -> 0, (jm0 -> funBody.accept(this)));
         }
         return null;
     }
@@ -1,11 +1,12 @@
 package org.clyze.source.irfitter.source.model;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import org.clyze.persistent.model.Position;
 
 /** An anonumous Java class. */
 public class AnonymousClass extends JType {
+    private static final long serialVersionUID = 1L;
     /** The number suffix of the type (based on visit order). */
     public final String n;
 
@@ -13,11 +14,16 @@ public class AnonymousClass extends JType {
                           JType parentType, ElementWithPosition<?, ?> declaringElement,
                           Position pos, boolean isInner, int n) {
         // Anonymous classes cannot have annotations, so we pass an empty set.
-        super(srcFile, null, superTypes, new HashSet<>(), pos, declaringElement, parentType, isInner, false,
+        super(srcFile, null, superTypes, Collections.emptySet(), pos, declaringElement, parentType, isInner, false,
                 false, false, false, false, true, false, false, false);
         this.n = Integer.toString(n);
     }
 
+    AnonymousClass(AnonymousClass original, ModelCopier copier) {
+        super(original, copier);
+        this.n = original.n;
+    }
+
     @Override
     public String getUnqualifiedName() {
         return n;
@@ -1,13 +1,17 @@
 package org.clyze.source.irfitter.source.model;
 
+import java.io.Serializable;
 import org.clyze.persistent.model.Position;
 import org.clyze.persistent.model.Usage;
 import org.clyze.persistent.model.UsageKind;
 
 /** A point of use of a code element (such as a variable read). */
-public abstract class ElementUse implements Matchable {
-    /** The source code position. */
-    public final Position position;
+public abstract class ElementUse implements Matchable, Serializable {
+    private static final long serialVersionUID = 1L;
+    /** The packed start of the source code position (see {@link Positions}). */
+    private final long startPos;
+    /** The packed end of the source code position. */
+    private final long endPos;
     /** The source file where the element appears. */
     public final SourceFile sourceFile;
     protected final UsageKind kind;
@@ -22,10 +26,33 @@ public abstract class ElementUse implements Matchable {
      */
     public ElementUse(SourceFile sourceFile, Position position, UsageKind kind) {
         this.sourceFile = sourceFile;
-        this.position = position;
+        this.startPos = Positions.start(position);
+        this.endPos = Positions.end(position);
         this.kind = kind;
     }
 
+    /**
+     * Copy a use to the source file of a model copier. The copy has no
+     * match information.
+     * @param original   the original use
+     * @param copier     the model copier
+     */
+    ElementUse(ElementUse original, ModelCopier copier) {
+        copier.register(original, this);
+        this.sourceFile = copier.sourceFile;
+        this.startPos = original.startPos;
+        this.endPos = original.endPos;
+        this.kind = original.kind;
+    }
+
+    /**
+     * Returns the source position of this use (as a new object).
+     * @return   the position
+     */
+    public Position getPosition() {
+        return Positions.toPosition(startPos, endPos);
+    }
+
     /**
      * Build the final metadata object.
      * @return the "usage" object
@@ -34,7 +61,7 @@ public abstract class ElementUse implements Matchable {
         if (referenceId == null)
             System.out.println("ERROR: Use not matched: " + this);
         String useId = this.toString();
-        return new Usage(position, sourceFile.getRelativePath(), true, sourceFile.artifact, useId, referenceId, kind);
+        return new Usage(getPosition(), sourceFile.getRelativePath(), true, sourceFile.artifact, useId, referenceId, kind);
     }
 
     @Override
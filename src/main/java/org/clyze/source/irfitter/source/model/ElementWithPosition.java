@@ -1,5 +1,6 @@
 package org.clyze.source.irfitter.source.model;
 
+import java.io.Serializable;
 import java.util.Map;
 import org.clyze.persistent.model.Position;
 import org.clyze.persistent.model.SymbolWithId;
@@ -7,8 +8,12 @@ import org.clyze.source.irfitter.ir.model.IRElement;
 import org.clyze.source.irfitter.ir.model.IRType;
 
 public abstract class ElementWithPosition<T extends IRElement, S extends SymbolWithId>
-implements Matchable {
-    public Position pos;
+implements Matchable, Serializable {
+    private static final long serialVersionUID = 1L;
+    /** The packed start of the source position (see {@link Positions}). */
+    private long startPos;
+    /** The packed end of the source position. */
+    private long endPos;
     public final SourceFile srcFile;
     public String matchId = null;
     public S symbol = null;
@@ -16,7 +21,58 @@ implements Matchable {
 
     protected ElementWithPosition(SourceFile srcFile, Position pos) {
         this.srcFile = srcFile;
-        this.pos = pos;
+        setPosition(pos);
+    }
+
+    /**
+     * Copy an element to the source file of a model copier. The copy has no
+     * match information.
+     * @param original   the original element
+     * @param copier     the model copier
+     */
+    ElementWithPosition(ElementWithPosition<T, S> original, ModelCopier copier) {
+        copier.register(original, this);
+        this.srcFile = copier.sourceFile;
+        this.startPos = original.startPos;
+        this.endPos = original.endPos;
+    }
+
+    /**
+     * Returns the source position of this element. Positions are stored
+     * packed, so every call creates a new object: callers that need the
+     * position more than once should keep the result. The position is
+     * normally requested once, when the symbol of the element is created
+     * (and the symbol keeps it).
+     * @return   the position or null if the element has no position
+     */
+    public Position getPosition() {
+        return Positions.toPosition(startPos, endPos);
+    }
+
+    /**
+     * Returns true if this element has a source position (without creating
+     * the position object).
+     * @return   true if the element has a position
+     */
+    public boolean hasPosition() {
+        return startPos != Positions.NONE;
+    }
+
+    /**
+     * Set the source position of this element.
+     * @param pos   the position (may be null)
+     */
+    public void setPosition(Position pos) {
+        this.startPos = Positions.start(pos);
+        this.endPos = Positions.end(pos);
+    }
+
+    /**
+     * Returns the line where this element starts.
+     * @return   the line or -1 if the element has no position
+     */
+    public int getStartLine() {
+        return startPos == Positions.NONE ? -1 : Positions.line(startPos);
     }
 
     public abstract void initSymbolFromIRElement(T irElement);
@@ -30,7 +86,7 @@ implements Matchable {
      * @return a string representation of the location of this element
      */
     protected String getLocation() {
-        return Utils.getLocation(srcFile.getRelativePath(), pos);
+        return Utils.getLocation(srcFile.getRelativePath(), getPosition());
     }
 
     @Override
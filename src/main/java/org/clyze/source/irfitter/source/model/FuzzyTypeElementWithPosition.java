@@ -7,11 +7,16 @@ import org.clyze.source.irfitter.ir.model.IRElement;
 
 public abstract class FuzzyTypeElementWithPosition<T extends IRElement, S extends SymbolWithId>
         extends ElementWithPosition<T, S> implements FuzzyTypes{
+    private static final long serialVersionUID = 1L;
 
     protected FuzzyTypeElementWithPosition(SourceFile srcFile, Position pos) {
         super(srcFile, pos);
     }
 
+    FuzzyTypeElementWithPosition(FuzzyTypeElementWithPosition<T, S> original, ModelCopier copier) {
+        super(original, copier);
+    }
+
     @Override
     public SourceFile getSourceFile() {
         return this.srcFile;
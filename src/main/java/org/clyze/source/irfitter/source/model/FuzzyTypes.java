@@ -13,12 +13,26 @@ public interface FuzzyTypes {
     SourceFile getSourceFile();
 
     /**
-     * Given a simple type, compute possible fully-qualified names.
+     * Given a simple type, compute possible fully-qualified names. If the
+     * source file has a type resolver, the names are narrowed down to the
+     * types known to the IR.
      * @param type  the source-level type
      * @return      a collection of possible fully-qualified type names
      */
     default Collection<String> resolveType(String type) {
         SourceFile sourceFile = getSourceFile();
+        TypeResolver typeResolver = sourceFile.getTypeResolver();
+        return typeResolver == null ? resolveType(sourceFile, type) : typeResolver.resolve(type);
+    }
+
+    /**
+     * Given a simple type, compute possible fully-qualified names, using
+     * the declarations and the imports of a source file.
+     * @param sourceFile  the source file that contains the type
+     * @param type        the source-level type
+     * @return            a collection of possible fully-qualified type names
+     */
+    static Collection<String> resolveType(SourceFile sourceFile, String type) {
         if (type == null)
             return Collections.singletonList("void");
         type = Utils.simplifyType(type);
@@ -2,6 +2,7 @@ package org.clyze.source.irfitter.source.model;
 
 import java.util.*;
 import java.util.function.Predicate;
+import org.clyze.persistent.model.Position;
 import org.clyze.source.irfitter.ir.model.IRElement;
 
 /**
@@ -18,6 +19,14 @@ public class IdMapper {
     public final Map<String, Collection<JMethodRef>> methodRefMap = new HashMap<>();
     public final Map<String, Collection<JVariable>> variableMap = new HashMap<>();
     private final boolean debug;
+    /** The names of the saved statistics counters. */
+    private static final String[] STAT_KEYS = {
+        "allTypes", "matchedTypes", "allMethods", "matchedMethods",
+        "allFields", "matchedFields", "allInvos", "matchedInvos",
+        "allAllocs", "matchedAllocs", "allMethodRefs", "matchedMethodRefs",
+        "allFieldAccesses", "matchedFieldAccesses", "allUses", "matchedUses",
+        "allVariables", "matchedVariables"
+    };
     public long allTypes = 0, matchedTypes = 0;
     public long allMethods = 0, matchedMethods = 0;
     public long allFields = 0, matchedFields = 0;
@@ -49,54 +58,138 @@ public class IdMapper {
         return mapping;
     }
 
+    /**
+     * Group the elements by source file, without merging the mappings.
+     * @return   the elements of every source file (in a fixed order)
+     */
+    public Map<SourceFile, List<ElementWithPosition<?, ?>>> getElementsBySourceFile() {
+        Map<SourceFile, List<ElementWithPosition<?, ?>>> elements = new HashMap<>();
+        for (Map<String, ? extends Collection<? extends ElementWithPosition<?, ?>>> map :
+                 Arrays.asList(typeMap, fieldMap, methodMap, invocationMap, allocationMap, fieldAccessMap, methodRefMap, variableMap))
+            for (Collection<? extends ElementWithPosition<?, ?>> elems : map.values())
+                for (ElementWithPosition<?, ?> elem : elems)
+                    elements.computeIfAbsent(elem.srcFile, k -> new ArrayList<>()).add(elem);
+        return elements;
+    }
+
     public void calcStats(Collection<SourceFile> sources) {
-        for (SourceFile sf : sources) {
-            Set<JType> srcTypes = sf.jTypes;
-            allTypes += srcTypes.size();
-            for (JType srcType : srcTypes) {
-                if (srcType.matchId != null)
-                    matchedTypes++;
+        for (SourceFile sf : sources)
+            addStats(sf);
+        printStats();
+    }
+
+    /**
+     * Add the elements of a source file to the statistics.
+     * @param sf   the source file
+     */
+    public void addStats(SourceFile sf) {
+        Set<JType> srcTypes = sf.jTypes;
+        allTypes += srcTypes.size();
+        for (JType srcType : srcTypes) {
+            if (srcType.matchId != null)
+                matchedTypes++;
+            else
+                reportUnmatched(srcType);
+            List<JMethod> srcMethods = srcType.methods;
+            allMethods += srcMethods.size();
+            for (JMethod srcMethod : srcMethods) {
+                if (srcMethod.matchId != null || srcMethod.mayNotBeMatched())
+                    matchedMethods++;
                 else
-                    reportUnmatched(srcType);
-                List<JMethod> srcMethods = srcType.methods;
-                allMethods += srcMethods.size();
-                for (JMethod srcMethod : srcMethods) {
-                    if (srcMethod.matchId != null || srcMethod.mayNotBeMatched())
-                        matchedMethods++;
-                    else
-                        reportUnmatched(srcMethod);
-                    List<JMethodInvocation> srcInvos = srcMethod.invocations;
-                    allInvos += srcInvos.size();
-                    matchedInvos += countMatched(srcInvos);
-                    List<JAllocation> srcAllocs = srcMethod.allocations;
-                    allAllocs += srcAllocs.size();
-                    matchedAllocs += countMatched(srcAllocs);
-                    List<JFieldAccess> fieldAccesses = srcMethod.fieldAccesses;
-                    allFieldAccesses += fieldAccesses.size();
-                    matchedFieldAccesses += countMatched(fieldAccesses);
-                    List<JMethodRef> methodRefs = srcMethod.methodRefs;
-                    if (methodRefs != null) {
-                        allMethodRefs += methodRefs.size();
-                        matchedMethodRefs += countMatched(methodRefs);
-                    }
-                    allUses += srcMethod.elementUses.size();
-                    matchedUses += countMatched(srcMethod.elementUses);
-                    allVariables += srcMethod.parameters.size();
-                    matchedVariables += countMatched(srcMethod.parameters);
-                    for (JBlock block : srcMethod.blocks) {
-                        List<JVariable> locals = block.getVariables();
-                        if (locals != null) {
-                            allVariables += locals.size();
-                            matchedVariables += countMatched(locals);
-                        }
+                    reportUnmatched(srcMethod);
+                List<JMethodInvocation> srcInvos = srcMethod.invocations;
+                allInvos += srcInvos.size();
+                matchedInvos += countMatched(srcInvos);
+                List<JAllocation> srcAllocs = srcMethod.allocations;
+                allAllocs += srcAllocs.size();
+                matchedAllocs += countMatched(srcAllocs);
+                List<JFieldAccess> fieldAccesses = srcMethod.fieldAccesses;
+                allFieldAccesses += fieldAccesses.size();
+                matchedFieldAccesses += countMatched(fieldAccesses);
+                List<JMethodRef> methodRefs = srcMethod.methodRefs;
+                if (methodRefs != null) {
+                    allMethodRefs += methodRefs.size();
+                    matchedMethodRefs += countMatched(methodRefs);
+                }
+                allUses += srcMethod.elementUses.size();
+                matchedUses += countMatched(srcMethod.elementUses);
+                allVariables += srcMethod.parameters.size();
+                matchedVariables += countMatched(srcMethod.parameters);
+                for (JBlock block : srcMethod.blocks) {
+                    List<JVariable> locals = block.getVariables();
+                    if (locals != null) {
+                        allVariables += locals.size();
+                        matchedVariables += countMatched(locals);
                     }
-
                 }
-                List<JField> srcFields = srcType.fields;
-                allFields += srcFields.size();
-                matchedFields += countMatchedFields(srcFields);
+
             }
+            List<JField> srcFields = srcType.fields;
+            allFields += srcFields.size();
+            matchedFields += countMatchedFields(srcFields);
         }
+    }
+
+    /**
+     * Save the statistics counters (e.g. to merge them with the counters of
+     * another process).
+     * @param props   the properties to fill
+     */
+    public void saveStats(Properties props) {
+        long[] counters = getCounters();
+        for (int i = 0; i < counters.length; i++)
+            props.setProperty(STAT_KEYS[i], String.valueOf(counters[i]));
+    }
+
+    /**
+     * Returns the names of the saved statistics counters.
+     * @return   the counter names (in a fixed order)
+     * @see #saveStats(Properties)
+     */
+    public static List<String> getStatKeys() {
+        return Collections.unmodifiableList(Arrays.asList(STAT_KEYS));
+    }
+
+    /**
+     * Add saved statistics counters to the statistics.
+     * @param props   the saved counters
+     * @see #saveStats(Properties)
+     */
+    public void addStats(Properties props) {
+        long[] counters = getCounters();
+        for (int i = 0; i < counters.length; i++)
+            counters[i] += Long.parseLong(props.getProperty(STAT_KEYS[i], "0"));
+        allTypes = counters[0];
+        matchedTypes = counters[1];
+        allMethods = counters[2];
+        matchedMethods = counters[3];
+        allFields = counters[4];
+        matchedFields = counters[5];
+        allInvos = counters[6];
+        matchedInvos = counters[7];
+        allAllocs = counters[8];
+        matchedAllocs = counters[9];
+        allMethodRefs = counters[10];
+        matchedMethodRefs = counters[11];
+        allFieldAccesses = counters[12];
+        matchedFieldAccesses = counters[13];
+        allUses = counters[14];
+        matchedUses = counters[15];
+        allVariables = counters[16];
+        matchedVariables = counters[17];
+    }
+
+    /** The statistics counters, in the order of {@link #STAT_KEYS}. */
+    private long[] getCounters() {
+        return new long[] { allTypes, matchedTypes, allMethods, matchedMethods,
+                            allFields, matchedFields, allInvos, matchedInvos,
+                            allAllocs, matchedAllocs, allMethodRefs, matchedMethodRefs,
+                            allFieldAccesses, matchedFieldAccesses, allUses, matchedUses,
+                            allVariables, matchedVariables };
+    }
+
+    /** Print the statistics. */
+    public void printStats() {
         System.out.println("== Statistics ==");
         printStat("Matched (source) types          : ", matchedTypes, allTypes);
         printStat("Matched (source) fields         : ", matchedFields, allFields);
@@ -186,7 +279,8 @@ public class IdMapper {
     public <IR_ELEM_T extends IRElement, SRC_ELEM_T extends ElementWithPosition<IR_ELEM_T, ?>>
     void matchElements(String kind, IR_ELEM_T irElem, SRC_ELEM_T srcElem, String id) {
         if (debug) {
-            String pos = srcElem.pos == null ? "unknown" : srcElem.pos.toString();
+            Position srcPos = srcElem.getPosition();
+            String pos = srcPos == null ? "unknown" : srcPos.toString();
             System.out.println("Match [" + kind + "] " + id + " -> " + srcElem.srcFile.getRelativePath() + ":" + pos);
         }
         if (srcElem.matchId == null) {
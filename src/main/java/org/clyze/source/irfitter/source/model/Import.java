@@ -1,11 +1,13 @@
 package org.clyze.source.irfitter.source.model;
 
+import java.io.Serializable;
 import org.clyze.persistent.model.Position;
 
 import java.util.StringJoiner;
 
 /** An import declaration at the top of a source file. */
-public class Import {
+public class Import implements Serializable {
+    private static final long serialVersionUID = 1L;
     /** The name after the {@code import} keyword. */
     public final String name;
     /** If the import ends in ".*". */
@@ -14,8 +16,10 @@ public class Import {
     public final boolean isStatic;
     /** For non-static imports, also store the "simple" type (no package prefix). */
     public final String simpleType;
-    /** The source code position that will be reported for this element. */
-    public final Position pos;
+    /** The packed start of the position that will be reported for this element (see {@link Positions}). */
+    private final long startPos;
+    /** The packed end of the position. */
+    private final long endPos;
 
     /**
      * Create a new import declaration.
@@ -25,13 +29,22 @@ public class Import {
      * @param isStatic     if this is a static import
      */
     public Import(Position pos, String name, boolean isAsterisk, boolean isStatic) {
-        this.pos = pos;
+        this.startPos = Positions.start(pos);
+        this.endPos = Positions.end(pos);
         this.name = name;
         this.isAsterisk = isAsterisk;
         this.isStatic = isStatic;
         this.simpleType = isStatic ? null : Utils.getSimpleType(name);
     }
 
+    /**
+     * Returns the source position of this import (as a new object).
+     * @return   the position
+     */
+    public Position getPosition() {
+        return Positions.toPosition(startPos, endPos);
+    }
+
     @Override
     public String toString() {
         StringJoiner sj = new StringJoiner("/");
@@ -43,6 +56,6 @@ public class Import {
     }
 
     public String getUniqueId(SourceFile sourceFile) {
-        return "import-" + pos + "@" + sourceFile.getRelativePath();
+        return "import-" + getPosition() + "@" + sourceFile.getRelativePath();
     }
 }
@@ -8,6 +8,7 @@ import org.clyze.source.irfitter.ir.model.IRAllocation;
 /** An object allocation site in the source code. */
 public class JAllocation extends ElementWithPosition<IRAllocation, JvmHeapAllocation>
 implements AbstractAllocation, Targetable {
+    private static final long serialVersionUID = 1L;
     public final String allocType;
     /** The target of the allocation (such as "x" in {@code x = new T()}). */
     private JVariable target = null;
@@ -23,11 +24,17 @@ implements AbstractAllocation, Targetable {
         this.allocType = allocType;
     }
 
+    JAllocation(JAllocation original, ModelCopier copier) {
+        super(original, copier);
+        this.allocType = original.allocType;
+        this.target = copier.copy(original.target);
+    }
+
     @Override
     public void initSymbolFromIRElement(IRAllocation irAlloc) {
         if (symbol == null) {
             matchElement = irAlloc;
-            symbol = new JvmHeapAllocation(pos, srcFile.getRelativePath(), true,
+            symbol = new JvmHeapAllocation(getPosition(), srcFile.getRelativePath(), true,
                     srcFile.artifact, irAlloc.getId(), irAlloc.allocatedTypeDoopId,
                     irAlloc.allocatingMethodDoopId, irAlloc.inIIB, irAlloc.isArray);
         } else
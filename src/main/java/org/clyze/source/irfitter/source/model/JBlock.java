@@ -1,5 +1,6 @@
 package org.clyze.source.irfitter.source.model;
 
+import java.io.Serializable;
 import java.util.*;
 import org.clyze.persistent.model.Position;
 
@@ -7,14 +8,15 @@ import org.clyze.persistent.model.Position;
  * A source code block such as curly-bracket blocks in Java or parenthesis-blocks
  * in Kotlin.
  */
-public class JBlock {
+public class JBlock implements Serializable {
+    private static final long serialVersionUID = 1L;
     /** The id of the block. Unique per source file. */
     public final String id;
     /** The parent block (or null). */
     public final JBlock parent;
     private List<JVariable> variables = null;
     /** Cached results of previous variable lookups. */
-    private Map<String, Result> cachedLookups;
+    private transient Map<String, Result> cachedLookups;
     /** The type containing this block. */
     public final JType enclosingType;
 
@@ -30,6 +32,14 @@ public class JBlock {
         this.enclosingType = enclosingType;
     }
 
+    JBlock(JBlock original, ModelCopier copier) {
+        copier.register(original, this);
+        this.id = original.id;
+        this.parent = copier.copy(original.parent);
+        this.enclosingType = copier.copy(original.enclosingType);
+        this.variables = copier.copyList(original.variables);
+    }
+
     /**
      * Crates a block starting at the specified position.
      * @param pos            the starting position of the block
@@ -9,6 +9,7 @@ import org.clyze.source.irfitter.ir.model.IRCast;
  * A type casting expression in the sources.
  */
 public class JCast extends ElementWithPosition<IRCast, Usage> implements Targetable {
+    private static final long serialVersionUID = 1L;
     public final String type;
     private JVariable target = null;
 
@@ -17,17 +18,23 @@ public class JCast extends ElementWithPosition<IRCast, Usage> implements Targeta
         this.type = type;
     }
 
+    JCast(JCast original, ModelCopier copier) {
+        super(original, copier);
+        this.type = original.type;
+        this.target = copier.copy(original.target);
+    }
+
     @Override
     public void initSymbolFromIRElement(IRCast irElement) {
         if (symbol == null)
-            symbol = new Usage(pos, srcFile.getRelativePath(), true, srcFile.artifact, irElement.getId(), irElement.methodId, UsageKind.TYPE);
+            symbol = new Usage(getPosition(), srcFile.getRelativePath(), true, srcFile.artifact, irElement.getId(), irElement.methodId, UsageKind.TYPE);
         else
             System.out.println("WARNING: symbol already initialized: " + symbol.getSymbolId());
     }
 
     @Override
     public String toString() {
-        return "cast:: " + type + " [target=" + target + "]@" + this.srcFile + ", " + pos;
+        return "cast:: " + type + " [target=" + target + "]@" + this.srcFile + ", " + getPosition();
     }
 
     @Override
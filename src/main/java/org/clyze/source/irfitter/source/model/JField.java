@@ -9,6 +9,7 @@ import org.clyze.persistent.model.Position;
  * A source field that can be mapped to an IR field.
  */
 public class JField extends FuzzyTypeElementWithPosition<IRField, JvmField> {
+    private static final long serialVersionUID = 1L;
     /** The type of the field (sources, not necessarily qualified). */
     public final String type;
     /** The name of the field. */
@@ -24,7 +25,16 @@ public class JField extends FuzzyTypeElementWithPosition<IRField, JvmField> {
         this.type = type;
         this.name = name;
         this.parent = parent;
-        this.annotations = new HashSet<>(annotations);
+        this.annotations = Utils.internAnnotations(annotations);
+    }
+
+    JField(JField original, ModelCopier copier) {
+        super(original, copier);
+        this.type = original.type;
+        this.name = original.name;
+        this.parent = copier.copy(original.parent);
+        this.annotations = original.annotations;
+        this.mayBeInlined = original.mayBeInlined;
     }
 
     @Override
@@ -46,7 +56,7 @@ public class JField extends FuzzyTypeElementWithPosition<IRField, JvmField> {
     @Override
     public void initSymbolFromIRElement(IRField irField) {
         if (symbol == null) {
-            symbol = new JvmField(pos, srcFile.getRelativePath(), true, srcFile.artifact, name,
+            symbol = new JvmField(getPosition(), srcFile.getRelativePath(), true, srcFile.artifact, name,
                     irField.getId(), irField.type,
                     parent == null ? null : parent.getFullyQualifiedName(),
                     irField.mp.isStatic());
@@ -11,6 +11,7 @@ import org.clyze.source.irfitter.ir.model.IRType;
 
 /** A field read/write in the source code. */
 public class JFieldAccess extends ElementWithPosition<IRFieldAccess, Usage> implements FuzzyTypes {
+    private static final long serialVersionUID = 1L;
     /** The type of the field access (read/write). */
     public final AccessType accessType;
     /** The type name if this is a static field access. */
@@ -38,6 +39,14 @@ public class JFieldAccess extends ElementWithPosition<IRFieldAccess, Usage> impl
         this.target = target;
     }
 
+    JFieldAccess(JFieldAccess original, ModelCopier copier) {
+        super(original, copier);
+        this.accessType = original.accessType;
+        this.staticTypeName = original.staticTypeName;
+        this.fieldName = original.fieldName;
+        this.target = copier.copy(original.target);
+    }
+
     @Override
     public void initSymbolFromIRElement(IRFieldAccess irElement) {
         if (symbol == null) {
@@ -55,7 +64,7 @@ public class JFieldAccess extends ElementWithPosition<IRFieldAccess, Usage> impl
     }
 
     private Usage getUsageWith(String id, String fieldId) {
-        return new Usage(pos, srcFile.getRelativePath(), true, srcFile.artifact, id, fieldId, accessType.kind);
+        return new Usage(getPosition(), srcFile.getRelativePath(), true, srcFile.artifact, id, fieldId, accessType.kind);
     }
 
     @Override
@@ -12,6 +12,7 @@ import org.clyze.persistent.model.jvm.JvmMethod;
  * init blocks in the source.
  */
 public class JInit extends JMethod {
+    private static final long serialVersionUID = 1L;
     /** The low-level name of class initializers. */
     public static final String CLINIT = "<clinit>";
     /** The low-level name of instance initializers (constructors). */
@@ -32,7 +33,13 @@ public class JInit extends JMethod {
     private JInit(SourceFile srcFile, JType declaringType, String name, boolean isStatic) {
         super(srcFile, name, "void", Collections.emptyList(), Collections.emptySet(), null, declaringType, null, false);
         this.isStatic = isStatic;
-        setReceiver(declaringType.pos);
+        setReceiver(declaringType.getPosition());
+    }
+
+    JInit(JInit original, ModelCopier copier) {
+        super(original, copier);
+        this.source = original.source;
+        this.isStatic = original.isStatic;
     }
 
     public static JInit createClinit(SourceFile srcFile, JType declaringType) {
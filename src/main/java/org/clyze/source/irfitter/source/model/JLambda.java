@@ -1,7 +1,7 @@
 package org.clyze.source.irfitter.source.model;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import org.clyze.persistent.model.Position;
 import org.clyze.source.irfitter.ir.model.IRMethod;
@@ -10,9 +10,14 @@ import org.clyze.source.irfitter.ir.model.IRMethod;
  * A source-level lambda (such as Java 8 lambdas).
  */
 public class JLambda extends JMethod {
+    private static final long serialVersionUID = 1L;
     public JLambda(SourceFile srcFile, String name, List<JVariable> parameters,
                    Position outerPos, JType parent, Position pos) {
-        super(srcFile, name, null, parameters, new HashSet<>(), outerPos, parent, pos, false);
+        super(srcFile, name, null, parameters, Collections.emptySet(), outerPos, parent, pos, false);
+    }
+
+    JLambda(JLambda original, ModelCopier copier) {
+        super(original, copier);
     }
 
     @Override
@@ -37,7 +42,7 @@ public class JLambda extends JMethod {
         } catch (BadArity badArity) {
             System.err.println("ERROR: bad arity in lambda: " + this);
         }
-        symbol = JMethod.fromIRMethod(irMethod, srcFile, irMethod.name, parameterNames, parameterTypes, pos, outerPos, parent);
+        symbol = JMethod.fromIRMethod(irMethod, srcFile, irMethod.name, parameterNames, parameterTypes, getPosition(), outerPos, parent);
     }
 
     @Override
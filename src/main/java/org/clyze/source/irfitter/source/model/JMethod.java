@@ -13,6 +13,7 @@ import org.clyze.persistent.model.Position;
 /** A method in the source code. */
 public class JMethod extends FuzzyTypeElementWithPosition<IRMethod, JvmMethod>
 implements AbstractMethod {
+    private static final long serialVersionUID = 1L;
     public final String name;
     private final String retType;
     public final List<JVariable> parameters;
@@ -22,15 +23,15 @@ implements AbstractMethod {
     /** The span between the first and last character of the lambda. */
     public Position outerPos;
     /** The method invocations found in the method body. */
-    public final List<JMethodInvocation> invocations = new ArrayList<>();
+    public List<JMethodInvocation> invocations = Collections.emptyList();
     /** The object allocations found in the method body. */
-    public final List<JAllocation> allocations = new ArrayList<>();
+    public List<JAllocation> allocations = Collections.emptyList();
     /** The field accesses (reads/writes) that appear in the method body. */
-    public final List<JFieldAccess> fieldAccesses = new ArrayList<>();
+    public List<JFieldAccess> fieldAccesses = Collections.emptyList();
     /** The annotations found in the source code. */
     public final Set<String> annotations;
     /** The blocks contained in the method. */
-    public final List<JBlock> blocks = new ArrayList<>();
+    public List<JBlock> blocks = Collections.emptyList();
     /** The method references found in the source code. */
     public List<JMethodRef> methodRefs = null;
     /** The casts found in the source code. */
@@ -38,7 +39,7 @@ implements AbstractMethod {
     /** The lambdas found in the method. */
     public List<JLambda> lambdas = null;
     /** The element uses found in the source code. */
-    public final List<ElementUse> elementUses = new ArrayList<>();
+    public List<ElementUse> elementUses = Collections.emptyList();
     private Collection<String> cachedIds = null;
     /** True if this method accepts varargs. */
     private final boolean isVarArgs;
@@ -49,6 +50,8 @@ implements AbstractMethod {
      * and represents the end of such calls.
      */
     public MethodBodyFrontier explicitConstrEnd = null;
+    /** The deferred visit of the method body (when bodies are visited on demand). */
+    private transient Runnable bodyVisit = null;
 
     public JMethod(SourceFile srcFile, String name, String retType,
                    List<JVariable> parameters, Set<String> annotations,
@@ -57,13 +60,44 @@ implements AbstractMethod {
         this.name = name;
         this.retType = retType;
         this.parameters = parameters;
-        this.annotations = new HashSet<>(annotations);
+        this.annotations = Utils.internAnnotations(annotations);
         this.parent = parent;
         this.arity = parameters.size();
         this.outerPos = outerPos;
         this.isVarArgs = isVarArgs;
     }
 
+    /**
+     * Copy a method to the source file of a model copier. The method body
+     * must have been visited.
+     * @param original   the original method
+     * @param copier     the model copier
+     */
+    JMethod(JMethod original, ModelCopier copier) {
+        super(original, copier);
+        if (original.bodyVisit != null)
+            throw new IllegalStateException("Cannot copy method with unvisited body: " + original);
+        this.name = original.name;
+        this.retType = original.retType;
+        this.parameters = copier.copyList(original.parameters);
+        this.receiver = copier.copy(original.receiver);
+        this.arity = original.arity;
+        this.parent = copier.copy(original.parent);
+        this.outerPos = original.outerPos;
+        this.invocations = copier.copyList(original.invocations);
+        this.allocations = copier.copyList(original.allocations);
+        this.fieldAccesses = copier.copyList(original.fieldAccesses);
+        this.annotations = original.annotations;
+        this.blocks = copier.copyList(original.blocks);
+        this.methodRefs = copier.copyList(original.methodRefs);
+        this.casts = copier.copyList(original.casts);
+        this.lambdas = copier.copyList(original.lambdas);
+        this.elementUses = copier.copyList(original.elementUses);
+        this.isVarArgs = original.isVarArgs;
+        this.outerThisAccesses = copier.copyCollection(original.outerThisAccesses);
+        this.explicitConstrEnd = original.explicitConstrEnd;
+    }
+
     @Override
     public Collection<String> getIds() {
         if (cachedIds == null) {
@@ -141,8 +175,12 @@ implements AbstractMethod {
             }
             // When a class has a <clinit>() initializer but no static initializer
             // block in the sources, set the position to the type declaration.
-            if (JInit.CLINIT.equals(name) && (pos == null))
-                pos = parent.pos;
+            Position pos;
+            if (JInit.CLINIT.equals(name) && !hasPosition()) {
+                pos = parent.getPosition();
+                setPosition(pos);
+            } else
+                pos = getPosition();
             JvmMethod meth = fromIRMethod(irMethod, srcFile, name, paramNames, paramTypes, pos, outerPos, parent);
             meth.setAnnotations(annotations);
             symbol = meth;
@@ -192,6 +230,41 @@ implements AbstractMethod {
         return name != null && name.equals(parent.getUnqualifiedName());
     }
 
+    /**
+     * Postpone the visit of the method body until it is needed.
+     * @param bodyVisit   the code that visits the method body
+     */
+    public void deferBody(Runnable bodyVisit) {
+        this.bodyVisit = bodyVisit;
+    }
+
+    /**
+     * Check if the method body has not been visited yet.
+     * @return true if the body visit is still pending
+     */
+    public boolean hasDeferredBody() {
+        return bodyVisit != null;
+    }
+
+    /**
+     * Visit the method body now, if its visit was postponed. The visit
+     * happens at most once.
+     */
+    public void visitBody() {
+        Runnable visit = bodyVisit;
+        if (visit != null) {
+            bodyVisit = null;
+            visit.run();
+        }
+    }
+
+    /**
+     * Drop a postponed body visit (so that the parse tree can be released).
+     */
+    public void discardBody() {
+        bodyVisit = null;
+    }
+
     @Override
     public List<? extends AbstractMethodInvocation> getInvocations() {
         return invocations;
@@ -226,11 +299,38 @@ implements AbstractMethod {
         else {
             if (sourceFile.debug)
                 System.out.println("Adding invocation: " + invo);
-            invocations.add(invo);
+            addInvocation(invo);
         }
         return invo;
     }
 
+    /**
+     * Add a method invocation.
+     * @param invo    the invocation to add
+     */
+    public void addInvocation(JMethodInvocation invo) {
+        invocations = Utils.mutableList(invocations);
+        invocations.add(invo);
+    }
+
+    /**
+     * Add a field access.
+     * @param fieldAccess    the field access to add
+     */
+    public void addFieldAccess(JFieldAccess fieldAccess) {
+        fieldAccesses = Utils.mutableList(fieldAccesses);
+        fieldAccesses.add(fieldAccess);
+    }
+
+    /**
+     * Add a block.
+     * @param block   the block to add
+     */
+    public void addBlock(JBlock block) {
+        blocks = Utils.mutableList(blocks);
+        blocks.add(block);
+    }
+
     /**
      * Record an object allocation inside this method.
      * @param sourceFile     the source file
@@ -246,6 +346,7 @@ implements AbstractMethod {
         else {
             if (sourceFile.debug)
                 System.out.println("Adding allocation: " + alloc);
+            allocations = Utils.mutableList(allocations);
             allocations.add(alloc);
         }
         return alloc;
@@ -293,7 +394,7 @@ implements AbstractMethod {
      * Sets up the hidden receiver parameter for instance methods.
      */
     public void setReceiver() {
-        setReceiver(pos);
+        setReceiver(getPosition());
     }
 
     protected void setReceiver(Position pos) {
@@ -310,6 +411,7 @@ implements AbstractMethod {
         VarUse vu = new VarUse(srcFile, position, kind, var);
         if (srcFile.debug)
             System.out.println("Adding variable use: " + vu);
+        elementUses = Utils.mutableList(elementUses);
         elementUses.add(vu);
     }
 
@@ -387,6 +489,24 @@ implements AbstractMethod {
      */
     public static class BadArity extends Exception {}
 
+    /**
+     * Release the unused capacity of the element lists (when the method body
+     * has been visited).
+     */
+    public void compact() {
+        Utils.trimList(invocations);
+        Utils.trimList(allocations);
+        Utils.trimList(fieldAccesses);
+        Utils.trimList(blocks);
+        Utils.trimList(elementUses);
+        if (methodRefs != null)
+            Utils.trimList(methodRefs);
+        if (casts != null)
+            Utils.trimList(casts);
+        if (lambdas != null)
+            Utils.trimList(lambdas);
+    }
+
     /**
      * Checks if this method has an empty body (for matching).
      * @return  if true, the method can be skipped during matching
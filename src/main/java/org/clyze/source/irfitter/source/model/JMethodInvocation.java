@@ -8,6 +8,7 @@ import org.clyze.source.irfitter.ir.model.IRMethodInvocation;
 /** A method invocation in the source code. */
 public class JMethodInvocation extends ElementWithPosition<IRMethodInvocation, JvmMethodInvocation>
 implements AbstractMethodInvocation, Targetable {
+    private static final long serialVersionUID = 1L;
     /** The method containing the invocation line. */
     public final JMethod parent;
     /** The name of the invoked method. */
@@ -51,11 +52,23 @@ implements AbstractMethodInvocation, Targetable {
         this.explicitConstructor = explicitConstructor;
     }
 
+    JMethodInvocation(JMethodInvocation original, ModelCopier copier) {
+        super(original, copier);
+        this.methodName = original.methodName;
+        this.arity = original.arity;
+        this.parent = copier.copy(original.parent);
+        this.inIIB = original.inIIB;
+        this.block = copier.copy(original.block);
+        this.base = original.base;
+        this.target = copier.copy(original.target);
+        this.explicitConstructor = original.explicitConstructor;
+    }
+
     @Override
     public void initSymbolFromIRElement(IRMethodInvocation irMethodInvocation) {
         if (symbol == null) {
             matchElement = irMethodInvocation;
-            symbol = new JvmMethodInvocation(pos, srcFile.getRelativePath(),
+            symbol = new JvmMethodInvocation(getPosition(), srcFile.getRelativePath(),
                     true, srcFile.artifact,
                     methodName, irMethodInvocation.getId(),
                     irMethodInvocation.targetType,
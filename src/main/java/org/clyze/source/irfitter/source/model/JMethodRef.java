@@ -11,6 +11,7 @@ import org.clyze.source.irfitter.ir.model.IRMethodRef;
  * the type part of the reference.
  */
 public class JMethodRef extends ElementWithPosition<IRMethodRef, Usage> {
+    private static final long serialVersionUID = 1L;
     /** The name of the method. */
     public final String methodName;
 
@@ -19,15 +20,20 @@ public class JMethodRef extends ElementWithPosition<IRMethodRef, Usage> {
         this.methodName = methodName;
     }
 
+    JMethodRef(JMethodRef original, ModelCopier copier) {
+        super(original, copier);
+        this.methodName = original.methodName;
+    }
+
     @Override
     public String toString() {
-        return "method-ref:: " + methodName + "@" + this.srcFile + ", " + pos;
+        return "method-ref:: " + methodName + "@" + this.srcFile + ", " + getPosition();
     }
 
     @Override
     public void initSymbolFromIRElement(IRMethodRef irElement) {
         if (symbol == null)
-            symbol = new Usage(pos, srcFile.getRelativePath(), true, srcFile.artifact, irElement.getId(), irElement.methodId, UsageKind.FUNCTION);
+            symbol = new Usage(getPosition(), srcFile.getRelativePath(), true, srcFile.artifact, irElement.getId(), irElement.methodId, UsageKind.FUNCTION);
         else
             System.out.println("WARNING: symbol already initialized: " + symbol.getSymbolId());
     }
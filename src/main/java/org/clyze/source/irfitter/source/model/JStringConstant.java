@@ -1,5 +1,6 @@
 package org.clyze.source.irfitter.source.model;
 
+import java.io.Serializable;
 import org.clyze.persistent.model.Position;
 import org.clyze.persistent.model.jvm.JvmStringConstant;
 
@@ -9,10 +10,13 @@ import org.clyze.persistent.model.jvm.JvmStringConstant;
  *
  * @param <T> the type of the element (field, variable) initialized by the constant
  */
-public class JStringConstant<T> {
+public class JStringConstant<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
     private final SourceFile sourceFile;
-    /** The position of the string constant in the source code. */
-    public final Position pos;
+    /** The packed start of the position of the constant in the source code (see {@link Positions}). */
+    private final long startPos;
+    /** The packed end of the position. */
+    private final long endPos;
     private final T srcElement;
     /** The string value (without quotes). */
     public final String value;
@@ -26,11 +30,29 @@ public class JStringConstant<T> {
      */
     public JStringConstant(SourceFile sourceFile, Position pos, T srcElement, String value) {
         this.sourceFile = sourceFile;
-        this.pos = pos;
+        this.startPos = Positions.start(pos);
+        this.endPos = Positions.end(pos);
         this.srcElement = srcElement;
         this.value = value;
     }
 
+    JStringConstant(JStringConstant<T> original, ModelCopier copier) {
+        copier.register(original, this);
+        this.sourceFile = copier.sourceFile;
+        this.startPos = original.startPos;
+        this.endPos = original.endPos;
+        this.srcElement = copier.copy(original.srcElement);
+        this.value = original.value;
+    }
+
+    /**
+     * Returns the source position of this constant (as a new object).
+     * @return   the position
+     */
+    public Position getPosition() {
+        return Positions.toPosition(startPos, endPos);
+    }
+
     /**
      * Generates the string constant metadata object, to be serialized to JSON.
      * @return  the string constant object
@@ -41,7 +63,7 @@ public class JStringConstant<T> {
             String fieldId = srcField.matchId;
             if (fieldId == null)
                 System.out.println("WARNING: string constant references unresolved field: " + srcField);
-            return new JvmStringConstant(pos, sourceFile.getRelativePath(), true, fieldId, value);
+            return new JvmStringConstant(getPosition(), sourceFile.getRelativePath(), true, fieldId, value);
         } else {
             System.out.println("WARNING: string constant is ignored for non-field element: " + srcElement);
             return null;
@@ -50,6 +72,6 @@ public class JStringConstant<T> {
 
     @Override
     public String toString() {
-        return "StringConstant[\"" + value + "\"]@" + pos;
+        return "StringConstant[\"" + value + "\"]@" + getPosition();
     }
 }
@@ -12,6 +12,7 @@ import org.clyze.utils.TypeUtils;
  * A reference type (such as a class, enum, or interface) in the source code.
  */
 public class JType extends ElementWithPosition<IRType, JvmClass> {
+    private static final long serialVersionUID = 1L;
     private final String name;
     public final JType parentType;
     public final ElementWithPosition<?, ?> declaringElement;
@@ -27,13 +28,13 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
     public final boolean isAnonymous;
     public final boolean isLambdaType;
     public final boolean isInner;
-    /** The class initializer ({@code <clinit>} in bytecode). */
-    public final JInit classInitializer;
+    /** The class initializer ({@code <clinit>} in bytecode), created on demand. */
+    private JInit classInitializer = null;
     /**
      * The instance initialization code that appears outside constructors
-     * (such as initializer blocks or field initializers).
+     * (such as initializer blocks or field initializers), created on demand.
      */
-    public final JInit instInitializer;
+    private JInit instInitializer = null;
     public final List<JField> fields = new ArrayList<>();
     public final List<JMethod> methods = new ArrayList<>();
     public final List<TypeUse> typeUses = new ArrayList<>();
@@ -56,7 +57,7 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
         super(srcFile, pos);
         this.name = name;
         this.superTypes = superTypes;
-        this.annotationTypes = annotationTypes;
+        this.annotationTypes = Utils.internAnnotations(annotationTypes);
         this.parentType = parentType;
         this.declaringElement = declaringElement;
         this.isPublic = isPublic;
@@ -69,10 +70,56 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
         this.isLambdaType = isLambdaType;
         this.isInterface = isInterface;
         this.isEnum = isEnum;
-        // Add <clinit>() method.
-        this.classInitializer = JInit.createClinit(srcFile, this);
-        // Add instance initializer block.
-        this.instInitializer = JInit.createInitBlock(srcFile, this);
+    }
+
+    JType(JType original, ModelCopier copier) {
+        super(original, copier);
+        this.name = original.name;
+        this.superTypes = original.superTypes == null ? null : new ArrayList<>(original.superTypes);
+        this.annotationTypes = original.annotationTypes;
+        this.parentType = copier.copy(original.parentType);
+        this.declaringElement = copier.copy(original.declaringElement);
+        this.isPublic = original.isPublic;
+        this.isInner = original.isInner;
+        this.isPrivate = original.isPrivate;
+        this.isProtected = original.isProtected;
+        this.isAbstract = original.isAbstract;
+        this.isFinal = original.isFinal;
+        this.isAnonymous = original.isAnonymous;
+        this.isLambdaType = original.isLambdaType;
+        this.isInterface = original.isInterface;
+        this.isEnum = original.isEnum;
+        this.classInitializer = copier.copy(original.classInitializer);
+        this.instInitializer = copier.copy(original.instInitializer);
+        for (JField f : original.fields)
+            this.fields.add(copier.copy(f));
+        for (JMethod m : original.methods)
+            this.methods.add(copier.copy(m));
+        for (TypeUse tu : original.typeUses)
+            this.typeUses.add(copier.copy(tu));
+        this.anonymousClassCounter = original.anonymousClassCounter;
+        this.methodTypeCounters = original.methodTypeCounters == null ? null : new HashMap<>(original.methodTypeCounters);
+        this.methodTypeCounter = original.methodTypeCounter;
+    }
+
+    /**
+     * Returns the class initializer ({@code <clinit>()} method) of this type.
+     * @return   the class initializer
+     */
+    public JInit getClassInitializer() {
+        if (classInitializer == null)
+            classInitializer = JInit.createClinit(srcFile, this);
+        return classInitializer;
+    }
+
+    /**
+     * Returns the instance initializer of this type.
+     * @return   the instance initializer
+     */
+    public JInit getInstanceInitializer() {
+        if (instInitializer == null)
+            instInitializer = JInit.createInitBlock(srcFile, this);
+        return instInitializer;
     }
 
     /**
@@ -141,7 +188,7 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
                                     boolean isInner, boolean isAnonymous, boolean isAbstract,
                                     boolean isFinal, boolean isPublic, boolean isProtected) {
         boolean isStatic = parentType != null && !isInner;
-        JvmClass jc = new JvmClass(pos, srcFile.getRelativePath(), true, srcFile.artifact, getSimpleName(),
+        JvmClass jc = new JvmClass(getPosition(), srcFile.getRelativePath(), true, srcFile.artifact, getSimpleName(),
                 srcFile.packageName, symbolId, isInterface, isEnum, isStatic,
                 isInner, isAnonymous, isAbstract, isFinal, isPublic, isProtected, isPrivate);
         jc.setAnnotations(annotationTypes);
@@ -188,6 +235,34 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
         return new AnonymousClass(srcFile, superTypes, this, declaringElement, pos, isInner, anonymousClassCounter++);
     }
 
+    /**
+     * Reserve a range of anonymous class numbers, for a method body that will
+     * be visited later.
+     * @param count   the number of anonymous classes in the method body
+     * @return        the first number of the range
+     */
+    public int reserveAnonymousClasses(int count) {
+        int first = anonymousClassCounter;
+        anonymousClassCounter += count;
+        return first;
+    }
+
+    /**
+     * Run some code that creates anonymous classes numbered from a previously
+     * reserved range.
+     * @param first      the first number of the range
+     * @param processor  the code to run
+     */
+    public void withAnonymousClassCounter(int first, Runnable processor) {
+        int saved = anonymousClassCounter;
+        anonymousClassCounter = first;
+        try {
+            processor.run();
+        } finally {
+            anonymousClassCounter = saved;
+        }
+    }
+
     /**
      * Record type references found in method signatures.
      * @param retTypeUses   the type uses found in the return type (may be null)
@@ -246,19 +321,23 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
      */
     public void processInitBlocks() {
         // Non-empty class initialization code becomes a "<clinit>" method.
-        if (!classInitializer.isEmpty())
+        if (classInitializer != null && !classInitializer.isEmpty())
             this.methods.add(classInitializer);
 
         // Non-empty instance initialization code must be inserted in every
         // constructor, after the call to super(). If no constructors are found,
         // an appropriate constructor is created.
-        if (!instInitializer.isEmpty()) {
+        if (instInitializer != null && !instInitializer.isEmpty()) {
+            // Constructor bodies must be visited before inserting initialization
+            // code (visiting may add lambdas to the methods).
+            for (JMethod jm : new ArrayList<>(methods))
+                if (jm.isConstructor())
+                    jm.visitBody();
             boolean foundConstructors = false;
             for (JMethod jm : methods) {
                 if (jm.isConstructor()) {
                     foundConstructors = true;
-                    List<JMethodInvocation> invos = jm.invocations;
-                    Optional<JMethodInvocation> invo = invos.stream().filter((JMethodInvocation i) -> i.explicitConstructor != null).findAny();
+                    Optional<JMethodInvocation> invo = jm.invocations.stream().filter((JMethodInvocation i) -> i.explicitConstructor != null).findAny();
                     if (invo.isPresent()) {
                         // Do not insert initializer code in constructors starting with this().
                         JMethodInvocation.ExplicitConstructor ec0 = invo.get().explicitConstructor;
@@ -266,7 +345,8 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
                             break;
                     } else {
                         // If no explicit constructors exist, prefix body with a call to super().
-                        invos.add(0, new JMethodInvocation(jm.srcFile, jm.pos, JInit.INIT, 0, jm, false, jm.blocks.get(0), null, JMethodInvocation.ExplicitConstructor.SUPER));
+                        jm.invocations = Utils.mutableList(jm.invocations);
+                        jm.invocations.add(0, new JMethodInvocation(jm.srcFile, jm.getPosition(), JInit.INIT, 0, jm, false, jm.blocks.get(0), null, JMethodInvocation.ExplicitConstructor.SUPER));
                         jm.explicitConstrEnd = new MethodBodyFrontier(0, 1, 0, 0, 0, 0, 0);
                     }
                     MethodBodyFrontier explicitConstrEnd = jm.explicitConstrEnd;
@@ -276,19 +356,13 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
                     else {
                         if (srcFile.debug)
                             System.out.println("Inserting " + instInitializer + " at " + explicitConstrEnd);
-                        insertFromInit(explicitConstrEnd.allocIndex, instInitializer.allocations, jm.allocations);
-                        insertFromInit(explicitConstrEnd.invoIndex, instInitializer.invocations, invos);
-                        insertFromInit(explicitConstrEnd.fieldAccIndex, instInitializer.fieldAccesses, jm.fieldAccesses);
-                        if (jm.methodRefs == null)
-                            jm.methodRefs = new ArrayList<>();
-                        insertFromInit(explicitConstrEnd.methodRefsIndex, instInitializer.methodRefs, jm.methodRefs);
-                        if (jm.casts == null)
-                            jm.casts = new ArrayList<>();
-                        insertFromInit(explicitConstrEnd.castsIndex, instInitializer.casts, jm.casts);
-                        if (jm.lambdas == null)
-                            jm.lambdas = new ArrayList<>();
-                        insertFromInit(explicitConstrEnd.lambdasIndex, instInitializer.lambdas, jm.lambdas);
-                        insertFromInit(explicitConstrEnd.elementUsesIndex, instInitializer.elementUses, jm.elementUses);
+                        jm.allocations = insertFromInit(explicitConstrEnd.allocIndex, instInitializer.allocations, jm.allocations);
+                        jm.invocations = insertFromInit(explicitConstrEnd.invoIndex, instInitializer.invocations, jm.invocations);
+                        jm.fieldAccesses = insertFromInit(explicitConstrEnd.fieldAccIndex, instInitializer.fieldAccesses, jm.fieldAccesses);
+                        jm.methodRefs = insertFromInit(explicitConstrEnd.methodRefsIndex, instInitializer.methodRefs, jm.methodRefs);
+                        jm.casts = insertFromInit(explicitConstrEnd.castsIndex, instInitializer.casts, jm.casts);
+                        jm.lambdas = insertFromInit(explicitConstrEnd.lambdasIndex, instInitializer.lambdas, jm.lambdas);
+                        jm.elementUses = insertFromInit(explicitConstrEnd.elementUsesIndex, instInitializer.elementUses, jm.elementUses);
                     }
                 }
             }
@@ -297,17 +371,29 @@ public class JType extends ElementWithPosition<IRType, JvmClass> {
         }
     }
 
-    private <E> void insertFromInit(int start, List<E> from, List<E> target) {
-        if (from == null) {
+    private <E> List<E> insertFromInit(int start, List<E> from, List<E> target) {
+        if (from == null || from.isEmpty()) {
             if (srcFile.debug)
                 System.out.println("Added 0 elements.");
-            return;
+            return target;
         }
         int fromSize = from.size();
-        if (target == null)
-            target = new ArrayList<>();
+        target = target == null ? new ArrayList<>() : Utils.mutableList(target);
         target.addAll(start, from);
         if (srcFile.debug)
             System.out.println("Added " + fromSize + " elements.");
+        return target;
+    }
+
+    /**
+     * Release the unused capacity of the element lists of this type and
+     * its methods.
+     */
+    public void compact() {
+        Utils.trimList(fields);
+        Utils.trimList(methods);
+        Utils.trimList(typeUses);
+        for (JMethod jm : methods)
+            jm.compact();
     }
 }
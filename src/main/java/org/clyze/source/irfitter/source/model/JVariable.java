@@ -7,6 +7,7 @@ import org.clyze.source.irfitter.ir.model.IRVariable;
 
 /** A source variable. */
 public class JVariable extends ElementWithPosition<IRVariable, JvmVariable> {
+    private static final long serialVersionUID = 1L;
     /** The element name. */
     public final String name;
     /** The element type. Can be null when the type is omitted (Groovy, Kotlin). */
@@ -36,6 +37,16 @@ public class JVariable extends ElementWithPosition<IRVariable, JvmVariable> {
         this.mp = mp;
     }
 
+    JVariable(JVariable original, ModelCopier copier) {
+        super(original, copier);
+        this.name = original.name;
+        this.type = original.type;
+        this.isLocal = original.isLocal;
+        // Modifiers are not changed after parsing, so they can be shared.
+        this.mp = original.mp;
+        this.initStringValue = copier.copy(original.initStringValue);
+    }
+
     @Override
     public String toString() {
         return "var:: " + (type == null ? "*" : type) + " " + name + getLocation();
@@ -44,7 +55,7 @@ public class JVariable extends ElementWithPosition<IRVariable, JvmVariable> {
     @Override
     public void initSymbolFromIRElement(IRVariable irElement) {
         if (symbol == null)
-            symbol = new JvmVariable(pos, srcFile.getRelativePath(), true,
+            symbol = new JvmVariable(getPosition(), srcFile.getRelativePath(), true,
                     srcFile.artifact, irElement.name, irElement.getId(), type,
                     irElement.declaringMethodId, isLocal, !isLocal, false);
         else
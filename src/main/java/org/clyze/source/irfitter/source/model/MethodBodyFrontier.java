@@ -1,5 +1,7 @@
 package org.clyze.source.irfitter.source.model;
 
+import java.io.Serializable;
+
 /**
  * This class expresses a position inside a method body.
  * Since source methods are expressed as sets of collections of
@@ -27,7 +29,8 @@ package org.clyze.source.irfitter.source.model;
  *
  * This class is used to add instance initializer blocks to existing constructors.
  */
-class MethodBodyFrontier {
+class MethodBodyFrontier implements Serializable {
+    private static final long serialVersionUID = 1L;
     final int allocIndex, invoIndex, fieldAccIndex, methodRefsIndex, castsIndex, lambdasIndex, elementUsesIndex;
 
     MethodBodyFrontier(int allocIndex, int invoIndex, int fieldAccIndex, int methodRefsIndex, int castsIndex, int lambdasIndex, int elementUsesIndex) {
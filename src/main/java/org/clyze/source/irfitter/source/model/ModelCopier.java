@@ -0,0 +1,118 @@
+package org.clyze.source.irfitter.source.model;
+
+import java.util.*;
+
+/**
+ * Copies the elements of a source file model to another source file. Every
+ * element is copied once, so references between elements (such as the
+ * parent type of a method) point to the copies.
+ */
+final class ModelCopier {
+    /** The source file that receives the copies. */
+    final SourceFile sourceFile;
+    /** The copies of the elements (by original element). */
+    private final Map<Object, Object> copies = new IdentityHashMap<>();
+
+    ModelCopier(SourceFile sourceFile) {
+        this.sourceFile = sourceFile;
+    }
+
+    /**
+     * Record the copy of an element. Copy constructors call this before
+     * copying the elements they refer to, so that cycles end at the copy.
+     * @param original   the original element
+     * @param copy       the copy
+     */
+    void register(Object original, Object copy) {
+        copies.put(original, copy);
+    }
+
+    /**
+     * Returns the copy of an element (copying it on first use).
+     * @param original   the original element (may be null)
+     * @param <E>        the type of the element
+     * @return           the copy (or null)
+     */
+    @SuppressWarnings("unchecked")
+    <E> E copy(E original) {
+        if (original == null)
+            return null;
+        Object copy = copies.get(original);
+        if (copy == null)
+            copy = newCopy(original);
+        return (E) copy;
+    }
+
+    /**
+     * Returns a list with the copies of the elements of a list. Null and
+     * (immutable) empty lists are kept as they are.
+     * @param original   the original list
+     * @param <E>        the type of the elements
+     * @return           the new list
+     */
+    <E> List<E> copyList(List<E> original) {
+        if (original == null || original.isEmpty())
+            return original;
+        List<E> list = new ArrayList<>(original.size());
+        for (E e : original)
+            list.add(copy(e));
+        return list;
+    }
+
+    /**
+     * Returns a list with the copies of the elements of a collection.
+     * @param original   the original collection (may be null)
+     * @param <E>        the type of the elements
+     * @return           the new list (or null)
+     */
+    <E> Collection<E> copyCollection(Collection<E> original) {
+        if (original == null)
+            return null;
+        Collection<E> collection = new ArrayList<>(original.size());
+        for (E e : original)
+            collection.add(copy(e));
+        return collection;
+    }
+
+    private Object newCopy(Object e) {
+        // Subclasses are checked before their superclasses.
+        if (e instanceof AnonymousClass)
+            return new AnonymousClass((AnonymousClass) e, this);
+        if (e instanceof JType)
+            return new JType((JType) e, this);
+        if (e instanceof JInit)
+            return new JInit((JInit) e, this);
+        if (e instanceof JLambda)
+            return new JLambda((JLambda) e, this);
+        if (e instanceof JMethod)
+            return new JMethod((JMethod) e, this);
+        if (e instanceof JField)
+            return new JField((JField) e, this);
+        if (e instanceof JVariable)
+            return new JVariable((JVariable) e, this);
+        if (e instanceof JMethodInvocation)
+            return new JMethodInvocation((JMethodInvocation) e, this);
+        if (e instanceof JAllocation)
+            return new JAllocation((JAllocation) e, this);
+        if (e instanceof JFieldAccess)
+            return new JFieldAccess((JFieldAccess) e, this);
+        if (e instanceof JMethodRef)
+            return new JMethodRef((JMethodRef) e, this);
+        if (e instanceof JCast)
+            return new JCast((JCast) e, this);
+        if (e instanceof TypeUse)
+            return new TypeUse((TypeUse) e, this);
+        if (e instanceof VarUse)
+            return new VarUse((VarUse) e, this);
+        if (e instanceof JBlock)
+            return new JBlock((JBlock) e, this);
+        if (e instanceof JStringConstant)
+            return new JStringConstant<>((JStringConstant<?>) e, this);
+        if (e instanceof OuterThis)
+            return new OuterThis((OuterThis) e, this);
+        // Imports and method body frontiers are immutable and can be shared.
+        if (e instanceof Import || e instanceof MethodBodyFrontier)
+            return e;
+        throw new IllegalArgumentException("Cannot copy model element of " + e.getClass());
+    }
+}
@@ -1,5 +1,6 @@
 package org.clyze.source.irfitter.source.model;
 
+import java.io.Serializable;
 import org.clyze.persistent.model.Position;
 import org.clyze.source.irfitter.base.AccessType;
 
@@ -9,20 +10,40 @@ import org.clyze.source.irfitter.base.AccessType;
  * resolve these accesses and replace them by appropriate metadata (such as
  * accesses to "this$0" fields).
  */
-public class OuterThis {
+public class OuterThis implements Serializable {
+    private static final long serialVersionUID = 1L;
     /** The source position where this access is found. */
     public final SourceFile srcFile;
-    /** The source position of this access. */
-    public final Position pos;
+    /** The packed start of the source position of this access (see {@link Positions}). */
+    private final long startPos;
+    /** The packed end of the source position. */
+    private final long endPos;
     /** The target type of the access. */
     public final JType outerClass;
 
     public OuterThis(SourceFile srcFile, Position pos, JType outerClass) {
         this.srcFile = srcFile;
-        this.pos = pos;
+        this.startPos = Positions.start(pos);
+        this.endPos = Positions.end(pos);
         this.outerClass = outerClass;
     }
 
+    OuterThis(OuterThis original, ModelCopier copier) {
+        copier.register(original, this);
+        this.srcFile = copier.sourceFile;
+        this.startPos = original.startPos;
+        this.endPos = original.endPos;
+        this.outerClass = copier.copy(original.outerClass);
+    }
+
+    /**
+     * Returns the source position of this access (as a new object).
+     * @return   the position
+     */
+    public Position getPosition() {
+        return Positions.toPosition(startPos, endPos);
+    }
+
     /**
      * Returns a field access to "this$0".
      * @param fieldId      the field generated by javac
@@ -30,11 +51,11 @@ public class OuterThis {
      * @return             the source code field access
      */
     public JFieldAccess getFieldAccess(String fieldId, String fieldName) {
-        return new JFieldAccess(srcFile, pos, AccessType.READ, fieldId, fieldName, null);
+        return new JFieldAccess(srcFile, getPosition(), AccessType.READ, fieldId, fieldName, null);
     }
 
     @Override
     public String toString() {
-        return "OuterThis: " + outerClass + Utils.getLocation(srcFile.getRelativePath(), pos);
+        return "OuterThis: " + outerClass + Utils.getLocation(srcFile.getRelativePath(), getPosition());
     }
 }
@@ -0,0 +1,73 @@
+package org.clyze.source.irfitter.source.model;
+
+import org.clyze.persistent.model.Position;
+
+/**
+ * The packed representation of source positions. Source elements keep their
+ * start and end as two longs (line in the high 32 bits, column in the low
+ * 32 bits) and only create {@link Position} objects for the metadata.
+ */
+public final class Positions {
+    /** The packed value of a missing position. */
+    public static final long NONE = Long.MIN_VALUE;
+
+    private Positions() {}
+
+    /**
+     * Pack a line/column pair.
+     * @param line     the line
+     * @param column   the column
+     * @return         the packed value
+     */
+    public static long pack(long line, long column) {
+        return (line << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the packed start of a position.
+     * @param pos   the position (may be null)
+     * @return      the packed value (or {@link #NONE})
+     */
+    public static long start(Position pos) {
+        return pos == null ? NONE : pack(pos.getStartLine(), pos.getStartColumn());
+    }
+
+    /**
+     * Returns the packed end of a position.
+     * @param pos   the position (may be null)
+     * @return      the packed value (or {@link #NONE})
+     */
+    public static long end(Position pos) {
+        return pos == null ? NONE : pack(pos.getEndLine(), pos.getEndColumn());
+    }
+
+    /**
+     * Returns the line of a packed value.
+     * @param packed   the packed value
+     * @return         the line
+     */
+    public static int line(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    /**
+     * Returns the column of a packed value.
+     * @param packed   the packed value
+     * @return         the column
+     */
+    public static int column(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * Create a position object from packed values.
+     * @param start   the packed start
+     * @param end     the packed end
+     * @return        the position (or null if the start is {@link #NONE})
+     */
+    public static Position toPosition(long start, long end) {
+        if (start == NONE)
+            return null;
+        return new Position(line(start), line(end), column(start), column(end));
+    }
+}
@@ -2,6 +2,7 @@ package org.clyze.source.irfitter.source.model;
 
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 import org.clyze.persistent.model.Position;
 import org.clyze.source.irfitter.base.AccessType;
 
@@ -18,6 +19,29 @@ public class Scope {
     /** The block scope (used in Groovy mode). */
     private final Stack<JBlock> blocks = new Stack<>();
 
+    public Scope() { }
+
+    /**
+     * Copy constructor, used to save the state of a scope.
+     * @param scope   the scope to copy
+     */
+    private Scope(Scope scope) {
+        restore(scope);
+    }
+
+    private void restore(Scope state) {
+        copyStack(state.typeScope, typeScope);
+        copyStack(state.methodScope, methodScope);
+        copyStack(state.elementScope, elementScope);
+        copyStack(state.blocks, blocks);
+        this.inInitializer = state.inInitializer;
+    }
+
+    private static <T> void copyStack(Stack<T> from, Stack<T> to) {
+        to.clear();
+        to.addAll(from);
+    }
+
     public JType getEnclosingType() {
         try {
             return typeScope.peek();
@@ -79,6 +103,38 @@ public class Scope {
         methodScope.pop();
     }
 
+    /**
+     * Enter the scope of a method body. When bodies are visited on demand,
+     * the visit is postponed: the current scope is saved and the anonymous
+     * classes of the body are numbered in advance, so that a later visit
+     * gives the same results as an immediate one. The postponed visit keeps
+     * the parse tree of the body (and through it the whole file).
+     * @param jm                the method
+     * @param onDemand          if true, postpone the body visit
+     * @param anonymousClasses  computes the number of anonymous classes declared
+     *                          directly in the method body
+     * @param scopeProcessor    the method body visitor
+     */
+    public void enterMethodBodyScope(JMethod jm, boolean onDemand, IntSupplier anonymousClasses,
+                                     Consumer<JMethod> scopeProcessor) {
+        JType jt = getEnclosingType();
+        if (!onDemand || jt == null) {
+            enterMethodScope(jm, scopeProcessor);
+            return;
+        }
+        int first = jt.reserveAnonymousClasses(anonymousClasses.getAsInt());
+        Scope saved = new Scope(this);
+        jm.deferBody(() -> {
+            Scope current = new Scope(this);
+            restore(saved);
+            try {
+                jt.withAnonymousClassCounter(first, () -> enterMethodScope(jm, scopeProcessor));
+            } finally {
+                restore(current);
+            }
+        });
+    }
+
     public void enterInitializerScope(JInit initializer, Consumer<JMethod> scopeProcessor) {
         this.inInitializer = true;
         enterMethodScope(initializer, scopeProcessor);
@@ -122,7 +178,7 @@ public class Scope {
         if (parentMethod == null)
             sourceFile.fieldAccesses.add(fieldAccess);
         else
-            parentMethod.fieldAccesses.add(fieldAccess);
+            parentMethod.addFieldAccess(fieldAccess);
     }
 
     /**
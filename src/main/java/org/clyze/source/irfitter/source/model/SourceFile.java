@@ -2,6 +2,7 @@ package org.clyze.source.irfitter.source.model;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.*;
 import org.clyze.persistent.metadata.FileInfo;
 import org.clyze.persistent.metadata.jvm.JvmMetadata;
@@ -15,13 +16,14 @@ import org.clyze.source.irfitter.matcher.Matcher;
  * Many elements are matched inside groups (e.g. field accesses are grouped by
  * name) for more precise matching and to localize matching failures.
  */
-public class SourceFile {
+public class SourceFile implements Serializable {
+    private static final long serialVersionUID = 1L;
     /** The artifact containing this source file (such as a JAR file). */
-    public final String artifact;
+    public transient String artifact;
     /** A parent directory that should be used to form relative paths. */
-    public final File topDir;
+    public transient File topDir;
     /** The parsed source file. */
-    public final File file;
+    public transient File file;
     /** The package name declared in the top of the source file. Default unnamed package is "". */
     public String packageName = "";
     /** The import declarations. */
@@ -31,17 +33,24 @@ public class SourceFile {
     /** List of string constants that may be inlined and should be preserved. */
     public final List<JStringConstant<?>> stringConstants = new ArrayList<>();
     /** Debugging flag, set by command-line option. */
-    public final boolean debug;
+    public transient boolean debug;
     /**
      * If true, (partial) source types and (fully-qualified but erased) IR
      * types will be combined into a single more informative representation.
      */
-    public final boolean synthesizeTypes;
-    private FileInfo cachedFileInfo = null;
-    private String cachedRelativePath = null;
-    private JvmMetadata cachedJvmMetadata = null;
+    public transient boolean synthesizeTypes;
+    private transient FileInfo cachedFileInfo = null;
+    private transient String cachedRelativePath = null;
+    private transient JvmMetadata cachedJvmMetadata = null;
+    /** The resolver of source types (null when types are only resolved via the source). */
+    private transient TypeResolver typeResolver = null;
     /** The field accesses that are outside any types (e.g. fields used in annotations). */
     public final List<JFieldAccess> fieldAccesses = new ArrayList<>();
+    /**
+     * If not null, the source file was only scanned for declarations and this
+     * is the reason why (e.g. the parser ran out of its budget).
+     */
+    public String declarationsOnly = null;
 
     public SourceFile(File topDir, File file, String artifact, boolean debug, boolean synthesizeTypes) {
         this.topDir = topDir;
@@ -51,6 +60,93 @@ public class SourceFile {
         this.synthesizeTypes = synthesizeTypes;
     }
 
+    /**
+     * Set the location and the processing flags of a source file that was
+     * read from a snapshot (these are not part of the snapshot, since the
+     * same contents may appear in different places).
+     * @param topDir          the top directory of the sources
+     * @param file            the source file
+     * @param artifact        the artifact containing the source file
+     * @param debug           debugging flag
+     * @param synthesizeTypes type-synthesis flag
+     */
+    public void relocate(File topDir, File file, String artifact, boolean debug, boolean synthesizeTypes) {
+        this.topDir = topDir;
+        this.file = file;
+        this.artifact = artifact;
+        this.debug = debug;
+        this.synthesizeTypes = synthesizeTypes;
+        this.cachedFileInfo = null;
+        this.cachedRelativePath = null;
+        this.cachedJvmMetadata = null;
+    }
+
+    /**
+     * Visit all method bodies whose visit was postponed (including the
+     * bodies of types found while visiting).
+     */
+    public void visitDeferredBodies() {
+        int typeCount;
+        do {
+            typeCount = jTypes.size();
+            for (JType jt : new ArrayList<>(jTypes))
+                for (JMethod jm : new ArrayList<>(jt.methods))
+                    jm.visitBody();
+        } while (typeCount != jTypes.size());
+    }
+
+    /**
+     * Returns a deep copy of this source file (with the same location), to
+     * be matched separately. Deferred method bodies are visited first, so
+     * that they are part of both the original and the copy. The copy has no
+     * match information.
+     * @return   the copy
+     */
+    public SourceFile copy() {
+        visitDeferredBodies();
+        SourceFile sf = new SourceFile(topDir, file, artifact, debug, synthesizeTypes);
+        sf.packageName = packageName;
+        sf.declarationsOnly = declarationsOnly;
+        ModelCopier copier = new ModelCopier(sf);
+        sf.imports.addAll(imports);
+        for (JType jt : jTypes)
+            sf.jTypes.add(copier.copy(jt));
+        for (JStringConstant<?> sc : stringConstants)
+            sf.stringConstants.add(copier.copy(sc));
+        for (JFieldAccess fa : fieldAccesses)
+            sf.fieldAccesses.add(copier.copy(fa));
+        return sf;
+    }
+
+    /**
+     * Release the unused capacity of the element lists of this file (after
+     * it has been visited).
+     */
+    public void compact() {
+        Utils.trimList(imports);
+        Utils.trimList(stringConstants);
+        Utils.trimList(fieldAccesses);
+        for (JType jt : jTypes)
+            jt.compact();
+    }
+
+    /**
+     * Resolve the source types of this file with the help of the IR.
+     * @param irTypes   the ids of the types known to the IR (null to resolve
+     *                  types via the source only)
+     */
+    public void setIRTypes(Set<String> irTypes) {
+        this.typeResolver = irTypes == null ? null : new TypeResolver(this, irTypes);
+    }
+
+    /**
+     * Returns the resolver of source types.
+     * @return   the type resolver (or null if not set)
+     */
+    public TypeResolver getTypeResolver() {
+        return typeResolver;
+    }
+
     /**
      * Create a matcher object to do the mapping between source and IR elements.
      * @param lossy     if true, enable lossy heuristics
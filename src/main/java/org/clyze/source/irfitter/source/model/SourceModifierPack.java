@@ -7,6 +7,7 @@ import org.clyze.source.irfitter.base.ModifierPack;
 
 /** Common functionality for source-level class/field/method modifiers. */
 public abstract class SourceModifierPack extends ModifierPack {
+    private static final long serialVersionUID = 1L;
     protected boolean isAbstract = false;
     protected boolean isFinal = false;
     protected boolean isPrivate = false;
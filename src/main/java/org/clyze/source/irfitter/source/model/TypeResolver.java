@@ -0,0 +1,61 @@
+package org.clyze.source.irfitter.source.model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the source types of a file, using the types known to the IR to
+ * pick among the possible fully-qualified names that the imports allow.
+ * Results are memoized and the resolver may be shared by different threads.
+ *
+ * This works on the candidate names of all source languages and only needs
+ * the ids of the IR types (a JavaParser type solver would only serve Java
+ * sources and needs full declarations of the IR types).
+ */
+public class TypeResolver {
+    private final SourceFile sourceFile;
+    /** The ids of the IR types and the types they reference (not modified after creation). */
+    private final Set<String> irTypes;
+    private final Map<String, Collection<String>> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * Create a type resolver for a source file.
+     * @param sourceFile   the source file
+     * @param irTypes      the ids of the types known to the IR
+     */
+    public TypeResolver(SourceFile sourceFile, Set<String> irTypes) {
+        this.sourceFile = sourceFile;
+        this.irTypes = irTypes;
+    }
+
+    /**
+     * Resolve a source type.
+     * @param type   the source-level type
+     * @return       the possible fully-qualified names (exactly one if the
+     *               IR knows a single candidate)
+     */
+    public Collection<String> resolve(String type) {
+        if (type == null)
+            return Collections.singletonList("void");
+        return resolved.computeIfAbsent(type, this::resolveUncached);
+    }
+
+    private Collection<String> resolveUncached(String type) {
+        Collection<String> candidates = FuzzyTypes.resolveType(sourceFile, type);
+        if (candidates.size() < 2)
+            return candidates;
+        List<String> known = new ArrayList<>(1);
+        for (String candidate : candidates)
+            if (isIRType(candidate) && !known.contains(candidate))
+                known.add(candidate);
+        // If the IR cannot answer, keep all candidates.
+        return known.isEmpty() ? candidates : known;
+    }
+
+    private boolean isIRType(String type) {
+        if (irTypes.contains(type))
+            return true;
+        int arrayIdx = type.indexOf('[');
+        return arrayIdx > 0 && irTypes.contains(type.substring(0, arrayIdx));
+    }
+}
@@ -9,6 +9,7 @@ import org.clyze.persistent.model.UsageKind;
  * or a constant Class object (such as {@code C.class}).
  */
 public class TypeUse extends ElementUse implements FuzzyTypes {
+    private static final long serialVersionUID = 1L;
     public final String type;
     private Collection<String> cachedIds = null;
 
@@ -17,6 +18,11 @@ public class TypeUse extends ElementUse implements FuzzyTypes {
         this.type = type;
     }
 
+    TypeUse(TypeUse original, ModelCopier copier) {
+        super(original, copier);
+        this.type = original.type;
+    }
+
     @Override
     public SourceFile getSourceFile() {
         return sourceFile;
@@ -34,6 +40,6 @@ public class TypeUse extends ElementUse implements FuzzyTypes {
 
     @Override
     public String toString() {
-        return "type-use:: " + type + "@" + sourceFile.getRelativePath() + ", " + position;
+        return "type-use:: " + type + "@" + sourceFile.getRelativePath() + ", " + getPosition();
     }
 }
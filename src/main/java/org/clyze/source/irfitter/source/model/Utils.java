@@ -1,10 +1,18 @@
 package org.clyze.source.irfitter.source.model;
 
-import java.util.List;
+import java.lang.ref.WeakReference;
+import java.util.*;
 import org.clyze.persistent.model.Position;
 
 /** Utilities. */
 public class Utils {
+    /**
+     * The distinct annotation sets of source elements (most elements share a
+     * few sets). Sets are weakly referenced, so that they are released with
+     * the source model.
+     */
+    private static final Map<Set<String>, WeakReference<Set<String>>> annotationSets = new WeakHashMap<>();
+
     public static String dotsToDollars(String n) {
         int dotIdx = n.indexOf(".");
         if (dotIdx == -1)
@@ -31,6 +39,45 @@ public class Utils {
         return new String(chars);
     }
 
+    /**
+     * Returns a shared immutable copy of a set of annotations.
+     * @param annotations   the annotation types
+     * @return              the shared set
+     */
+    public static Set<String> internAnnotations(Set<String> annotations) {
+        if (annotations.isEmpty())
+            return Collections.emptySet();
+        synchronized (annotationSets) {
+            WeakReference<Set<String>> ref = annotationSets.get(annotations);
+            Set<String> interned = ref == null ? null : ref.get();
+            if (interned == null) {
+                interned = Collections.unmodifiableSet(new HashSet<>(annotations));
+                annotationSets.put(interned, new WeakReference<>(interned));
+            }
+            return interned;
+        }
+    }
+
+    /**
+     * Returns a list that can be modified: element lists start as the shared
+     * immutable empty list, which is replaced by a fresh list on first use.
+     * @param list   the current list
+     * @param <E>    the type of the list elements
+     * @return       the list itself or a fresh list
+     */
+    public static <E> List<E> mutableList(List<E> list) {
+        return list == Collections.EMPTY_LIST ? new ArrayList<>() : list;
+    }
+
+    /**
+     * Release the unused capacity of a list.
+     * @param list   the list
+     */
+    public static void trimList(List<?> list) {
+        if (list instanceof ArrayList)
+            ((ArrayList<?>) list).trimToSize();
+    }
+
     /**
      * Transform away parts of a type that are not necessary for matching types
      * (generics, Kotlin "?" nullable types).
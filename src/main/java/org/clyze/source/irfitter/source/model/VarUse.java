@@ -6,6 +6,7 @@ import org.clyze.persistent.model.UsageKind;
 
 /** A variable use in the source code. */
 public class VarUse extends ElementUse {
+    private static final long serialVersionUID = 1L;
     public final JVariable var;
 
     public VarUse(SourceFile sourceFile, Position position, UsageKind kind, JVariable var) {
@@ -13,6 +14,11 @@ public class VarUse extends ElementUse {
         this.var = var;
     }
 
+    VarUse(VarUse original, ModelCopier copier) {
+        super(original, copier);
+        this.var = copier.copy(original.var);
+    }
+
     @Override
     public Usage getUse() {
         // Resolve the id of the referenced element via the source variable.
@@ -23,6 +29,6 @@ public class VarUse extends ElementUse {
 
     @Override
     public String toString() {
-        return "var-use:: " + kind.toString() + " " + var + "@" + sourceFile.getRelativePath() + ", " + position;
+        return "var-use:: " + kind.toString() + " " + var + "@" + sourceFile.getRelativePath() + ", " + getPosition();
     }
 }
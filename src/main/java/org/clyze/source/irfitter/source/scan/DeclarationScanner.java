@@ -0,0 +1,938 @@
+package org.clyze.source.irfitter.source.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import org.clyze.persistent.model.Position;
+import org.clyze.source.irfitter.source.SourceText;
+import org.clyze.source.irfitter.source.model.*;
+import org.clyze.source.irfitter.source.scan.SourceLexer.Kind;
+import org.clyze.source.irfitter.source.scan.SourceLexer.Token;
+
+/**
+ * A cheap, declarations-only front end. It reads the token stream of a
+ * source file and records types, fields, and method signatures, skipping
+ * all method bodies and initializers. The result is a source model that
+ * can still be matched against the IR at the type/member level.
+ */
+public class DeclarationScanner {
+    private static final String[] JAVA_IMPORTS = new String[] { "java.lang" };
+    private static final String[] GROOVY_IMPORTS = new String[] { "groovy.lang", "groovy.util", "java.lang", "java.util", "java.net", "java.io" };
+    private static final String[] KOTLIN_IMPORTS = new String[] {
+            "kotlin", "kotlin.annotation", "kotlin.collections",
+            "kotlin.comparisons", "kotlin.io", "kotlin.ranges",
+            "kotlin.sequences", "kotlin.text", "java.lang", "kotlin.jvm",
+            "kotlin.js", "java.util"
+    };
+    private static final Set<String> JAVA_MODIFIERS = new HashSet<>(Arrays.asList(
+            "public", "protected", "private", "static", "final", "abstract",
+            "native", "synchronized", "transient", "volatile", "strictfp",
+            "default", "sealed"));
+    private static final Set<String> GROOVY_MODIFIERS = new HashSet<>(Arrays.asList(
+            "public", "protected", "private", "static", "final", "abstract",
+            "native", "synchronized", "transient", "volatile", "strictfp",
+            "default", "sealed", "def"));
+    private static final Set<String> KOTLIN_MODIFIERS = new HashSet<>(Arrays.asList(
+            "public", "protected", "private", "internal", "open", "final",
+            "abstract", "override", "sealed", "data", "inner", "enum",
+            "annotation", "lateinit", "const", "suspend", "inline", "infix",
+            "operator", "tailrec", "external", "vararg", "noinline",
+            "crossinline", "reified", "expect", "actual", "value", "companion"));
+    /** Symbols that continue an expression on the next line (Groovy/Kotlin). */
+    private static final String CONTINUATION_SYMBOLS = ".,=+-*/%&|^!?:<([{";
+
+    private final SourceFile sourceFile;
+    private final Language language;
+    private final SourceLexer lexer;
+    private final boolean debug;
+    private final Set<String> modifierKeywords;
+    /** The lookahead tokens, the current token is the first element. */
+    private final List<Token> lookahead = new ArrayList<>();
+    private Token lastConsumed = null;
+
+    /**
+     * Create a declarations scanner.
+     * @param sourceFile   the source file object to fill in
+     * @param text         the source text
+     * @param language     the language of the source
+     * @param debug        if true, print debug messages
+     */
+    public DeclarationScanner(SourceFile sourceFile, char[] text, Language language, boolean debug) {
+        this.sourceFile = sourceFile;
+        this.language = language;
+        this.lexer = new SourceLexer(text, language);
+        this.debug = debug;
+        this.modifierKeywords = language == Language.KOTLIN ? KOTLIN_MODIFIERS :
+                (language == Language.GROOVY ? GROOVY_MODIFIERS : JAVA_MODIFIERS);
+    }
+
+    /**
+     * Scan a source file for declarations.
+     * @param topDir          the top directory of the sources
+     * @param source          the source file (and its contents)
+     * @param artifact        the artifact containing the sources
+     * @param debug           if true, print debug messages
+     * @param synthesizeTypes the type-synthesis flag of the source file
+     * @param language        the source language
+     * @return                the source file object containing the declarations
+     * @throws IOException    if the file cannot be read
+     */
+    public static SourceFile scan(File topDir, SourceText source, String artifact, boolean debug,
+                                  boolean synthesizeTypes, Language language) throws IOException {
+        SourceFile sf = new SourceFile(topDir, source.file, artifact, debug, synthesizeTypes);
+        (new DeclarationScanner(sf, source.getChars(), language, debug)).scan();
+        return sf;
+    }
+
+    /**
+     * Find the package of a source file, using only a lexical scan of its header.
+     * @param srcFile       the source file
+     * @param language      the source language
+     * @return              the package name (or null for the default package)
+     * @throws IOException  if the file cannot be read
+     */
+    public static String packageOf(File srcFile, Language language) throws IOException {
+        return SourceHeader.read(srcFile, language).packageName;
+    }
+
+    /**
+     * Fall back to scanning a source file for declarations, when it cannot
+     * be fully parsed.
+     * @param topDir          the top directory of the sources
+     * @param source          the source file (and its contents)
+     * @param artifact        the artifact containing the sources
+     * @param debug           if true, print debug messages
+     * @param synthesizeTypes the type-synthesis flag of the source file
+     * @param language        the source language
+     * @param reason          the reason for the fallback
+     * @return                the source file object containing the declarations
+     */
+    public static SourceFile fallback(File topDir, SourceText source, String artifact, boolean debug,
+                                      boolean synthesizeTypes, Language language, String reason) {
+        System.out.println("WARNING: " + reason + " for " + source.file + ", scanning declarations only.");
+        SourceFile sf;
+        try {
+            sf = scan(topDir, source, artifact, debug, synthesizeTypes, language);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            sf = new SourceFile(topDir, source.file, artifact, debug, synthesizeTypes);
+        }
+        sf.declarationsOnly = reason;
+        return sf;
+    }
+
+    /** Scan the whole source text. */
+    public void scan() {
+        String[] defaultImports = language == Language.KOTLIN ? KOTLIN_IMPORTS :
+                (language == Language.GROOVY ? GROOVY_IMPORTS : JAVA_IMPORTS);
+        for (String i : defaultImports)
+            sourceFile.imports.add(new Import(null, i, true, false));
+        scanMembers(null);
+    }
+
+    private Token cur() {
+        return peek(0);
+    }
+
+    private Token peek(int n) {
+        while (lookahead.size() <= n)
+            lookahead.add(lexer.next());
+        return lookahead.get(n);
+    }
+
+    private Token consume() {
+        Token t = cur();
+        if (t.kind != Kind.EOF) {
+            lookahead.remove(0);
+            lastConsumed = t;
+        }
+        return t;
+    }
+
+    private boolean atEOF() {
+        return cur().kind == Kind.EOF;
+    }
+
+    private static Position pos(Token t) {
+        return new Position(t.line, t.line, t.column, t.column + t.text.length());
+    }
+
+    private Position span(Token start) {
+        Token end = lastConsumed == null ? start : lastConsumed;
+        return new Position(start.line, end.line, start.column, end.column + end.text.length());
+    }
+
+    /**
+     * Scan the declarations of a type body (or of the top level).
+     * @param owner   the type containing the declarations (null for top-level)
+     */
+    private void scanMembers(JType owner) {
+        boolean enumConstants = owner != null && owner.isEnum;
+        while (!atEOF()) {
+            Token t = cur();
+            if (owner != null && t.is('}')) {
+                consume();
+                return;
+            }
+            if (enumConstants) {
+                scanEnumConstants(owner);
+                enumConstants = false;
+                continue;
+            }
+            if (t.is(';') || t.is(',')) {
+                consume();
+                continue;
+            }
+            if (owner == null && t.isIdentifier("package")) {
+                consume();
+                sourceFile.packageName = readQualifiedName();
+                continue;
+            }
+            if (owner == null && t.isIdentifier("import")) {
+                scanImport();
+                continue;
+            }
+            ScannedModifierPack mp = readModifiers();
+            // File annotations (such as Kotlin "@file:JvmName") precede the package.
+            if (owner == null && (cur().isIdentifier("package") || cur().isIdentifier("import")))
+                continue;
+            if (isTypeKeyword())
+                scanType(owner, mp);
+            else if (owner == null)
+                skipStatement();
+            else if (language == Language.KOTLIN)
+                scanKotlinMember(owner, mp, t);
+            else
+                scanJavaMember(owner, mp, t);
+        }
+    }
+
+    private void scanImport() {
+        Token start = consume();
+        boolean isStatic = false;
+        if (cur().isIdentifier("static")) {
+            consume();
+            isStatic = true;
+        }
+        String name = readQualifiedName();
+        boolean isAsterisk = false;
+        if (cur().is('.') && peek(1).is('*')) {
+            consume();
+            consume();
+            isAsterisk = true;
+        }
+        if (cur().isIdentifier("as") && !cur().newlineBefore) {
+            consume();
+            consume();
+        }
+        if (name.length() > 0)
+            sourceFile.imports.add(new Import(span(start), name, isAsterisk, isStatic));
+    }
+
+    private String readQualifiedName() {
+        StringJoiner sj = new StringJoiner(".");
+        while (cur().kind == Kind.IDENTIFIER) {
+            sj.add(consume().text);
+            if (cur().is('.') && peek(1).kind == Kind.IDENTIFIER)
+                consume();
+            else
+                break;
+        }
+        return sj.toString();
+    }
+
+    private ScannedModifierPack readModifiers() {
+        Set<String> keywords = new HashSet<>();
+        List<String> annotations = new ArrayList<>();
+        while (!atEOF()) {
+            Token t = cur();
+            if (t.is('@')) {
+                if (peek(1).isIdentifier("interface"))
+                    break;
+                consume();
+                if (cur().is('[')) {
+                    skipBalanced();
+                    continue;
+                }
+                // Kotlin use-site targets, such as "@file:JvmName".
+                if (cur().kind == Kind.IDENTIFIER && peek(1).is(':'))  {
+                    consume();
+                    consume();
+                }
+                String name = readQualifiedName();
+                if (name.length() > 0)
+                    annotations.add(name);
+                if (cur().is('(') && !cur().newlineBefore)
+                    skipBalanced();
+            } else if (t.kind == Kind.IDENTIFIER && modifierKeywords.contains(t.text) && isModifierUse(t)) {
+                keywords.add(t.text);
+                consume();
+            } else if (language == Language.KOTLIN && t.isIdentifier("fun") && peek(1).isIdentifier("interface"))
+                consume();
+            else
+                break;
+        }
+        return new ScannedModifierPack(keywords, annotations);
+    }
+
+    /**
+     * Checks if a modifier keyword is really used as a modifier. In Kotlin,
+     * modifiers are soft keywords that can also be identifiers.
+     * @param t    the candidate modifier
+     * @return     true if the keyword is followed by more of the declaration
+     */
+    private boolean isModifierUse(Token t) {
+        if (language != Language.KOTLIN)
+            return true;
+        Token next = peek(1);
+        return next.kind == Kind.IDENTIFIER || next.is('@');
+    }
+
+    private boolean isTypeKeyword() {
+        Token t = cur();
+        if (t.is('@'))
+            return peek(1).isIdentifier("interface");
+        if (t.kind != Kind.IDENTIFIER)
+            return false;
+        switch (t.text) {
+            case "class":
+            case "interface":
+                return true;
+            case "enum":
+                return language != Language.KOTLIN;
+            case "trait":
+                return language == Language.GROOVY && peek(1).kind == Kind.IDENTIFIER;
+            case "object":
+                return language == Language.KOTLIN;
+            default:
+                return false;
+        }
+    }
+
+    private void scanType(JType owner, ScannedModifierPack mp) {
+        boolean isAnnotationType = false;
+        if (cur().is('@')) {
+            consume();
+            isAnnotationType = true;
+        }
+        Token kw = consume();
+        String k = kw.text;
+        boolean isInterface = k.equals("interface") || k.equals("trait");
+        boolean isEnum = k.equals("enum") || mp.isEnum();
+        Token nameTok;
+        String name;
+        if (cur().kind == Kind.IDENTIFIER && !cur().isIdentifier("constructor")) {
+            nameTok = consume();
+            name = nameTok.text;
+        } else if (k.equals("object") && mp.isCompanion) {
+            nameTok = kw;
+            name = "Companion";
+        } else {
+            skipStatement();
+            return;
+        }
+        skipTypeParameters();
+
+        // Kotlin primary constructor, its parameters are recorded as fields.
+        List<Token> ctorParamNames = new ArrayList<>();
+        List<String> ctorParamTypes = new ArrayList<>();
+        List<ScannedModifierPack> ctorParamMods = new ArrayList<>();
+        if (language == Language.KOTLIN) {
+            if (!cur().is('(') && !cur().newlineBefore) {
+                readModifiers();
+                if (cur().isIdentifier("constructor"))
+                    consume();
+            }
+            if (cur().is('(') && !cur().newlineBefore)
+                scanKotlinParameters(ctorParamNames, ctorParamTypes, ctorParamMods);
+        }
+
+        List<String> superTypes = new ArrayList<>();
+        if (language == Language.KOTLIN)
+            scanKotlinSuperTypes(superTypes);
+        else
+            while (cur().isIdentifier("extends") || cur().isIdentifier("implements") || cur().isIdentifier("permits")) {
+                boolean permits = consume().text.equals("permits");
+                do {
+                    if (cur().is(','))
+                        consume();
+                    String superType = readTypeText();
+                    if (superType == null)
+                        break;
+                    if (!permits)
+                        superTypes.add(language == Language.JAVA ? simpleName(superType) : Utils.simplifyType(superType));
+                } while (cur().is(','));
+            }
+
+        // Follow the front ends for the type properties.
+        if (language == Language.JAVA) {
+            if (isEnum)
+                superTypes = Collections.singletonList("java.lang.Enum");
+            else if (isAnnotationType)
+                superTypes = null;
+        }
+        mp.setInterface(isInterface);
+        mp.setEnum(isEnum);
+        boolean isInner = language == Language.KOTLIN ? mp.isInner : (owner != null && !mp.isStatic());
+        boolean isPublic = language == Language.GROOVY ? (mp.isPublic() || (!mp.isPrivate() && !mp.isProtected())) : mp.isPublic();
+        JType jt = new JType(sourceFile, name, superTypes, mp.getAnnotations(), pos(nameTok),
+                owner, owner, isInner, isPublic, mp.isPrivate(), mp.isProtected(),
+                mp.isAbstract(), mp.isFinal(), false, false, mp.isInterface(), mp.isEnum());
+        sourceFile.jTypes.add(jt);
+        if (debug)
+            System.out.println("Scanned type: " + jt);
+
+        for (int i = 0; i < ctorParamNames.size(); i++) {
+            Token fTok = ctorParamNames.get(i);
+            JField srcField = new JField(sourceFile, ctorParamTypes.get(i), fTok.text, ctorParamMods.get(i).getAnnotations(), pos(fTok), jt);
+            jt.fields.add(srcField);
+        }
+
+        if (cur().is('{')) {
+            consume();
+            scanMembers(jt);
+        }
+    }
+
+    private void scanKotlinSuperTypes(List<String> superTypes) {
+        if (!cur().is(':'))
+            return;
+        consume();
+        while (!atEOF()) {
+            String superType = readTypeText();
+            if (superType == null)
+                break;
+            superTypes.add(Utils.simplifyType(superType));
+            if (cur().is('(') && !cur().newlineBefore)
+                skipBalanced();
+            if (cur().isIdentifier("by")) {
+                consume();
+                skipExpression(true);
+            }
+            if (cur().is(','))
+                consume();
+            else
+                break;
+        }
+        if (cur().isIdentifier("where"))
+            while (!atEOF() && !cur().is('{') && !cur().newlineBefore)
+                consume();
+    }
+
+    private void scanEnumConstants(JType owner) {
+        while (!atEOF()) {
+            Token t = cur();
+            if (t.is(';')) {
+                consume();
+                return;
+            }
+            if (t.is('}'))
+                return;
+            ScannedModifierPack mp = readModifiers();
+            if (cur().kind != Kind.IDENTIFIER || !(peek(1).is(',') || peek(1).is(';') || peek(1).is('}') || peek(1).is('(') || peek(1).is('{')))
+                return;
+            Token nameTok = consume();
+            JField srcField = new JField(sourceFile, owner.getSimpleName(), nameTok.text, mp.getAnnotations(), pos(nameTok), owner);
+            owner.fields.add(srcField);
+            if (cur().is('('))
+                skipBalanced();
+            if (cur().is('{'))
+                skipBalanced();
+            if (cur().is(','))
+                consume();
+            else if (!cur().is(';') && !cur().is('}'))
+                return;
+        }
+    }
+
+    private void scanKotlinMember(JType owner, ScannedModifierPack mp, Token declStart) {
+        Token t = cur();
+        if (t.isIdentifier("fun"))
+            scanKotlinFunction(owner, mp, declStart);
+        else if (t.isIdentifier("val") || t.isIdentifier("var"))
+            scanKotlinProperty(owner, mp);
+        else if (t.isIdentifier("init") && peek(1).is('{')) {
+            consume();
+            skipBalanced();
+        } else if (t.isIdentifier("constructor")) {
+            // Secondary constructors are not supported by the Kotlin front end.
+            consume();
+            if (cur().is('('))
+                skipBalanced();
+            if (cur().is(':')) {
+                consume();
+                consume();
+                if (cur().is('('))
+                    skipBalanced();
+            }
+            if (cur().is('{'))
+                skipBalanced();
+        } else
+            skipStatement();
+    }
+
+    private void scanKotlinFunction(JType owner, ScannedModifierPack mp, Token declStart) {
+        consume();
+        skipTypeParameters();
+        Token nameTok = readKotlinReceiverAndName();
+        if (nameTok == null || !cur().is('(')) {
+            skipStatement();
+            return;
+        }
+        List<Token> paramNames = new ArrayList<>();
+        List<String> paramTypes = new ArrayList<>();
+        List<ScannedModifierPack> paramMods = new ArrayList<>();
+        scanKotlinParameters(paramNames, paramTypes, paramMods);
+        String retType = null;
+        if (cur().is(':')) {
+            consume();
+            retType = readTypeText();
+        }
+        if (cur().isIdentifier("where"))
+            while (!atEOF() && !cur().is('{') && !cur().is('=') && !cur().newlineBefore)
+                consume();
+        if (cur().is('{'))
+            skipBalanced();
+        else if (cur().is('=')) {
+            consume();
+            skipExpression(false);
+        }
+        List<JVariable> parameters = new ArrayList<>();
+        for (int i = 0; i < paramNames.size(); i++) {
+            Token pTok = paramNames.get(i);
+            parameters.add(new JVariable(sourceFile, pos(pTok), pTok.text, paramTypes.get(i), false, paramMods.get(i)));
+        }
+        JMethod jm = new JMethod(sourceFile, nameTok.text, retType == null ? null : Utils.simplifyType(retType),
+                parameters, mp.getAnnotations(), span(declStart), owner, pos(nameTok), false);
+        owner.methods.add(jm);
+        jm.setReceiver();
+        if (debug)
+            System.out.println("Scanned method: " + jm);
+    }
+
+    /**
+     * Reads the (optional) receiver type and the name of a Kotlin function or
+     * property, such as "String.name".
+     * @return   the name token or null if no name could be found
+     */
+    private Token readKotlinReceiverAndName() {
+        Token nameTok = null;
+        while (cur().kind == Kind.IDENTIFIER) {
+            nameTok = consume();
+            skipTypeParameters();
+            if (cur().is('?'))
+                consume();
+            if (cur().is('.') && peek(1).kind == Kind.IDENTIFIER)
+                consume();
+            else
+                break;
+        }
+        return nameTok;
+    }
+
+    private void scanKotlinParameters(List<Token> names, List<String> types, List<ScannedModifierPack> mods) {
+        consume();
+        while (!atEOF() && !cur().is(')')) {
+            ScannedModifierPack pm = readModifiers();
+            if (cur().isIdentifier("val") || cur().isIdentifier("var"))
+                consume();
+            if (cur().kind != Kind.IDENTIFIER || !peek(1).is(':')) {
+                skipToClosingParen();
+                return;
+            }
+            Token nameTok = consume();
+            consume();
+            String type = readTypeText();
+            names.add(nameTok);
+            types.add(type == null ? null : Utils.simplifyType(type));
+            mods.add(pm);
+            if (cur().is('=')) {
+                consume();
+                skipExpression(true);
+            }
+            if (cur().is(','))
+                consume();
+            else if (!cur().is(')')) {
+                skipToClosingParen();
+                return;
+            }
+        }
+        if (cur().is(')'))
+            consume();
+    }
+
+    private void scanKotlinProperty(JType owner, ScannedModifierPack mp) {
+        consume();
+        skipTypeParameters();
+        if (cur().is('(')) {
+            // Destructuring declaration.
+            skipStatement();
+            return;
+        }
+        Token first = cur();
+        Token nameTok = readKotlinReceiverAndName();
+        if (nameTok == null) {
+            skipStatement();
+            return;
+        }
+        // Extension properties have no backing field.
+        boolean hasReceiver = nameTok != first;
+        String type = null;
+        if (cur().is(':')) {
+            consume();
+            type = readTypeText();
+        }
+        if (cur().is('=') || cur().isIdentifier("by")) {
+            consume();
+            skipExpression(false);
+        }
+        skipKotlinAccessors();
+        if (!hasReceiver) {
+            JField srcField = new JField(sourceFile, type == null ? null : Utils.simplifyType(type),
+                    nameTok.text, mp.getAnnotations(), pos(nameTok), owner);
+            owner.fields.add(srcField);
+            if (debug)
+                System.out.println("Scanned field: " + srcField);
+        }
+    }
+
+    private void skipKotlinAccessors() {
+        while (!atEOF()) {
+            int i = 0;
+            while (peek(i).kind == Kind.IDENTIFIER && modifierKeywords.contains(peek(i).text))
+                i++;
+            Token t = peek(i);
+            if (!(t.isIdentifier("get") || t.isIdentifier("set")))
+                return;
+            Token next = peek(i + 1);
+            if (!(next.is('(') || next.is('=') || next.is('{') || next.is(';') || next.newlineBefore || next.is('}')))
+                return;
+            for (int j = 0; j <= i; j++)
+                consume();
+            if (cur().is('('))
+                skipBalanced();
+            if (cur().is(':')) {
+                consume();
+                readTypeText();
+            }
+            if (cur().is('=')) {
+                consume();
+                skipExpression(false);
+            } else if (cur().is('{'))
+                skipBalanced();
+        }
+    }
+
+    private void scanJavaMember(JType owner, ScannedModifierPack mp, Token declStart) {
+        skipTypeParameters();
+        Token t = cur();
+        if (t.is('{')) {
+            // Initializer block.
+            skipBalanced();
+            return;
+        }
+        if (t.kind != Kind.IDENTIFIER) {
+            skipStatement();
+            return;
+        }
+        if (peek(1).is('(')) {
+            // Constructor or untyped Groovy method.
+            consume();
+            scanJavaMethod(owner, mp, language == Language.JAVA ? "void" : null, t, declStart);
+            return;
+        }
+        if (language == Language.GROOVY && isUntypedGroovyField()) {
+            scanJavaFields(owner, mp, null);
+            return;
+        }
+        String type = readTypeText();
+        if (type != null && cur().kind == Kind.IDENTIFIER) {
+            if (peek(1).is('(')) {
+                Token nameTok = consume();
+                scanJavaMethod(owner, mp, type, nameTok, declStart);
+            } else
+                scanJavaFields(owner, mp, type);
+        } else
+            skipStatement();
+    }
+
+    private boolean isUntypedGroovyField() {
+        Token next = peek(1);
+        return next.is('=') || next.is(',') || next.is(';') || next.is('}') || next.newlineBefore || next.kind == Kind.EOF;
+    }
+
+    private void scanJavaMethod(JType owner, ScannedModifierPack mp, String retType,
+                                Token nameTok, Token declStart) {
+        List<JVariable> parameters = new ArrayList<>();
+        boolean isVarArgs = scanJavaParameters(parameters);
+        while (cur().is('[') && peek(1).is(']')) {
+            consume();
+            consume();
+        }
+        if (cur().isIdentifier("throws")) {
+            consume();
+            do {
+                if (cur().is(','))
+                    consume();
+                if (readTypeText() == null)
+                    break;
+            } while (cur().is(','));
+        }
+        if (cur().isIdentifier("default")) {
+            consume();
+            skipExpression(false);
+        }
+        if (cur().is('{'))
+            skipBalanced();
+        else if (cur().is(';'))
+            consume();
+        mp.setVarArgs(isVarArgs);
+        JMethod jm = new JMethod(sourceFile, nameTok.text, retType, parameters,
+                mp.getAnnotations(), span(declStart), owner, pos(nameTok), isVarArgs);
+        if (!mp.isStatic())
+            jm.setReceiver();
+        owner.methods.add(jm);
+        if (debug)
+            System.out.println("Scanned method: " + jm);
+    }
+
+    /**
+     * Scan the formal parameters of a Java/Groovy method.
+     * @param parameters   the list to fill in
+     * @return             true if the method accepts varargs
+     */
+    private boolean scanJavaParameters(List<JVariable> parameters) {
+        boolean isVarArgs = false;
+        consume();
+        while (!atEOF() && !cur().is(')')) {
+            ScannedModifierPack pm = readModifiers();
+            String type = null;
+            Token nameTok;
+            if (cur().kind == Kind.IDENTIFIER && (peek(1).is(',') || peek(1).is(')') || peek(1).is('=')))
+                nameTok = consume();
+            else {
+                type = readTypeText();
+                if (cur().is('.') && peek(1).is('.') && peek(2).is('.')) {
+                    consume();
+                    consume();
+                    consume();
+                    isVarArgs = true;
+                    if (language == Language.JAVA)
+                        type = type + "[]";
+                }
+                if (type == null || cur().kind != Kind.IDENTIFIER) {
+                    skipToClosingParen();
+                    return isVarArgs;
+                }
+                nameTok = consume();
+                while (cur().is('[') && peek(1).is(']')) {
+                    consume();
+                    consume();
+                    type = type + "[]";
+                }
+            }
+            if (cur().is('=')) {
+                consume();
+                skipExpression(true);
+            }
+            if (language == Language.GROOVY && type != null)
+                type = Utils.simplifyType(type);
+            parameters.add(new JVariable(sourceFile, pos(nameTok), nameTok.text, type, false, pm));
+            if (cur().is(','))
+                consume();
+            else if (!cur().is(')')) {
+                skipToClosingParen();
+                return isVarArgs;
+            }
+        }
+        if (cur().is(')'))
+            consume();
+        return isVarArgs;
+    }
+
+    private void scanJavaFields(JType owner, ScannedModifierPack mp, String type) {
+        while (cur().kind == Kind.IDENTIFIER) {
+            Token nameTok = consume();
+            String fieldType = type;
+            while (cur().is('[') && peek(1).is(']')) {
+                consume();
+                consume();
+                fieldType = fieldType + "[]";
+            }
+            if (language == Language.JAVA)
+                fieldType = Utils.simplifyType(fieldType);
+            JField srcField = new JField(sourceFile, fieldType, nameTok.text, mp.getAnnotations(), pos(nameTok), owner);
+            owner.fields.add(srcField);
+            if (debug)
+                System.out.println("Scanned field: " + srcField);
+            if (cur().is('=')) {
+                consume();
+                skipExpression(true);
+            }
+            if (cur().is(',') && peek(1).kind == Kind.IDENTIFIER)
+                consume();
+            else
+                break;
+        }
+        if (cur().is(';'))
+            consume();
+    }
+
+    /**
+     * Reads a type, such as "java.util.Map&lt;K, V&gt;[]" or "String?".
+     * @return   the type text or null if no type could be read
+     */
+    private String readTypeText() {
+        StringBuilder sb = new StringBuilder();
+        if (language == Language.KOTLIN) {
+            while (cur().is('@'))
+                readModifiers();
+            if (cur().isIdentifier("suspend") && (peek(1).is('(') || peek(1).kind == Kind.IDENTIFIER))
+                consume();
+            if (cur().is('(')) {
+                // Function or parenthesized type.
+                skipBalanced();
+                sb.append("(...)");
+                if (cur().is('-') && peek(1).is('>')) {
+                    consume();
+                    consume();
+                    String ret = readTypeText();
+                    sb.append("->").append(ret);
+                }
+                if (cur().is('?'))
+                    sb.append(consume().text);
+                return sb.toString();
+            }
+        }
+        if (cur().kind != Kind.IDENTIFIER)
+            return null;
+        while (cur().kind == Kind.IDENTIFIER) {
+            sb.append(consume().text);
+            if (cur().is('<'))
+                sb.append(readTypeArguments());
+            if (cur().is('.') && peek(1).kind == Kind.IDENTIFIER) {
+                consume();
+                sb.append('.');
+            } else
+                break;
+        }
+        while (cur().is('[') && peek(1).is(']')) {
+            consume();
+            consume();
+            sb.append("[]");
+        }
+        if (language == Language.KOTLIN && cur().is('?'))
+            sb.append(consume().text);
+        return sb.toString();
+    }
+
+    private String readTypeArguments() {
+        StringBuilder sb = new StringBuilder();
+        int depth = 0;
+        while (!atEOF()) {
+            Token t = cur();
+            if (t.is('<'))
+                depth++;
+            else if (t.is('>'))
+                depth--;
+            else if (t.is('{') || t.is(';') || t.is('}') || t.is('='))
+                break;
+            consume();
+            // Follow the type printing of the Java front end.
+            if (language == Language.JAVA && (t.isIdentifier("extends") || t.isIdentifier("super")))
+                sb.append(' ').append(t.text).append(' ');
+            else
+                sb.append(t.text);
+            if (depth == 0)
+                break;
+        }
+        return sb.toString();
+    }
+
+    private static String simpleName(String type) {
+        String s = Utils.simplifyType(type);
+        return s.substring(s.lastIndexOf('.') + 1);
+    }
+
+    private void skipTypeParameters() {
+        if (cur().is('<'))
+            readTypeArguments();
+    }
+
+    /** Skips a balanced group, starting at the current opening token. */
+    private void skipBalanced() {
+        int depth = 0;
+        while (!atEOF()) {
+            Token t = consume();
+            if (t.is('(') || t.is('[') || t.is('{'))
+                depth++;
+            else if (t.is(')') || t.is(']') || t.is('}'))
+                depth--;
+            if (depth <= 0)
+                return;
+        }
+    }
+
+    /** Skips tokens up to (and including) the ')' that closes the current list. */
+    private void skipToClosingParen() {
+        int depth = 0;
+        while (!atEOF()) {
+            Token t = cur();
+            if (t.is('(') || t.is('[') || t.is('{'))
+                depth++;
+            else if (t.is(')') || t.is(']') || t.is('}')) {
+                if (depth == 0) {
+                    if (t.is(')'))
+                        consume();
+                    return;
+                }
+                depth--;
+            }
+            consume();
+        }
+    }
+
+    /**
+     * Skips an expression. The expression ends at a top-level ';' or at an
+     * unbalanced closing token (which are not consumed), or, in Groovy and
+     * Kotlin, at a line break that does not continue the expression.
+     * @param stopAtComma   if true, a top-level ',' also ends the expression
+     */
+    private void skipExpression(boolean stopAtComma) {
+        int depth = 0;
+        boolean newlineEnds = language != Language.JAVA;
+        boolean first = true;
+        while (!atEOF()) {
+            Token t = cur();
+            if (depth == 0) {
+                if (t.is(';') || t.is(')') || t.is(']') || t.is('}') || (stopAtComma && t.is(',')))
+                    return;
+                if (newlineEnds && !first && t.newlineBefore && !continuesExpression(t))
+                    return;
+            }
+            if (t.is('(') || t.is('[') || t.is('{'))
+                depth++;
+            else if (t.is(')') || t.is(']') || t.is('}'))
+                depth--;
+            consume();
+            first = false;
+        }
+    }
+
+    private boolean continuesExpression(Token t) {
+        if (t.is('.') || t.is('?') || t.is(':') || t.is('&') || t.is('|') || t.is('+') || t.is('*') || t.is('/'))
+            return true;
+        Token prev = lastConsumed;
+        return prev != null && prev.kind == Kind.SYMBOL && CONTINUATION_SYMBOLS.indexOf(prev.text.charAt(0)) >= 0;
+    }
+
+    /** Skips a statement or declaration that is not understood. */
+    private void skipStatement() {
+        Token start = cur();
+        skipExpression(false);
+        if (cur() == start)
+            consume();
+        if (cur().is(';'))
+            consume();
+    }
+}
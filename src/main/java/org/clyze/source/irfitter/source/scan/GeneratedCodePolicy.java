@@ -0,0 +1,130 @@
+package org.clyze.source.irfitter.source.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.*;
+import org.clyze.source.irfitter.source.SourceText;
+import org.clyze.source.irfitter.source.scan.SourceLexer.Kind;
+import org.clyze.source.irfitter.source.scan.SourceLexer.Token;
+
+/**
+ * Recognizes generated source files (such as protobuf messages, Android
+ * R.java files, or annotation processor output), so that they can be
+ * processed in a reduced mode. Files are recognized by a "@Generated"
+ * annotation on a top-level type, a generator banner ("@generated") in a
+ * header comment, a path pattern, or their size.
+ */
+public class GeneratedCodePolicy {
+    private static final Set<String> GENERATED_ANNOTATIONS = new HashSet<>(Arrays.asList(
+            "Generated", "javax.annotation.Generated",
+            "javax.annotation.processing.Generated", "jakarta.annotation.Generated"));
+    /**
+     * The header comment marker of generators (in lowercase). Phrases such
+     * as "do not modify" also appear in hand-written files, so they are
+     * not markers.
+     */
+    private static final String HEADER_MARKER = "@generated";
+
+    private final List<PathMatcher> pathMatchers = new ArrayList<>();
+    private final long sizeThreshold;
+
+    /**
+     * Create a generated code policy.
+     * @param pathPatterns    glob patterns of generated source paths (relative
+     *                        to the source root)
+     * @param sizeThreshold   files larger than this size (in bytes) are treated
+     *                        as generated, 0 for no limit
+     */
+    public GeneratedCodePolicy(Collection<String> pathPatterns, long sizeThreshold) {
+        for (String pattern : pathPatterns)
+            pathMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        this.sizeThreshold = sizeThreshold;
+    }
+
+    /**
+     * Check if a source file contains generated code.
+     * @param topDir     the top directory of the sources
+     * @param srcFile    the source file
+     * @param language   the language of the source file
+     * @return           the reason the file is considered generated or null
+     *                   if it is not considered generated
+     */
+    public String check(File topDir, File srcFile, Language language) {
+        return check(topDir, new SourceText(srcFile), language);
+    }
+
+    /**
+     * Check if a source file contains generated code.
+     * @param topDir     the top directory of the sources
+     * @param source     the source file (and its contents)
+     * @param language   the language of the source file
+     * @return           the reason the file is considered generated or null
+     *                   if it is not considered generated
+     */
+    public String check(File topDir, SourceText source, Language language) {
+        File srcFile = source.file;
+        if (sizeThreshold > 0 && srcFile.length() > sizeThreshold)
+            return "larger than " + sizeThreshold + " bytes";
+        if (!pathMatchers.isEmpty()) {
+            Path path = topDir.getAbsoluteFile().toPath().relativize(srcFile.getAbsoluteFile().toPath());
+            if (path.toString().isEmpty())
+                path = srcFile.toPath().getFileName();
+            for (PathMatcher pathMatcher : pathMatchers)
+                if (pathMatcher.matches(path))
+                    return "path pattern";
+        }
+        try {
+            return checkText(new SourceLexer(source.getChars(), language));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Check the header comments and the annotations that appear before the
+     * first type body.
+     * @param lexer   the lexer of the source text
+     * @return        the detection reason or null
+     */
+    private static String checkText(SourceLexer lexer) {
+        Token t = lexer.next();
+        for (String comment : lexer.getHeaderComments()) {
+            // Skip documentation comments (such as package documentation).
+            if (comment.startsWith("/**"))
+                continue;
+            if (comment.toLowerCase(Locale.ROOT).contains(HEADER_MARKER))
+                return "header comment";
+        }
+        int parenDepth = 0;
+        while (t.kind != Kind.EOF) {
+            if (t.is('(')) {
+                parenDepth++;
+                t = lexer.next();
+            } else if (t.is(')')) {
+                parenDepth--;
+                t = lexer.next();
+            } else if (t.is('{') && parenDepth == 0)
+                break;
+            else if (t.is('@')) {
+                t = lexer.next();
+                StringBuilder name = new StringBuilder();
+                while (t.kind == Kind.IDENTIFIER) {
+                    name.append(t.text);
+                    t = lexer.next();
+                    if (!t.is('.'))
+                        break;
+                    name.append('.');
+                    t = lexer.next();
+                }
+                if (GENERATED_ANNOTATIONS.contains(name.toString()))
+                    return "@" + name + " annotation";
+            } else
+                t = lexer.next();
+        }
+        return null;
+    }
+}
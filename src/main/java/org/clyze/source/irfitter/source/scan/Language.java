@@ -0,0 +1,24 @@
+package org.clyze.source.irfitter.source.scan;
+
+import java.util.Locale;
+
+/** The source languages understood by the lexical scanner. */
+public enum Language {
+    JAVA, GROOVY, KOTLIN;
+
+    /**
+     * Find the language of a source file from its name.
+     * @param fileName   the file name (or path)
+     * @return           the language or null if the extension is not supported
+     */
+    public static Language fromFileName(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".java"))
+            return JAVA;
+        else if (name.endsWith(".groovy"))
+            return GROOVY;
+        else if (name.endsWith(".kt"))
+            return KOTLIN;
+        return null;
+    }
+}
@@ -0,0 +1,66 @@
+package org.clyze.source.irfitter.source.scan;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import org.clyze.source.irfitter.source.model.SourceModifierPack;
+
+/** Modifiers recovered by the lexical declaration scanner. */
+class ScannedModifierPack extends SourceModifierPack {
+    private static final long serialVersionUID = 1L;
+    private final boolean isStatic;
+    private final boolean isSynchronized;
+    /** True for modifiers that make a Kotlin nested class an inner class. */
+    final boolean isInner;
+    final boolean isCompanion;
+    /** The modifier keywords found. */
+    final Set<String> keywords;
+
+    /**
+     * Create a modifier pack from the keywords/annotations preceding a declaration.
+     * @param keywords      the modifier keywords
+     * @param annotations   the (simple or qualified) annotation names
+     */
+    ScannedModifierPack(Set<String> keywords, Collection<String> annotations) {
+        this.keywords = keywords;
+        this.isStatic = keywords.contains("static");
+        this.isSynchronized = keywords.contains("synchronized");
+        this.isAbstract = keywords.contains("abstract");
+        this.isFinal = keywords.contains("final");
+        this.isPublic = keywords.contains("public");
+        this.isPrivate = keywords.contains("private");
+        this.isProtected = keywords.contains("protected");
+        this.isNative = keywords.contains("native") || keywords.contains("external");
+        this.isEnum = keywords.contains("enum");
+        this.isInner = keywords.contains("inner");
+        this.isCompanion = keywords.contains("companion");
+        this.annotations.addAll(annotations);
+    }
+
+    /** An empty modifier pack. */
+    ScannedModifierPack() {
+        this(new HashSet<>(), new HashSet<>());
+    }
+
+    @Override
+    public boolean isStatic() {
+        return isStatic;
+    }
+
+    @Override
+    public boolean isSynchronized() {
+        return isSynchronized;
+    }
+
+    void setInterface(boolean isInterface) {
+        this.isInterface = isInterface;
+    }
+
+    void setEnum(boolean isEnum) {
+        this.isEnum = isEnum;
+    }
+
+    void setVarArgs(boolean isVarArgs) {
+        this.isVarArgs = isVarArgs;
+    }
+}
@@ -0,0 +1,131 @@
+package org.clyze.source.irfitter.source.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import org.clyze.source.irfitter.source.SourceText;
+import org.clyze.source.irfitter.source.scan.SourceLexer.Kind;
+import org.clyze.source.irfitter.source.scan.SourceLexer.Token;
+
+/**
+ * The package and the top-level class names of a source file, as found by a
+ * lexical scan (without parsing declarations).
+ */
+class SourceHeader {
+    private static final Set<String> JAVA_TYPE_KEYWORDS = new HashSet<>(Arrays.asList("class", "interface", "enum", "record"));
+    private static final Set<String> GROOVY_TYPE_KEYWORDS = new HashSet<>(Arrays.asList("class", "interface", "enum", "trait", "record"));
+    private static final Set<String> KOTLIN_TYPE_KEYWORDS = new HashSet<>(Arrays.asList("class", "interface", "object"));
+
+    /** The package of the file (null for the default package). */
+    String packageName = null;
+    /** The simple names of the top-level classes that the file may compile to. */
+    final List<String> typeNames = new ArrayList<>();
+    /**
+     * False if the class names cannot be found lexically (for example, when
+     * Kotlin top-level declarations are renamed via {@code @file:JvmName}).
+     */
+    boolean exact = true;
+
+    /**
+     * Scan the header of a source file.
+     * @param srcFile       the source file
+     * @param language      the language of the file
+     * @return              the header information
+     * @throws IOException  if the file cannot be read
+     */
+    static SourceHeader read(File srcFile, Language language) throws IOException {
+        return read(new SourceText(srcFile), language);
+    }
+
+    /**
+     * Scan the header of a source file whose contents may have been read.
+     * @param source        the source file (and its contents)
+     * @param language      the language of the file
+     * @return              the header information
+     * @throws IOException  if the file cannot be read
+     */
+    static SourceHeader read(SourceText source, Language language) throws IOException {
+        File srcFile = source.file;
+        SourceHeader header = new SourceHeader();
+        header.scan(new SourceLexer(source.getChars(), language), language);
+        String baseName = srcFile.getName();
+        int dotIdx = baseName.lastIndexOf('.');
+        if (dotIdx > 0)
+            baseName = baseName.substring(0, dotIdx);
+        if (language == Language.KOTLIN)
+            header.typeNames.add(kotlinFacadeName(baseName));
+        else if (language == Language.GROOVY)
+            header.typeNames.add(baseName);     // script class
+        return header;
+    }
+
+    private void scan(SourceLexer lexer, Language language) {
+        Set<String> typeKeywords = language == Language.KOTLIN ? KOTLIN_TYPE_KEYWORDS :
+                (language == Language.GROOVY ? GROOVY_TYPE_KEYWORDS : JAVA_TYPE_KEYWORDS);
+        int depth = 0;
+        Token prev = null;
+        Token t = lexer.next();
+        while (t.kind != Kind.EOF) {
+            Token next = lexer.next();
+            if (t.is('{') || t.is('(') || t.is('['))
+                depth++;
+            else if (t.is('}') || t.is(')') || t.is(']'))
+                depth--;
+            else if (depth == 0 && t.kind == Kind.IDENTIFIER) {
+                // The package declaration may only follow file annotations.
+                if (t.text.equals("package") && packageName == null && typeNames.isEmpty() &&
+                        (prev == null || !prev.is('.'))) {
+                    // Kotlin/Groovy declarations may end without a semicolon.
+                    StringBuilder sb = new StringBuilder();
+                    while (next.kind == Kind.IDENTIFIER) {
+                        sb.append(next.text);
+                        next = lexer.next();
+                        if (!next.is('.'))
+                            break;
+                        sb.append('.');
+                        next = lexer.next();
+                    }
+                    packageName = sb.toString();
+                } else if (typeKeywords.contains(t.text) && next.kind == Kind.IDENTIFIER &&
+                        (prev == null || !(prev.is('.') || prev.is(':'))))
+                    typeNames.add(next.text);
+                else if (language == Language.KOTLIN && t.text.equals("file") && prev != null && prev.is('@') && next.is(':')) {
+                    Token annotation = lexer.next();
+                    if (annotation.isIdentifier("JvmName") || annotation.isIdentifier("JvmMultifileClass"))
+                        exact = false;
+                    next = annotation;
+                }
+            }
+            prev = t;
+            t = next;
+        }
+    }
+
+    /**
+     * Returns the class name that Kotlin uses for the top-level declarations
+     * of a file.
+     * @param baseName   the file name without extension
+     * @return           the facade class name
+     */
+    private static String kotlinFacadeName(String baseName) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < baseName.length(); i++) {
+            char c = baseName.charAt(i);
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        if (sb.length() > 0)
+            sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+        return sb.append("Kt").toString();
+    }
+
+    /**
+     * Returns the fully-qualified names of the top-level classes.
+     * @return   the class names
+     */
+    List<String> getQualifiedNames() {
+        List<String> names = new ArrayList<>(typeNames.size());
+        for (String name : typeNames)
+            names.add(packageName == null || packageName.isEmpty() ? name : packageName + "." + name);
+        return names;
+    }
+}
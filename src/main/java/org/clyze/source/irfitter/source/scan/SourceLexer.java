@@ -0,0 +1,345 @@
+package org.clyze.source.irfitter.source.scan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small hand-written lexer for Java, Groovy, and Kotlin sources. It only
+ * separates identifiers, literals, and punctuation, skipping comments and the
+ * contents of string literals (including template expressions), so that
+ * callers can follow the brace structure of a file without a full parse.
+ */
+public class SourceLexer {
+    /** The kinds of tokens produced. */
+    public enum Kind { IDENTIFIER, LITERAL, SYMBOL, EOF }
+
+    /** A lexical token. */
+    public static final class Token {
+        public final Kind kind;
+        public final String text;
+        /** The line of the token (starting from 1). */
+        public final int line;
+        /** The column of the token (starting from 1). */
+        public final int column;
+        /** True if a line break appears between this token and the previous one. */
+        public final boolean newlineBefore;
+
+        Token(Kind kind, String text, int line, int column, boolean newlineBefore) {
+            this.kind = kind;
+            this.text = text;
+            this.line = line;
+            this.column = column;
+            this.newlineBefore = newlineBefore;
+        }
+
+        public boolean is(char c) {
+            return kind == Kind.SYMBOL && text.charAt(0) == c;
+        }
+
+        public boolean isIdentifier(String s) {
+            return kind == Kind.IDENTIFIER && text.equals(s);
+        }
+
+        @Override
+        public String toString() {
+            return kind + "(" + text + ")@" + line + ":" + column;
+        }
+    }
+
+    private final char[] buf;
+    private final Language language;
+    private int idx = 0;
+    private int line = 1;
+    private int column = 1;
+    private boolean newline = false;
+    private Token last = null;
+    /** The comments found before the first token of the file. */
+    private final List<String> headerComments = new ArrayList<>();
+
+    public SourceLexer(char[] buf, Language language) {
+        this.buf = buf;
+        this.language = language;
+        // Groovy/Kotlin scripts may start with a shebang line.
+        if (buf.length > 1 && buf[0] == '#' && buf[1] == '!')
+            while (idx < buf.length && buf[idx] != '\n')
+                advance();
+    }
+
+    /**
+     * Returns the comments that appear before any code in the file.
+     * @return the comment texts (including delimiters)
+     */
+    public List<String> getHeaderComments() {
+        return headerComments;
+    }
+
+    /**
+     * Returns the next token (EOF tokens are returned forever at the end).
+     * @return the next token
+     */
+    public Token next() {
+        Token t = nextToken();
+        if (t.kind != Kind.EOF)
+            last = t;
+        return t;
+    }
+
+    private Token nextToken() {
+        skipWhitespaceAndComments();
+        boolean nl = newline;
+        newline = false;
+        int startLine = line, startColumn = column;
+        if (idx >= buf.length)
+            return new Token(Kind.EOF, "", startLine, startColumn, nl);
+        char c = buf[idx];
+        if (c == '`' && language == Language.KOTLIN) {
+            advance();
+            int start = idx;
+            while (idx < buf.length && buf[idx] != '`' && buf[idx] != '\n')
+                advance();
+            String id = new String(buf, start, idx - start);
+            if (idx < buf.length && buf[idx] == '`')
+                advance();
+            return new Token(Kind.IDENTIFIER, id, startLine, startColumn, nl);
+        }
+        if (c == '$' && language == Language.GROOVY && peek(1) == '/') {
+            skipDollarSlashyString();
+            return new Token(Kind.LITERAL, "$/", startLine, startColumn, nl);
+        }
+        if (Character.isJavaIdentifierStart(c)) {
+            int start = idx;
+            while (idx < buf.length && Character.isJavaIdentifierPart(buf[idx]))
+                advance();
+            return new Token(Kind.IDENTIFIER, new String(buf, start, idx - start), startLine, startColumn, nl);
+        }
+        if (Character.isDigit(c)) {
+            int start = idx;
+            while (idx < buf.length) {
+                char d = buf[idx];
+                if (Character.isLetterOrDigit(d) || d == '_')
+                    advance();
+                else if (d == '.' && Character.isDigit(peek(1)))
+                    advance();
+                else if ((d == '+' || d == '-') && (buf[idx - 1] == 'e' || buf[idx - 1] == 'E') && !isHex(start))
+                    advance();
+                else
+                    break;
+            }
+            return new Token(Kind.LITERAL, new String(buf, start, idx - start), startLine, startColumn, nl);
+        }
+        if (c == '"') {
+            skipDoubleQuotedString();
+            return new Token(Kind.LITERAL, "\"", startLine, startColumn, nl);
+        }
+        if (c == '\'') {
+            skipSingleQuotedString();
+            return new Token(Kind.LITERAL, "'", startLine, startColumn, nl);
+        }
+        if (c == '/' && language == Language.GROOVY && slashyStringAllowed()) {
+            skipSlashyString();
+            return new Token(Kind.LITERAL, "/", startLine, startColumn, nl);
+        }
+        advance();
+        return new Token(Kind.SYMBOL, String.valueOf(c), startLine, startColumn, nl);
+    }
+
+    private boolean isHex(int start) {
+        return start + 1 < buf.length && buf[start] == '0' && (buf[start + 1] == 'x' || buf[start + 1] == 'X');
+    }
+
+    private char peek(int offset) {
+        int i = idx + offset;
+        return i < buf.length ? buf[i] : '\0';
+    }
+
+    private void advance() {
+        char c = buf[idx++];
+        if (c == '\n' || (c == '\r' && peek(0) != '\n')) {
+            line++;
+            column = 1;
+            newline = true;
+        } else
+            column++;
+    }
+
+    private void skipWhitespaceAndComments() {
+        while (idx < buf.length) {
+            char c = buf[idx];
+            if (Character.isWhitespace(c))
+                advance();
+            else if (c == '/' && peek(1) == '/') {
+                int start = idx;
+                while (idx < buf.length && buf[idx] != '\n' && buf[idx] != '\r')
+                    advance();
+                recordComment(start);
+            } else if (c == '/' && peek(1) == '*') {
+                int start = idx;
+                advance();
+                advance();
+                // Kotlin block comments nest.
+                int depth = 1;
+                while (idx < buf.length && depth > 0) {
+                    if (buf[idx] == '*' && peek(1) == '/') {
+                        advance();
+                        depth--;
+                    } else if (language == Language.KOTLIN && buf[idx] == '/' && peek(1) == '*') {
+                        advance();
+                        depth++;
+                    }
+                    advance();
+                }
+                recordComment(start);
+            } else
+                break;
+        }
+    }
+
+    private void recordComment(int start) {
+        if (last == null)
+            headerComments.add(new String(buf, start, idx - start));
+    }
+
+    private boolean startsWith(String s) {
+        if (idx + s.length() > buf.length)
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (buf[idx + i] != s.charAt(i))
+                return false;
+        return true;
+    }
+
+    private boolean hasTemplates() {
+        return language != Language.JAVA;
+    }
+
+    private void skipDoubleQuotedString() {
+        if (startsWith("\"\"\"")) {
+            advance();
+            advance();
+            advance();
+            skipStringBody("\"\"\"", hasTemplates());
+        } else {
+            advance();
+            skipStringBody("\"", hasTemplates());
+        }
+    }
+
+    private void skipSingleQuotedString() {
+        if (language == Language.GROOVY && startsWith("'''")) {
+            advance();
+            advance();
+            advance();
+            skipStringBody("'''", false);
+        } else {
+            advance();
+            skipStringBody("'", false);
+        }
+    }
+
+    /**
+     * Skip string contents up to (and including) the closing delimiter.
+     * @param end         the closing delimiter
+     * @param templates   if true, "${...}" expressions are skipped as code
+     */
+    private void skipStringBody(String end, boolean templates) {
+        // Kotlin raw strings have no escapes.
+        boolean escapes = !(language == Language.KOTLIN && end.length() == 3);
+        boolean singleLine = end.length() == 1;
+        while (idx < buf.length) {
+            char c = buf[idx];
+            if (escapes && c == '\\') {
+                advance();
+                if (idx < buf.length)
+                    advance();
+            } else if (templates && c == '$' && peek(1) == '{') {
+                advance();
+                advance();
+                skipTemplateCode();
+            } else if (startsWith(end)) {
+                // Raw strings may end with extra quotes.
+                for (int i = 0; i < end.length(); i++)
+                    advance();
+                if (end.length() == 3)
+                    while (idx < buf.length && buf[idx] == end.charAt(0))
+                        advance();
+                return;
+            } else if (singleLine && (c == '\n' || c == '\r'))
+                return;         // unterminated literal, resynchronize
+            else
+                advance();
+        }
+    }
+
+    /** Skips the code of a "${...}" template expression, after the opening brace. */
+    private void skipTemplateCode() {
+        int depth = 1;
+        Token saved = last;
+        while (depth > 0) {
+            Token t = nextToken();
+            if (t.kind == Kind.EOF)
+                break;
+            last = t;
+            if (t.is('{'))
+                depth++;
+            else if (t.is('}'))
+                depth--;
+        }
+        last = saved;
+    }
+
+    private boolean slashyStringAllowed() {
+        char n = peek(1);
+        if (n == '/' || n == '*' || n == '=' || Character.isWhitespace(n))
+            return false;
+        if (last == null)
+            return true;
+        switch (last.kind) {
+            case IDENTIFIER:
+                String s = last.text;
+                return s.equals("return") || s.equals("case") || s.equals("in") || s.equals("assert");
+            case SYMBOL:
+                return "=([{,:;!&|?~+-*%<>^".indexOf(last.text.charAt(0)) >= 0;
+            default:
+                return false;
+        }
+    }
+
+    private void skipSlashyString() {
+        advance();
+        while (idx < buf.length) {
+            char c = buf[idx];
+            if (c == '\\' && peek(1) == '/') {
+                advance();
+                advance();
+            } else if (c == '$' && peek(1) == '{') {
+                advance();
+                advance();
+                skipTemplateCode();
+            } else if (c == '/') {
+                advance();
+                return;
+            } else
+                advance();
+        }
+    }
+
+    private void skipDollarSlashyString() {
+        advance();
+        advance();
+        while (idx < buf.length) {
+            if (startsWith("$$") || startsWith("$/")) {
+                advance();
+                advance();
+            } else if (startsWith("${")) {
+                advance();
+                advance();
+                skipTemplateCode();
+            } else if (startsWith("/$")) {
+                advance();
+                advance();
+                return;
+            } else
+                advance();
+        }
+    }
+}
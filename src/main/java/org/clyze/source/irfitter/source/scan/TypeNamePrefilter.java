@@ -0,0 +1,114 @@
+package org.clyze.source.irfitter.source.scan;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.clyze.source.irfitter.ir.model.IRType;
+import org.clyze.source.irfitter.source.SourceText;
+
+/**
+ * A filter that finds source files that cannot match the IR: their
+ * top-level types are compared (by name) against the IR types, using only
+ * a lexical scan of the source. IR types can be added and removed (such as
+ * when IR files change), but not while other threads use the filter.
+ */
+public class TypeNamePrefilter {
+    /**
+     * The names of the IR types and their top-level types, with the number
+     * of IR types that have each name.
+     */
+    private final Map<String, Integer> irTypeNames = new HashMap<>();
+
+    /**
+     * Create a filter for the given IR.
+     * @param irTypes   the IR types
+     */
+    public TypeNamePrefilter(Collection<IRType> irTypes) {
+        for (IRType irType : irTypes)
+            addType(irType);
+    }
+
+    /**
+     * Add an IR type to the filter.
+     * @param irType   the IR type
+     */
+    public void addType(IRType irType) {
+        String id = irType.getId();
+        irTypeNames.merge(id, 1, Integer::sum);
+        int dollarIdx = id.indexOf('$');
+        if (dollarIdx > 0)
+            irTypeNames.merge(id.substring(0, dollarIdx), 1, Integer::sum);
+    }
+
+    /**
+     * Remove an IR type (that was added earlier) from the filter.
+     * @param irType   the IR type
+     */
+    public void removeType(IRType irType) {
+        String id = irType.getId();
+        removeName(id);
+        int dollarIdx = id.indexOf('$');
+        if (dollarIdx > 0)
+            removeName(id.substring(0, dollarIdx));
+    }
+
+    private void removeName(String name) {
+        irTypeNames.computeIfPresent(name, (k, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Check if the filter has no IR types.
+     * @return   true if the filter has no IR types
+     */
+    public boolean isEmpty() {
+        return irTypeNames.isEmpty();
+    }
+
+    /**
+     * Returns the names of the top-level types that a source file may
+     * declare, as found by the filter.
+     * @param srcFile       the source file
+     * @param language      the language of the file
+     * @return              the fully-qualified type names (or null if they
+     *                      cannot be found lexically)
+     * @throws IOException  if the file cannot be read
+     */
+    public static List<String> declaredTypeNames(File srcFile, Language language) throws IOException {
+        SourceHeader header = SourceHeader.read(srcFile, language);
+        return header.exact ? header.getQualifiedNames() : null;
+    }
+
+    /**
+     * Check if a source file may declare some type found in the IR.
+     * @param srcFile    the source file
+     * @param language   the language of the source file
+     * @return           false if the file does not declare any IR types
+     */
+    public boolean mayMatch(File srcFile, Language language) {
+        return mayMatch(new SourceText(srcFile), language);
+    }
+
+    /**
+     * Check if a source file may declare some type found in the IR.
+     * @param source     the source file (and its contents)
+     * @param language   the language of the file
+     * @return           false if the file does not declare any IR types
+     */
+    public boolean mayMatch(SourceText source, Language language) {
+        try {
+            SourceHeader header = SourceHeader.read(source, language);
+            if (!header.exact)
+                return true;
+            for (String name : header.getQualifiedNames())
+                if (irTypeNames.containsKey(name))
+                    return true;
+            return false;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return true;
+        }
+    }
+}
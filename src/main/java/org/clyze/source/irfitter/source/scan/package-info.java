@@ -0,0 +1,2 @@
+/** Lexical scanning of sources, without a full parse. */
+package org.clyze.source.irfitter.source.scan;
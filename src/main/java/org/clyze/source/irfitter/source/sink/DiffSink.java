@@ -0,0 +1,133 @@
+package org.clyze.source.irfitter.source.sink;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A sink that writes one file per source file (like plain output files),
+ * but only the files whose contents changed since the previous run in the
+ * same output directory, so that downstream consumers can sync
+ * incrementally. Every run writes a manifest of the SHA-256 hashes of its
+ * output files (in the format of sha256sum); at the end of a run, files
+ * listed in the previous manifest that were not generated again are
+ * deleted. Reports are compared as written by the report writer of the
+ * metadata library, which gives the same bytes for the same metadata.
+ *
+ * The previous manifest is deleted when the sink is opened, so an
+ * interrupted run makes the next run write all of its files.
+ */
+public class DiffSink implements OutputSink {
+    /** The name of the manifest (in the output directory). */
+    public static final String MANIFEST = "metadata.sha256";
+
+    private final File outDir;
+    private final File manifest;
+    /** The hashes of the output files of the previous run (by file name). */
+    private final Map<String, String> previousHashes;
+    /** The hashes of the output files of this run (by file name). */
+    private final Map<String, String> hashes = new TreeMap<>();
+    private final MessageDigest digest;
+    private int written = 0;
+    private int unchanged = 0;
+
+    /**
+     * Create a sink.
+     * @param outDir         the output directory
+     * @throws IOException   if the previous manifest could not be read
+     */
+    public DiffSink(File outDir) throws IOException {
+        this.outDir = outDir;
+        this.manifest = new File(outDir, MANIFEST);
+        this.previousHashes = readManifest(manifest);
+        Files.deleteIfExists(manifest.toPath());
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Read a manifest.
+     * @param manifest       the manifest file
+     * @return               the hashes of the files (empty if there is no manifest)
+     * @throws IOException   if the manifest could not be read
+     */
+    static Map<String, String> readManifest(File manifest) throws IOException {
+        Map<String, String> hashes = new HashMap<>();
+        if (!manifest.exists())
+            return hashes;
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            // Lines have the form "<hash>  <name>".
+            int sep = line.indexOf("  ");
+            if (sep > 0)
+                hashes.put(line.substring(sep + 2), line.substring(0, sep));
+        }
+        return hashes;
+    }
+
+    @Override
+    public void addReport(String path, byte[] json, int length) throws IOException {
+        addFile(path + ".json", json, length);
+    }
+
+    @Override
+    public synchronized void addFile(String name, byte[] data, int length) throws IOException {
+        digest.update(data, 0, length);
+        String hash = toHex(digest.digest());
+        hashes.put(name, hash);
+        File file = new File(outDir, name);
+        // The length also catches (most) files changed since the previous run.
+        if (hash.equals(previousHashes.get(name)) && file.length() == length) {
+            unchanged++;
+            return;
+        }
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs() && !dir.exists())
+            throw new IOException("Could not create directory " + dir);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data, 0, length);
+        }
+        written++;
+    }
+
+    @Override
+    public File getFile() {
+        return manifest;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        int deleted = 0;
+        Path dir = outDir.toPath().toAbsolutePath().normalize();
+        for (String name : previousHashes.keySet()) {
+            if (hashes.containsKey(name))
+                continue;
+            // The manifest may have been edited: only delete files in the output directory.
+            Path stale = dir.resolve(name).normalize();
+            if (!stale.startsWith(dir) || stale.equals(dir))
+                System.out.println("WARNING: not deleting " + name + ", it is not in the output directory");
+            else if (Files.deleteIfExists(stale))
+                deleted++;
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> entry : hashes.entrySet())
+                out.write(entry.getValue() + "  " + entry.getKey() + "\n");
+        }
+        System.out.println("Output files: " + written + " written, " + unchanged + " unchanged, " + deleted + " deleted.");
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package org.clyze.source.irfitter.source.sink;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+import org.clyze.source.irfitter.source.json.JsonWriter;
+
+/**
+ * A sink that writes all metadata reports to one newline-delimited JSON
+ * stream (optionally gzip-compressed). Every line is an object with the
+ * output path of a report (the path of its source file, as in
+ * {@code {"path":"a/B.java","report":{...}}}) and the report itself, as
+ * it would be written to a report file (without line breaks). Other output
+ * files are written to the output directory as usual.
+ */
+public class NdjsonSink implements OutputSink {
+    /** The name of the stream (in the output directory). */
+    public static final String FILE_NAME = "metadata.ndjson";
+
+    private final File outDir;
+    private final File file;
+    private final OutputStream out;
+    private final JsonWriter writer = new JsonWriter(1024);
+    /** The reusable buffer of a report without line breaks. */
+    private byte[] line = new byte[64 * 1024];
+
+    /**
+     * Create a sink.
+     * @param outDir         the output directory
+     * @param gzip           if true, compress the stream
+     * @throws IOException   if the stream could not be created
+     */
+    public NdjsonSink(File outDir, boolean gzip) throws IOException {
+        this.outDir = outDir;
+        this.file = new File(outDir, gzip ? FILE_NAME + ".gz" : FILE_NAME);
+        OutputStream fileOut = new FileOutputStream(file);
+        this.out = gzip ? new GZIPOutputStream(fileOut, 64 * 1024) : new BufferedOutputStream(fileOut, 64 * 1024);
+    }
+
+    @Override
+    public synchronized void addReport(String path, byte[] json, int length) throws IOException {
+        // Line breaks can only be whitespace between the tokens of a report.
+        if (line.length < length)
+            line = new byte[length];
+        int lineLength = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = json[i];
+            if (b != '\n' && b != '\r')
+                line[lineLength++] = b;
+        }
+        writer.reset(out);
+        writer.beginObject().name("path").value(path).name("report").rawValue(line, 0, lineLength).endObject();
+        writer.flush();
+        out.write('\n');
+    }
+
+    @Override
+    public void addFile(String name, byte[] data, int length) throws IOException {
+        try (OutputStream fileOut = new FileOutputStream(new File(outDir, name))) {
+            fileOut.write(data, 0, length);
+        }
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,60 @@
+package org.clyze.source.irfitter.source.sink;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import org.clyze.source.irfitter.source.SourceOptions;
+
+/**
+ * A destination of the output files of a run that is not a plain directory
+ * of files (such as a single stream or archive, or a directory that is
+ * updated incrementally). Entries are added by one thread at a time, in the
+ * order they should appear in the output.
+ */
+public interface OutputSink extends Closeable {
+    /**
+     * Add the metadata report of a source file.
+     * @param path           the output path of the report (without an extension)
+     * @param json           the report (a JSON object in UTF-8)
+     * @param length         the number of bytes of the report
+     * @throws IOException   on output errors
+     */
+    void addReport(String path, byte[] json, int length) throws IOException;
+
+    /**
+     * Add another output file (such as the invocation targets).
+     * @param name           the file name
+     * @param data           the file contents
+     * @param length         the number of bytes of the contents
+     * @throws IOException   on output errors
+     */
+    void addFile(String name, byte[] data, int length) throws IOException;
+
+    /**
+     * Returns the file that holds the output.
+     * @return   the file
+     */
+    File getFile();
+
+    /**
+     * Open a sink in an output directory.
+     * @param kind           the kind of sink (not {@link SourceOptions.Sink#FILES})
+     * @param outDir         the output directory
+     * @return               the sink
+     * @throws IOException   if the sink could not be created
+     */
+    static OutputSink open(SourceOptions.Sink kind, File outDir) throws IOException {
+        switch (kind) {
+            case NDJSON:
+                return new NdjsonSink(outDir, false);
+            case GZIP:
+                return new NdjsonSink(outDir, true);
+            case ZIP:
+                return new ZipSink(new File(outDir, ZipSink.FILE_NAME));
+            case DIFF:
+                return new DiffSink(outDir);
+            default:
+                throw new IllegalArgumentException("Not an output sink: " + kind);
+        }
+    }
+}
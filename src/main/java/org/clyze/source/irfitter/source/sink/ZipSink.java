@@ -0,0 +1,50 @@
+package org.clyze.source.irfitter.source.sink;
+
+import java.io.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A sink that writes all output files (metadata reports and others) into
+ * one ZIP archive, with the same paths they would have in the output
+ * directory.
+ */
+public class ZipSink implements OutputSink {
+    /** The name of the archive (in the output directory). */
+    public static final String FILE_NAME = "metadata.zip";
+
+    private final File file;
+    private final ZipOutputStream zip;
+
+    /**
+     * Create a sink.
+     * @param file           the archive
+     * @throws IOException   if the archive could not be created
+     */
+    public ZipSink(File file) throws IOException {
+        this.file = file;
+        this.zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+    }
+
+    @Override
+    public void addReport(String path, byte[] json, int length) throws IOException {
+        addFile(path + ".json", json, length);
+    }
+
+    @Override
+    public synchronized void addFile(String name, byte[] data, int length) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(data, 0, length);
+        zip.closeEntry();
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        zip.close();
+    }
+}
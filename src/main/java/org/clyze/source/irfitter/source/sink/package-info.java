@@ -0,0 +1,5 @@
+/**
+ * Output sinks that keep all output files of a run in a single file, or
+ * only rewrite the output files that changed.
+ */
+package org.clyze.source.irfitter.source.sink;
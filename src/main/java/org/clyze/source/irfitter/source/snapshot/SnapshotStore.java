@@ -0,0 +1,190 @@
+package org.clyze.source.irfitter.source.snapshot;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import org.clyze.persistent.model.Position;
+import org.clyze.persistent.model.UsageKind;
+import org.clyze.source.irfitter.SourceProcessor;
+import org.clyze.source.irfitter.base.AccessType;
+import org.clyze.source.irfitter.base.ModifierPack;
+import org.clyze.source.irfitter.source.SourceText;
+import org.clyze.source.irfitter.source.model.SourceFile;
+import org.clyze.source.irfitter.source.scan.Language;
+
+/**
+ * A directory of source model snapshots. Each snapshot holds the model of a
+ * parsed source file (before matching) and is keyed by the hash of the file
+ * contents, so that the same sources can be matched against different IR
+ * builds without being parsed again.
+ *
+ * Snapshots use Java serialization, behind a header with a format version
+ * (to be increased when the serialized form of the model changes). The
+ * model classes declare fixed serial version ids and snapshots may only
+ * contain model classes and a few JDK classes (other classes fail to load
+ * and the snapshot is recreated).
+ */
+public class SnapshotStore {
+    private static final int MAGIC = 0x53495246;   // "SIRF"
+    private static final int VERSION = 2;
+    private final File dir;
+    private final boolean debug;
+
+    /**
+     * Create a snapshot store.
+     * @param dir     the snapshot directory (created if missing)
+     * @param debug   if true, print debug messages
+     */
+    public SnapshotStore(File dir, boolean debug) {
+        this.dir = dir;
+        this.debug = debug;
+        if (!dir.exists() && !dir.mkdirs())
+            System.err.println("ERROR: could not create snapshot directory " + dir);
+    }
+
+    /**
+     * Process a source file, reusing its snapshot if one exists for its
+     * contents (otherwise the file is parsed and a snapshot is written).
+     * @param processor        the processor of the source language
+     * @param language         the source language
+     * @param contentHash      the hash of the file contents (see {@link SourceText#getHash()})
+     * @param topDir           the top directory of the sources
+     * @param source           the source file (and its contents)
+     * @param artifact         the artifact containing the sources
+     * @param debug            debug mode
+     * @param synthesizeTypes  if true, attempt to synthesize erased types
+     * @param vaIrMethods      the vararg methods found in the IR
+     * @return                 the source file object (or null on failure)
+     */
+    public SourceFile process(SourceProcessor processor, Language language, String contentHash,
+                              File topDir, SourceText source, String artifact, boolean debug,
+                              boolean synthesizeTypes, Set<String> vaIrMethods) {
+        File srcFile = source.file;
+        File snapshot = new File(dir, contentHash + "-" + language.name().toLowerCase(Locale.ROOT) + ".snapshot");
+        if (snapshot.exists()) {
+            SourceFile sf = load(snapshot);
+            if (sf != null) {
+                if (this.debug)
+                    System.out.println("Loaded snapshot " + snapshot + " for " + srcFile);
+                sf.relocate(topDir, srcFile, artifact, debug, synthesizeTypes);
+                return sf;
+            }
+        }
+        SourceFile sf = processor.process(topDir, source, artifact, debug, synthesizeTypes, vaIrMethods);
+        // Do not keep results of parser failures, later runs should retry.
+        if (sf != null && sf.declarationsOnly == null) {
+            sf.visitDeferredBodies();
+            save(sf, snapshot);
+        }
+        return sf;
+    }
+
+    private SourceFile load(File snapshot) {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                System.out.println("WARNING: ignoring snapshot with unknown format: " + snapshot);
+                return null;
+            }
+            return (SourceFile) (new SnapshotInputStream(dis)).readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            System.out.println("WARNING: ignoring unreadable snapshot " + snapshot + " (" + ex + ")");
+            return null;
+        }
+    }
+
+    private void save(SourceFile sf, File snapshot) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("snapshot", ".tmp", dir);
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                SnapshotOutputStream oos = new SnapshotOutputStream(dos);
+                oos.writeObject(sf);
+                oos.flush();
+            }
+            // Concurrent runs may write the same snapshot, the last one wins.
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (debug)
+                System.out.println("Wrote snapshot " + snapshot + " for " + sf.file);
+        } catch (IOException ex) {
+            System.out.println("WARNING: could not write snapshot for " + sf.file + " (" + ex + ")");
+            if (tmp != null && !tmp.delete())
+                tmp.deleteOnExit();
+        }
+    }
+
+    /** The serialized form of source positions. */
+    private static final class SerializedPosition implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long startLine, startColumn, endLine, endColumn;
+
+        SerializedPosition(Position pos) {
+            this.startLine = pos.getStartLine();
+            this.startColumn = pos.getStartColumn();
+            this.endLine = pos.getEndLine();
+            this.endColumn = pos.getEndColumn();
+        }
+
+        Position toPosition() {
+            return new Position(startLine, endLine, startColumn, endColumn);
+        }
+    }
+
+    /** An output stream that writes positions in serialized form. */
+    private static final class SnapshotOutputStream extends ObjectOutputStream {
+        SnapshotOutputStream(OutputStream out) throws IOException {
+            super(out);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            return obj instanceof Position ? new SerializedPosition((Position) obj) : obj;
+        }
+    }
+
+    /**
+     * An input stream that restores positions from their serialized form and
+     * only loads the classes that may appear in snapshots.
+     */
+    private static final class SnapshotInputStream extends ObjectInputStream {
+        /** The JDK classes used by the model. */
+        private static final Set<String> JDK_CLASSES = new HashSet<>(Arrays.asList(
+                "java.lang.Boolean", "java.lang.Enum", "java.lang.Integer", "java.lang.Long",
+                "java.lang.Number", "java.lang.String", "java.util.ArrayList", "java.util.Arrays$ArrayList",
+                "java.util.Collections$EmptyList", "java.util.Collections$EmptyMap",
+                "java.util.Collections$EmptySet", "java.util.Collections$SingletonList",
+                "java.util.Collections$SingletonSet", "java.util.Collections$UnmodifiableCollection",
+                "java.util.Collections$UnmodifiableList", "java.util.Collections$UnmodifiableRandomAccessList",
+                "java.util.Collections$UnmodifiableSet", "java.util.HashMap", "java.util.HashSet",
+                "java.util.LinkedHashMap", "java.util.LinkedHashSet"));
+        private static final String MODEL_PACKAGE = "org.clyze.source.irfitter.source.model.";
+
+        SnapshotInputStream(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (JDK_CLASSES.contains(name) || name.startsWith(MODEL_PACKAGE) ||
+                    name.equals(SerializedPosition.class.getName()) ||
+                    name.equals(AccessType.class.getName()) || name.equals(UsageKind.class.getName()))
+                return super.resolveClass(desc);
+            if (name.startsWith("org.clyze.source.irfitter.")) {
+                Class<?> c = Class.forName(name, false, SnapshotStore.class.getClassLoader());
+                if (ModifierPack.class.isAssignableFrom(c))
+                    return c;
+            }
+            throw new InvalidClassException(name, "class not allowed in source snapshots");
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            return obj instanceof SerializedPosition ? ((SerializedPosition) obj).toPosition() : obj;
+        }
+    }
+}
@@ -0,0 +1,2 @@
+/** Persistent snapshots of parsed (but not yet matched) source models. */
+package org.clyze.source.irfitter.source.snapshot;
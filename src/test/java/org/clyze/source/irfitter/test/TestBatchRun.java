@@ -0,0 +1,58 @@
+package org.clyze.source.irfitter.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.api.BatchRun;
+import org.clyze.source.irfitter.api.IRSnapshot;
+import org.junit.jupiter.api.Test;
+
+public class TestBatchRun {
+    /**
+     * Test that an artifact that fails with an error does not stop the
+     * batch and is reported as failed.
+     */
+    @Test
+    void testFailedArtifact() throws IOException {
+        File dir = new File("build/test-batch-run");
+        FileUtils.deleteDirectory(dir);
+        assert (dir.mkdirs());
+        String ir = resource("clue-common-3.24.1.jar");
+        String sources = resource("clue-common-3.24.1-sources.jar");
+        File manifest = new File(dir, "manifest.tsv");
+        Files.write(manifest.toPath(), Arrays.asList("# IR, sources, output", ir + "\t" + sources + "\tout-ok", ir + "\t" + sources + "\tout-failed"), StandardCharsets.UTF_8);
+        List<BatchRun.Artifact> artifacts = BatchRun.readManifest(manifest);
+        assert (artifacts.size() == 2);
+
+        // One artifact at a time, so the second job is the one that fails.
+        AtomicInteger jobs = new AtomicInteger(0);
+        File report = new File(dir, BatchRun.REPORT);
+        RunResult result = new BatchRun(IRSnapshot.builder().build(), 1, false, false).run(artifacts, builder -> {
+            if (jobs.incrementAndGet() == 2)
+                throw new StackOverflowError("test failure");
+            builder.json(true);
+        }, report);
+        assert (result == null);
+
+        List<String> lines = Files.readAllLines(report.toPath(), StandardCharsets.UTF_8);
+        assert (lines.size() == 3) : lines;
+        assert (lines.get(0).equals("out\tstatus\ttimeMs\tunmatched"));
+        String[] ok = lines.get(1).split("\t", -1);
+        assert (ok[0].equals(new File(dir, "out-ok").getAbsolutePath()) && ok[1].equals("ok") && ok[3].equals("52")) : lines.get(1);
+        String[] failed = lines.get(2).split("\t", -1);
+        assert (failed[0].equals(new File(dir, "out-failed").getAbsolutePath())) : lines.get(2);
+        assert (failed[1].equals("failed: java.lang.StackOverflowError: test failure") && failed[3].isEmpty()) : lines.get(2);
+        assert (Objects.requireNonNull(new File(dir, "out-ok").list()).length > 0);
+    }
+
+    private String resource(String name) {
+        return Objects.requireNonNull(getClass().getClassLoader().getResource(name)).getFile();
+    }
+}
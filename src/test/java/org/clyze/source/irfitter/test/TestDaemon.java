@@ -0,0 +1,138 @@
+package org.clyze.source.irfitter.test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.clyze.source.irfitter.daemon.DaemonClient;
+import org.junit.jupiter.api.Test;
+
+public class TestDaemon {
+    private static final Pattern LISTENING = Pattern.compile("Daemon listening on port (\\d+)");
+
+    /**
+     * Test that runs submitted to a daemon reuse its cached platform and
+     * that requests without the access token (or with too many arguments)
+     * are rejected without stopping the daemon.
+     */
+    @Test
+    void testDaemon() throws IOException, InterruptedException {
+        File dir = new File("build/test-daemon");
+        FileUtils.deleteDirectory(dir);
+        if (!dir.mkdirs())
+            throw new IOException("Could not create " + dir);
+        File tokenFile = new File(dir, "daemon.token");
+        File log = new File(dir, "daemon.log");
+        String platform = resource("noarg-compiler-plugin.jar");
+        // The daemon replaces the console streams of its process while
+        // serving a run, so it cannot share the process of the test.
+        ProcessBuilder pb = new ProcessBuilder(javaCommand(), "-cp", System.getProperty("java.class.path"),
+                "org.clyze.source.irfitter.Main", "--daemon", "0", "--token-file", tokenFile.getPath(), "--platform", platform);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(log);
+        Process daemon = pb.start();
+        try {
+            int port = waitForPort(daemon, log);
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+                assert ("rw-------".equals(PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath()))));
+
+            DaemonClient client = new DaemonClient(port, tokenFile);
+            List<String> pathOpts = Arrays.asList("--ir", "--source", "--out", "--platform");
+            String[] runArgs = { "--ir", resource("clue-common-3.24.1.jar"), "--source", resource("clue-common-3.24.1-sources.jar"),
+                                 "--out", new File(dir, "out").getPath(), "--json", "--platform", platform };
+            for (int i = 0; i < 2; i++) {
+                String output = captureOutput(() -> client.submit(runArgs, pathOpts));
+                // The daemon read the platform when it started.
+                assert (!output.contains("Reading platform: "));
+            }
+
+            String wrongToken = request(port, "0000", 1, "--help");
+            assert (wrongToken.contains("wrong daemon token")) : wrongToken;
+            String tooManyArgs = request(port, readToken(tokenFile), Integer.MAX_VALUE);
+            assert (tooManyArgs.contains("arguments")) : tooManyArgs;
+            String noArgs = request(port, readToken(tokenFile), -1);
+            assert (noArgs.contains("arguments")) : noArgs;
+
+            // A client that does not know the token cannot stop the daemon.
+            File wrongTokenFile = new File(dir, "wrong.token");
+            Files.write(wrongTokenFile.toPath(), Collections.singletonList("0000"));
+            assert (new DaemonClient(port, wrongTokenFile).stop() == 1);
+            assert (daemon.isAlive());
+            assert (client.stop() == 0);
+            assert (daemon.waitFor() == 0);
+            assert (!tokenFile.exists());
+        } finally {
+            daemon.destroy();
+        }
+    }
+
+    private static String readToken(File tokenFile) throws IOException {
+        return new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Send a raw request to a daemon.
+     * @return   the error output of the reply, followed by the exit code
+     */
+    private static String request(int port, String token, int argCount, String... args) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(token);
+            out.writeInt(argCount);
+            for (String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                byte kind = in.readByte();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                sb.append(new String(payload, StandardCharsets.UTF_8));
+                if (kind == 3)
+                    return sb.toString();
+            }
+        }
+    }
+
+    private interface Action {
+        int run();
+    }
+
+    private static String captureOutput(Action action) {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(bytes, true));
+            assert (action.run() == 0);
+        } finally {
+            System.setOut(stdout);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int waitForPort(Process daemon, File log) throws IOException, InterruptedException {
+        for (int i = 0; i < 600 && daemon.isAlive(); i++) {
+            Matcher m = LISTENING.matcher(new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8));
+            if (m.find())
+                return Integer.parseInt(m.group(1));
+            Thread.sleep(100);
+        }
+        throw new IOException("The daemon did not start, see " + log);
+    }
+
+    private static String javaCommand() {
+        return new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    }
+
+    private String resource(String name) {
+        return Objects.requireNonNull(getClass().getClassLoader().getResource(name)).getFile();
+    }
+}
@@ -0,0 +1,249 @@
+package org.clyze.source.irfitter.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.clyze.source.irfitter.source.model.JField;
+import org.clyze.source.irfitter.source.model.JMethod;
+import org.clyze.source.irfitter.source.model.JType;
+import org.clyze.source.irfitter.source.model.JVariable;
+import org.clyze.source.irfitter.source.model.SourceFile;
+import org.clyze.source.irfitter.source.scan.DeclarationScanner;
+import org.clyze.source.irfitter.source.scan.GeneratedCodePolicy;
+import org.clyze.source.irfitter.source.scan.Language;
+import org.clyze.source.irfitter.source.scan.SourceLexer;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the lexer and the declarations scanner that is used when
+ * sources are not fully parsed, and for the recognition of generated code.
+ */
+public class TestDeclarationScanner {
+
+    /**
+     * Test that the contents of Java text blocks are skipped.
+     */
+    @Test
+    void testJavaTextBlock() {
+        String src = "class A {\n" +
+                "    String s = \"\"\"\n" +
+                "        class Fake { void fake() {} }\n" +
+                "        \\\"\"\" still inside\n" +
+                "        \"\"\";\n" +
+                "    char c = '}';\n" +
+                "    int x;\n" +
+                "}\n";
+        List<String> tokens = tokens(src, Language.JAVA);
+        assert (!tokens.contains("Fake")) : tokens;
+        assert (tokens.equals(Arrays.asList("class", "A", "{", "String", "s", "=", "\"", ";", "char", "c", "=", "'", ";", "int", "x", ";", "}"))) : tokens;
+        SourceFile sf = scan("A.java", src, Language.JAVA);
+        assert (typeNames(sf).equals(Collections.singleton("A")));
+        assert (fieldNames(type(sf, "A")).equals(Arrays.asList("s", "c", "x")));
+    }
+
+    /**
+     * Test that Kotlin raw strings (which have no escapes and may end with
+     * extra quotes) and string templates are skipped.
+     */
+    @Test
+    void testKotlinRawStrings() {
+        String src = "val a = \"\"\"class Fake { ${ \"}\" } \\\"\"\"\n" +
+                "val b = \"\"\"\"quoted\"\"\"\"\n" +
+                "val c = \"x${ f(\"}\") }y\"\n" +
+                "class K\n";
+        List<String> tokens = tokens(src, Language.KOTLIN);
+        assert (!tokens.contains("Fake")) : tokens;
+        assert (tokens.equals(Arrays.asList("val", "a", "=", "\"", "val", "b", "=", "\"", "val", "c", "=", "\"", "class", "K"))) : tokens;
+    }
+
+    /**
+     * Test that Groovy triple-quoted, slashy and dollar-slashy strings are skipped.
+     */
+    @Test
+    void testGroovyStrings() {
+        String src = "def a = '''class Fake {'''\n" +
+                "def b = /a{b\\/c/\n" +
+                "def c = $/x}y/$\n" +
+                "def d = \"\"\"${ '}' }\"\"\"\n" +
+                "def e = x / y / z\n";
+        List<String> tokens = tokens(src, Language.GROOVY);
+        assert (!tokens.contains("Fake")) : tokens;
+        assert (tokens.equals(Arrays.asList("def", "a", "=", "'", "def", "b", "=", "/", "def", "c", "=", "$/", "def", "d", "=", "\"", "def", "e", "=", "x", "/", "y", "/", "z"))) : tokens;
+    }
+
+    /**
+     * Test the declarations of a Java type with nested generics and annotations.
+     */
+    @Test
+    void testJavaGenericsAndAnnotations() {
+        String src = "package p.q;\n" +
+                "import java.util.*;\n" +
+                "@Deprecated\n" +
+                "public class A<K extends Comparable<K>> extends Base<Map<K, List<String>>> implements Runnable {\n" +
+                "    @SuppressWarnings({\"unchecked\", \"rawtypes\"}) Map<String, List<Map<Integer, String>>> nested;\n" +
+                "    @Ann(value = @Inner(x = 1), y = {A.class}) int annotated = 1 >> 2;\n" +
+                "    @Override public <T extends Comparable<? super T>> List<T> m(Map<String, List<T>> p, int... q) { return null; }\n" +
+                "    public void run() { String s = \"}\"; }\n" +
+                "    interface I { }\n" +
+                "}\n";
+        SourceFile sf = scan("A.java", src, Language.JAVA);
+        assert (sf.packageName.equals("p.q"));
+        assert (typeNames(sf).equals(new HashSet<>(Arrays.asList("p.q.A", "p.q.A$I"))));
+        JType a = type(sf, "p.q.A");
+        assert (a.superTypes.equals(Arrays.asList("Base", "Runnable"))) : a.superTypes;
+        assert (a.annotationTypes.contains("Deprecated"));
+        assert (fieldNames(a).equals(Arrays.asList("nested", "annotated")));
+        assert (a.fields.get(0).type.equals("Map"));
+        assert (methodNames(a).equals(Arrays.asList("m", "run")));
+        JMethod m = a.methods.get(0);
+        assert (m.annotations.contains("Override"));
+        assert (paramNames(m).equals(Arrays.asList("p", "q")));
+        assert (m.parameters.get(1).type.equals("int[]"));
+        assert (type(sf, "p.q.A$I").isInterface);
+    }
+
+    /**
+     * Test Kotlin objects, companion objects and file annotations.
+     */
+    @Test
+    void testKotlinObjects() {
+        String src = "@file:JvmName(\"KUtil\")\n" +
+                "package p.k\n" +
+                "\n" +
+                "object Registry {\n" +
+                "    fun register(m: Map<String, List<Pair<Int, String>>>, vararg xs: String): Unit {}\n" +
+                "}\n" +
+                "\n" +
+                "class Outer(val x: Int) {\n" +
+                "    companion object {\n" +
+                "        const val NAME = \"o\"\n" +
+                "        fun create(): Outer = Outer(1)\n" +
+                "    }\n" +
+                "    object Nested { fun f() = \"\"\"\"quoted\"\"\"\" }\n" +
+                "    fun `weird name`(p: Int) {}\n" +
+                "}\n";
+        SourceFile sf = scan("K.kt", src, Language.KOTLIN);
+        assert (sf.packageName.equals("p.k"));
+        assert (typeNames(sf).equals(new HashSet<>(Arrays.asList("p.k.Registry", "p.k.Outer", "p.k.Outer$Companion", "p.k.Outer$Nested")))) : typeNames(sf);
+        JType registry = type(sf, "p.k.Registry");
+        assert (methodNames(registry).equals(Collections.singletonList("register")));
+        assert (paramNames(registry.methods.get(0)).equals(Arrays.asList("m", "xs")));
+        assert (registry.methods.get(0).parameters.get(0).type.equals("Map"));
+        JType outer = type(sf, "p.k.Outer");
+        assert (fieldNames(outer).equals(Collections.singletonList("x")));
+        assert (methodNames(outer).equals(Collections.singletonList("weird name")));
+        JType companion = type(sf, "p.k.Outer$Companion");
+        assert (fieldNames(companion).equals(Collections.singletonList("NAME")));
+        assert (methodNames(companion).equals(Collections.singletonList("create")));
+        assert (methodNames(type(sf, "p.k.Outer$Nested")).equals(Collections.singletonList("f")));
+    }
+
+    /**
+     * Test that the statements of Groovy scripts do not hide the declarations
+     * of the script.
+     */
+    @Test
+    void testGroovyScript() {
+        String src = "#!/usr/bin/env groovy\n" +
+                "import groovy.transform.Field\n" +
+                "\n" +
+                "@Field String greeting = '''class Fake {'''\n" +
+                "def pattern = /a{b/\n" +
+                "println \"hi ${greeting.find { it == '}' }}\"\n" +
+                "def helper(String s, int n) { s * n }\n" +
+                "\n" +
+                "class Helper {\n" +
+                "    Map<String, List<Integer>> data\n" +
+                "    def run() { }\n" +
+                "}\n";
+        SourceFile sf = scan("S.groovy", src, Language.GROOVY);
+        assert (typeNames(sf).equals(Collections.singleton("Helper"))) : typeNames(sf);
+        JType helper = type(sf, "Helper");
+        assert (fieldNames(helper).equals(Collections.singletonList("data")));
+        assert (methodNames(helper).equals(Collections.singletonList("run")));
+    }
+
+    /**
+     * Test that generated sources are recognized only by generator banners,
+     * annotations, paths and sizes.
+     */
+    @Test
+    void testGeneratedCodePolicy() throws IOException {
+        File dir = new File("build/test-generated-code");
+        GeneratedCodePolicy policy = new GeneratedCodePolicy(Collections.singletonList("gen/**"), 0);
+        String body = "class A { }\n";
+        assert (policy.check(dir, write(dir, "Banner.java", "// @generated by protoc, do not edit\n" + body), Language.JAVA) != null);
+        assert (policy.check(dir, write(dir, "Annotated.java", "import javax.annotation.Generated;\n@Generated(\"gen\") " + body), Language.JAVA) != null);
+        assert (policy.check(dir, write(dir, "Qualified.kt", "@javax.annotation.processing.Generated(\"gen\") " + body), Language.KOTLIN) != null);
+        assert (policy.check(dir, write(dir, "gen/Path.java", body), Language.JAVA) != null);
+        // Hand-written files may warn about edits or name their generators.
+        assert (policy.check(dir, write(dir, "License.java", "/*\n * Do not modify this header.\n */\n" + body), Language.JAVA) == null);
+        assert (policy.check(dir, write(dir, "Tool.groovy", "// Script generated by hand, autogenerated docs\n" + body), Language.GROOVY) == null);
+        assert (policy.check(dir, write(dir, "Doc.java", "/** @generated in the docs only */\n" + body), Language.JAVA) == null);
+        assert (policy.check(dir, write(dir, "Member.java", "class A {\n  @Generated void m() { }\n}\n"), Language.JAVA) == null);
+        GeneratedCodePolicy sizePolicy = new GeneratedCodePolicy(Collections.emptyList(), body.length());
+        assert (sizePolicy.check(dir, write(dir, "Large.java", "// padding\n" + body), Language.JAVA) != null);
+        assert (sizePolicy.check(dir, write(dir, "Small.java", body), Language.JAVA) == null);
+    }
+
+    private static File write(File dir, String name, String text) throws IOException {
+        File file = new File(dir, name);
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs())
+            throw new IOException("Could not create " + parent);
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<String> tokens(String src, Language language) {
+        SourceLexer lexer = new SourceLexer(src.toCharArray(), language);
+        List<String> tokens = new ArrayList<>();
+        for (SourceLexer.Token t = lexer.next(); t.kind != SourceLexer.Kind.EOF; t = lexer.next())
+            tokens.add(t.text);
+        return tokens;
+    }
+
+    private static SourceFile scan(String fileName, String src, Language language) {
+        File topDir = new File("build");
+        SourceFile sf = new SourceFile(topDir, new File(topDir, fileName), "test", false, false);
+        new DeclarationScanner(sf, src.toCharArray(), language, false).scan();
+        return sf;
+    }
+
+    private static Set<String> typeNames(SourceFile sf) {
+        Set<String> names = new HashSet<>();
+        for (JType t : sf.jTypes)
+            names.add(t.getFullyQualifiedName());
+        return names;
+    }
+
+    private static JType type(SourceFile sf, String name) {
+        for (JType t : sf.jTypes)
+            if (t.getFullyQualifiedName().equals(name))
+                return t;
+        throw new NoSuchElementException(name);
+    }
+
+    private static List<String> fieldNames(JType t) {
+        List<String> names = new ArrayList<>();
+        for (JField f : t.fields)
+            names.add(f.name);
+        return names;
+    }
+
+    private static List<String> methodNames(JType t) {
+        List<String> names = new ArrayList<>();
+        for (JMethod m : t.methods)
+            names.add(m.name);
+        return names;
+    }
+
+    private static List<String> paramNames(JMethod m) {
+        List<String> names = new ArrayList<>();
+        for (JVariable v : m.parameters)
+            names.add(v.name);
+        return names;
+    }
+}
@@ -1,12 +1,48 @@
 package org.clyze.source.irfitter.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Reader;
 import java.lang.reflect.Field;
-import java.util.Objects;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import org.apache.commons.io.FileUtils;
+import org.clyze.persistent.metadata.Configuration;
+import org.clyze.persistent.metadata.FileReporter;
+import org.clyze.persistent.metadata.Printer;
 import org.clyze.source.irfitter.Main;
 import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.api.IRSnapshot;
+import org.clyze.source.irfitter.api.MatchJob;
+import org.clyze.source.irfitter.ir.IRProcessor;
+import org.clyze.source.irfitter.ir.IRState;
+import org.clyze.source.irfitter.ir.model.IRAllocation;
+import org.clyze.source.irfitter.ir.model.IRMethod;
+import org.clyze.source.irfitter.ir.model.IRMethodInvocation;
+import org.clyze.source.irfitter.ir.model.IRType;
+import org.clyze.source.irfitter.ir.model.IRVariable;
+import org.clyze.source.irfitter.source.SourceText;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataReader;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataWriter;
+import org.clyze.source.irfitter.source.binary.BinarySymbol;
+import org.clyze.source.irfitter.source.binary.SymbolKind;
+import org.clyze.source.irfitter.source.json.MetadataJsonWriter;
+import org.clyze.source.irfitter.source.model.ElementWithPosition;
 import org.clyze.source.irfitter.source.model.IdMapper;
 import org.junit.jupiter.api.Test;
 
@@ -75,6 +111,827 @@ public class TestMapper {
         assert (rr.idMapper.matchedVariables >= 29);
     }
 
+    /**
+     * Test that skipping source files whose types are not in the IR does
+     * not change the matching results of Java/Groovy sources.
+     */
+    @Test
+    void testPrefilterJavaAndGroovy() throws IOException {
+        RunResult off = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-prefilter-off");
+        RunResult skip = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-prefilter-skip", "--source-prefilter", "skip");
+        assertSamePrefilterResults(off, skip);
+        assert (reportNames(new File("build/test-out-prefilter-skip")).equals(reportNames(new File("build/test-out-prefilter-off"))));
+    }
+
+    /**
+     * Test that skipping source files whose types are not in the IR does
+     * not change the matching results of Kotlin sources.
+     */
+    @Test
+    void testPrefilterKotlin() throws IOException {
+        RunResult off = generateJson("noarg-compiler-plugin.jar", "noarg-compiler-plugin-sources.zip", "build/test-out-prefilter-kotlin-off");
+        RunResult skip = generateJson("noarg-compiler-plugin.jar", "noarg-compiler-plugin-sources.zip", "build/test-out-prefilter-kotlin-skip", "--source-prefilter", "skip");
+        assertSamePrefilterResults(off, skip);
+        assert (reportNames(new File("build/test-out-prefilter-kotlin-skip")).equals(reportNames(new File("build/test-out-prefilter-kotlin-off"))));
+    }
+
+    /** Checks that the prefilter did not skip any source elements that match the IR. */
+    private static void assertSamePrefilterResults(RunResult off, RunResult skip) {
+        assert (skip.unmatched == off.unmatched) : skip.unmatched + " vs " + off.unmatched;
+        Properties offStats = stats(off.idMapper);
+        Properties skipStats = stats(skip.idMapper);
+        for (String key : IdMapper.getStatKeys())
+            if (key.startsWith("matched"))
+                assert (skipStats.getProperty(key).equals(offStats.getProperty(key))) : key;
+    }
+
+    /**
+     * Test that the Groovy token stream modes match the same elements.
+     */
+    @Test
+    void testGroovyTokenStreams() throws IOException {
+        RunResult buffered = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-groovy-buffered", "--groovy-token-stream", "buffered");
+        for (String mode : new String[] { "streaming", "unbuffered" }) {
+            String outDir = "build/test-out-groovy-" + mode;
+            RunResult rr = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", outDir, "--groovy-token-stream", mode);
+            assert (rr.unmatched == buffered.unmatched) : mode;
+            assert (stats(rr.idMapper).equals(stats(buffered.idMapper))) : mode;
+            assert (reportNames(new File(outDir)).equals(reportNames(new File("build/test-out-groovy-buffered")))) : mode;
+        }
+        // The files parsed again in buffered mode are reported.
+        String output = runWithOutput(new String[] { "--ir", resource("clue-common-3.24.1.jar"), "--source", resource("clue-common-3.24.1-sources.jar"),
+                                                     "--out", "build/test-out-groovy-retries", "--json", "--groovy-token-stream", "unbuffered" });
+        Matcher m = Pattern.compile("Groovy files parsed again in buffered mode: (\\d+) of (\\d+) ").matcher(output);
+        assert (m.find()) : "no buffered retries reported";
+        assert (Integer.parseInt(m.group(2)) > 0 && Integer.parseInt(m.group(1)) <= Integer.parseInt(m.group(2)));
+    }
+
+    /**
+     * Test that visiting method bodies on demand matches the same elements
+     * (with the same anonymous class names) as visiting all bodies.
+     */
+    @Test
+    void testBodiesOnDemand() throws IOException {
+        String[][] fixtures = { { "clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar" },
+                                { "noarg-compiler-plugin.jar", "noarg-compiler-plugin-sources.zip" } };
+        for (String[] fixture : fixtures) {
+            RunResult all = generateJson(fixture[0], fixture[1], "build/test-out-bodies-all");
+            RunResult onDemand = generateJson(fixture[0], fixture[1], "build/test-out-bodies-on-demand", "--bodies-on-demand");
+            assert (onDemand.unmatched == all.unmatched) : fixture[1] + ": " + onDemand.unmatched + " vs " + all.unmatched;
+            Properties allStats = stats(all.idMapper);
+            Properties onDemandStats = stats(onDemand.idMapper);
+            for (String key : IdMapper.getStatKeys())
+                if (key.startsWith("matched"))
+                    assert (onDemandStats.getProperty(key).equals(allStats.getProperty(key))) : fixture[1] + ": " + key;
+            Map<String, List<String>> matched = matchedElements(all.idMapper);
+            assert (matched.keySet().stream().anyMatch(id -> id.matches(".*\\$[0-9]+([^0-9].*)?"))) : "no anonymous classes in " + fixture[1];
+            assert (matchedElements(onDemand.idMapper).equals(matched)) : fixture[1];
+        }
+    }
+
+    /** Returns the locations of the matched source elements, by IR element id. */
+    private static Map<String, List<String>> matchedElements(IdMapper idMapper) {
+        Map<String, List<String>> elements = new TreeMap<>();
+        for (Map.Entry<String, Collection<? extends ElementWithPosition<?, ?>>> entry : idMapper.get().entrySet()) {
+            List<String> locations = new ArrayList<>();
+            for (ElementWithPosition<?, ?> elem : entry.getValue())
+                locations.add(elem.srcFile.getRelativePath() + ":" + elem.getPosition());
+            Collections.sort(locations);
+            elements.put(entry.getKey(), locations);
+        }
+        return elements;
+    }
+
+    /**
+     * Test that the text of a source file is read again after it is
+     * released and that its hash is computed from the file bytes.
+     */
+    @Test
+    void testSourceText() throws IOException, NoSuchAlgorithmException {
+        File file = new File("build/test-source-text/A.java");
+        FileUtils.deleteDirectory(file.getParentFile());
+        assert (file.getParentFile().mkdirs());
+        String text = "class A { String s = \"\u00e9\u4e2d\ud83d\ude00\"; }\n";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Files.write(file.toPath(), bytes);
+
+        SourceText source = new SourceText(file);
+        StringBuilder expectedHash = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+            expectedHash.append(String.format("%02x", b));
+        assert (source.getHash().equals(expectedHash.toString())) : source.getHash();
+        assert (new String(source.getChars()).equals(text));
+        source.release();
+        try (Reader reader = source.openReader()) {
+            assert (new String(readAll(reader)).equals(text));
+        }
+        assert (new String(source.getChars()).equals(text));
+    }
+
+    private static char[] readAll(Reader reader) throws IOException {
+        CharArrayWriter chars = new CharArrayWriter();
+        char[] buf = new char[8192];
+        int n;
+        while ((n = reader.read(buf)) > 0)
+            chars.write(buf, 0, n);
+        return chars.toCharArray();
+    }
+
+    /**
+     * Test that source files with the same contents as other source files
+     * give the same results when their models are copied and when they are
+     * parsed again.
+     */
+    @Test
+    void testDuplicateSources() throws IOException {
+        File srcDir = new File("build/test-duplicate-sources");
+        FileUtils.deleteDirectory(srcDir);
+        String sourcesJar = resource("clue-common-3.24.1-sources.jar");
+        unzip(sourcesJar, new File(srcDir, "a"));
+        unzip(sourcesJar, new File(srcDir, "b"));
+        String jar = resource("clue-common-3.24.1.jar");
+        RunResult off = generateJsonFrom(jar, srcDir.getPath(), "build/test-out-duplicates-off", "--duplicate-sources", "off");
+        RunResult emit = generateJsonFrom(jar, srcDir.getPath(), "build/test-out-duplicates-emit", "--duplicate-sources", "emit");
+        assert (emit.unmatched == off.unmatched) : emit.unmatched + " vs " + off.unmatched;
+        assert (stats(emit.idMapper).equals(stats(off.idMapper)));
+        Set<String> reports = reportNames(new File("build/test-out-duplicates-off"));
+        assert (reports.stream().anyMatch(n -> n.startsWith("b" + File.separator)));
+        assert (reportNames(new File("build/test-out-duplicates-emit")).equals(reports));
+    }
+
+    /**
+     * Test that source models read from snapshots give the same results as
+     * parsing the sources.
+     */
+    @Test
+    void testSourceSnapshots() throws IOException {
+        File snapshotDir = new File("build/test-source-snapshots");
+        FileUtils.deleteDirectory(snapshotDir);
+        RunResult parsed = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-snapshots-parsed");
+        RunResult written = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-snapshots-written", "--source-snapshots", snapshotDir.getPath());
+        String[] snapshots = snapshotDir.list();
+        assert (snapshots != null && snapshots.length > 0);
+        RunResult loaded = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-snapshots-loaded", "--source-snapshots", snapshotDir.getPath());
+        for (RunResult rr : new RunResult[] { written, loaded }) {
+            assert (rr.unmatched == parsed.unmatched) : rr.unmatched + " vs " + parsed.unmatched;
+            assert (stats(rr.idMapper).equals(stats(parsed.idMapper)));
+        }
+        assert (reportNames(new File("build/test-out-snapshots-loaded")).equals(reportNames(new File("build/test-out-snapshots-parsed"))));
+    }
+
+    /**
+     * Test that streaming gives the same results as matching all source
+     * files together, also when variables are resolved from Doop facts and
+     * Doop results are translated.
+     */
+    @Test
+    void testStreaming() throws IOException {
+        RunResult batch = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-batch");
+        RunResult streaming = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-streaming", "--streaming");
+        assert (streaming.unmatched == batch.unmatched) : streaming.unmatched + " vs " + batch.unmatched;
+        assert (stats(streaming.idMapper).equals(stats(batch.idMapper)));
+        assert (reportNames(new File("build/test-out-streaming")).equals(reportNames(new File("build/test-out-batch"))));
+
+        File batchDb = new File("build/test-doop-db-batch");
+        File streamingDb = new File("build/test-doop-db-streaming");
+        writeDoopFacts(batchDb, resource("clue-common-3.24.1.jar"));
+        writeDoopFacts(streamingDb, resource("clue-common-3.24.1.jar"));
+        String[] doopArgs = { "--resolve-variables", "--translate-results", "--relation-variables", "VarPointsTo.csv:0" };
+        List<String> batchArgs = new ArrayList<>(Arrays.asList("--database", batchDb.getPath()));
+        batchArgs.addAll(Arrays.asList(doopArgs));
+        List<String> streamingArgs = new ArrayList<>(Arrays.asList("--database", streamingDb.getPath(), "--streaming"));
+        streamingArgs.addAll(Arrays.asList(doopArgs));
+        RunResult batchDoop = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-batch-doop", batchArgs.toArray(new String[0]));
+        RunResult streamingDoop = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-streaming-doop", streamingArgs.toArray(new String[0]));
+        assert (streamingDoop.unmatched == batchDoop.unmatched) : streamingDoop.unmatched + " vs " + batchDoop.unmatched;
+        assert (stats(streamingDoop.idMapper).equals(stats(batchDoop.idMapper)));
+        List<String> translated = Files.readAllLines(new File(batchDb, "VarPointsTo.csv").toPath());
+        assert (!translated.isEmpty());
+        assert (Files.readAllLines(new File(streamingDb, "VarPointsTo.csv").toPath()).equals(translated));
+    }
+
+    /**
+     * Test that reading the IR and the sources concurrently (in a batch
+     * run) writes the same output as reading them one after the other.
+     */
+    @Test
+    void testPipelined() throws IOException {
+        String batchOutDir = "build/test-out-batch-targets";
+        String pipelinedOutDir = "build/test-out-pipelined";
+        RunResult batch = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", batchOutDir, "--resolve-invocations");
+        RunResult pipelined = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", pipelinedOutDir, "--resolve-invocations", "--pipelined");
+        assert (pipelined.unmatched == batch.unmatched) : pipelined.unmatched + " vs " + batch.unmatched;
+        assert (stats(pipelined.idMapper).equals(stats(batch.idMapper)));
+        assert (reportTexts(new File(pipelinedOutDir)).equals(reportTexts(new File(batchOutDir))));
+        List<String> targets = Files.readAllLines(new File(batchOutDir, "InvocationTargets.csv").toPath());
+        assert (!targets.isEmpty());
+        assert (Files.readAllLines(new File(pipelinedOutDir, "InvocationTargets.csv").toPath()).equals(targets));
+    }
+
+    /**
+     * Test that partitioned runs give the same results as matching all
+     * source files together.
+     */
+    @Test
+    void testPartitioned() throws IOException {
+        RunResult batch = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-unpartitioned", "--resolve-invocations");
+        List<String> targets = Files.readAllLines(new File("build/test-out-unpartitioned", "InvocationTargets.csv").toPath());
+        Collections.sort(targets);
+        assert (!targets.isEmpty());
+        for (String depth : new String[] { "1", "2", "3" }) {
+            String outDir = "build/test-out-partitioned-" + depth;
+            RunResult partitioned = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", outDir, "--resolve-invocations", "--partition-depth", depth);
+            assert (partitioned.unmatched == batch.unmatched) : depth + ": " + partitioned.unmatched + " vs " + batch.unmatched;
+            assert (stats(partitioned.idMapper).equals(stats(batch.idMapper))) : depth;
+            assert (reportTexts(new File(outDir)).equals(reportTexts(new File("build/test-out-unpartitioned")))) : depth;
+            // The invocation targets are written sorted.
+            assert (Files.readAllLines(new File(outDir, "InvocationTargets.csv").toPath()).equals(targets)) : depth;
+        }
+    }
+
+    /**
+     * Test that the invocation targets of a run without an output
+     * directory are written to the working directory.
+     */
+    @Test
+    void testResolveInvocationsWithoutOut() throws IOException {
+        File targetsFile = new File("InvocationTargets.csv");
+        Files.deleteIfExists(targetsFile.toPath());
+        try {
+            RunResult rr = Main.run(new String[] { "--ir", resource("clue-common-3.24.1.jar"), "--source", resource("clue-common-3.24.1-sources.jar"), "--resolve-invocations" });
+            assert (rr != null);
+            assert (targetsFile.exists());
+            assert (!Files.readAllLines(targetsFile.toPath()).isEmpty());
+        } finally {
+            Files.deleteIfExists(targetsFile.toPath());
+        }
+    }
+
+    /**
+     * Test that the merged output of sharded runs is the same as that of a
+     * single-process run and that shards completed with a different
+     * command are not reused.
+     */
+    @Test
+    void testSharded() throws IOException {
+        RunResult single = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-unsharded", "--resolve-invocations");
+        String outDir = "build/test-out-sharded";
+        RunResult sharded = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", outDir, "--resolve-invocations", "--shards", "2");
+        assertSameOutput(sharded, single, outDir);
+
+        // Leave the completed shards of an earlier command with other options.
+        for (int i = 0; i < 2; i++) {
+            File shardDir = new File(outDir, "shards/shard-" + i);
+            if (!shardDir.mkdirs())
+                throw new IOException("Could not create " + shardDir);
+            Files.write(new File(shardDir, "shard.properties").toPath(), Collections.singletonList("unmatched=12345"));
+            Files.write(new File(shardDir, "shard.fingerprint").toPath(), Collections.singletonList("stale"));
+        }
+        List<String> args = Arrays.asList("--ir", resource("clue-common-3.24.1.jar"), "--source", resource("clue-common-3.24.1-sources.jar"),
+                                          "--out", outDir, "--json", "--stats", "--resolve-invocations", "--shards", "2");
+        assertSameOutput(Main.run(args.toArray(new String[0])), single, outDir);
+
+        // The parent assigns every source file to one shard (the shard lists are kept in debug mode).
+        String debugOutDir = "build/test-out-sharded-debug";
+        FileUtils.deleteDirectory(new File(debugOutDir));
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", debugOutDir, "--shards", "2", "--debug");
+        Set<String> listed = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            List<String> shardSources = Files.readAllLines(new File(debugOutDir, "shards/shard-" + i + ".sources").toPath());
+            assert (!shardSources.isEmpty());
+            for (String source : shardSources)
+                assert (listed.add(source)) : source;
+        }
+        for (String report : reportNames(new File("build/test-out-unsharded")))
+            assert (listed.contains(report.replace(File.separatorChar, '/').replaceAll("\\.json$", ""))) : report;
+    }
+
+    /**
+     * Test that jobs built with the API produce the same output as a
+     * command-line run, that their listener receives every matched source
+     * file and that a snapshot is matched by one job at a time.
+     */
+    @Test
+    void testMatchJob() throws IOException {
+        String cliOutDir = "build/test-out-job-cli";
+        RunResult cli = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", cliOutDir);
+        IRSnapshot snapshot = IRSnapshot.builder().ir(new File(resource("clue-common-3.24.1.jar"))).build();
+        // The second job matches the snapshot types again.
+        for (int i = 0; i < 2; i++) {
+            String outDir = "build/test-out-job-" + i;
+            FileUtils.deleteDirectory(new File(outDir));
+            Set<String> reported = new TreeSet<>();
+            int[] matchedElements = new int[1];
+            List<Exception> concurrentJobErrors = new ArrayList<>();
+            RunResult rr = MatchJob.builder(snapshot)
+                    .source(new File(resource("clue-common-3.24.1-sources.jar")))
+                    .outDir(new File(outDir)).json(true).stats(true)
+                    .listener((sf, matches) -> {
+                        reported.add(sf.getRelativePath() + ".json");
+                        for (Collection<?> elements : matches.values())
+                            matchedElements[0] += elements.size();
+                        if (concurrentJobErrors.isEmpty()) {
+                            try {
+                                MatchJob.builder(snapshot).build().run();
+                            } catch (IllegalStateException ex) {
+                                concurrentJobErrors.add(ex);
+                            }
+                        }
+                    })
+                    .build().run();
+            assert (rr.unmatched == cli.unmatched) : rr.unmatched + " vs " + cli.unmatched;
+            assert (stats(rr.idMapper).equals(stats(cli.idMapper)));
+            assert (reportTexts(new File(outDir)).equals(reportTexts(new File(cliOutDir))));
+            assert (reported.equals(reportNames(new File(cliOutDir))));
+            assert (matchedElements[0] > 0);
+            assert (concurrentJobErrors.size() == 1);
+        }
+    }
+
+    /**
+     * Test that the report files are the same as those written by the
+     * report writer of the metadata library.
+     */
+    @Test
+    void testMetadataJsonWriter() throws IOException {
+        File outDir = new File("build/test-out-json-writer");
+        File reporterDir = new File("build/test-out-json-reporter");
+        FileUtils.deleteDirectory(outDir);
+        FileUtils.deleteDirectory(reporterDir);
+        Configuration configuration = new Configuration(new Printer(false));
+        configuration.setOutDir(reporterDir);
+        List<String> compared = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        IRSnapshot snapshot = IRSnapshot.builder().ir(new File(resource("clue-common-3.24.1.jar"))).build();
+        MatchJob.builder(snapshot)
+                .source(new File(resource("clue-common-3.24.1-sources.jar")))
+                .outDir(outDir).json(true)
+                .listener((sf, matches) -> {
+                    String path = sf.getFileInfo().getOutputFilePath();
+                    new FileReporter(configuration, sf.getJvmMetadata()).createReportFile(path);
+                    try {
+                        byte[] expected = Files.readAllBytes(new File(reporterDir, path + ".json").toPath());
+                        ByteArrayOutputStream written = new ByteArrayOutputStream();
+                        new MetadataJsonWriter().write(sf.getJvmMetadata(), written);
+                        if (!Arrays.equals(written.toByteArray(), expected))
+                            errors.add("different report: " + path);
+                        if (!Arrays.equals(Files.readAllBytes(new File(outDir, path + ".json").toPath()), expected))
+                            errors.add("different report file: " + path);
+                        compared.add(path);
+                    } catch (IOException ex) {
+                        errors.add(path + ": " + ex);
+                    }
+                })
+                .build().run();
+        assert (errors.isEmpty()) : errors;
+        assert (compared.size() == reportNames(outDir).size());
+        assert (compared.stream().anyMatch(path -> path.endsWith(".groovy")));
+    }
+
+    /**
+     * Test that the output does not depend on the number of the threads
+     * that write the metadata.
+     */
+    @Test
+    void testMetadataThreads() throws IOException {
+        String[] args = { "--resolve-invocations", "--binary-metadata", "--metadata-threads" };
+        String oneThreadDir = "build/test-out-metadata-threads-1";
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", oneThreadDir, concat(args, "1"));
+        Map<String, byte[]> expected = fileContents(new File(oneThreadDir));
+        assert (expected.containsKey(BinaryMetadataWriter.FILE_NAME) && expected.containsKey("InvocationTargets.csv"));
+        for (String threads : new String[] { "4", "16" }) {
+            String outDir = "build/test-out-metadata-threads-" + threads;
+            generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", outDir, concat(args, threads));
+            Map<String, byte[]> contents = fileContents(new File(outDir));
+            assert (contents.keySet().equals(expected.keySet())) : threads;
+            for (Map.Entry<String, byte[]> entry : expected.entrySet())
+                assert (Arrays.equals(contents.get(entry.getKey()), entry.getValue())) : threads + ": " + entry.getKey();
+        }
+    }
+
+    private static String[] concat(String[] args, String arg) {
+        String[] all = Arrays.copyOf(args, args.length + 1);
+        all[args.length] = arg;
+        return all;
+    }
+
+    /** Returns the contents of all files in a directory, by relative path. */
+    private static Map<String, byte[]> fileContents(File dir) throws IOException {
+        Map<String, byte[]> contents = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            for (Path f : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator)
+                contents.put(dir.toPath().relativize(f).toString(), Files.readAllBytes(f));
+        }
+        return contents;
+    }
+
+    /**
+     * Test that the diff sink writes the same reports as plain output
+     * files, that a second identical run writes no files and that only
+     * the stale files of the output directory are deleted.
+     */
+    @Test
+    void testDiffSink() throws IOException {
+        String filesOutDir = "build/test-out-diff-files";
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", filesOutDir);
+        int reports = reportNames(new File(filesOutDir)).size();
+        File outDir = new File("build/test-out-diff");
+        FileUtils.deleteDirectory(outDir);
+        String[] args = { "--ir", resource("clue-common-3.24.1.jar"), "--source", resource("clue-common-3.24.1-sources.jar"),
+                          "--out", outDir.getPath(), "--json", "--output-sink", "diff" };
+        String first = runWithOutput(args);
+        assert (first.contains("Output files: " + reports + " written, 0 unchanged, 0 deleted.")) : first;
+        assert (reportTexts(outDir).equals(reportTexts(new File(filesOutDir))));
+
+        String second = runWithOutput(args);
+        assert (second.contains("Output files: 0 written, " + reports + " unchanged, 0 deleted.")) : second;
+
+        // Stale files are only deleted in the output directory.
+        File stale = new File(outDir, "Stale.java.json");
+        File outside = new File(outDir.getParentFile(), "test-out-diff-outside.json");
+        Files.write(stale.toPath(), Collections.singletonList("{}"));
+        Files.write(outside.toPath(), Collections.singletonList("{}"));
+        File manifest = new File(outDir, "metadata.sha256");
+        List<String> entries = new ArrayList<>(Files.readAllLines(manifest.toPath()));
+        entries.add("0000  " + stale.getName());
+        entries.add("0000  ../" + outside.getName());
+        Files.write(manifest.toPath(), entries);
+        String third = runWithOutput(args);
+        assert (third.contains("Output files: 0 written, " + reports + " unchanged, 1 deleted.")) : third;
+        assert (!stale.exists());
+        assert (outside.exists());
+        assert (reportTexts(outDir).equals(reportTexts(new File(filesOutDir))));
+    }
+
+    /**
+     * Test that the NDJSON, gzip and ZIP sinks contain the same reports as
+     * plain output files.
+     */
+    @Test
+    void testOutputSinks() throws IOException {
+        String filesOutDir = "build/test-out-sink-files";
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", filesOutDir, "--resolve-invocations");
+        Map<String, String> expected = reportTexts(new File(filesOutDir));
+        List<String> targets = Files.readAllLines(new File(filesOutDir, "InvocationTargets.csv").toPath());
+        Collections.sort(targets);
+
+        String ndjsonOutDir = "build/test-out-sink-ndjson";
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", ndjsonOutDir, "--resolve-invocations", "--output-sink", "ndjson");
+        File ndjson = new File(ndjsonOutDir, "metadata.ndjson");
+        Map<String, String> ndjsonReports = new TreeMap<>();
+        Pattern linePattern = Pattern.compile("\\{\"path\":\"((?:[^\"\\\\]|\\\\.)*)\",\"report\":(.*)}");
+        for (String line : Files.readAllLines(ndjson.toPath(), StandardCharsets.UTF_8)) {
+            Matcher m = linePattern.matcher(line);
+            assert (m.matches()) : line;
+            assert (ndjsonReports.put(unescape(m.group(1)) + ".json", m.group(2)) == null);
+        }
+        Map<String, String> expectedLines = new TreeMap<>();
+        for (Map.Entry<String, String> entry : expected.entrySet())
+            expectedLines.put(entry.getKey(), entry.getValue().replaceAll("[\r\n]", ""));
+        assert (ndjsonReports.equals(expectedLines));
+        assert (reportNames(new File(ndjsonOutDir)).isEmpty());
+        assert (sortedLines(new File(ndjsonOutDir, "InvocationTargets.csv")).equals(targets));
+
+        String gzipOutDir = "build/test-out-sink-gzip";
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", gzipOutDir, "--output-sink", "gzip");
+        try (InputStream in = new GZIPInputStream(new FileInputStream(new File(gzipOutDir, "metadata.ndjson.gz")))) {
+            assert (Arrays.equals(readAll(in), Files.readAllBytes(ndjson.toPath())));
+        }
+
+        String zipOutDir = "build/test-out-sink-zip";
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", zipOutDir, "--resolve-invocations", "--output-sink", "zip");
+        File unzipped = new File(zipOutDir, "unzipped");
+        unzip(new File(zipOutDir, "metadata.zip").getPath(), unzipped);
+        assert (reportTexts(unzipped).equals(expected));
+        assert (sortedLines(new File(unzipped, "InvocationTargets.csv")).equals(targets));
+    }
+
+    private static List<String> sortedLines(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath());
+        Collections.sort(lines);
+        return lines;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            bytes.write(buf, 0, n);
+        return bytes.toByteArray();
+    }
+
+    /** Runs the command line and returns its standard output. */
+    private static String runWithOutput(String[] args) {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(bytes, true));
+            Main.run(args);
+        } finally {
+            System.setOut(stdout);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void assertSameOutput(RunResult rr, RunResult expected, String outDir) throws IOException {
+        String expectedDir = "build/test-out-unsharded";
+        assert (rr.unmatched == expected.unmatched) : rr.unmatched + " vs " + expected.unmatched;
+        assert (stats(rr.idMapper).equals(stats(expected.idMapper)));
+        assert (reportTexts(new File(outDir)).equals(reportTexts(new File(expectedDir))));
+        List<String> targets = Files.readAllLines(new File(expectedDir, "InvocationTargets.csv").toPath());
+        Collections.sort(targets);
+        assert (Files.readAllLines(new File(outDir, "InvocationTargets.csv").toPath()).equals(targets));
+    }
+
+    /**
+     * Writes Doop facts for the methods of an IR artifact: every invocation
+     * has a base variable and a return variable, every allocation is
+     * assigned to a variable and every first parameter is assigned to the
+     * receiver. The facts variables are the input of a results relation
+     * (VarPointsTo.csv).
+     */
+    private static void writeDoopFacts(File db, String jar) throws IOException {
+        FileUtils.deleteDirectory(db);
+        if (!db.mkdirs())
+            throw new IOException("Could not create " + db);
+        IRState irState = new IRState();
+        IRProcessor.processIR(irState, new HashSet<>(), new File(jar), false, true);
+        List<String> invocations = new ArrayList<>();
+        List<String> returns = new ArrayList<>();
+        List<String> allocations = new ArrayList<>();
+        List<String> locals = new ArrayList<>();
+        List<String> results = new ArrayList<>();
+        for (IRType irType : irState.irTypes)
+            for (IRMethod irMethod : irType.methods) {
+                String methodId = irMethod.getId();
+                int var = 0;
+                for (IRMethodInvocation invo : irMethod.invocations) {
+                    String base = methodId + "/base" + var;
+                    String ret = methodId + "/ret" + var++;
+                    invocations.add(String.join("\t", invo.getId(), "0", "0", base, methodId));
+                    returns.add(String.join("\t", invo.getId(), ret));
+                    results.add(base + "\tobject");
+                    results.add(ret + "\tobject");
+                }
+                for (IRAllocation alloc : irMethod.allocations) {
+                    String target = methodId + "/alloc" + var++;
+                    allocations.add(String.join("\t", "0", "0", alloc.getId(), target, methodId, "0"));
+                    results.add(target + "\tobject");
+                }
+                if (!irMethod.parameters.isEmpty()) {
+                    String param = methodId + IRVariable.PARAM_PRE + "0";
+                    locals.add(String.join("\t", "0", "0", param, methodId + IRVariable.THIS_NAME, methodId));
+                    results.add(param + "\tobject");
+                }
+            }
+        Files.write(new File(db, "VirtualMethodInvocation.facts").toPath(), invocations);
+        Files.write(new File(db, "AssignReturnValue.facts").toPath(), returns);
+        Files.write(new File(db, "AssignHeapAllocation.facts").toPath(), allocations);
+        Files.write(new File(db, "AssignLocal.facts").toPath(), locals);
+        for (String empty : new String[] { "SpecialMethodInvocation.facts", "SuperMethodInvocation.facts", "LoadArrayIndex.facts" })
+            Files.write(new File(db, empty).toPath(), Collections.emptyList());
+        Files.write(new File(db, "VarPointsTo.csv").toPath(), results);
+    }
+
+    /** Extracts a zip archive to a directory. */
+    private static void unzip(String archive, File dir) throws IOException {
+        try (ZipFile zip = new ZipFile(archive)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (entry.isDirectory())
+                    continue;
+                File target = new File(dir, entry.getName());
+                File parent = target.getParentFile();
+                if (!parent.exists() && !parent.mkdirs())
+                    throw new IOException("Could not create " + parent);
+                try (InputStream is = zip.getInputStream(entry)) {
+                    Files.copy(is, target.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that resolving source types via the IR types does not lose any
+     * matches on Java/Groovy sources.
+     */
+    @Test
+    void testIRTypeResolution() throws IOException {
+        RunResult imports = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-type-resolution-off");
+        RunResult ir = generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", "build/test-out-type-resolution-ir", "--ir-type-resolution");
+        assert (ir.unmatched <= imports.unmatched) : ir.unmatched + " vs " + imports.unmatched;
+        Properties importStats = stats(imports.idMapper);
+        Properties irStats = stats(ir.idMapper);
+        for (String key : IdMapper.getStatKeys())
+            if (key.startsWith("matched"))
+                assert (Long.parseLong(irStats.getProperty(key)) >= Long.parseLong(importStats.getProperty(key))) : key;
+    }
+
+    /** Returns the statistics counters of an IdMapper. */
+    static Properties stats(IdMapper idMapper) {
+        Properties props = new Properties();
+        idMapper.saveStats(props);
+        return props;
+    }
+
+    /** Returns the relative paths of the JSON reports in an output directory. */
+    static Set<String> reportNames(File outDir) throws IOException {
+        Set<String> names = new TreeSet<>();
+        try (Stream<Path> files = Files.walk(outDir.toPath())) {
+            files.filter(f -> f.toString().endsWith(".json"))
+                 .forEach(f -> names.add(outDir.toPath().relativize(f).toString()));
+        }
+        return names;
+    }
+
+    /**
+     * Returns the contents of the JSON reports in an output directory (by
+     * relative path).
+     */
+    static Map<String, String> reportTexts(File outDir) throws IOException {
+        Map<String, String> reports = new TreeMap<>();
+        for (String name : reportNames(outDir))
+            reports.put(name, new String(Files.readAllBytes(new File(outDir, name).toPath()), StandardCharsets.UTF_8));
+        return reports;
+    }
+
+    /**
+     * Test that the binary metadata has the same symbols as the JSON
+     * metadata of every source file and that symbols are found by id and
+     * by position.
+     */
+    @Test
+    void testBinaryMetadata() throws IOException {
+        String outDir = "build/test-out-binary";
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", outDir, "--binary-metadata");
+        BinaryMetadataReader reader = BinaryMetadataReader.open(new File(outDir, BinaryMetadataWriter.FILE_NAME));
+        assert (reader.getVersion() == 2);
+        assert (reader.getFileCount() >= 35);
+        assert (reader.getRecordCount() > 0);
+        for (int fileNo = 0; fileNo < reader.getFileCount(); fileNo++) {
+            assert (reader.findFile(reader.getPath(fileNo)) >= 0);
+            File report = new File(outDir, reader.getReportPath(fileNo) + ".json");
+            String json = new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8);
+            Map<SymbolKind, List<String>> binaryIds = new EnumMap<>(SymbolKind.class);
+            for (BinarySymbol symbol : reader.getSymbols(fileNo)) {
+                assert (reader.findSymbols(symbol.symbolId).stream().anyMatch(s -> s.record == symbol.record));
+                if (symbol.startLine >= 0 && symbol.startColumn >= 0 && symbol.endLine >= 0 && symbol.endColumn >= 0)
+                    assert (reader.findSymbolsAt(symbol.path, symbol.startLine, symbol.startColumn).stream().anyMatch(s -> s.record == symbol.record));
+                // Symbols without ids (such as aliases) cannot be found in the JSON report.
+                if (!symbol.symbolId.isEmpty())
+                    binaryIds.computeIfAbsent(symbol.kind, k -> new ArrayList<>()).add(symbol.symbolId);
+            }
+            for (SymbolKind kind : SymbolKind.values()) {
+                List<String> ids = binaryIds.getOrDefault(kind, new ArrayList<>());
+                List<String> jsonIds = jsonSymbolIds(json, kind);
+                Collections.sort(ids);
+                Collections.sort(jsonIds);
+                assert (ids.equals(jsonIds)) : report + ": " + kind.getTypeName();
+            }
+        }
+    }
+
+    /**
+     * Test that the interval trees of the binary metadata find the same
+     * symbols (in the same order) as a scan of all symbols of a file.
+     */
+    @Test
+    void testBinaryMetadataPositions() throws IOException {
+        String outDir = "build/test-out-binary-positions";
+        generateJson("clue-common-3.24.1.jar", "clue-common-3.24.1-sources.jar", outDir, "--binary-metadata");
+        BinaryMetadataReader reader = BinaryMetadataReader.open(new File(outDir, BinaryMetadataWriter.FILE_NAME));
+        Random random = new Random(42);
+        int queries = 0;
+        for (int fileNo = 0; fileNo < reader.getFileCount(); fileNo++) {
+            String path = reader.getPath(fileNo);
+            List<BinarySymbol> symbols = new ArrayList<>();
+            for (BinarySymbol symbol : reader.getSymbols(path))
+                if (symbol.startLine >= 0 && symbol.startColumn >= 0 && symbol.endLine >= 0 && symbol.endColumn >= 0)
+                    symbols.add(symbol);
+            if (symbols.isEmpty())
+                continue;
+            List<int[]> ranges = new ArrayList<>();
+            ranges.add(new int[] { 0, 0, 0, 0 });
+            ranges.add(new int[] { Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 0 });
+            ranges.add(new int[] { 0, 0, Integer.MAX_VALUE, 0 });
+            for (BinarySymbol symbol : symbols) {
+                ranges.add(new int[] { symbol.startLine, symbol.startColumn, symbol.startLine, symbol.startColumn });
+                ranges.add(new int[] { symbol.endLine, symbol.endColumn, symbol.endLine, symbol.endColumn });
+                ranges.add(new int[] { symbol.startLine, symbol.startColumn + 1, symbol.startLine, symbol.startColumn + 1 });
+                BinarySymbol other = symbols.get(random.nextInt(symbols.size()));
+                ranges.add(new int[] { symbol.startLine, symbol.startColumn, other.endLine, other.endColumn });
+            }
+            for (int[] r : ranges) {
+                List<Integer> expected = scanOverlapping(symbols, r[0], r[1], r[2], r[3]);
+                List<Integer> actual = new ArrayList<>();
+                for (BinarySymbol symbol : reader.findSymbolsOverlapping(path, r[0], r[1], r[2], r[3]))
+                    actual.add(symbol.record);
+                assert (actual.equals(expected)) : path + ": " + Arrays.toString(r);
+                if (r[0] == r[2] && r[1] == r[3]) {
+                    actual.clear();
+                    for (BinarySymbol symbol : reader.findSymbolsAt(path, r[0], r[1]))
+                        actual.add(symbol.record);
+                    assert (actual.equals(expected)) : path + ": " + Arrays.toString(r);
+                }
+                queries++;
+            }
+        }
+        assert (queries > 1000);
+    }
+
+    /**
+     * Returns the records of the symbols that overlap a range (found by
+     * scanning all symbols), from the latest to the earliest start.
+     */
+    private static List<Integer> scanOverlapping(List<BinarySymbol> symbols, int startLine, int startColumn, int endLine, int endColumn) {
+        long qStart = pack(startLine, startColumn);
+        long qEnd = pack(endLine, endColumn);
+        List<long[]> found = new ArrayList<>();
+        for (BinarySymbol symbol : symbols) {
+            long start = pack(symbol.startLine, symbol.startColumn);
+            long end = Math.max(start, pack(symbol.endLine, symbol.endColumn));
+            if (start <= qEnd && end >= qStart)
+                found.add(new long[] { start, end, symbol.record });
+        }
+        found.sort((a, b) -> {
+            int c = Long.compare(b[0], a[0]);
+            if (c == 0)
+                c = Long.compare(a[1], b[1]);
+            return c != 0 ? c : Long.compare(a[2], b[2]);
+        });
+        List<Integer> records = new ArrayList<>(found.size());
+        for (long[] f : found)
+            records.add((int) f[2]);
+        return records;
+    }
+
+    private static long pack(int line, int column) {
+        return ((long) line << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the symbol ids of the elements of a kind in a JSON report
+     * (empty if the report has no array for the kind).
+     */
+    private static List<String> jsonSymbolIds(String json, SymbolKind kind) {
+        List<String> ids = new ArrayList<>();
+        Matcher array = Pattern.compile("\"" + kind.getTypeName() + "\"\\s*:\\s*\\[").matcher(json);
+        if (!array.find())
+            return ids;
+        Matcher m = Pattern.compile("\"symbolId\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"").matcher(json);
+        m.region(array.end(), arrayEnd(json, array.end()));
+        while (m.find())
+            ids.add(unescape(m.group(1)));
+        return ids;
+    }
+
+    /**
+     * Returns the position of the bracket that closes a JSON array.
+     * @param json    the JSON text
+     * @param start   the position after the opening bracket
+     */
+    private static int arrayEnd(String json, int start) {
+        int depth = 1;
+        boolean inString = false;
+        for (int i = start; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\')
+                    i++;
+                else if (c == '"')
+                    inString = false;
+            } else if (c == '"')
+                inString = true;
+            else if (c == '[' || c == '{')
+                depth++;
+            else if ((c == ']' || c == '}') && --depth == 0)
+                return i;
+        }
+        return json.length();
+    }
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\')
+                sb.append(c);
+            else {
+                char e = s.charAt(++i);
+                switch (e) {
+                    case 'u': sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16)); i += 4; break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    default: sb.append(e);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
     // Helper method to use when updating test statistics.
     void inspect(IdMapper idMapper) {
         try {
@@ -86,14 +943,22 @@ public class TestMapper {
         }
     }
 
-    RunResult generateJson(String jarRes, String sourcesJarRes, String outDir) throws IOException {
-        ClassLoader classLoader = getClass().getClassLoader();
-        String jar = Objects.requireNonNull(classLoader.getResource(jarRes)).getFile();
+    RunResult generateJson(String jarRes, String sourcesJarRes, String outDir, String... extraArgs) throws IOException {
+        String jar = resource(jarRes);
         System.out.println("jar: " + jar);
-        String sourcesJar = Objects.requireNonNull(classLoader.getResource(sourcesJarRes)).getFile();
+        String sourcesJar = resource(sourcesJarRes);
         System.out.println("sourcesJar: " + sourcesJar);
+        return generateJsonFrom(jar, sourcesJar, outDir, extraArgs);
+    }
+
+    RunResult generateJsonFrom(String jar, String sources, String outDir, String... extraArgs) throws IOException {
         FileUtils.deleteDirectory(new File(outDir));
-        String[] args = new String[]{"--ir", jar, "--source", sourcesJar, "--out", outDir, "--json", "--stats"};
-        return Main.run(args);
+        List<String> args = new ArrayList<>(Arrays.asList("--ir", jar, "--source", sources, "--out", outDir, "--json", "--stats"));
+        args.addAll(Arrays.asList(extraArgs));
+        return Main.run(args.toArray(new String[0]));
+    }
+
+    String resource(String name) {
+        return Objects.requireNonNull(getClass().getClassLoader().getResource(name)).getFile();
     }
 }
@@ -0,0 +1,184 @@
+package org.clyze.source.irfitter.test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import org.apache.commons.io.FileUtils;
+import org.clyze.source.irfitter.Main;
+import org.clyze.source.irfitter.daemon.QueryServer;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataReader;
+import org.clyze.source.irfitter.source.binary.BinaryMetadataWriter;
+import org.clyze.source.irfitter.source.binary.BinarySymbol;
+import org.junit.jupiter.api.Test;
+
+public class TestQueryServer {
+    /**
+     * Test the replies of the query server to every request and that
+     * clients without the access token, with too long requests or beyond
+     * the connection limit are rejected.
+     */
+    @Test
+    void testQueryServer() throws IOException, InterruptedException {
+        File dir = new File("build/test-query-server");
+        FileUtils.deleteDirectory(dir);
+        File out = new File(dir, "out");
+        assert (Main.run(new String[] { "--ir", resource("clue-common-3.24.1.jar"), "--source", resource("clue-common-3.24.1-sources.jar"),
+                                        "--out", out.getPath(), "--json", "--binary-metadata" }) != null);
+        BinaryMetadataReader index = BinaryMetadataReader.open(new File(out, BinaryMetadataWriter.FILE_NAME));
+        File tokenFile = new File(dir, "query.token");
+        QueryServer server = new QueryServer(index, 0, tokenFile, false);
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+        serverThread.start();
+        try {
+            int port = waitForPort(server);
+            String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+
+            try (Client client = new Client(port, token)) {
+                String path = index.getPath(0);
+                BinarySymbol symbol = null;
+                for (BinarySymbol s : index.getSymbols(path))
+                    if (!s.symbolId.isEmpty() && s.startLine >= 0 && s.startColumn >= 0) {
+                        symbol = s;
+                        break;
+                    }
+                assert (symbol != null) : path;
+
+                String byId = client.request(QueryServer.ID + "\t" + symbol.symbolId);
+                assert (byId.startsWith("{\"symbols\":[")) : byId;
+                assert (count(byId, "\"symbolId\":") == index.findSymbols(symbol.symbolId).size()) : byId;
+                assert (byId.contains("\"path\":\"" + path + "\",\"startLine\":" + symbol.startLine + ",\"startColumn\":" + symbol.startColumn)) : byId;
+
+                String at = client.request(QueryServer.AT + "\t" + path + "\t" + symbol.startLine + "\t" + symbol.startColumn);
+                List<BinarySymbol> atSymbols = index.findSymbolsAt(path, symbol.startLine, symbol.startColumn);
+                assert (count(at, "\"symbolId\":") == atSymbols.size()) : at;
+                assert (at.startsWith("{\"symbols\":[{\"kind\":\"" + atSymbols.get(0).kind.getTypeName() + "\"")) : at;
+
+                String file = client.request(QueryServer.FILE + "\t" + path);
+                assert (count(file, "\"symbolId\":") == index.getSymbols(path).size()) : file;
+
+                String files = client.request(QueryServer.FILES);
+                assert (files.equals(files(index))) : files;
+
+                assert (client.request(QueryServer.AT + "\t" + path + "\tx\t1").startsWith("{\"error\":\"bad position")) : "bad position";
+                assert (client.request("find\tx").startsWith("{\"error\":\"bad request")) : "bad request";
+                // The connection is still served after bad requests.
+                assert (client.request(QueryServer.FILES).equals(files));
+            }
+
+            try (Client client = new Client(port, "0000")) {
+                assert (client.readLine().contains("wrong query server token"));
+                assert (client.readLine() == null);
+            }
+
+            try (Client client = new Client(port, token)) {
+                char[] longPath = new char[QueryServer.MAX_LINE_LENGTH];
+                Arrays.fill(longPath, 'a');
+                assert (client.request(QueryServer.FILE + "\t" + new String(longPath)).contains("up to " + QueryServer.MAX_LINE_LENGTH + " characters"));
+                assert (client.readLine() == null);
+            }
+
+            List<Client> clients = new ArrayList<>();
+            try {
+                for (int i = 0; i < QueryServer.MAX_CONNECTIONS; i++)
+                    clients.add(new Client(port, token));
+                // Every connection is served when its first request is answered.
+                for (Client client : clients)
+                    assert (client.request(QueryServer.FILES).equals(files(index)));
+                // The server replies before reading the token.
+                try (Client client = new Client(port, null)) {
+                    assert (client.readLine().contains("too many connections"));
+                }
+            } finally {
+                for (Client client : clients)
+                    client.close();
+            }
+
+            try (Client client = new Client(port, token)) {
+                assert (client.request(QueryServer.STOP).equals("{\"stopped\":true}"));
+            }
+            serverThread.join(30_000);
+            assert (!serverThread.isAlive());
+            assert (!tokenFile.exists());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /** A connection to a query server. */
+    private static final class Client implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Client(int port, String token) throws IOException {
+            this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            if (token != null)
+                send(token);
+        }
+
+        String request(String request) throws IOException {
+            send(request);
+            return readLine();
+        }
+
+        String readLine() throws IOException {
+            return in.readLine();
+        }
+
+        private void send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /** Returns the reply of the server to a request for the source files. */
+    private static String files(BinaryMetadataReader index) {
+        StringBuilder sb = new StringBuilder("{\"files\":[");
+        String last = null;
+        for (int fileNo = 0; fileNo < index.getFileCount(); fileNo++) {
+            String path = index.getPath(fileNo);
+            if (!path.equals(last))
+                sb.append(last == null ? "" : ",").append('"').append(path).append('"');
+            last = path;
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static int count(String s, String sub) {
+        int n = 0;
+        for (int i = s.indexOf(sub); i >= 0; i = s.indexOf(sub, i + sub.length()))
+            n++;
+        return n;
+    }
+
+    private static int waitForPort(QueryServer server) throws IOException, InterruptedException {
+        for (int i = 0; i < 600; i++) {
+            int port = server.getLocalPort();
+            if (port != 0)
+                return port;
+            Thread.sleep(100);
+        }
+        throw new IOException("The query server did not start");
+    }
+
+    private String resource(String name) {
+        return Objects.requireNonNull(getClass().getClassLoader().getResource(name)).getFile();
+    }
+}
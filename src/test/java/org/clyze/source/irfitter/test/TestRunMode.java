@@ -0,0 +1,197 @@
+package org.clyze.source.irfitter.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import org.clyze.source.irfitter.Main;
+import org.clyze.source.irfitter.RunMode;
+import org.clyze.source.irfitter.source.SourceOptions;
+import org.junit.jupiter.api.Test;
+
+public class TestRunMode {
+    /** Test the modes selected by single options. */
+    @Test
+    void testSingleModes() {
+        RunMode batch = RunMode.select(request());
+        assert (batch.kind == RunMode.Kind.BATCH && !batch.pipelined);
+        assert (batch.warnings.isEmpty() && batch.error == null);
+
+        RunMode.Request r = request();
+        r.pipelined = true;
+        RunMode pipelined = RunMode.select(r);
+        assert (pipelined.kind == RunMode.Kind.BATCH && pipelined.pipelined && pipelined.warnings.isEmpty());
+        r.stats = true;
+        assert (RunMode.select(r).warnings.get(0).contains("heap footprint"));
+
+        r = request();
+        r.streaming = true;
+        r.pipelined = true;
+        RunMode streaming = RunMode.select(r);
+        assert (streaming.kind == RunMode.Kind.STREAMING && streaming.pipelined && streaming.warnings.isEmpty());
+
+        r = request();
+        r.partitioned = true;
+        assert (RunMode.select(r).kind == RunMode.Kind.PARTITIONED);
+        r = request();
+        r.sharded = true;
+        assert (RunMode.select(r).kind == RunMode.Kind.SHARDED);
+        r = request();
+        r.watch = true;
+        assert (RunMode.select(r).kind == RunMode.Kind.WATCH);
+        r = new RunMode.Request();
+        r.manifest = true;
+        RunMode manifest = RunMode.select(r);
+        assert (manifest.kind == RunMode.Kind.MANIFEST && manifest.error == null);
+    }
+
+    /** Test which of several mode options takes precedence. */
+    @Test
+    void testModePrecedence() {
+        RunMode.Request r = request();
+        r.partitioned = true;
+        r.streaming = true;
+        r.pipelined = true;
+        RunMode partitioned = RunMode.select(r);
+        assert (partitioned.kind == RunMode.Kind.PARTITIONED && !partitioned.pipelined);
+        assert (partitioned.warnings.size() == 1 && partitioned.warnings.get(0).contains("ignored in partitioned runs"));
+
+        // Workers of sharded runs get the streaming/pipelined options.
+        r = request();
+        r.sharded = true;
+        r.streaming = true;
+        r.pipelined = true;
+        RunMode sharded = RunMode.select(r);
+        assert (sharded.kind == RunMode.Kind.SHARDED && !sharded.pipelined && sharded.warnings.isEmpty());
+
+        r = request();
+        r.watch = true;
+        r.sharded = true;
+        r.partitioned = true;
+        r.duplicates = SourceOptions.Duplicates.SUPPRESS;
+        RunMode watch = RunMode.select(r);
+        assert (watch.kind == RunMode.Kind.WATCH && watch.duplicates == SourceOptions.Duplicates.OFF);
+        assert (watch.warnings.size() == 2) : watch.warnings;
+
+        r = new RunMode.Request();
+        r.manifest = true;
+        r.watch = true;
+        r.streaming = true;
+        RunMode manifest = RunMode.select(r);
+        assert (manifest.kind == RunMode.Kind.MANIFEST && manifest.error == null);
+        assert (manifest.warnings.size() == 1 && manifest.warnings.get(0).contains("ignored with --manifest"));
+    }
+
+    /** Test the options that are turned off in some modes. */
+    @Test
+    void testOutputOptions() {
+        for (boolean watch : new boolean[] { false, true }) {
+            RunMode.Request r = request();
+            r.watch = watch;
+            r.sharded = !watch;
+            r.sink = SourceOptions.Sink.ZIP;
+            r.binaryMetadata = true;
+            RunMode mode = RunMode.select(r);
+            assert (mode.sink == SourceOptions.Sink.FILES && !mode.binaryMetadata);
+            assert (mode.warnings.size() == 2) : mode.warnings;
+        }
+
+        RunMode.Request r = request();
+        r.streaming = true;
+        r.sink = SourceOptions.Sink.NDJSON;
+        r.binaryMetadata = true;
+        r.duplicates = SourceOptions.Duplicates.EMIT;
+        RunMode streaming = RunMode.select(r);
+        assert (streaming.sink == SourceOptions.Sink.NDJSON && streaming.binaryMetadata);
+        assert (streaming.duplicates == SourceOptions.Duplicates.EMIT && streaming.warnings.isEmpty());
+    }
+
+    /** Test the modes that fall back to a batch run with Doop/SARIF integration. */
+    @Test
+    void testDoopIntegration() {
+        RunMode.Request r = request();
+        r.resolveVars = true;
+        r.sharded = true;
+        r.partitioned = true;
+        r.watch = true;
+        RunMode doop = RunMode.select(r);
+        assert (doop.kind == RunMode.Kind.BATCH && doop.error == null);
+        assert (doop.warnings.size() == 3) : doop.warnings;
+
+        // Streaming supports Doop variables, but not SARIF results.
+        r = request();
+        r.resolveVars = true;
+        r.streaming = true;
+        assert (RunMode.select(r).kind == RunMode.Kind.STREAMING);
+        r.sarif = true;
+        RunMode sarif = RunMode.select(r);
+        assert (sarif.kind == RunMode.Kind.BATCH && sarif.warnings.size() == 1);
+
+        r = request();
+        r.manifest = true;
+        r.translateResults = true;
+        assert (RunMode.select(r).error.contains("Doop/SARIF"));
+    }
+
+    /** Test the combinations that cannot run. */
+    @Test
+    void testErrors() {
+        RunMode.Request r = request();
+        r.sharded = true;
+        r.shardWorker = true;
+        assert (RunMode.select(r).error.contains("--shard"));
+        // A run with Doop integration is not sharded, so it can be a worker.
+        r.resolveVars = true;
+        assert (RunMode.select(r).error == null);
+
+        r = request();
+        r.manifest = true;
+        r.inputPaths = true;
+        assert (RunMode.select(r).error.contains("-i/-s"));
+
+        for (int i = 0; i < 4; i++) {
+            r = request();
+            r.serve = true;
+            r.watch = i == 0;
+            r.sharded = i == 1;
+            r.manifest = i == 2;
+            r.inputPaths = !r.manifest;
+            r.inDaemon = i == 3;
+            assert (RunMode.select(r).error.contains("--serve")) : i;
+        }
+        r = request();
+        r.serve = true;
+        r.streaming = true;
+        assert (RunMode.select(r).error == null);
+    }
+
+    /** Test that runs with options that cannot be combined do not start. */
+    @Test
+    void testMainErrors() {
+        assert (runErrors("--shards", "2", "--shard", "0/2", "-i", "x.jar", "-s", "x", "-o", "build/test-run-mode").contains("ERROR: --shards cannot be combined with --shard"));
+        assert (runErrors("--manifest", "manifest.json", "-i", "x.jar").contains("ERROR: --manifest cannot be combined with -i/-s"));
+        assert (runErrors("-i", "x.jar", "-s", "x", "--output-sink", "none").contains("ERROR: --output-sink must be one of: files, diff"));
+    }
+
+    /**
+     * Run with options that cannot be combined.
+     * @return   the error output of the run
+     */
+    private static String runErrors(String... args) {
+        PrintStream stderr = System.err;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            System.setErr(new PrintStream(bytes, true));
+            assert (Main.run(args) == null);
+        } finally {
+            System.setErr(stderr);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /** Returns the options of a plain batch run. */
+    private static RunMode.Request request() {
+        RunMode.Request r = new RunMode.Request();
+        r.inputPaths = true;
+        return r;
+    }
+}
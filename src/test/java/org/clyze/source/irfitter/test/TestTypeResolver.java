@@ -0,0 +1,55 @@
+package org.clyze.source.irfitter.test;
+
+import java.io.File;
+import java.util.*;
+import org.clyze.source.irfitter.source.model.FuzzyTypes;
+import org.clyze.source.irfitter.source.model.Import;
+import org.clyze.source.irfitter.source.model.SourceFile;
+import org.clyze.source.irfitter.source.model.TypeResolver;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the resolution of source types via imports and via the types
+ * known to the IR.
+ */
+public class TestTypeResolver {
+
+    /**
+     * Test that types under several wildcard imports are narrowed down to
+     * the IR types, and that all candidates are kept when the IR does not
+     * know any of them.
+     */
+    @Test
+    void testWildcardImports() {
+        SourceFile sf = sourceFile("java.util", "java.awt");
+        List<String> candidates = Arrays.asList("List", "p.List", "java.util.List", "java.awt.List");
+        assert (FuzzyTypes.resolveType(sf, "List").equals(candidates)) : FuzzyTypes.resolveType(sf, "List");
+        TypeResolver resolver = new TypeResolver(sf, new HashSet<>(Arrays.asList("java.util.List", "p.A")));
+        assert (resolver.resolve("List").equals(Collections.singletonList("java.util.List")));
+        assert (resolver.resolve("List[]").equals(Collections.singletonList("java.util.List[]")));
+        assert (resolver.resolve("Unknown").equals(FuzzyTypes.resolveType(sf, "Unknown")));
+    }
+
+    /**
+     * Test that "void" and primitive types are not resolved via imports,
+     * with or without the IR type resolver.
+     */
+    @Test
+    void testVoid() {
+        SourceFile sf = sourceFile("java.util");
+        assert (FuzzyTypes.resolveType(sf, "void").equals(Collections.singletonList("void"))) : FuzzyTypes.resolveType(sf, "void");
+        assert (FuzzyTypes.resolveType(sf, "int").equals(Collections.singletonList("int")));
+        TypeResolver resolver = new TypeResolver(sf, Collections.emptySet());
+        assert (resolver.resolve("void").equals(Collections.singletonList("void")));
+        assert (resolver.resolve(null).equals(Collections.singletonList("void")));
+    }
+
+    private static SourceFile sourceFile(String... wildcardImports) {
+        File topDir = new File("build");
+        SourceFile sf = new SourceFile(topDir, new File(topDir, "A.java"), "test", false, false);
+        sf.packageName = "p";
+        for (String i : wildcardImports)
+            sf.imports.add(new Import(null, i, true, false));
+        return sf;
+    }
+}
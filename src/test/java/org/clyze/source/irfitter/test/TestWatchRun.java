@@ -0,0 +1,137 @@
+package org.clyze.source.irfitter.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.clyze.source.irfitter.RunResult;
+import org.clyze.source.irfitter.source.Driver;
+import org.clyze.source.irfitter.source.SourceOptions;
+import org.clyze.source.irfitter.source.WatchRun;
+import org.junit.jupiter.api.Test;
+
+public class TestWatchRun {
+    private static final String EDITED = "org/clyze/utils/TypeUtils.java";
+    private static final String DELETED = "org/clyze/utils/OS.java";
+
+    /**
+     * Test that an update after a source file is edited and another one is
+     * deleted rewrites the report of the edited file (as a new run would
+     * write it), deletes the report of the deleted file and keeps the
+     * other reports.
+     */
+    @Test
+    void testProcessChanges() throws IOException {
+        File dir = new File("build/test-watch-run");
+        FileUtils.deleteDirectory(dir);
+        File srcDir = new File(dir, "src");
+        unzip(resource("clue-common-3.24.1-sources.jar"), srcDir);
+        File ir = new File(resource("clue-common-3.24.1.jar"));
+        File out = new File(dir, "out");
+        WatchRun run = new WatchRun(newDriver(out), new HashSet<>(), false);
+        start(run, ir, srcDir);
+        Map<String, String> before = reports(out);
+        assert (before.containsKey(EDITED + ".json") && before.containsKey(DELETED + ".json"));
+
+        // Shift the edited file by one line, so that all its positions change.
+        File edited = new File(srcDir, EDITED);
+        Files.write(edited.toPath(), ("\n" + new String(Files.readAllBytes(edited.toPath()), StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8));
+        File deleted = new File(srcDir, DELETED);
+        assert (deleted.delete());
+        RunResult updated = run.processChanges(Arrays.asList(edited, deleted));
+
+        Map<String, String> after = reports(out);
+        assert (!after.containsKey(DELETED + ".json"));
+        assert (!after.get(EDITED + ".json").equals(before.get(EDITED + ".json")));
+        for (Map.Entry<String, String> entry : before.entrySet())
+            if (!entry.getKey().equals(EDITED + ".json") && !entry.getKey().equals(DELETED + ".json"))
+                assert (entry.getValue().equals(after.get(entry.getKey()))) : entry.getKey();
+
+        // A new run on the changed sources writes the same reports.
+        File freshOut = new File(dir, "out-fresh");
+        RunResult fresh = start(new WatchRun(newDriver(freshOut), new HashSet<>(), false), ir, srcDir);
+        assert (reports(freshOut).equals(after));
+        assert (updated.unmatched == fresh.unmatched) : updated.unmatched + " vs " + fresh.unmatched;
+    }
+
+    /**
+     * Test that an update after an IR file is deleted and another one is
+     * edited gives the same reports as a new run on the changed IR.
+     */
+    @Test
+    void testIRChanges() throws IOException {
+        File dir = new File("build/test-watch-run-ir");
+        FileUtils.deleteDirectory(dir);
+        File irDir = new File(dir, "ir");
+        unzip(resource("clue-common-3.24.1.jar"), irDir);
+        File srcDir = new File(dir, "src");
+        unzip(resource("clue-common-3.24.1-sources.jar"), srcDir);
+        File out = new File(dir, "out");
+        WatchRun run = new WatchRun(newDriver(out), new HashSet<>(), false);
+        start(run, irDir, srcDir);
+        Map<String, String> before = reports(out);
+
+        // Delete the IR of a source file and replace the IR of another one.
+        File deleted = new File(irDir, "org/clyze/utils/TypeUtils.class");
+        File replaced = new File(irDir, "org/clyze/utils/OS.class");
+        assert (deleted.delete());
+        Files.copy(new File(irDir, "org/clyze/utils/ContainerUtils.class").toPath(), replaced.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        RunResult updated = run.processChanges(Arrays.asList(deleted, replaced));
+        Map<String, String> after = reports(out);
+        assert (!after.equals(before));
+
+        File freshOut = new File(dir, "out-fresh");
+        RunResult fresh = start(new WatchRun(newDriver(freshOut), new HashSet<>(), false), irDir, srcDir);
+        assert (reports(freshOut).equals(after));
+        assert (updated.unmatched == fresh.unmatched) : updated.unmatched + " vs " + fresh.unmatched;
+    }
+
+    private static Driver newDriver(File out) {
+        SourceOptions sourceOptions = new SourceOptions();
+        sourceOptions.prefilter = SourceOptions.Prefilter.DECLARATIONS;
+        return new Driver(out, null, false, false, true, new HashSet<>(), sourceOptions);
+    }
+
+    private static RunResult start(WatchRun run, File ir, File srcDir) {
+        return run.start(Collections.singletonList(ir), irState -> {}, Collections.singletonList(srcDir),
+                         false, true, true, false, false, false, false);
+    }
+
+    /** Returns the JSON reports of an output directory, by relative path. */
+    private static Map<String, String> reports(File outDir) throws IOException {
+        Map<String, String> reports = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(outDir.toPath())) {
+            for (Path f : (Iterable<Path>) files.filter(p -> p.toString().endsWith(".json"))::iterator)
+                reports.put(outDir.toPath().relativize(f).toString().replace(File.separatorChar, '/'),
+                            new String(Files.readAllBytes(f), StandardCharsets.UTF_8));
+        }
+        return reports;
+    }
+
+    private static void unzip(String archive, File dir) throws IOException {
+        try (ZipFile zip = new ZipFile(archive)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                File file = new File(dir, entry.getName());
+                if (entry.isDirectory())
+                    continue;
+                if (!file.getParentFile().exists() && !file.getParentFile().mkdirs())
+                    throw new IOException("Could not create " + file.getParentFile());
+                try (InputStream in = zip.getInputStream(entry)) {
+                    Files.copy(in, file.toPath());
+                }
+            }
+        }
+    }
+
+    private String resource(String name) {
+        return Objects.requireNonNull(getClass().getClassLoader().getResource(name)).getFile();
+    }
+}